@@ -0,0 +1,95 @@
+-- Converts EMAIL_OTP_TRUSTED_IP and EMAIL_OTP_TRUSTED_DEVICE into tables range-partitioned by EXPIRES_AT,
+-- for --spi-email-otp-trust-store-jpa-partition-bucket-days. PostgreSQL 11 or later.
+--
+-- Run it with Keycloak stopped, connected as the Keycloak database user, with search_path set to
+-- the Keycloak schema. Set bucket_days below to the same value as partition-bucket-days.
+-- Expired entries are not copied. Partitions are created for every bucket holding a copy,
+-- Keycloak then keeps creating the upcoming ones and drops the expired ones.
+--
+-- A unique constraint of a partitioned table must include EXPIRES_AT, so the
+-- (REALM_ID, USER_ID, key) constraints become plain lookup indexes. Keycloak stops using
+-- native upserts on partitioned tables and writes trust entries through JPA instead,
+-- holding a per-user transaction advisory lock so concurrent logins cannot insert the same entry twice.
+--
+-- Lookups by trust key do not know the entry's EXPIRES_AT, so every login probes the lookup index of
+-- every partition: the more partitions are kept, the more each login costs. Extending an IP trust
+-- updates EXPIRES_AT, which moves the row to another partition (a delete and an insert) once it
+-- crosses a bucket boundary.
+
+BEGIN;
+
+CREATE TABLE EMAIL_OTP_TRUSTED_IP_PART (
+    ID VARCHAR(36) NOT NULL,
+    REALM_ID VARCHAR(255) NOT NULL,
+    USER_ID VARCHAR(255) NOT NULL,
+    IP_ADDRESS BYTEA NOT NULL,
+    EXPIRES_AT BIGINT NOT NULL,
+    CREATED_AT BIGINT NOT NULL,
+    PRIMARY KEY (ID, EXPIRES_AT)
+) PARTITION BY RANGE (EXPIRES_AT);
+
+CREATE TABLE EMAIL_OTP_TRUSTED_DEVICE_PART (
+    ID VARCHAR(36) NOT NULL,
+    REALM_ID VARCHAR(255) NOT NULL,
+    USER_ID VARCHAR(255) NOT NULL,
+    DEVICE_TOKEN BYTEA NOT NULL,
+    EXPIRES_AT BIGINT NOT NULL,
+    CREATED_AT BIGINT NOT NULL,
+    LAST_SEEN_AT BIGINT NOT NULL,
+    STATELESS BOOLEAN NOT NULL,
+    PRIMARY KEY (ID, EXPIRES_AT)
+) PARTITION BY RANGE (EXPIRES_AT);
+
+DO $$
+DECLARE
+    bucket_days CONSTANT INTEGER := 1;
+    premake_days CONSTANT INTEGER := 30;
+    bucket BIGINT := bucket_days * 86400;
+    now_seconds BIGINT := EXTRACT(EPOCH FROM now())::BIGINT;
+    horizon BIGINT;
+    table_name TEXT;
+    table_columns TEXT;
+    bucket_start BIGINT;
+BEGIN
+    FOREACH table_name IN ARRAY ARRAY['EMAIL_OTP_TRUSTED_IP', 'EMAIL_OTP_TRUSTED_DEVICE'] LOOP
+        -- Permanent device trusts (EXPIRES_AT = 0) are never dropped, rows outside every bucket wait in the default partition
+        EXECUTE format('CREATE TABLE %s_PERMANENT PARTITION OF %s_PART FOR VALUES FROM (MINVALUE) TO (1)', table_name, table_name);
+        EXECUTE format('CREATE TABLE %s_DEFAULT PARTITION OF %s_PART DEFAULT', table_name, table_name);
+
+        EXECUTE format('SELECT GREATEST(COALESCE(MAX(EXPIRES_AT), 0), %s) FROM %s', now_seconds + premake_days * 86400, table_name)
+            INTO horizon;
+        bucket_start := (now_seconds / bucket) * bucket;
+        WHILE bucket_start <= horizon LOOP
+            EXECUTE format('CREATE TABLE %s_P%s PARTITION OF %s_PART FOR VALUES FROM (%s) TO (%s)',
+                table_name, to_char(to_timestamp(bucket_start) AT TIME ZONE 'UTC', 'YYYYMMDD'),
+                table_name, bucket_start, bucket_start + bucket);
+            bucket_start := bucket_start + bucket;
+        END LOOP;
+
+        -- Columns named, the existing table may order them differently after past migrations
+        table_columns := CASE table_name
+            WHEN 'EMAIL_OTP_TRUSTED_IP' THEN 'ID, REALM_ID, USER_ID, IP_ADDRESS, EXPIRES_AT, CREATED_AT'
+            ELSE 'ID, REALM_ID, USER_ID, DEVICE_TOKEN, EXPIRES_AT, CREATED_AT, LAST_SEEN_AT, STATELESS'
+        END;
+        EXECUTE format('INSERT INTO %s_PART (%s) SELECT %s FROM %s WHERE EXPIRES_AT = 0 OR EXPIRES_AT >= %s',
+            table_name, table_columns, table_columns, table_name, now_seconds);
+    END LOOP;
+END $$;
+
+DROP TABLE EMAIL_OTP_TRUSTED_IP;
+DROP TABLE EMAIL_OTP_TRUSTED_DEVICE;
+ALTER TABLE EMAIL_OTP_TRUSTED_IP_PART RENAME TO EMAIL_OTP_TRUSTED_IP;
+ALTER TABLE EMAIL_OTP_TRUSTED_DEVICE_PART RENAME TO EMAIL_OTP_TRUSTED_DEVICE;
+
+CREATE INDEX IDX_TRUSTED_IP_LOOKUP ON EMAIL_OTP_TRUSTED_IP (REALM_ID, USER_ID, IP_ADDRESS) INCLUDE (EXPIRES_AT);
+CREATE INDEX IDX_TRUSTED_IP_USER ON EMAIL_OTP_TRUSTED_IP (REALM_ID, USER_ID, CREATED_AT, ID);
+CREATE INDEX IDX_TRUSTED_IP_REALM_CREATED ON EMAIL_OTP_TRUSTED_IP (REALM_ID, CREATED_AT, ID);
+CREATE INDEX IDX_TRUSTED_IP_EXPIRES ON EMAIL_OTP_TRUSTED_IP (EXPIRES_AT);
+CREATE INDEX IDX_TRUSTED_DEVICE_LOOKUP ON EMAIL_OTP_TRUSTED_DEVICE (REALM_ID, USER_ID, DEVICE_TOKEN) INCLUDE (EXPIRES_AT);
+CREATE INDEX IDX_TRUSTED_DEVICE_USER ON EMAIL_OTP_TRUSTED_DEVICE (REALM_ID, USER_ID, CREATED_AT, ID);
+CREATE INDEX IDX_TRUSTED_DEVICE_REALM_CREATED ON EMAIL_OTP_TRUSTED_DEVICE (REALM_ID, CREATED_AT, ID);
+CREATE INDEX IDX_TRUSTED_DEVICE_TOKEN ON EMAIL_OTP_TRUSTED_DEVICE (REALM_ID, DEVICE_TOKEN);
+CREATE INDEX IDX_TRUSTED_DEVICE_EXPIRING ON EMAIL_OTP_TRUSTED_DEVICE (EXPIRES_AT) WHERE EXPIRES_AT > 0;
+CREATE INDEX IDX_TRUSTED_DEVICE_LAST_SEEN ON EMAIL_OTP_TRUSTED_DEVICE (LAST_SEEN_AT);
+
+COMMIT;
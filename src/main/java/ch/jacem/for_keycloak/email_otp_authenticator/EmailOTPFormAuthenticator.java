@@ -6,10 +6,7 @@ import jakarta.ws.rs.core.Response;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.security.PrivateKey;
-import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.Signature;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,25 +16,33 @@ import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.RequiredActionFactory;
 import org.keycloak.authentication.authenticators.browser.AbstractUsernameFormAuthenticator;
-import org.keycloak.common.util.Base64Url;
-import org.keycloak.crypto.KeyUse;
-import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.email.EmailException;
 import org.keycloak.email.EmailTemplateProvider;
 import org.keycloak.events.Errors;
 import org.keycloak.forms.login.LoginFormsProvider;
-import org.keycloak.jose.jws.Algorithm;
 import org.keycloak.jose.jws.crypto.HashUtils;
 import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.services.messages.Messages;
 import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
 
 import ch.jacem.for_keycloak.email_otp_authenticator.authentication.authenticators.conditional.AcceptsFullContextInConfiguredFor;
 import ch.jacem.for_keycloak.email_otp_authenticator.helpers.ConfigHelper;
 import ch.jacem.for_keycloak.email_otp_authenticator.helpers.TrustDurationInfo;
+import ch.jacem.for_keycloak.email_otp_authenticator.mail.MailLane;
+import ch.jacem.for_keycloak.email_otp_authenticator.mail.OtpEmailOutbox;
+import ch.jacem.for_keycloak.email_otp_authenticator.mail.OtpEmailRenderer;
+import ch.jacem.for_keycloak.email_otp_authenticator.mail.OtpMailDispatcher;
+import ch.jacem.for_keycloak.email_otp_authenticator.mail.RenderedEmail;
+import ch.jacem.for_keycloak.email_otp_authenticator.token.DeviceTokens;
+import ch.jacem.for_keycloak.email_otp_authenticator.trust.DeviceTrustClaims;
+import ch.jacem.for_keycloak.email_otp_authenticator.trust.IpTrustRefreshPolicy;
+import ch.jacem.for_keycloak.email_otp_authenticator.trust.TrustEvaluation;
 import ch.jacem.for_keycloak.email_otp_authenticator.trust.TrustStore;
 
 import org.jboss.logging.Logger;
@@ -46,6 +51,7 @@ public class EmailOTPFormAuthenticator extends AbstractUsernameFormAuthenticator
 {
     public static final String AUTH_NOTE_OTP_KEY = "for-kc-email-otp-key";
     public static final String AUTH_NOTE_OTP_CREATED_AT = "for-kc-email-otp-created-at";
+    public static final String AUTH_NOTE_OTP_DELIVERY_FAILED = "for-kc-email-otp-delivery-failed";
 
     public static final String OTP_FORM_TEMPLATE_NAME = "login-email-otp.ftl";
     public static final String OTP_FORM_CODE_INPUT_NAME = "email-otp";
@@ -65,6 +71,20 @@ public class EmailOTPFormAuthenticator extends AbstractUsernameFormAuthenticator
 
     private static final Logger logger = Logger.getLogger(EmailOTPFormAuthenticator.class);
 
+    // Null when emails are only sent synchronously
+    private final OtpMailDispatcher mailDispatcher;
+    // Whether the outbox worker drains the outbox, emails written to it would never be sent otherwise
+    private final boolean outboxEnabled;
+
+    public EmailOTPFormAuthenticator() {
+        this(null, false);
+    }
+
+    public EmailOTPFormAuthenticator(OtpMailDispatcher mailDispatcher, boolean outboxEnabled) {
+        this.mailDispatcher = mailDispatcher;
+        this.outboxEnabled = outboxEnabled;
+    }
+
     @Override
     public void action(AuthenticationFlowContext context) {
         MultivaluedMap<String, String> inputData = context.getHttpRequest().getDecodedFormParameters();
@@ -101,6 +121,22 @@ public class EmailOTPFormAuthenticator extends AbstractUsernameFormAuthenticator
             return;
         }
 
+        // The email sent in the background after the form was shown could not be delivered,
+        // unless it was the email of a code since replaced by a resend
+        String failedOtp = authenticationSession.getAuthNote(AUTH_NOTE_OTP_DELIVERY_FAILED);
+        if (failedOtp != null) {
+            authenticationSession.removeAuthNote(AUTH_NOTE_OTP_DELIVERY_FAILED);
+        }
+        if (failedOtp != null && failedOtp.equals(authenticationSession.getAuthNote(AUTH_NOTE_OTP_KEY))) {
+            context.getEvent().user(user).error(Errors.EMAIL_SEND_FAILED);
+            context.failureChallenge(
+                AuthenticationFlowError.INTERNAL_ERROR,
+                this.buildOtpForm(context, Messages.EMAIL_SENT_ERROR, null)
+            );
+
+            return;
+        }
+
         String otp = inputData.getFirst(OTP_FORM_CODE_INPUT_NAME);
 
         if (null == otp) {
@@ -173,42 +209,53 @@ public class EmailOTPFormAuthenticator extends AbstractUsernameFormAuthenticator
         // Check if trust should be applied based on flow configuration
         boolean shouldApplyTrust = shouldApplyTrust(context);
 
-        // Check device trust first (highest priority)
+        // Device trust has the highest priority, then IP trust
+        String deviceToken = null;
         if (shouldApplyTrust && ConfigHelper.isDeviceTrustEnabled(context)) {
             String signedToken = getDeviceTokenFromCookie(context);
             if (signedToken != null) {
                 // Verify the signature and extract the original token
-                String deviceToken = verifyDeviceToken(context.getSession(), realm, signedToken);
-                if (deviceToken != null) {
-                    TrustStore trustStore = getTrustStore(context);
-                    if (trustStore != null && trustStore.isDeviceTrusted(realm, user, deviceToken)) {
+                String content = DeviceTokens.verify(context.getSession(), realm, signedToken);
+                if (content != null) {
+                    if (isStatelessDeviceTrusted(context, content)) {
                         logger.debugf("Device is trusted for user %s, skipping OTP", user.getId());
                         setAcr(context, ACR_EMAIL_OTP_TRUSTED_DEVICE);
                         context.success();
                         return;
                     }
+                    deviceToken = getStoredDeviceToken(context, content);
                 } else {
                     logger.debug("Device token signature verification failed");
                 }
             }
         }
 
-        // Check IP trust (second priority)
+        String hashedIp = null;
         if (shouldApplyTrust && ConfigHelper.isIpTrustEnabled(context)) {
             String clientIp = getClientIpAddress(context);
             if (clientIp != null) {
                 // Hash the IP for privacy-preserving lookup
-                String hashedIp = hashIpAddress(realm, clientIp);
-                TrustStore trustStore = getTrustStore(context);
-                if (trustStore != null && trustStore.isIpTrusted(realm, user, hashedIp)) {
-                    logger.debugf("IP is trusted for user %s, skipping OTP", user.getId());
-                    // Refresh the rolling expiration
-                    long newExpiresAt = (System.currentTimeMillis() / 1000) + ConfigHelper.getIpTrustDurationSeconds(context);
-                    trustStore.refreshIpTrust(realm, user, hashedIp, newExpiresAt);
-                    setAcr(context, ACR_EMAIL_OTP_TRUSTED_IP);
-                    context.success();
-                    return;
-                }
+                hashedIp = hashIpAddress(realm, clientIp);
+            }
+        }
+
+        if (deviceToken != null || hashedIp != null) {
+            TrustStore trustStore = getTrustStore(context);
+            TrustEvaluation.Kind trust = trustStore != null
+                ? evaluateTrust(context, trustStore, deviceToken, hashedIp)
+                : TrustEvaluation.Kind.NONE;
+
+            if (trust == TrustEvaluation.Kind.DEVICE) {
+                logger.debugf("Device is trusted for user %s, skipping OTP", user.getId());
+                setAcr(context, ACR_EMAIL_OTP_TRUSTED_DEVICE);
+                context.success();
+                return;
+            }
+            if (trust == TrustEvaluation.Kind.IP) {
+                logger.debugf("IP is trusted for user %s, skipping OTP", user.getId());
+                setAcr(context, ACR_EMAIL_OTP_TRUSTED_IP);
+                context.success();
+                return;
             }
         }
 
@@ -253,10 +300,16 @@ public class EmailOTPFormAuthenticator extends AbstractUsernameFormAuthenticator
                 long expiresAt = (durationSeconds == 0) ? 0 : now + durationSeconds;
 
                 // Store the unsigned token in database
-                trustStore.trustDevice(realm, user, deviceToken, expiresAt);
+                boolean stateless = ConfigHelper.isDeviceTrustStateless(context);
+                trustStore.trustDevice(realm, user, deviceToken, expiresAt, stateless);
+
+                // In stateless mode the cookie carries the claims, so checking it needs no trust lookup
+                String cookieContent = stateless
+                    ? new DeviceTrustClaims(realm.getId(), user.getId(), deviceToken, expiresAt).encode()
+                    : deviceToken;
 
                 // Sign the token before putting in cookie
-                String signedToken = signDeviceToken(context.getSession(), realm, deviceToken);
+                String signedToken = DeviceTokens.sign(context.getSession(), realm, ConfigHelper.getDeviceTokenCodec(context), cookieContent);
                 if (signedToken != null) {
                     setDeviceTrustCookie(context, signedToken, durationSeconds);
                 } else {
@@ -267,6 +320,92 @@ public class EmailOTPFormAuthenticator extends AbstractUsernameFormAuthenticator
         }
     }
 
+    /**
+     * Checks the stored device and IP trust. When both apply they are answered by a single
+     * {@link TrustStore#evaluate} call, so a login without any trust costs one lookup.
+     */
+    private TrustEvaluation.Kind evaluateTrust(AuthenticationFlowContext context, TrustStore trustStore, String deviceToken, String hashedIp) {
+        if (deviceToken == null) {
+            return isIpTrusted(context, trustStore, hashedIp) ? TrustEvaluation.Kind.IP : TrustEvaluation.Kind.NONE;
+        }
+        if (hashedIp == null) {
+            return trustStore.isDeviceTrusted(context.getRealm(), context.getUser(), deviceToken)
+                ? TrustEvaluation.Kind.DEVICE
+                : TrustEvaluation.Kind.NONE;
+        }
+
+        TrustEvaluation evaluation = trustStore.evaluate(context.getRealm(), context.getUser(), deviceToken, hashedIp);
+        if (evaluation.getKind() == TrustEvaluation.Kind.IP) {
+            extendIpTrust(context, trustStore, hashedIp, evaluation.getExpiresAt());
+        }
+        return evaluation.getKind();
+    }
+
+    /**
+     * Checks IP trust and extends the rolling expiration.
+     * Without a refresh threshold, the check and the extension are a single store operation.
+     * Otherwise the expiry is read, and only extended once enough of the window is used up.
+     */
+    private boolean isIpTrusted(AuthenticationFlowContext context, TrustStore trustStore, String hashedIp) {
+        long now = System.currentTimeMillis() / 1000;
+
+        if (ConfigHelper.getIpTrustRefreshThreshold(context) >= 100) {
+            long newExpiresAt = now + ConfigHelper.getIpTrustDurationSeconds(context);
+            return trustStore.checkAndExtendIpTrust(context.getRealm(), context.getUser(), hashedIp, newExpiresAt);
+        }
+
+        long expiresAt = trustStore.getIpTrustExpiresAt(context.getRealm(), context.getUser(), hashedIp);
+        if (expiresAt == TrustStore.IP_NOT_TRUSTED) {
+            return false;
+        }
+        extendIpTrust(context, trustStore, hashedIp, expiresAt);
+        return true;
+    }
+
+    /**
+     * Extends the rolling expiration of a trusted IP, once enough of the window is used up.
+     */
+    private void extendIpTrust(AuthenticationFlowContext context, TrustStore trustStore, String hashedIp, long expiresAt) {
+        long now = System.currentTimeMillis() / 1000;
+        long duration = ConfigHelper.getIpTrustDurationSeconds(context);
+        int threshold = ConfigHelper.getIpTrustRefreshThreshold(context);
+
+        if (IpTrustRefreshPolicy.shouldRefresh(expiresAt, now, duration, threshold)) {
+            trustStore.refreshIpTrust(context.getRealm(), context.getUser(), hashedIp, now + duration);
+        }
+    }
+
+    /**
+     * Claims cookies are accepted on their own in stateless mode, only the revocation set is consulted.
+     */
+    private boolean isStatelessDeviceTrusted(AuthenticationFlowContext context, String content) {
+        if (!ConfigHelper.isDeviceTrustStateless(context)) {
+            return false;
+        }
+        DeviceTrustClaims claims = DeviceTrustClaims.decode(content);
+        if (claims == null || !claims.isValidFor(context.getRealm().getId(), context.getUser().getId())) {
+            return false;
+        }
+        TrustStore trustStore = getTrustStore(context);
+        return trustStore != null && !trustStore.isDeviceRevoked(context.getRealm(), context.getUser(), claims.getDeviceToken());
+    }
+
+    /**
+     * Returns the device token to look up in the trust store for the verified content of a device trust cookie:
+     * plain device tokens, and claims when stateless mode is off. Null if there is nothing to look up.
+     */
+    private String getStoredDeviceToken(AuthenticationFlowContext context, String content) {
+        DeviceTrustClaims claims = DeviceTrustClaims.decode(content);
+        if (claims == null) {
+            return content;
+        }
+        if (ConfigHelper.isDeviceTrustStateless(context)
+                || !claims.isValidFor(context.getRealm().getId(), context.getUser().getId())) {
+            return null;
+        }
+        return claims.getDeviceToken();
+    }
+
     private TrustStore getTrustStore(AuthenticationFlowContext context) {
         try {
             return context.getSession().getProvider(TrustStore.class);
@@ -300,92 +439,6 @@ public class EmailOTPFormAuthenticator extends AbstractUsernameFormAuthenticator
         return HashUtils.sha256UrlEncodedHash(saltedInput, StandardCharsets.UTF_8);
     }
 
-    /**
-     * Signs a device token using RSA-SHA256 with Keycloak's managed key.
-     * Uses Keycloak's key management for signing. RS256 keys are always
-     * available in Keycloak realms (used for JWT signing).
-     * Returns format: token.signature
-     */
-    private String signDeviceToken(KeycloakSession session, RealmModel realm, String token) {
-        try {
-            // Get the active RS256 key from Keycloak's key management (always available)
-            KeyWrapper key = session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.RS256.name());
-
-            if (key == null || key.getPrivateKey() == null) {
-                logger.error("No RS256 signing key available in realm - this should not happen");
-                return null;
-            }
-
-            // Sign using RSA-SHA256
-            Signature signature = Signature.getInstance("SHA256withRSA");
-            signature.initSign((PrivateKey) key.getPrivateKey());
-            signature.update(token.getBytes(StandardCharsets.UTF_8));
-            byte[] signatureBytes = signature.sign();
-
-            return token + "." + Base64Url.encode(signatureBytes);
-        } catch (Exception e) {
-            logger.warn("Failed to sign device token", e);
-            return null;
-        }
-    }
-
-    /**
-     * Verifies a signed device token using RSA-SHA256.
-     * Tries all available RS256 keys (active and passive) to handle key rotation -
-     * tokens signed with rotated keys can still be verified.
-     * Returns the original token if valid, null if invalid.
-     */
-    private String verifyDeviceToken(KeycloakSession session, RealmModel realm, String signedToken) {
-        if (signedToken == null || !signedToken.contains(".")) {
-            return null;
-        }
-
-        int separatorIndex = signedToken.lastIndexOf(".");
-        if (separatorIndex <= 0) {
-            return null;
-        }
-
-        String token = signedToken.substring(0, separatorIndex);
-        String signatureBase64 = signedToken.substring(separatorIndex + 1);
-
-        try {
-            byte[] signatureBytes = Base64Url.decode(signatureBase64);
-
-            // Get all RS256 keys (active and passive) for verification
-            // This handles key rotation - old tokens signed with rotated keys can still be verified
-            List<KeyWrapper> keys = session.keys().getKeysStream(realm, KeyUse.SIG, Algorithm.RS256.name())
-                .filter(k -> k.getStatus().isEnabled() && k.getPublicKey() != null)
-                .toList();
-
-            if (keys.isEmpty()) {
-                logger.error("No RS256 keys available for verification");
-                return null;
-            }
-
-            // Try each key (handles key rotation)
-            for (KeyWrapper key : keys) {
-                try {
-                    Signature signature = Signature.getInstance("SHA256withRSA");
-                    signature.initVerify((PublicKey) key.getPublicKey());
-                    signature.update(token.getBytes(StandardCharsets.UTF_8));
-
-                    if (signature.verify(signatureBytes)) {
-                        return token;
-                    }
-                } catch (Exception e) {
-                    // Try next key
-                    logger.debugf("Verification with key %s failed, trying next", key.getKid());
-                }
-            }
-
-            logger.debug("Device token signature verification failed - no matching key");
-        } catch (Exception e) {
-            logger.debug("Token verification failed", e);
-        }
-
-        return null;
-    }
-
     private String getDeviceTokenFromCookie(AuthenticationFlowContext context) {
         Map<String, Cookie> cookies = context.getHttpRequest().getHttpHeaders().getCookies();
         if (cookies != null) {
@@ -401,8 +454,7 @@ public class EmailOTPFormAuthenticator extends AbstractUsernameFormAuthenticator
         // Calculate max age
         int maxAge;
         if (durationSeconds == 0) {
-            // Permanent: set to ~10 years
-            maxAge = 10 * 365 * 24 * 60 * 60;
+            maxAge = DeviceTrustClaims.PERMANENT_MAX_AGE_SECONDS;
         } else {
             maxAge = (int) durationSeconds;
         }
@@ -583,6 +635,7 @@ public class EmailOTPFormAuthenticator extends AbstractUsernameFormAuthenticator
 
         context.getAuthenticationSession().setAuthNote(AUTH_NOTE_OTP_CREATED_AT, String.valueOf(System.currentTimeMillis() / 1000));
         context.getAuthenticationSession().setAuthNote(AUTH_NOTE_OTP_KEY, otp);
+        context.getAuthenticationSession().removeAuthNote(AUTH_NOTE_OTP_DELIVERY_FAILED);
 
         this.sendGeneratedOtp(context);
 
@@ -626,15 +679,36 @@ public class EmailOTPFormAuthenticator extends AbstractUsernameFormAuthenticator
             attributes.put("ttl", ttlSeconds);
             attributes.put("ttlMinutes", ttlSeconds / 60);
 
-            context.getSession()
-                .getProvider(EmailTemplateProvider.class)
-                .setRealm(context.getRealm())
-                .setUser(user)
-                .send(
-                    OTP_EMAIL_SUBJECT_KEY,
-                    OTP_EMAIL_TEMPLATE_NAME,
-                    attributes
-                );
+            if (ConfigHelper.isOutboxEmailEnabled(context)) {
+                if (!this.outboxEnabled) {
+                    logger.debug("Email outbox not enabled on the server, sending the OTP email directly");
+                } else if (this.enqueueOtp(context, attributes)) {
+                    return;
+                }
+            }
+
+            if (this.mailDispatcher != null) {
+                boolean async = ConfigHelper.isAsyncEmailEnabled(context);
+                if ((async || !this.mailDispatcher.usesDefaultSender()) && this.sendRenderedOtp(context, attributes, async)) {
+                    return;
+                }
+            }
+
+            // Picked up by the priority email sender, ahead of the realm's other emails
+            context.getSession().setAttribute(MailLane.SESSION_ATTRIBUTE, MailLane.OTP);
+            try {
+                context.getSession()
+                    .getProvider(EmailTemplateProvider.class)
+                    .setRealm(context.getRealm())
+                    .setUser(user)
+                    .send(
+                        OTP_EMAIL_SUBJECT_KEY,
+                        OTP_EMAIL_TEMPLATE_NAME,
+                        attributes
+                    );
+            } finally {
+                context.getSession().removeAttribute(MailLane.SESSION_ATTRIBUTE);
+            }
 
             logger.debug("OTP email sent to " + user.getUsername());
         } catch (Exception e) {
@@ -648,6 +722,121 @@ public class EmailOTPFormAuthenticator extends AbstractUsernameFormAuthenticator
         }
     }
 
+    /**
+     * Render the OTP email in this request and send it through the configured email sender, in the background
+     * if asynchronous, or on this thread otherwise or if too many are pending.
+     *
+     * @return false if the email template provider cannot render without sending, the email is then sent as usual
+     */
+    private boolean sendRenderedOtp(AuthenticationFlowContext context, Map<String, Object> attributes, boolean async) throws EmailException {
+        UserModel user = context.getUser();
+        RenderedEmail email = OtpEmailRenderer.render(
+            context.getSession(),
+            context.getRealm(),
+            user,
+            OTP_EMAIL_SUBJECT_KEY,
+            OTP_EMAIL_TEMPLATE_NAME,
+            attributes
+        );
+        if (email == null) {
+            return false;
+        }
+
+        AuthenticationSessionModel authenticationSession = context.getAuthenticationSession();
+        String realmId = context.getRealm().getId();
+        String rootSessionId = authenticationSession.getParentSession().getId();
+        String clientId = authenticationSession.getClient().getId();
+        String tabId = authenticationSession.getTabId();
+        String otp = (String) attributes.get("otp");
+
+        if (async && this.mailDispatcher.dispatch(context.getSession(), email,
+                (session, cause) -> markDeliveryFailed(session, realmId, rootSessionId, clientId, tabId, otp))) {
+            logger.debug("OTP email queued for " + user.getUsername());
+        } else {
+            this.mailDispatcher.send(context.getSession(), email);
+            logger.debug("OTP email sent to " + user.getUsername());
+        }
+        return true;
+    }
+
+    /**
+     * Render the OTP email in this request and write it to the outbox, sent once the request committed.
+     *
+     * @return false if the email template provider cannot render without sending, the email is then sent as usual
+     */
+    private boolean enqueueOtp(AuthenticationFlowContext context, Map<String, Object> attributes) throws EmailException {
+        UserModel user = context.getUser();
+        // The code is not stored, the outbox worker puts it back from the login when sending
+        Map<String, Object> stored = new HashMap<String, Object>(attributes);
+        stored.put("otp", OtpEmailOutbox.CODE_PLACEHOLDER);
+        RenderedEmail email = OtpEmailRenderer.render(
+            context.getSession(),
+            context.getRealm(),
+            user,
+            OTP_EMAIL_SUBJECT_KEY,
+            OTP_EMAIL_TEMPLATE_NAME,
+            stored
+        );
+        if (email == null) {
+            return false;
+        }
+
+        AuthenticationSessionModel authenticationSession = context.getAuthenticationSession();
+        long expiresAt = System.currentTimeMillis() + ConfigHelper.getOtpLifetime(context) * 1000L;
+        new OtpEmailOutbox(context.getSession()).enqueue(
+            email,
+            context.getRealm().getId(),
+            user.getId(),
+            authenticationSession.getParentSession().getId(),
+            authenticationSession.getClient().getId(),
+            authenticationSession.getTabId(),
+            expiresAt
+        );
+        logger.debug("OTP email written to the outbox for " + user.getUsername());
+        return true;
+    }
+
+    /**
+     * Report the failed delivery of the login's current code, the code outbox emails are sent with.
+     */
+    static void markDeliveryFailed(KeycloakSession session, String realmId, String rootSessionId, String clientId, String tabId) {
+        markDeliveryFailed(session, realmId, rootSessionId, clientId, tabId, findOtp(session, realmId, rootSessionId, clientId, tabId));
+    }
+
+    /**
+     * Report the failed delivery of a code, ignored on the next submission if a resend replaced it meanwhile.
+     */
+    static void markDeliveryFailed(KeycloakSession session, String realmId, String rootSessionId, String clientId, String tabId,
+            String otp) {
+        AuthenticationSessionModel authenticationSession = findAuthenticationSession(session, realmId, rootSessionId, clientId, tabId);
+        if (authenticationSession != null && otp != null) {
+            authenticationSession.setAuthNote(AUTH_NOTE_OTP_DELIVERY_FAILED, otp);
+        }
+    }
+
+    /**
+     * @return The login's current code, or null if the login finished or expired meanwhile
+     */
+    static String findOtp(KeycloakSession session, String realmId, String rootSessionId, String clientId, String tabId) {
+        AuthenticationSessionModel authenticationSession = findAuthenticationSession(session, realmId, rootSessionId, clientId, tabId);
+        return authenticationSession == null ? null : authenticationSession.getAuthNote(AUTH_NOTE_OTP_KEY);
+    }
+
+    private static AuthenticationSessionModel findAuthenticationSession(KeycloakSession session, String realmId,
+            String rootSessionId, String clientId, String tabId) {
+        RealmModel realm = rootSessionId == null ? null : session.realms().getRealm(realmId);
+        if (realm == null) {
+            return null;
+        }
+        RootAuthenticationSessionModel rootSession = session.authenticationSessions().getRootAuthenticationSession(realm, rootSessionId);
+        ClientModel client = realm.getClientById(clientId);
+        if (rootSession == null || client == null) {
+            // Login finished or expired meanwhile
+            return null;
+        }
+        return rootSession.getAuthenticationSession(client, tabId);
+    }
+
     private boolean isOtpExpired(AuthenticationFlowContext context) {
         int lifetime = ConfigHelper.getOtpLifetime(context);
         long createdAt = Long.parseLong(context.getAuthenticationSession().getAuthNote(AUTH_NOTE_OTP_CREATED_AT));
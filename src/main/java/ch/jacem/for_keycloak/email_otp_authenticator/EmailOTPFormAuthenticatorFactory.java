@@ -3,6 +3,7 @@ package ch.jacem.for_keycloak.email_otp_authenticator;
 import java.util.Arrays;
 import java.util.List;
 
+import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.AuthenticatorFactory;
@@ -10,10 +11,32 @@ import org.keycloak.models.AuthenticationExecutionModel.Requirement;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.timer.TimerProvider;
+
+import ch.jacem.for_keycloak.email_otp_authenticator.mail.OtpEmailOutboxWorker;
+import ch.jacem.for_keycloak.email_otp_authenticator.mail.OtpMailDispatcher;
+import ch.jacem.for_keycloak.email_otp_authenticator.token.EdDsaDeviceTokenCodecFactory;
+import ch.jacem.for_keycloak.email_otp_authenticator.token.HmacDeviceTokenCodecFactory;
+import ch.jacem.for_keycloak.email_otp_authenticator.token.RsaDeviceTokenCodecFactory;
 
 public class EmailOTPFormAuthenticatorFactory implements AuthenticatorFactory {
+    private static final Logger logger = Logger.getLogger(EmailOTPFormAuthenticatorFactory.class);
+
     public final static String PROVIDER_ID = "email-otp-form";
-    private final static EmailOTPFormAuthenticator SINGLETON = new EmailOTPFormAuthenticator();
+
+    // Node-wide bounds of asynchronous OTP email delivery
+    private static final int DEFAULT_ASYNC_EMAIL_THREADS = 8;
+    private static final int DEFAULT_ASYNC_EMAIL_MAX_PENDING = 1000;
+
+    // Default outbox draining: polled every second, 4 emails at a time per node and 2 per SMTP server,
+    // 5 attempts 2s, 4s, 8s... apart, claims of a stopped node taken over after a minute
+    private static final long DEFAULT_OUTBOX_POLL_MS = 1000L;
+    private static final int DEFAULT_OUTBOX_THREADS = 4;
+    private static final int DEFAULT_OUTBOX_MAX_PER_RELAY = 2;
+    private static final int DEFAULT_OUTBOX_MAX_ATTEMPTS = 5;
+    private static final long DEFAULT_OUTBOX_BACKOFF_MS = 2000L;
+    private static final long DEFAULT_OUTBOX_MAX_BACKOFF_MS = 60000L;
+    private static final int DEFAULT_OUTBOX_LEASE_SECONDS = 60;
 
     public static final String SETTINGS_KEY_USER_ROLE = "user-role";
     public static final String SETTINGS_DEFAULT_VALUE_USER_ROLE = null;
@@ -25,36 +48,119 @@ public class EmailOTPFormAuthenticatorFactory implements AuthenticatorFactory {
     public static final int SETTINGS_DEFAULT_VALUE_CODE_LENGTH = 6;
     public static final String SETTINGS_KEY_CODE_LIFETIME = "code-lifetime";
     public static final int SETTINGS_DEFAULT_VALUE_CODE_LIFETIME = 600; // 10 minutes
+    public static final String SETTINGS_KEY_ASYNC_EMAIL = "async-email";
+    public static final boolean SETTINGS_DEFAULT_VALUE_ASYNC_EMAIL = false;
+    public static final String SETTINGS_KEY_OUTBOX_EMAIL = "outbox-email";
+    public static final boolean SETTINGS_DEFAULT_VALUE_OUTBOX_EMAIL = false;
 
     // IP Trust settings
     public static final String SETTINGS_KEY_IP_TRUST_ENABLED = "ip-trust-enabled";
     public static final boolean SETTINGS_DEFAULT_VALUE_IP_TRUST_ENABLED = false;
     public static final String SETTINGS_KEY_IP_TRUST_DURATION = "ip-trust-duration";
     public static final int SETTINGS_DEFAULT_VALUE_IP_TRUST_DURATION = 60; // 60 minutes
+    public static final String SETTINGS_KEY_IP_TRUST_REFRESH_THRESHOLD = "ip-trust-refresh-threshold";
+    public static final int SETTINGS_DEFAULT_VALUE_IP_TRUST_REFRESH_THRESHOLD = 100; // extend on every login
 
     // Device Trust settings
     public static final String SETTINGS_KEY_DEVICE_TRUST_ENABLED = "device-trust-enabled";
     public static final boolean SETTINGS_DEFAULT_VALUE_DEVICE_TRUST_ENABLED = false;
     public static final String SETTINGS_KEY_DEVICE_TRUST_DURATION = "device-trust-duration";
     public static final int SETTINGS_DEFAULT_VALUE_DEVICE_TRUST_DURATION = 365; // 365 days (1 year)
+    public static final String SETTINGS_KEY_DEVICE_TRUST_STATELESS = "device-trust-stateless";
+    public static final boolean SETTINGS_DEFAULT_VALUE_DEVICE_TRUST_STATELESS = false;
+    public static final String SETTINGS_KEY_DEVICE_TOKEN_CODEC = "device-token-codec";
+    public static final String SETTINGS_DEFAULT_VALUE_DEVICE_TOKEN_CODEC = RsaDeviceTokenCodecFactory.PROVIDER_ID;
 
     // Trust behavior settings
     public static final String SETTINGS_KEY_TRUST_ONLY_WHEN_SOLE = "trust-only-when-sole";
     public static final boolean SETTINGS_DEFAULT_VALUE_TRUST_ONLY_WHEN_SOLE = true;
 
+    private OtpMailDispatcher mailDispatcher;
+    private OtpEmailOutboxWorker outboxWorker;
+    private long outboxPollMs = DEFAULT_OUTBOX_POLL_MS;
+    private EmailOTPFormAuthenticator authenticator = new EmailOTPFormAuthenticator();
+
     @Override
     public Authenticator create(KeycloakSession session) {
-        return SINGLETON;
+        return authenticator;
     }
 
     @Override
-    public void init(Scope config) {}
+    public void init(Scope config) {
+        int threads = DEFAULT_ASYNC_EMAIL_THREADS;
+        int maxPending = DEFAULT_ASYNC_EMAIL_MAX_PENDING;
+        String emailSender = null;
+        if (config != null) {
+            threads = config.getInt("async-email-threads", threads);
+            maxPending = config.getInt("async-email-max-pending", maxPending);
+            // e.g. email-otp-pooled, OTP emails only, other emails keep the realm's default sender
+            emailSender = config.get("email-sender");
+            if (emailSender != null && emailSender.isBlank()) {
+                emailSender = null;
+            }
+        }
+
+        this.mailDispatcher = new OtpMailDispatcher(threads, maxPending, emailSender);
+
+        // Off by default, so nodes not using the outbox do not poll its table
+        boolean outboxEnabled = config != null && config.getBoolean("outbox-enabled", false);
+        this.authenticator = new EmailOTPFormAuthenticator(mailDispatcher, outboxEnabled);
+        if (!outboxEnabled) {
+            return;
+        }
+
+        int outboxThreads = DEFAULT_OUTBOX_THREADS;
+        int outboxMaxPerRelay = DEFAULT_OUTBOX_MAX_PER_RELAY;
+        int outboxMaxAttempts = DEFAULT_OUTBOX_MAX_ATTEMPTS;
+        long outboxBackoffMs = DEFAULT_OUTBOX_BACKOFF_MS;
+        long outboxMaxBackoffMs = DEFAULT_OUTBOX_MAX_BACKOFF_MS;
+        int outboxLeaseSeconds = DEFAULT_OUTBOX_LEASE_SECONDS;
+        if (config != null) {
+            outboxPollMs = Math.max(100L, config.getLong("outbox-poll-millis", outboxPollMs));
+            outboxThreads = config.getInt("outbox-threads", outboxThreads);
+            outboxMaxPerRelay = config.getInt("outbox-max-per-relay", outboxMaxPerRelay);
+            outboxMaxAttempts = config.getInt("outbox-max-attempts", outboxMaxAttempts);
+            outboxBackoffMs = config.getLong("outbox-backoff-millis", outboxBackoffMs);
+            outboxMaxBackoffMs = config.getLong("outbox-max-backoff-millis", outboxMaxBackoffMs);
+            outboxLeaseSeconds = config.getInt("outbox-lease-seconds", outboxLeaseSeconds);
+        }
+        this.outboxWorker = new OtpEmailOutboxWorker(mailDispatcher, outboxThreads, outboxMaxPerRelay, outboxMaxAttempts,
+            outboxBackoffMs, outboxMaxBackoffMs, Math.max(1, outboxLeaseSeconds) * 1000L,
+            (session, email) -> EmailOTPFormAuthenticator.findOtp(session, email.getRealmId(),
+                email.getAuthSessionId(), email.getClientId(), email.getTabId()),
+            (session, email) -> EmailOTPFormAuthenticator.markDeliveryFailed(session, email.getRealmId(),
+                email.getAuthSessionId(), email.getClientId(), email.getTabId()));
+    }
 
     @Override
-    public void postInit(KeycloakSessionFactory factory) {}
+    public void postInit(KeycloakSessionFactory factory) {
+        if (outboxWorker == null) {
+            return;
+        }
+
+        // Every node drains the outbox, claims skip the emails another node is sending
+        KeycloakSession session = factory.create();
+        try {
+            TimerProvider timer = session.getProvider(TimerProvider.class);
+            if (timer != null) {
+                timer.scheduleTask(outboxWorker, outboxPollMs, "EmailOtpOutbox");
+            } else {
+                logger.warn("TimerProvider not available, OTP emails written to the outbox are not sent by this node");
+            }
+        } finally {
+            session.close();
+        }
+    }
 
     @Override
-    public void close() {}
+    public void close() {
+        if (outboxWorker != null) {
+            outboxWorker.close();
+        }
+        if (mailDispatcher != null) {
+            mailDispatcher.close();
+        }
+    }
 
     @Override
     public String getId() {
@@ -91,6 +197,22 @@ public class EmailOTPFormAuthenticatorFactory implements AuthenticatorFactory {
         return "Validates a OTP sent over email on a separate OTP form.";
     }
 
+    private static ProviderConfigProperty deviceTokenCodecProperty() {
+        ProviderConfigProperty property = new ProviderConfigProperty(
+            SETTINGS_KEY_DEVICE_TOKEN_CODEC,
+            "Device Token Signature",
+            "How the device trust cookie is signed. HS256 uses the realm's HMAC key and gives the smallest cookie; Ed25519 requires an EdDSA key in the realm. Falls back to RS256 if the realm has no matching key (Default: RS256).",
+            ProviderConfigProperty.LIST_TYPE,
+            SETTINGS_DEFAULT_VALUE_DEVICE_TOKEN_CODEC
+        );
+        property.setOptions(Arrays.asList(
+            RsaDeviceTokenCodecFactory.PROVIDER_ID,
+            HmacDeviceTokenCodecFactory.PROVIDER_ID,
+            EdDsaDeviceTokenCodecFactory.PROVIDER_ID
+        ));
+        return property;
+    }
+
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
         return Arrays.asList(
@@ -131,6 +253,20 @@ public class EmailOTPFormAuthenticatorFactory implements AuthenticatorFactory {
                 ProviderConfigProperty.STRING_TYPE,
                 String.valueOf(SETTINGS_DEFAULT_VALUE_CODE_LIFETIME)
             ),
+            new ProviderConfigProperty(
+                SETTINGS_KEY_ASYNC_EMAIL,
+                "Asynchronous Email Delivery",
+                "If enabled, the OTP email is rendered during the login request but sent in the background, and the OTP form is shown without waiting for the mail server. A delivery failure is reported on the next submission of the form. Emails are sent synchronously while too many are pending.",
+                ProviderConfigProperty.BOOLEAN_TYPE,
+                String.valueOf(SETTINGS_DEFAULT_VALUE_ASYNC_EMAIL)
+            ),
+            new ProviderConfigProperty(
+                SETTINGS_KEY_OUTBOX_EMAIL,
+                "Transactional Email Outbox",
+                "If enabled, the OTP email is rendered during the login request and stored with it in the database, then sent by any node of the cluster, retried with increasing delays while the mail server fails. Emails survive node restarts. A delivery given up is reported on the next submission of the form. Takes precedence over asynchronous delivery. Requires the outbox to be enabled on the server, emails are sent directly otherwise.",
+                ProviderConfigProperty.BOOLEAN_TYPE,
+                String.valueOf(SETTINGS_DEFAULT_VALUE_OUTBOX_EMAIL)
+            ),
             // IP Trust settings
             new ProviderConfigProperty(
                 SETTINGS_KEY_IP_TRUST_ENABLED,
@@ -146,6 +282,13 @@ public class EmailOTPFormAuthenticatorFactory implements AuthenticatorFactory {
                 ProviderConfigProperty.STRING_TYPE,
                 String.valueOf(SETTINGS_DEFAULT_VALUE_IP_TRUST_DURATION)
             ),
+            new ProviderConfigProperty(
+                SETTINGS_KEY_IP_TRUST_REFRESH_THRESHOLD,
+                "IP Trust Refresh Threshold (%)",
+                "The rolling window is only extended once less than this percentage of the IP trust duration remains. Lower values save a database write on most trusted logins (Default: 100 = extend on every login).",
+                ProviderConfigProperty.STRING_TYPE,
+                String.valueOf(SETTINGS_DEFAULT_VALUE_IP_TRUST_REFRESH_THRESHOLD)
+            ),
             // Device Trust settings
             new ProviderConfigProperty(
                 SETTINGS_KEY_DEVICE_TRUST_ENABLED,
@@ -161,6 +304,14 @@ public class EmailOTPFormAuthenticatorFactory implements AuthenticatorFactory {
                 ProviderConfigProperty.STRING_TYPE,
                 String.valueOf(SETTINGS_DEFAULT_VALUE_DEVICE_TRUST_DURATION)
             ),
+            new ProviderConfigProperty(
+                SETTINGS_KEY_DEVICE_TRUST_STATELESS,
+                "Stateless Device Trust",
+                "If enabled, the device trust cookie carries its own signed realm, user and expiry, so trusted devices are accepted without a trust store lookup. Revoked devices are still rejected.",
+                ProviderConfigProperty.BOOLEAN_TYPE,
+                String.valueOf(SETTINGS_DEFAULT_VALUE_DEVICE_TRUST_STATELESS)
+            ),
+            deviceTokenCodecProperty(),
             // Trust behavior settings
             new ProviderConfigProperty(
                 SETTINGS_KEY_TRUST_ONLY_WHEN_SOLE,
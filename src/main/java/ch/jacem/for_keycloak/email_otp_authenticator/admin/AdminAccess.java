@@ -0,0 +1,52 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.admin;
+
+import org.keycloak.Config;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager.AuthResult;
+import org.keycloak.services.resources.admin.AdminAuth;
+
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.NotAuthorizedException;
+
+/**
+ * Role checks of the admin endpoints, which are realm resources rather than admin console ones.
+ */
+final class AdminAccess {
+
+    private AdminAccess() {
+    }
+
+    /**
+     * Authenticates the bearer token against the realm, or the admin realm, and checks it holds
+     * one of the roles on the realm's management client.
+     *
+     * @return the realm of the request
+     */
+    static RealmModel requireRole(KeycloakSession session, String... roles) {
+        RealmModel realm = session.getContext().getRealm();
+
+        AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).setRealm(realm).authenticate();
+        RealmModel authRealm = realm;
+        if (auth == null && !Config.getAdminRealm().equals(realm.getName())) {
+            authRealm = session.realms().getRealmByName(Config.getAdminRealm());
+            auth = new AppAuthManager.BearerTokenAuthenticator(session).setRealm(authRealm).authenticate();
+        }
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+
+        // Admin realm tokens hold the roles of the realm's client in the admin realm
+        ClientModel client = Config.getAdminRealm().equals(authRealm.getName())
+            ? realm.getMasterAdminClient()
+            : realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+        AdminAuth adminAuth = new AdminAuth(authRealm, auth.token(), auth.user(), auth.client());
+        if (client == null || !adminAuth.hasOneOfAppRole(client, roles)) {
+            throw new ForbiddenException("Missing " + String.join(" or ", roles) + " role");
+        }
+        return realm;
+    }
+}
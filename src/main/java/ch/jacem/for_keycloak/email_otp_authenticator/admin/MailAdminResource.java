@@ -0,0 +1,43 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.admin;
+
+import java.util.List;
+
+import ch.jacem.for_keycloak.email_otp_authenticator.mail.PriorityEmailSenderProviderFactory;
+import ch.jacem.for_keycloak.email_otp_authenticator.mail.PriorityMailScheduler;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.provider.ProviderFactory;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+
+/**
+ * Admin endpoints of the email delivery, under {@code /realms/{realm}/email-otp-mail}.
+ * Every call needs a bearer token with the {@code view-realm} or {@code manage-realm} role of the realm.
+ */
+public class MailAdminResource {
+
+    private final KeycloakSession session;
+
+    public MailAdminResource(KeycloakSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Queue depth and wait times of this node's priority email lanes, empty unless the priority sender was used.
+     */
+    @GET
+    @Path("lanes")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<PriorityMailScheduler.LaneStats> listLanes() {
+        AdminAccess.requireRole(session, AdminRoles.VIEW_REALM, AdminRoles.MANAGE_REALM);
+        ProviderFactory<EmailSenderProvider> factory = session.getKeycloakSessionFactory()
+            .getProviderFactory(EmailSenderProvider.class, PriorityEmailSenderProviderFactory.PROVIDER_ID);
+        return factory instanceof PriorityEmailSenderProviderFactory
+            ? ((PriorityEmailSenderProviderFactory) factory).getStats()
+            : List.of();
+    }
+}
@@ -0,0 +1,21 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.admin;
+
+import org.keycloak.services.resource.RealmResourceProvider;
+
+public class MailAdminResourceProvider implements RealmResourceProvider {
+
+    private final MailAdminResource resource;
+
+    public MailAdminResourceProvider(MailAdminResource resource) {
+        this.resource = resource;
+    }
+
+    @Override
+    public Object getResource() {
+        return resource;
+    }
+
+    @Override
+    public void close() {
+    }
+}
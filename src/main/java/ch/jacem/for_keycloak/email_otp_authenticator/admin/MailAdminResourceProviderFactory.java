@@ -0,0 +1,37 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.admin;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/**
+ * Serves {@link MailAdminResource} under {@code /realms/{realm}/email-otp-mail}.
+ */
+public class MailAdminResourceProviderFactory implements RealmResourceProviderFactory {
+
+    public static final String PROVIDER_ID = "email-otp-mail";
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new MailAdminResourceProvider(new MailAdminResource(session));
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,155 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.admin;
+
+import java.util.List;
+
+import ch.jacem.for_keycloak.email_otp_authenticator.trust.TrustEntry;
+import ch.jacem.for_keycloak.email_otp_authenticator.trust.TrustFilter;
+import ch.jacem.for_keycloak.email_otp_authenticator.trust.TrustPage;
+import ch.jacem.for_keycloak.email_otp_authenticator.trust.TrustStore;
+import org.keycloak.executors.ExecutorsProvider;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Admin endpoints of the email OTP trust, under {@code /realms/{realm}/email-otp-trust}.
+ * Every call needs a bearer token with the {@code manage-users} role of the realm, listings
+ * accept {@code view-users} as well.
+ */
+public class TrustAdminResource {
+
+    static final String EXECUTOR = "email-otp-trust-revocation";
+
+    // Entries per listing page, unless asked for fewer
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private final KeycloakSession session;
+    private final TrustRevocationJobs jobs;
+    private final int batchSize;
+    private final long batchPauseMs;
+
+    public TrustAdminResource(KeycloakSession session, TrustRevocationJobs jobs, int batchSize, long batchPauseMs) {
+        this.session = session;
+        this.jobs = jobs;
+        this.batchSize = batchSize;
+        this.batchPauseMs = batchPauseMs;
+    }
+
+    /**
+     * Starts revoking the trusted IPs and devices of users, or of the whole realm, in the background.
+     */
+    @POST
+    @Path("revocations")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response revoke(TrustRevocationRequest request) {
+        RealmModel realm = AdminAccess.requireRole(session, AdminRoles.MANAGE_USERS);
+
+        if (request == null) {
+            throw new BadRequestException("Missing revocation request");
+        }
+        List<String> userIds = request.getUserIds() == null ? List.of() : request.getUserIds();
+        if (request.isRealm() == !userIds.isEmpty()) {
+            throw new BadRequestException("Either realm or userIds must be given");
+        }
+        boolean ips = request.getIps() == null || request.getIps();
+        boolean devices = request.getDevices() == null || request.getDevices();
+        if (!ips && !devices) {
+            throw new BadRequestException("Nothing to revoke");
+        }
+
+        TrustRevocationJob job = new TrustRevocationJob(session.getKeycloakSessionFactory(), realm.getId(), userIds,
+            ips, devices, batchSize, batchPauseMs);
+        jobs.add(job);
+        session.getProvider(ExecutorsProvider.class).getExecutor(EXECUTOR).execute(job);
+
+        return Response.accepted(job).build();
+    }
+
+    /**
+     * Revocations started on this node for the realm, the most recent last.
+     */
+    @GET
+    @Path("revocations")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<TrustRevocationJob> listRevocations() {
+        return jobs.list(AdminAccess.requireRole(session, AdminRoles.MANAGE_USERS).getId());
+    }
+
+    @GET
+    @Path("revocations/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public TrustRevocationJob getRevocation(@PathParam("id") String id) {
+        TrustRevocationJob job = jobs.get(AdminAccess.requireRole(session, AdminRoles.MANAGE_USERS).getId(), id);
+        if (job == null) {
+            throw new NotFoundException("Revocation not found");
+        }
+        return job;
+    }
+
+    @GET
+    @Path("users/{userId}/ips")
+    @Produces(MediaType.APPLICATION_JSON)
+    public TrustPage listUserIps(@PathParam("userId") String userId, @QueryParam("after") String after,
+            @QueryParam("max") Integer max) {
+        return list(userId, TrustEntry.Kind.IP, TrustFilter.ALL, after, max);
+    }
+
+    @GET
+    @Path("users/{userId}/devices")
+    @Produces(MediaType.APPLICATION_JSON)
+    public TrustPage listUserDevices(@PathParam("userId") String userId, @QueryParam("after") String after,
+            @QueryParam("max") Integer max) {
+        return list(userId, TrustEntry.Kind.DEVICE, TrustFilter.ALL, after, max);
+    }
+
+    /**
+     * Trusted IPs of every user of the realm, optionally within creation and expiration ranges in seconds.
+     */
+    @GET
+    @Path("ips")
+    @Produces(MediaType.APPLICATION_JSON)
+    public TrustPage listIps(@QueryParam("createdFrom") Long createdFrom, @QueryParam("createdTo") Long createdTo,
+            @QueryParam("expiresFrom") Long expiresFrom, @QueryParam("expiresTo") Long expiresTo,
+            @QueryParam("after") String after, @QueryParam("max") Integer max) {
+        return list(null, TrustEntry.Kind.IP, new TrustFilter(createdFrom, createdTo, expiresFrom, expiresTo), after, max);
+    }
+
+    /**
+     * Trusted devices of every user of the realm, optionally within creation and expiration ranges in seconds.
+     */
+    @GET
+    @Path("devices")
+    @Produces(MediaType.APPLICATION_JSON)
+    public TrustPage listDevices(@QueryParam("createdFrom") Long createdFrom, @QueryParam("createdTo") Long createdTo,
+            @QueryParam("expiresFrom") Long expiresFrom, @QueryParam("expiresTo") Long expiresTo,
+            @QueryParam("after") String after, @QueryParam("max") Integer max) {
+        return list(null, TrustEntry.Kind.DEVICE, new TrustFilter(createdFrom, createdTo, expiresFrom, expiresTo), after, max);
+    }
+
+    private TrustPage list(String userId, TrustEntry.Kind kind, TrustFilter filter, String after, Integer max) {
+        RealmModel realm = AdminAccess.requireRole(session, AdminRoles.VIEW_USERS, AdminRoles.MANAGE_USERS);
+        int pageSize = max == null ? DEFAULT_PAGE_SIZE : Math.min(Math.max(1, max), MAX_PAGE_SIZE);
+        try {
+            return session.getProvider(TrustStore.class).listTrust(realm, userId, kind, filter, after, pageSize);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        } catch (UnsupportedOperationException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.NOT_IMPLEMENTED);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.admin;
+
+import org.keycloak.services.resource.RealmResourceProvider;
+
+public class TrustAdminResourceProvider implements RealmResourceProvider {
+
+    private final TrustAdminResource resource;
+
+    public TrustAdminResourceProvider(TrustAdminResource resource) {
+        this.resource = resource;
+    }
+
+    @Override
+    public Object getResource() {
+        return resource;
+    }
+
+    @Override
+    public void close() {
+    }
+}
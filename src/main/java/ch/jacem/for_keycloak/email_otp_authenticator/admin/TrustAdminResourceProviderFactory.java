@@ -0,0 +1,57 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.admin;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/**
+ * Serves {@link TrustAdminResource} under {@code /realms/{realm}/email-otp-trust}, configured with
+ * {@code --spi-realm-restapi-extension-email-otp-trust-...}.
+ */
+public class TrustAdminResourceProviderFactory implements RealmResourceProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(TrustAdminResourceProviderFactory.class);
+
+    public static final String PROVIDER_ID = "email-otp-trust";
+
+    // Default revocation batches: 1000 entries per transaction, 50ms apart
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final long DEFAULT_BATCH_PAUSE_MS = 50L;
+
+    // Finished revocations kept for their progress to be queried
+    private static final int MAX_FINISHED_JOBS = 100;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long batchPauseMs = DEFAULT_BATCH_PAUSE_MS;
+    private final TrustRevocationJobs jobs = new TrustRevocationJobs(MAX_FINISHED_JOBS);
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new TrustAdminResourceProvider(new TrustAdminResource(session, jobs, batchSize, batchPauseMs));
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        if (config != null) {
+            batchSize = Math.max(1, config.getInt("batch-size", DEFAULT_BATCH_SIZE));
+            batchPauseMs = Math.max(0L, config.getLong("batch-pause-millis", DEFAULT_BATCH_PAUSE_MS));
+        }
+        logger.debugf("Email OTP trust revocations: %d entries per batch, %dms apart", batchSize, batchPauseMs);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,166 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.admin;
+
+import ch.jacem.for_keycloak.email_otp_authenticator.trust.TrustStore;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk revocation of trusted IPs and devices, for a list of users or a whole realm, run in the background.
+ * Entries are revoked in chunks, each in its own transaction, so logins are never blocked
+ * by a long delete. Getters are the progress reported to the admin.
+ */
+public class TrustRevocationJob implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(TrustRevocationJob.class);
+
+    public enum Status {
+        PENDING,
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final KeycloakSessionFactory factory;
+    private final String realmId;
+    // Empty for the whole realm
+    private final List<String> userIds;
+    private final boolean ips;
+    private final boolean devices;
+    private final int batchSize;
+    private final long batchPauseMs;
+
+    private final AtomicLong revoked = new AtomicLong();
+    private final AtomicInteger processedUsers = new AtomicInteger();
+    private volatile Status status = Status.PENDING;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+
+    /**
+     * @param userIds Users whose trust is revoked, empty for every user of the realm
+     * @param batchSize Entries revoked per transaction
+     * @param batchPauseMs Pause between two chunks, leaving the tables to logins
+     */
+    public TrustRevocationJob(KeycloakSessionFactory factory, String realmId, List<String> userIds, boolean ips, boolean devices,
+            int batchSize, long batchPauseMs) {
+        this.factory = factory;
+        this.realmId = realmId;
+        this.userIds = List.copyOf(userIds);
+        this.ips = ips;
+        this.devices = devices;
+        this.batchSize = batchSize;
+        this.batchPauseMs = batchPauseMs;
+    }
+
+    @Override
+    public void run() {
+        status = Status.RUNNING;
+        startedAt = System.currentTimeMillis();
+        try {
+            if (userIds.isEmpty()) {
+                revokeAll(null);
+            } else {
+                for (String userId : userIds) {
+                    revokeAll(userId);
+                    processedUsers.incrementAndGet();
+                }
+            }
+            status = Status.COMPLETED;
+            logger.infof("Email OTP trust revocation %s in realm %s: revoked %d entries", id, realmId, revoked.get());
+        } catch (Exception e) {
+            error = e.getMessage();
+            status = Status.FAILED;
+            logger.errorf(e, "Email OTP trust revocation %s in realm %s failed after %d entries", id, realmId, revoked.get());
+        } finally {
+            finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    private void revokeAll(String userId) {
+        while (true) {
+            int count = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm == null) {
+                    // Removed meanwhile, its entries go with it
+                    return 0;
+                }
+                session.getContext().setRealm(realm);
+                return session.getProvider(TrustStore.class).revokeTrust(realm, userId, ips, devices, batchSize, id);
+            });
+            revoked.addAndGet(count);
+            if (count < batchSize) {
+                return;
+            }
+            pause();
+        }
+    }
+
+    private void pause() {
+        if (batchPauseMs <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(batchPauseMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while revoking trust entries", e);
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public List<String> getUserIds() {
+        return Collections.unmodifiableList(userIds);
+    }
+
+    public boolean isIps() {
+        return ips;
+    }
+
+    public boolean isDevices() {
+        return devices;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public long getRevoked() {
+        return revoked.get();
+    }
+
+    public int getProcessedUsers() {
+        return processedUsers.get();
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.FAILED;
+    }
+}
@@ -0,0 +1,55 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.admin;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Revocation jobs started on this node, kept so their progress can be queried.
+ * Only the most recent finished jobs are kept.
+ */
+public class TrustRevocationJobs {
+
+    private final int maxFinished;
+    private final Map<String, TrustRevocationJob> jobs = new LinkedHashMap<>();
+
+    /**
+     * @param maxFinished Finished jobs kept before the oldest are forgotten
+     */
+    public TrustRevocationJobs(int maxFinished) {
+        this.maxFinished = maxFinished;
+    }
+
+    public synchronized void add(TrustRevocationJob job) {
+        jobs.put(job.getId(), job);
+        prune();
+    }
+
+    public synchronized TrustRevocationJob get(String realmId, String jobId) {
+        TrustRevocationJob job = jobs.get(jobId);
+        return job != null && job.getRealmId().equals(realmId) ? job : null;
+    }
+
+    public synchronized List<TrustRevocationJob> list(String realmId) {
+        List<TrustRevocationJob> result = new ArrayList<>();
+        for (TrustRevocationJob job : jobs.values()) {
+            if (job.getRealmId().equals(realmId)) {
+                result.add(job);
+            }
+        }
+        return result;
+    }
+
+    private void prune() {
+        long finished = jobs.values().stream().filter(TrustRevocationJob::isFinished).count();
+        Iterator<TrustRevocationJob> iterator = jobs.values().iterator();
+        while (finished > maxFinished && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+                finished--;
+            }
+        }
+    }
+}
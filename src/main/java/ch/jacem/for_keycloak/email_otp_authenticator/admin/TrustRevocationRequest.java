@@ -0,0 +1,47 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.admin;
+
+import java.util.List;
+
+/**
+ * Body of a bulk revocation: either {@code realm} or a list of {@code userIds}.
+ * Both IPs and devices are revoked unless one of them is set to false.
+ */
+public class TrustRevocationRequest {
+
+    private List<String> userIds;
+    private boolean realm;
+    private Boolean ips;
+    private Boolean devices;
+
+    public List<String> getUserIds() {
+        return userIds;
+    }
+
+    public void setUserIds(List<String> userIds) {
+        this.userIds = userIds;
+    }
+
+    public boolean isRealm() {
+        return realm;
+    }
+
+    public void setRealm(boolean realm) {
+        this.realm = realm;
+    }
+
+    public Boolean getIps() {
+        return ips;
+    }
+
+    public void setIps(Boolean ips) {
+        this.ips = ips;
+    }
+
+    public Boolean getDevices() {
+        return devices;
+    }
+
+    public void setDevices(Boolean devices) {
+        this.devices = devices;
+    }
+}
@@ -67,6 +67,30 @@ public class ConfigHelper {
         return ConfigHelper.getOtpCodeLength(context.getAuthenticatorConfig());
     }
 
+    public static boolean isAsyncEmailEnabled(AuthenticatorConfigModel config) {
+        return ConfigHelper.getConfigBooleanValue(
+            config,
+            EmailOTPFormAuthenticatorFactory.SETTINGS_KEY_ASYNC_EMAIL,
+            EmailOTPFormAuthenticatorFactory.SETTINGS_DEFAULT_VALUE_ASYNC_EMAIL
+        );
+    }
+
+    public static boolean isAsyncEmailEnabled(AuthenticationFlowContext context) {
+        return ConfigHelper.isAsyncEmailEnabled(context.getAuthenticatorConfig());
+    }
+
+    public static boolean isOutboxEmailEnabled(AuthenticatorConfigModel config) {
+        return ConfigHelper.getConfigBooleanValue(
+            config,
+            EmailOTPFormAuthenticatorFactory.SETTINGS_KEY_OUTBOX_EMAIL,
+            EmailOTPFormAuthenticatorFactory.SETTINGS_DEFAULT_VALUE_OUTBOX_EMAIL
+        );
+    }
+
+    public static boolean isOutboxEmailEnabled(AuthenticationFlowContext context) {
+        return ConfigHelper.isOutboxEmailEnabled(context.getAuthenticatorConfig());
+    }
+
     // IP Trust settings
 
     public static boolean isIpTrustEnabled(AuthenticatorConfigModel config) {
@@ -93,6 +117,18 @@ public class ConfigHelper {
         return ConfigHelper.getIpTrustDurationMinutes(context.getAuthenticatorConfig());
     }
 
+    public static int getIpTrustRefreshThreshold(AuthenticatorConfigModel config) {
+        return ConfigHelper.getConfigIntValue(
+            config,
+            EmailOTPFormAuthenticatorFactory.SETTINGS_KEY_IP_TRUST_REFRESH_THRESHOLD,
+            EmailOTPFormAuthenticatorFactory.SETTINGS_DEFAULT_VALUE_IP_TRUST_REFRESH_THRESHOLD
+        );
+    }
+
+    public static int getIpTrustRefreshThreshold(AuthenticationFlowContext context) {
+        return ConfigHelper.getIpTrustRefreshThreshold(context.getAuthenticatorConfig());
+    }
+
     /**
      * Get IP trust duration in seconds.
      */
@@ -138,6 +174,30 @@ public class ConfigHelper {
         return days * 86400L; // days to seconds
     }
 
+    public static boolean isDeviceTrustStateless(AuthenticatorConfigModel config) {
+        return ConfigHelper.getConfigBooleanValue(
+            config,
+            EmailOTPFormAuthenticatorFactory.SETTINGS_KEY_DEVICE_TRUST_STATELESS,
+            EmailOTPFormAuthenticatorFactory.SETTINGS_DEFAULT_VALUE_DEVICE_TRUST_STATELESS
+        );
+    }
+
+    public static boolean isDeviceTrustStateless(AuthenticationFlowContext context) {
+        return ConfigHelper.isDeviceTrustStateless(context.getAuthenticatorConfig());
+    }
+
+    public static String getDeviceTokenCodec(AuthenticatorConfigModel config) {
+        return ConfigHelper.getConfigStringValue(
+            config,
+            EmailOTPFormAuthenticatorFactory.SETTINGS_KEY_DEVICE_TOKEN_CODEC,
+            EmailOTPFormAuthenticatorFactory.SETTINGS_DEFAULT_VALUE_DEVICE_TOKEN_CODEC
+        );
+    }
+
+    public static String getDeviceTokenCodec(AuthenticationFlowContext context) {
+        return ConfigHelper.getDeviceTokenCodec(context.getAuthenticatorConfig());
+    }
+
     // Trust behavior settings
 
     public static boolean isTrustOnlyWhenSole(AuthenticatorConfigModel config) {
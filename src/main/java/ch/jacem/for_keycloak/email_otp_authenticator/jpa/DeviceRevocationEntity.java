@@ -0,0 +1,123 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+/**
+ * Tombstone for a revoked stateless device trust, kept until the revoked device's cookie would have expired.
+ * Self-verifying device tokens are checked against these instead of the device table.
+ */
+@Entity
+@Table(name = "EMAIL_OTP_DEVICE_REVOCATION")
+@NamedQueries({
+    @NamedQuery(
+        name = "findActiveDeviceRevocations",
+        query = "SELECT r.deviceToken FROM DeviceRevocationEntity r WHERE r.expiresAt >= :currentTime"
+    ),
+    @NamedQuery(
+        name = "deleteDeviceRevocationsByUser",
+        query = "DELETE FROM DeviceRevocationEntity r WHERE r.realmId = :realmId AND r.userId = :userId"
+    ),
+    @NamedQuery(
+        name = "findDeviceRevocationIdsByRealm",
+        query = "SELECT r.id FROM DeviceRevocationEntity r WHERE r.realmId = :realmId"
+    ),
+    @NamedQuery(
+        name = "findExpiredDeviceRevocationIds",
+        query = "SELECT r.id FROM DeviceRevocationEntity r WHERE r.expiresAt < :currentTime"
+    ),
+    @NamedQuery(
+        name = "deleteDeviceRevocationsById",
+        query = "DELETE FROM DeviceRevocationEntity r WHERE r.id IN :ids"
+    ),
+    @NamedQuery(
+        name = "deleteExpiredDeviceRevocations",
+        query = "DELETE FROM DeviceRevocationEntity r WHERE r.expiresAt < :currentTime"
+    )
+})
+public class DeviceRevocationEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false, length = 255)
+    private String realmId;
+
+    @Column(name = "USER_ID", nullable = false, length = 255)
+    private String userId;
+
+    @Column(name = "DEVICE_TOKEN", nullable = false, length = 36)
+    private String deviceToken;
+
+    // Never 0, a permanent device's cookie still expires
+    @Column(name = "EXPIRES_AT", nullable = false)
+    private long expiresAt;
+
+    @Column(name = "REVOKED_AT", nullable = false)
+    private long revokedAt;
+
+    public DeviceRevocationEntity() {
+    }
+
+    public DeviceRevocationEntity(String id, String realmId, String userId, String deviceToken, long expiresAt, long revokedAt) {
+        this.id = id;
+        this.realmId = realmId;
+        this.userId = userId;
+        this.deviceToken = deviceToken;
+        this.expiresAt = expiresAt;
+        this.revokedAt = revokedAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getDeviceToken() {
+        return deviceToken;
+    }
+
+    public void setDeviceToken(String deviceToken) {
+        this.deviceToken = deviceToken;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public long getRevokedAt() {
+        return revokedAt;
+    }
+
+    public void setRevokedAt(long revokedAt) {
+        this.revokedAt = revokedAt;
+    }
+}
@@ -0,0 +1,21 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * Stores device tokens as the 16 bytes of their UUID.
+ */
+@Converter
+public class DeviceTokenConverter implements AttributeConverter<String, byte[]> {
+
+    @Override
+    public byte[] convertToDatabaseColumn(String deviceToken) {
+        return deviceToken == null ? null : TrustKeys.deviceTokenToBytes(deviceToken);
+    }
+
+    @Override
+    public String convertToEntityAttribute(byte[] bytes) {
+        return bytes == null ? null : TrustKeys.deviceTokenFromBytes(bytes);
+    }
+}
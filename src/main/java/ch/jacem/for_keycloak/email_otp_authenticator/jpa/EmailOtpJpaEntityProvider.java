@@ -11,7 +11,9 @@ public class EmailOtpJpaEntityProvider implements JpaEntityProvider {
     public List<Class<?>> getEntities() {
         return Arrays.asList(
             TrustedIpEntity.class,
-            TrustedDeviceEntity.class
+            TrustedDeviceEntity.class,
+            DeviceRevocationEntity.class,
+            OtpEmailOutboxEntity.class
         );
     }
 
@@ -0,0 +1,21 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * Stores hashed IP addresses as their raw digest.
+ */
+@Converter
+public class HashedIpConverter implements AttributeConverter<String, byte[]> {
+
+    @Override
+    public byte[] convertToDatabaseColumn(String hashedIp) {
+        return hashedIp == null ? null : TrustKeys.hashedIpToBytes(hashedIp);
+    }
+
+    @Override
+    public String convertToEntityAttribute(byte[] bytes) {
+        return bytes == null ? null : TrustKeys.hashedIpFromBytes(bytes);
+    }
+}
@@ -0,0 +1,206 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+/**
+ * OTP email written in the login request's transaction and sent by the outbox worker of any node.
+ * The email is stored rendered, the request's locale and theme being unavailable to the worker,
+ * but without its code: the worker reads the code from the login when sending, so the table never
+ * holds a valid code. Rows are deleted once sent, given up, or their code expired or login ended.
+ */
+@Entity
+@Table(name = "EMAIL_OTP_OUTBOX")
+@NamedQueries({
+    @NamedQuery(
+        name = "findDueOtpEmails",
+        query = "SELECT o FROM OtpEmailOutboxEntity o WHERE o.nextAttemptAt <= :now ORDER BY o.nextAttemptAt"
+    ),
+    @NamedQuery(
+        name = "deleteOtpEmail",
+        query = "DELETE FROM OtpEmailOutboxEntity o WHERE o.id = :id"
+    ),
+    @NamedQuery(
+        name = "rescheduleOtpEmail",
+        query = "UPDATE OtpEmailOutboxEntity o SET o.nextAttemptAt = :nextAttemptAt, o.attempts = :attempts WHERE o.id = :id"
+    )
+})
+public class OtpEmailOutboxEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false, length = 255)
+    private String realmId;
+
+    @Column(name = "USER_ID", nullable = false, length = 255)
+    private String userId;
+
+    @Column(name = "ADDRESS", nullable = false, length = 255)
+    private String address;
+
+    @Column(name = "SUBJECT", nullable = false, length = 1000)
+    private String subject;
+
+    // TEXT columns, read as strings like Keycloak's own, with a placeholder in place of the code
+    @Column(name = "TEXT_BODY")
+    private String textBody;
+
+    @Column(name = "HTML_BODY")
+    private String htmlBody;
+
+    // SMTP server the email goes through, concurrent sends are limited per relay
+    @Column(name = "RELAY", nullable = false, length = 255)
+    private String relay;
+
+    // Login to report a failed delivery to
+    @Column(name = "AUTH_SESSION_ID", length = 255)
+    private String authSessionId;
+
+    @Column(name = "CLIENT_ID", length = 255)
+    private String clientId;
+
+    @Column(name = "TAB_ID", length = 255)
+    private String tabId;
+
+    @Column(name = "ATTEMPTS", nullable = false)
+    private int attempts;
+
+    @Column(name = "CREATED_AT", nullable = false)
+    private long createdAt;
+
+    @Column(name = "NEXT_ATTEMPT_AT", nullable = false)
+    private long nextAttemptAt;
+
+    // When the code expires, not sent after that
+    @Column(name = "EXPIRES_AT", nullable = false)
+    private long expiresAt;
+
+    public OtpEmailOutboxEntity() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public void setSubject(String subject) {
+        this.subject = subject;
+    }
+
+    public String getTextBody() {
+        return textBody;
+    }
+
+    public void setTextBody(String textBody) {
+        this.textBody = textBody;
+    }
+
+    public String getHtmlBody() {
+        return htmlBody;
+    }
+
+    public void setHtmlBody(String htmlBody) {
+        this.htmlBody = htmlBody;
+    }
+
+    public String getRelay() {
+        return relay;
+    }
+
+    public void setRelay(String relay) {
+        this.relay = relay;
+    }
+
+    public String getAuthSessionId() {
+        return authSessionId;
+    }
+
+    public void setAuthSessionId(String authSessionId) {
+        this.authSessionId = authSessionId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    public String getTabId() {
+        return tabId;
+    }
+
+    public void setTabId(String tabId) {
+        this.tabId = tabId;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public long getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(long nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+}
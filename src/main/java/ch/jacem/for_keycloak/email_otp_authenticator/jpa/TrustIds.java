@@ -0,0 +1,60 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Time-ordered row IDs (UUIDv7, RFC 9562) for the trust tables.
+ * The leading 48 bits are the creation time in milliseconds, so new rows land at the
+ * right edge of the primary key index instead of on random pages. IDs keep the
+ * 36-character UUID form, random IDs of older rows stay valid.
+ */
+public final class TrustIds {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private TrustIds() {
+    }
+
+    public static String newId() {
+        return newId(System.currentTimeMillis());
+    }
+
+    static String newId(long epochMillis) {
+        long randomA = random.nextInt(1 << 12);
+        long randomB = random.nextLong();
+        return uuid(epochMillis, randomA, randomB).toString();
+    }
+
+    /**
+     * Smallest ID that can be created at the given time. IDs compare in creation order,
+     * so this is where rows created from that time on start.
+     */
+    public static String lowerBound(long epochMillis) {
+        return uuid(epochMillis, 0, 0).toString();
+    }
+
+    /**
+     * Creation time of a time-ordered ID.
+     *
+     * @return the time in milliseconds, or -1 if the ID is not time-ordered
+     */
+    public static long timestamp(String id) {
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+        if (uuid.version() != 7) {
+            return -1;
+        }
+        return uuid.getMostSignificantBits() >>> 16;
+    }
+
+    private static UUID uuid(long epochMillis, long randomA, long randomB) {
+        long msb = (epochMillis & 0xFFFF_FFFF_FFFFL) << 16 | 0x7000L | (randomA & 0x0FFFL);
+        long lsb = (randomB & 0x3FFF_FFFF_FFFF_FFFFL) | 0x8000_0000_0000_0000L;
+        return new UUID(msb, lsb);
+    }
+}
@@ -0,0 +1,165 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Function;
+
+import org.jboss.logging.Logger;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Liquibase change copying a string trust key column into its binary replacement, in batches
+ * walking the primary key. Each batch is committed on its own, so the migration of a large table neither holds one huge
+ * transaction nor restarts from scratch when interrupted. Rows whose key cannot be converted
+ * could never match a lookup and are deleted.
+ */
+public class TrustKeyBackfill implements CustomTaskChange {
+
+    private static final Logger logger = Logger.getLogger(TrustKeyBackfill.class);
+
+    public static final String KEY_TYPE_HASHED_IP = "hashed-ip";
+    public static final String KEY_TYPE_DEVICE_TOKEN = "device-token";
+
+    private static final int BATCH_SIZE = 1000;
+
+    private String tableName;
+    private String sourceColumn;
+    private String targetColumn;
+    private String keyType;
+    private int migrated;
+
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    public void setSourceColumn(String sourceColumn) {
+        this.sourceColumn = sourceColumn;
+    }
+
+    public void setTargetColumn(String targetColumn) {
+        this.targetColumn = targetColumn;
+    }
+
+    public void setKeyType(String keyType) {
+        this.keyType = keyType;
+    }
+
+    @Override
+    public void execute(Database database) throws CustomChangeException {
+        String table = database.escapeTableName(database.getLiquibaseCatalogName(), database.getDefaultSchemaName(), tableName);
+        Connection connection = ((JdbcConnection) database.getConnection()).getWrappedConnection();
+        try {
+            migrated = backfill(connection, table, sourceColumn, targetColumn, converter(keyType), BATCH_SIZE);
+        } catch (SQLException e) {
+            throw new CustomChangeException("Failed to backfill " + tableName + "." + targetColumn, e);
+        }
+    }
+
+    /**
+     * @return Number of rows converted
+     */
+    static int backfill(Connection connection, String table, String sourceColumn, String targetColumn,
+            Function<String, byte[]> converter, int batchSize) throws SQLException {
+        // Walks the primary key from the last row of the previous batch, instead of scanning again past the converted rows
+        String select = "SELECT ID, " + sourceColumn + " FROM " + table
+            + " WHERE ID > ? AND " + targetColumn + " IS NULL ORDER BY ID";
+        String update = "UPDATE " + table + " SET " + targetColumn + " = ? WHERE ID = ?";
+        String delete = "DELETE FROM " + table + " WHERE ID = ?";
+        int converted = 0;
+        int deleted = 0;
+        String lastId = "";
+
+        while (true) {
+            int rows = 0;
+            try (PreparedStatement query = connection.prepareStatement(select);
+                    PreparedStatement updates = connection.prepareStatement(update);
+                    PreparedStatement deletes = connection.prepareStatement(delete)) {
+                query.setMaxRows(batchSize);
+                query.setString(1, lastId);
+                try (ResultSet result = query.executeQuery()) {
+                    while (result.next()) {
+                        rows++;
+                        String id = result.getString(1);
+                        lastId = id;
+                        byte[] key = toBytes(converter, result.getString(2));
+                        if (key != null) {
+                            updates.setBytes(1, key);
+                            updates.setString(2, id);
+                            updates.addBatch();
+                            converted++;
+                        } else {
+                            deletes.setString(1, id);
+                            deletes.addBatch();
+                            deleted++;
+                        }
+                    }
+                }
+                updates.executeBatch();
+                deletes.executeBatch();
+            }
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+            if (rows < batchSize) {
+                break;
+            }
+        }
+
+        logger.infof("Converted %d trust keys in %s to binary, deleted %d rows with an invalid key", converted, table, deleted);
+        return converted;
+    }
+
+    private static byte[] toBytes(Function<String, byte[]> converter, String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return converter.apply(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static Function<String, byte[]> converter(String keyType) {
+        if (KEY_TYPE_HASHED_IP.equals(keyType)) {
+            return TrustKeys::hashedIpToBytes;
+        }
+        if (KEY_TYPE_DEVICE_TOKEN.equals(keyType)) {
+            return TrustKeys::deviceTokenToBytes;
+        }
+        throw new IllegalArgumentException("Unknown trust key type: " + keyType);
+    }
+
+    @Override
+    public String getConfirmationMessage() {
+        return "Converted " + migrated + " trust keys in " + tableName + " to binary";
+    }
+
+    @Override
+    public void setUp() {
+    }
+
+    @Override
+    public void setFileOpener(ResourceAccessor resourceAccessor) {
+    }
+
+    @Override
+    public ValidationErrors validate(Database database) {
+        ValidationErrors errors = new ValidationErrors();
+        errors.checkRequiredField("tableName", tableName);
+        errors.checkRequiredField("sourceColumn", sourceColumn);
+        errors.checkRequiredField("targetColumn", targetColumn);
+        if (!KEY_TYPE_HASHED_IP.equals(keyType) && !KEY_TYPE_DEVICE_TOKEN.equals(keyType)) {
+            errors.addError("keyType must be " + KEY_TYPE_HASHED_IP + " or " + KEY_TYPE_DEVICE_TOKEN);
+        }
+        return errors;
+    }
+}
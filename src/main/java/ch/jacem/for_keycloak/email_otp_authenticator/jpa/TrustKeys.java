@@ -0,0 +1,74 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import org.keycloak.common.util.Base64Url;
+
+/**
+ * Binary form of the trust keys as stored in the database: hashed IPs are the raw
+ * 32-byte SHA-256 digest, device tokens the 16 bytes of their UUID.
+ * The trust store API keeps using the string forms.
+ */
+public final class TrustKeys {
+
+    public static final int HASHED_IP_LENGTH = 32;
+    public static final int DEVICE_TOKEN_LENGTH = 16;
+
+    private TrustKeys() {
+    }
+
+    /**
+     * @param hashedIp Base64url-encoded SHA-256 digest
+     * @throws IllegalArgumentException if the value is not a SHA-256 digest
+     */
+    public static byte[] hashedIpToBytes(String hashedIp) {
+        byte[] bytes;
+        try {
+            bytes = Base64Url.decode(hashedIp);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Not a hashed IP address", e);
+        }
+        if (bytes.length != HASHED_IP_LENGTH) {
+            throw new IllegalArgumentException("Not a hashed IP address");
+        }
+        return bytes;
+    }
+
+    public static String hashedIpFromBytes(byte[] bytes) {
+        return Base64Url.encode(bytes);
+    }
+
+    /**
+     * Device tokens are issued as random UUIDs, anything else can never have been trusted.
+     */
+    public static boolean isDeviceToken(String deviceToken) {
+        if (deviceToken == null || deviceToken.length() != 36) {
+            return false;
+        }
+        try {
+            return UUID.fromString(deviceToken).toString().equals(deviceToken);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is not a device token
+     */
+    public static byte[] deviceTokenToBytes(String deviceToken) {
+        if (!isDeviceToken(deviceToken)) {
+            throw new IllegalArgumentException("Not a device token");
+        }
+        UUID uuid = UUID.fromString(deviceToken);
+        return ByteBuffer.allocate(DEVICE_TOKEN_LENGTH)
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits())
+            .array();
+    }
+
+    public static String deviceTokenFromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong()).toString();
+    }
+}
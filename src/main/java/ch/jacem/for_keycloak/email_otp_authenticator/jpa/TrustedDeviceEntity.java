@@ -1,6 +1,7 @@
 package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
 
 import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.NamedQueries;
@@ -17,6 +18,71 @@ import jakarta.persistence.UniqueConstraint;
         name = "findTrustedDevice",
         query = "SELECT t FROM TrustedDeviceEntity t WHERE t.realmId = :realmId AND t.userId = :userId AND t.deviceToken = :deviceToken"
     ),
+    @NamedQuery(
+        name = "expireTrustedDevice",
+        query = "DELETE FROM TrustedDeviceEntity t WHERE t.realmId = :realmId AND t.userId = :userId AND t.deviceToken = :deviceToken AND t.expiresAt < :currentTime AND t.expiresAt > 0"
+    ),
+    @NamedQuery(
+        // Checking a stateless cookie reads nothing, so stateless devices never record their use and rank by when they were trusted
+        name = "findTrustedDevicesByRecentUse",
+        query = "SELECT t FROM TrustedDeviceEntity t WHERE t.realmId = :realmId AND t.userId = :userId"
+            + " ORDER BY CASE WHEN t.stateless = true THEN t.createdAt ELSE t.lastSeenAt END DESC, t.id DESC"
+    ),
+    @NamedQuery(
+        name = "findTrustedDeviceUsage",
+        query = "SELECT t.expiresAt, t.lastSeenAt FROM TrustedDeviceEntity t WHERE t.realmId = :realmId AND t.userId = :userId AND t.deviceToken = :deviceToken"
+    ),
+    @NamedQuery(
+        // Conditional on the previous value, so nodes seeing the device at the same time write it once
+        name = "touchTrustedDevice",
+        query = "UPDATE TrustedDeviceEntity t SET t.lastSeenAt = :currentTime WHERE t.realmId = :realmId AND t.userId = :userId AND t.deviceToken = :deviceToken AND t.lastSeenAt < :staleBefore"
+    ),
+    @NamedQuery(
+        name = "findInactiveTrustedDeviceIds",
+        query = "SELECT t.id FROM TrustedDeviceEntity t WHERE t.lastSeenAt < :inactiveBefore AND t.stateless = false"
+    ),
+    @NamedQuery(
+        name = "deleteInactiveTrustedDevices",
+        query = "DELETE FROM TrustedDeviceEntity t WHERE t.lastSeenAt < :inactiveBefore AND t.stateless = false"
+    ),
+    @NamedQuery(
+        name = "deleteTrustedDevicesByUser",
+        query = "DELETE FROM TrustedDeviceEntity t WHERE t.realmId = :realmId AND t.userId = :userId"
+    ),
+    @NamedQuery(
+        name = "findTrustedDeviceIdsByRealm",
+        query = "SELECT t.id FROM TrustedDeviceEntity t WHERE t.realmId = :realmId"
+    ),
+    @NamedQuery(
+        name = "findTrustedDevicesByRealm",
+        query = "SELECT t FROM TrustedDeviceEntity t WHERE t.realmId = :realmId"
+    ),
+    @NamedQuery(
+        name = "findTrustedDevicesByUser",
+        query = "SELECT t FROM TrustedDeviceEntity t WHERE t.realmId = :realmId AND t.userId = :userId"
+    ),
+    @NamedQuery(
+        // Keyset pagination on (CREATED_AT, ID): the first condition on the cursor bounds the index range
+        name = "listTrustedDevicesByUser",
+        query = "SELECT t.id, t.userId, t.createdAt, t.expiresAt, t.lastSeenAt FROM TrustedDeviceEntity t WHERE t.realmId = :realmId AND t.userId = :userId AND t.createdAt >= :createdFrom AND t.createdAt < :createdTo AND t.expiresAt >= :expiresFrom AND t.expiresAt < :expiresTo AND t.createdAt >= :afterCreatedAt AND (t.createdAt > :afterCreatedAt OR t.id > :afterId) ORDER BY t.createdAt, t.id"
+    ),
+    @NamedQuery(
+        // Walks the realm's (CREATED_AT, ID) index, the expiration range is checked on the rows it reads
+        name = "listTrustedDevicesByRealm",
+        query = "SELECT t.id, t.userId, t.createdAt, t.expiresAt, t.lastSeenAt FROM TrustedDeviceEntity t WHERE t.realmId = :realmId AND t.createdAt >= :createdFrom AND t.createdAt < :createdTo AND t.expiresAt >= :expiresFrom AND t.expiresAt < :expiresTo AND t.createdAt >= :afterCreatedAt AND (t.createdAt > :afterCreatedAt OR t.id > :afterId) ORDER BY t.createdAt, t.id"
+    ),
+    @NamedQuery(
+        name = "findExpiredTrustedDeviceIds",
+        query = "SELECT t.id FROM TrustedDeviceEntity t WHERE t.expiresAt < :currentTime AND t.expiresAt > 0"
+    ),
+    @NamedQuery(
+        name = "countExpiredTrustedDevices",
+        query = "SELECT COUNT(t) FROM TrustedDeviceEntity t WHERE t.expiresAt < :currentTime AND t.expiresAt > 0"
+    ),
+    @NamedQuery(
+        name = "deleteTrustedDevicesById",
+        query = "DELETE FROM TrustedDeviceEntity t WHERE t.id IN :ids"
+    ),
     @NamedQuery(
         name = "deleteExpiredTrustedDevices",
         query = "DELETE FROM TrustedDeviceEntity t WHERE t.expiresAt < :currentTime AND t.expiresAt > 0"
@@ -34,7 +100,9 @@ public class TrustedDeviceEntity {
     @Column(name = "USER_ID", nullable = false, length = 255)
     private String userId;
 
-    @Column(name = "DEVICE_TOKEN", nullable = false, length = 36)
+    // UUID bytes, see TrustKeys
+    @Convert(converter = DeviceTokenConverter.class)
+    @Column(name = "DEVICE_TOKEN", nullable = false, length = TrustKeys.DEVICE_TOKEN_LENGTH)
     private String deviceToken;
 
     @Column(name = "EXPIRES_AT", nullable = false)
@@ -43,6 +111,14 @@ public class TrustedDeviceEntity {
     @Column(name = "CREATED_AT", nullable = false)
     private long createdAt;
 
+    // Written at most once per interval, see JpaTrustStore#isDeviceTrusted
+    @Column(name = "LAST_SEEN_AT", nullable = false)
+    private long lastSeenAt;
+
+    // The cookie carries self-verifying claims, revoked with a DeviceRevocationEntity once the row is gone
+    @Column(name = "STATELESS", nullable = false)
+    private boolean stateless;
+
     public TrustedDeviceEntity() {
     }
 
@@ -53,6 +129,7 @@ public class TrustedDeviceEntity {
         this.deviceToken = deviceToken;
         this.expiresAt = expiresAt;
         this.createdAt = createdAt;
+        this.lastSeenAt = createdAt;
     }
 
     public String getId() {
@@ -103,6 +180,22 @@ public class TrustedDeviceEntity {
         this.createdAt = createdAt;
     }
 
+    public long getLastSeenAt() {
+        return lastSeenAt;
+    }
+
+    public void setLastSeenAt(long lastSeenAt) {
+        this.lastSeenAt = lastSeenAt;
+    }
+
+    public boolean isStateless() {
+        return stateless;
+    }
+
+    public void setStateless(boolean stateless) {
+        this.stateless = stateless;
+    }
+
     public boolean isExpired() {
         // expiresAt = 0 means permanent (never expires)
         return expiresAt > 0 && expiresAt < (System.currentTimeMillis() / 1000);
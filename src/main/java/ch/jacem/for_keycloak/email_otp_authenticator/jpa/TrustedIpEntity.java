@@ -1,6 +1,7 @@
 package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
 
 import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.NamedQueries;
@@ -17,6 +18,69 @@ import jakarta.persistence.UniqueConstraint;
         name = "findTrustedIp",
         query = "SELECT t FROM TrustedIpEntity t WHERE t.realmId = :realmId AND t.userId = :userId AND t.ipAddress = :ipAddress"
     ),
+    @NamedQuery(
+        name = "findTrustedIpExpiry",
+        query = "SELECT t.expiresAt FROM TrustedIpEntity t WHERE t.realmId = :realmId AND t.userId = :userId AND t.ipAddress = :ipAddress"
+    ),
+    @NamedQuery(
+        name = "expireTrustedIp",
+        query = "DELETE FROM TrustedIpEntity t WHERE t.realmId = :realmId AND t.userId = :userId AND t.ipAddress = :ipAddress AND t.expiresAt < :currentTime AND t.expiresAt > 0"
+    ),
+    @NamedQuery(
+        name = "findOldestTrustedIpId",
+        query = "SELECT MIN(t.id) FROM TrustedIpEntity t"
+    ),
+    @NamedQuery(
+        name = "sampleTrustedIps",
+        query = "SELECT t.id, t.expiresAt FROM TrustedIpEntity t WHERE t.id >= :startId ORDER BY t.id"
+    ),
+    @NamedQuery(
+        name = "refreshTrustedIp",
+        query = "UPDATE TrustedIpEntity t SET t.expiresAt = :expiresAt WHERE t.realmId = :realmId AND t.userId = :userId AND t.ipAddress = :ipAddress AND t.expiresAt < :expiresAt AND t.expiresAt >= :currentTime"
+    ),
+    @NamedQuery(
+        name = "extendTrustedIp",
+        query = "UPDATE TrustedIpEntity t SET t.expiresAt = :expiresAt WHERE t.realmId = :realmId AND t.userId = :userId AND t.ipAddress = :ipAddress AND t.expiresAt >= :currentTime"
+    ),
+    @NamedQuery(
+        // Rolling expirations move forward on every use, so the latest expiry is the most recently used
+        name = "findTrustedIpIdsByRecentUse",
+        query = "SELECT t.id FROM TrustedIpEntity t WHERE t.realmId = :realmId AND t.userId = :userId ORDER BY t.expiresAt DESC, t.id DESC"
+    ),
+    @NamedQuery(
+        name = "deleteTrustedIpsByUser",
+        query = "DELETE FROM TrustedIpEntity t WHERE t.realmId = :realmId AND t.userId = :userId"
+    ),
+    @NamedQuery(
+        name = "findTrustedIpIdsByRealm",
+        query = "SELECT t.id FROM TrustedIpEntity t WHERE t.realmId = :realmId"
+    ),
+    @NamedQuery(
+        name = "findTrustedIpIdsByUser",
+        query = "SELECT t.id FROM TrustedIpEntity t WHERE t.realmId = :realmId AND t.userId = :userId"
+    ),
+    @NamedQuery(
+        // Keyset pagination on (CREATED_AT, ID): the first condition on the cursor bounds the index range
+        name = "listTrustedIpsByUser",
+        query = "SELECT t.id, t.userId, t.createdAt, t.expiresAt FROM TrustedIpEntity t WHERE t.realmId = :realmId AND t.userId = :userId AND t.createdAt >= :createdFrom AND t.createdAt < :createdTo AND t.expiresAt >= :expiresFrom AND t.expiresAt < :expiresTo AND t.createdAt >= :afterCreatedAt AND (t.createdAt > :afterCreatedAt OR t.id > :afterId) ORDER BY t.createdAt, t.id"
+    ),
+    @NamedQuery(
+        // Walks the realm's (CREATED_AT, ID) index, the expiration range is checked on the rows it reads
+        name = "listTrustedIpsByRealm",
+        query = "SELECT t.id, t.userId, t.createdAt, t.expiresAt FROM TrustedIpEntity t WHERE t.realmId = :realmId AND t.createdAt >= :createdFrom AND t.createdAt < :createdTo AND t.expiresAt >= :expiresFrom AND t.expiresAt < :expiresTo AND t.createdAt >= :afterCreatedAt AND (t.createdAt > :afterCreatedAt OR t.id > :afterId) ORDER BY t.createdAt, t.id"
+    ),
+    @NamedQuery(
+        name = "findExpiredTrustedIpIds",
+        query = "SELECT t.id FROM TrustedIpEntity t WHERE t.expiresAt < :currentTime AND t.expiresAt > 0"
+    ),
+    @NamedQuery(
+        name = "countExpiredTrustedIps",
+        query = "SELECT COUNT(t) FROM TrustedIpEntity t WHERE t.expiresAt < :currentTime AND t.expiresAt > 0"
+    ),
+    @NamedQuery(
+        name = "deleteTrustedIpsById",
+        query = "DELETE FROM TrustedIpEntity t WHERE t.id IN :ids"
+    ),
     @NamedQuery(
         name = "deleteExpiredTrustedIps",
         query = "DELETE FROM TrustedIpEntity t WHERE t.expiresAt < :currentTime AND t.expiresAt > 0"
@@ -34,7 +98,9 @@ public class TrustedIpEntity {
     @Column(name = "USER_ID", nullable = false, length = 255)
     private String userId;
 
-    @Column(name = "IP_ADDRESS", nullable = false, length = 45)
+    // Raw SHA-256 digest, see TrustKeys
+    @Convert(converter = HashedIpConverter.class)
+    @Column(name = "IP_ADDRESS", nullable = false, length = TrustKeys.HASHED_IP_LENGTH)
     private String ipAddress;
 
     @Column(name = "EXPIRES_AT", nullable = false)
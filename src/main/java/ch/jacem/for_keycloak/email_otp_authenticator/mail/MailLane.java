@@ -0,0 +1,24 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Lanes of the {@link PriorityMailScheduler}. OTP emails are sent ahead of every other email.
+ */
+public enum MailLane {
+    OTP,
+    BULK;
+
+    /**
+     * Session attribute set while an OTP email is handed to the email sender.
+     */
+    public static final String SESSION_ATTRIBUTE = "email-otp-mail-lane";
+
+    /**
+     * @return The lane of the email being sent in the session, {@link #BULK} unless it is an OTP email
+     */
+    public static MailLane of(KeycloakSession session) {
+        Object lane = session.getAttribute(SESSION_ATTRIBUTE);
+        return lane instanceof MailLane ? (MailLane) lane : BULK;
+    }
+}
@@ -0,0 +1,104 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.OtpEmailOutboxEntity;
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.TrustIds;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+
+/**
+ * The OTP emails table, written in the login request's transaction and drained by {@link OtpEmailOutboxWorker}.
+ */
+public class OtpEmailOutbox {
+
+    /**
+     * Rendered in place of the code, which is not stored: the worker replaces it with the login's code when sending.
+     */
+    public static final String CODE_PLACEHOLDER = "{{email-otp-code}}";
+
+    // Hibernate's lock timeout for FOR UPDATE SKIP LOCKED (READPAST on SQL Server)
+    static final int SKIP_LOCKED = -2;
+
+    private final KeycloakSession session;
+
+    public OtpEmailOutbox(KeycloakSession session) {
+        this.session = session;
+    }
+
+    private EntityManager getEntityManager() {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /**
+     * Write the email, committed or rolled back with the session's transaction.
+     *
+     * @param expiresAt Time in milliseconds after which the email is no longer sent
+     */
+    public OtpEmailOutboxEntity enqueue(RenderedEmail email, String realmId, String userId,
+            String authSessionId, String clientId, String tabId, long expiresAt) {
+        long now = System.currentTimeMillis();
+        OtpEmailOutboxEntity entity = new OtpEmailOutboxEntity();
+        entity.setId(TrustIds.newId());
+        entity.setRealmId(realmId);
+        entity.setUserId(userId);
+        entity.setAddress(email.getAddress());
+        entity.setSubject(email.getSubject());
+        entity.setTextBody(email.getTextBody());
+        entity.setHtmlBody(email.getHtmlBody());
+        entity.setRelay(relay(email.getSmtpConfig()));
+        entity.setAuthSessionId(authSessionId);
+        entity.setClientId(clientId);
+        entity.setTabId(tabId);
+        entity.setCreatedAt(now);
+        entity.setNextAttemptAt(now);
+        entity.setExpiresAt(expiresAt);
+        getEntityManager().persist(entity);
+        return entity;
+    }
+
+    /**
+     * Claim due emails for this node: rows locked by another node's claim are skipped rather than waited for,
+     * and the claimed ones are leased, not due again before the lease ends, in case this node stops meanwhile.
+     *
+     * @return The claimed emails, detached once the transaction ends
+     */
+    public List<OtpEmailOutboxEntity> claim(int max, long now, long leaseMs) {
+        List<OtpEmailOutboxEntity> due = getEntityManager().createNamedQuery("findDueOtpEmails", OtpEmailOutboxEntity.class)
+            .setParameter("now", now)
+            .setMaxResults(max)
+            .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+            .setHint("jakarta.persistence.lock.timeout", SKIP_LOCKED)
+            .getResultList();
+        for (OtpEmailOutboxEntity email : due) {
+            email.setNextAttemptAt(now + leaseMs);
+        }
+        return due;
+    }
+
+    public void delete(String id) {
+        getEntityManager().createNamedQuery("deleteOtpEmail")
+            .setParameter("id", id)
+            .executeUpdate();
+    }
+
+    public void reschedule(String id, long nextAttemptAt, int attempts) {
+        getEntityManager().createNamedQuery("rescheduleOtpEmail")
+            .setParameter("id", id)
+            .setParameter("nextAttemptAt", nextAttemptAt)
+            .setParameter("attempts", attempts)
+            .executeUpdate();
+    }
+
+    static String relay(Map<String, String> smtpConfig) {
+        String host = smtpConfig.get("host");
+        String port = smtpConfig.get("port");
+        String relay = (host == null ? "" : host) + (port == null ? "" : ":" + port);
+        // Longer would not fit the column, and is no real relay anyway
+        return relay.length() > 255 ? relay.substring(0, 255) : relay;
+    }
+}
@@ -0,0 +1,238 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTask;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.OtpEmailOutboxEntity;
+
+/**
+ * Scheduled task draining the OTP email outbox on every node. Each run claims as many due emails
+ * as this node has free senders and sends them in the background, at most {@code maxPerRelay} at a time
+ * per SMTP server. A failed email is retried with exponential backoff until it was tried
+ * {@code maxAttempts} times or its code expired, then the login is told the delivery failed.
+ */
+public class OtpEmailOutboxWorker implements ScheduledTask {
+
+    private static final Logger logger = Logger.getLogger(OtpEmailOutboxWorker.class);
+
+    /**
+     * Reads the code of the email's login when sending, the outbox does not store it.
+     */
+    @FunctionalInterface
+    public interface CodeLookup {
+        /**
+         * @return The login's current code, or null if the login ended
+         */
+        String findCode(KeycloakSession session, OtpEmailOutboxEntity email);
+    }
+
+    /**
+     * Called in its own transaction when an email is given up.
+     */
+    @FunctionalInterface
+    public interface GiveUpCallback {
+        void onGiveUp(KeycloakSession session, OtpEmailOutboxEntity email);
+    }
+
+    private final OtpMailDispatcher sender;
+    private final ExecutorService executor;
+    private final int threads;
+    private final int maxPerRelay;
+    private final int maxAttempts;
+    private final long backoffMs;
+    private final long maxBackoffMs;
+    private final long leaseMs;
+    private final CodeLookup codes;
+    private final GiveUpCallback onGiveUp;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<String, AtomicInteger> relays = new ConcurrentHashMap<>();
+
+    /**
+     * @param sender Sends through the email sender configured for OTP emails
+     * @param threads Emails sent at the same time by this node
+     * @param maxPerRelay Emails sent at the same time by this node through one SMTP server
+     * @param maxAttempts Attempts before an email is given up
+     * @param backoffMs Delay before the first retry, doubled for each further one
+     * @param maxBackoffMs Longest delay between two attempts
+     * @param leaseMs Time after which an email claimed by a node that stopped is claimed again
+     * @param codes Reads the code put in place of {@link OtpEmailOutbox#CODE_PLACEHOLDER}
+     */
+    public OtpEmailOutboxWorker(OtpMailDispatcher sender, int threads, int maxPerRelay, int maxAttempts,
+            long backoffMs, long maxBackoffMs, long leaseMs, CodeLookup codes, GiveUpCallback onGiveUp) {
+        this(OtpMailDispatcher.newExecutor(threads), sender, threads, maxPerRelay, maxAttempts, backoffMs, maxBackoffMs, leaseMs,
+            codes, onGiveUp);
+    }
+
+    OtpEmailOutboxWorker(ExecutorService executor, OtpMailDispatcher sender, int threads, int maxPerRelay, int maxAttempts,
+            long backoffMs, long maxBackoffMs, long leaseMs, CodeLookup codes, GiveUpCallback onGiveUp) {
+        this.executor = executor;
+        this.sender = sender;
+        this.threads = Math.max(1, threads);
+        this.maxPerRelay = Math.max(1, maxPerRelay);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMs = Math.max(0L, backoffMs);
+        this.maxBackoffMs = Math.max(this.backoffMs, maxBackoffMs);
+        this.leaseMs = Math.max(1L, leaseMs);
+        this.codes = codes;
+        this.onGiveUp = onGiveUp;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        int capacity = threads - inFlight.get();
+        if (capacity <= 0) {
+            return;
+        }
+
+        KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+        long now = System.currentTimeMillis();
+        List<OtpEmailOutboxEntity> claimed;
+        try {
+            // Committed before sending, the lease must be visible to the other nodes
+            claimed = KeycloakModelUtils.runJobInTransactionWithResult(factory,
+                s -> new OtpEmailOutbox(s).claim(capacity, now, leaseMs));
+        } catch (RuntimeException e) {
+            logger.warn("Failed to claim OTP emails from the outbox", e);
+            return;
+        }
+
+        for (OtpEmailOutboxEntity email : claimed) {
+            inFlight.incrementAndGet();
+            try {
+                executor.execute(() -> {
+                    try {
+                        deliver(factory, email);
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down, another node claims it once the lease ended
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return Emails claimed by this node and not sent yet
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    private void deliver(KeycloakSessionFactory factory, OtpEmailOutboxEntity email) {
+        AtomicInteger relay = relays.computeIfAbsent(email.getRelay(), key -> new AtomicInteger());
+        if (relay.incrementAndGet() > maxPerRelay) {
+            relay.decrementAndGet();
+            // Due again right away, for the next run, without counting as an attempt
+            update(factory, s -> new OtpEmailOutbox(s).reschedule(email.getId(), System.currentTimeMillis(), email.getAttempts()));
+            return;
+        }
+
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, s -> send(s, email));
+        } catch (RuntimeException e) {
+            failed(factory, email, e);
+        } finally {
+            relay.decrementAndGet();
+        }
+    }
+
+    private void send(KeycloakSession session, OtpEmailOutboxEntity email) {
+        OtpEmailOutbox outbox = new OtpEmailOutbox(session);
+        RealmModel realm = session.realms().getRealm(email.getRealmId());
+        if (realm == null || session.users().getUserById(realm, email.getUserId()) == null) {
+            logger.debugf("Dropping OTP email to %s, its realm or user was removed", email.getAddress());
+            outbox.delete(email.getId());
+            return;
+        }
+        if (System.currentTimeMillis() > email.getExpiresAt()) {
+            logger.debugf("Dropping OTP email to %s, its code expired", email.getAddress());
+            outbox.delete(email.getId());
+            return;
+        }
+
+        String code = codes.findCode(session, email);
+        if (code == null) {
+            logger.debugf("Dropping OTP email to %s, its login ended", email.getAddress());
+            outbox.delete(email.getId());
+            return;
+        }
+
+        // Read by the email sender, for vault references and token authentication
+        session.getContext().setRealm(realm);
+        try {
+            sender.send(session, new RenderedEmail(realm.getId(), realm.getSmtpConfig(), email.getAddress(),
+                withCode(email.getSubject(), code), withCode(email.getTextBody(), code), withCode(email.getHtmlBody(), code)));
+        } catch (EmailException e) {
+            throw new ModelException("Failed to send OTP email", e);
+        }
+        // Sent again if this does not commit, delivery is at least once
+        outbox.delete(email.getId());
+        logger.debugf("OTP email sent to %s from the outbox", email.getAddress());
+    }
+
+    private void failed(KeycloakSessionFactory factory, OtpEmailOutboxEntity email, Exception cause) {
+        int attempts = email.getAttempts() + 1;
+        long nextAttemptAt = System.currentTimeMillis() + backoff(attempts);
+        if (attempts < maxAttempts && nextAttemptAt <= email.getExpiresAt()) {
+            logger.warnf(cause, "Failed to send OTP email to %s, attempt %d of %d", email.getAddress(), attempts, maxAttempts);
+            update(factory, s -> new OtpEmailOutbox(s).reschedule(email.getId(), nextAttemptAt, attempts));
+            return;
+        }
+
+        logger.errorf(cause, "Failed to send OTP email to %s after %d attempts, giving up", email.getAddress(), attempts);
+        update(factory, s -> {
+            new OtpEmailOutbox(s).delete(email.getId());
+            onGiveUp.onGiveUp(s, email);
+        });
+    }
+
+    private static String withCode(String rendered, String code) {
+        return rendered == null ? null : rendered.replace(OtpEmailOutbox.CODE_PLACEHOLDER, code);
+    }
+
+    /**
+     * Delay before the given attempt's retry: the base delay doubled per attempt already made, capped.
+     */
+    long backoff(int attempts) {
+        int doublings = Math.min(Math.max(0, attempts - 1), 30);
+        long delay = backoffMs << doublings;
+        return delay < 0 || delay > maxBackoffMs ? maxBackoffMs : delay;
+    }
+
+    private static void update(KeycloakSessionFactory factory, KeycloakSessionTask update) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, update);
+        } catch (RuntimeException e) {
+            // Claimed again once the lease ended
+            logger.warn("Failed to update the OTP email outbox", e);
+        }
+    }
+
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warn("OTP emails still being sent from the outbox at shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.util.Map;
+
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailTemplateProvider;
+import org.keycloak.email.freemarker.FreeMarkerEmailTemplateProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Renders an email with the realm's email theme in the current request, where the user's locale
+ * is known, without sending it.
+ */
+public final class OtpEmailRenderer {
+
+    private OtpEmailRenderer() {
+    }
+
+    /**
+     * @return The rendered email, or null if the server uses another email template provider than
+     *         the built-in one, whose rendering cannot be separated from sending
+     */
+    public static RenderedEmail render(KeycloakSession session, RealmModel realm, UserModel user,
+            String subjectKey, String template, Map<String, Object> attributes) throws EmailException {
+        EmailTemplateProvider installed = session.getProvider(EmailTemplateProvider.class);
+        if (installed == null || installed.getClass() != FreeMarkerEmailTemplateProvider.class) {
+            return null;
+        }
+
+        CapturingTemplateProvider provider = new CapturingTemplateProvider(session);
+        provider.setRealm(realm).setUser(user).send(subjectKey, template, attributes);
+        return provider.rendered;
+    }
+
+    /**
+     * Keeps the rendered email instead of handing it to the email sender.
+     */
+    private static final class CapturingTemplateProvider extends FreeMarkerEmailTemplateProvider {
+
+        private RenderedEmail rendered;
+
+        CapturingTemplateProvider(KeycloakSession session) {
+            super(session);
+        }
+
+        @Override
+        protected void send(Map<String, String> config, String subject, String textBody, String htmlBody, String address) {
+            rendered = new RenderedEmail(realm.getId(), config, address != null ? address : user.getEmail(), subject, textBody, htmlBody);
+        }
+    }
+}
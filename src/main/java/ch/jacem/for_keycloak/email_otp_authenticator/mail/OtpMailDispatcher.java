@@ -0,0 +1,195 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Sends rendered OTP emails in the background, so a slow SMTP relay does not hold the login request
+ * and its worker thread. Emails are handed over once the request's transaction committed, and at most
+ * {@code maxPending} of them wait or are being sent per node: beyond that, callers send synchronously.
+ */
+public class OtpMailDispatcher {
+
+    private static final Logger logger = Logger.getLogger(OtpMailDispatcher.class);
+
+    /**
+     * Called in its own transaction when a dispatched email could not be sent.
+     */
+    @FunctionalInterface
+    public interface FailureCallback {
+        void onFailure(KeycloakSession session, Exception cause);
+    }
+
+    private final ExecutorService executor;
+    private final String senderProviderId;
+    private final int maxPending;
+    private final Semaphore pending;
+    // Bounds the concurrent SMTP conversations, virtual threads being unbounded
+    private final Semaphore sending;
+
+    /**
+     * @param threads Emails sent at the same time
+     * @param maxPending Emails waiting or being sent before callers send synchronously
+     * @param senderProviderId Email sender used for OTP emails, null for the realm's default one
+     */
+    public OtpMailDispatcher(int threads, int maxPending, String senderProviderId) {
+        this(newExecutor(threads), threads, maxPending, senderProviderId);
+    }
+
+    OtpMailDispatcher(ExecutorService executor, int threads, int maxPending, String senderProviderId) {
+        this.executor = executor;
+        this.senderProviderId = senderProviderId;
+        this.maxPending = Math.max(0, maxPending);
+        this.pending = new Semaphore(this.maxPending);
+        this.sending = new Semaphore(Math.max(1, threads));
+    }
+
+    /**
+     * Queue the email for sending once the session's transaction committed. Nothing is sent if it rolls back.
+     *
+     * @return false if too many emails are pending, the caller then sends it itself
+     */
+    public boolean dispatch(KeycloakSession session, RenderedEmail email, FailureCallback onFailure) {
+        if (!pending.tryAcquire()) {
+            logger.debugf("Too many OTP emails pending, sending to %s synchronously", email.getAddress());
+            return false;
+        }
+
+        KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                try {
+                    executor.execute(() -> deliver(factory, email, onFailure));
+                } catch (RuntimeException e) {
+                    // Shut down meanwhile
+                    pending.release();
+                    logger.warnf(e, "Could not queue the OTP email to %s", email.getAddress());
+                }
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                pending.release();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Send the email in the current thread.
+     */
+    public void send(KeycloakSession session, RenderedEmail email) throws EmailException {
+        EmailSenderProvider sender = usesDefaultSender()
+            ? session.getProvider(EmailSenderProvider.class)
+            : session.getProvider(EmailSenderProvider.class, senderProviderId);
+        if (sender == null) {
+            throw new EmailException("Email sender " + senderProviderId + " not found");
+        }
+        session.setAttribute(MailLane.SESSION_ATTRIBUTE, MailLane.OTP);
+        try {
+            sender.send(email.getSmtpConfig(), email.getAddress(),
+                email.getSubject(), email.getTextBody(), email.getHtmlBody());
+        } finally {
+            session.removeAttribute(MailLane.SESSION_ATTRIBUTE);
+        }
+    }
+
+    /**
+     * @return false if OTP emails go through another email sender than the default one
+     */
+    public boolean usesDefaultSender() {
+        return senderProviderId == null;
+    }
+
+    /**
+     * @return Emails waiting or being sent
+     */
+    public int getPending() {
+        return maxPending - pending.availablePermits();
+    }
+
+    private void deliver(KeycloakSessionFactory factory, RenderedEmail email, FailureCallback onFailure) {
+        try {
+            sending.acquire();
+            try {
+                KeycloakModelUtils.runJobInTransaction(factory, session -> {
+                    RealmModel realm = session.realms().getRealm(email.getRealmId());
+                    if (realm == null) {
+                        throw new ModelException("Realm " + email.getRealmId() + " not found");
+                    }
+                    // Read by the email sender, for vault references and token authentication
+                    session.getContext().setRealm(realm);
+                    try {
+                        send(session, email);
+                    } catch (EmailException e) {
+                        throw new ModelException("Failed to send OTP email", e);
+                    }
+                });
+                logger.debugf("OTP email sent to %s", email.getAddress());
+            } finally {
+                sending.release();
+            }
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            logger.errorf(e, "Failed to send OTP email to %s", email.getAddress());
+            reportFailure(factory, onFailure, e);
+        } finally {
+            pending.release();
+        }
+    }
+
+    private static void reportFailure(KeycloakSessionFactory factory, FailureCallback onFailure, Exception cause) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, session -> onFailure.onFailure(session, cause));
+        } catch (RuntimeException e) {
+            logger.warn("Could not report the OTP email delivery failure", e);
+        }
+    }
+
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warn("OTP emails still being sent at shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Virtual threads on Java 21 and later, a fixed pool of platform threads before.
+     */
+    static ExecutorService newExecutor(int threads) {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            ThreadFactory factory = runnable -> {
+                Thread thread = new Thread(runnable, "email-otp-mail-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            return Executors.newFixedThreadPool(Math.max(1, threads), factory);
+        }
+    }
+}
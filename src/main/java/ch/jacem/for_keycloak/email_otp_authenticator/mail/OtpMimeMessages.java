@@ -0,0 +1,74 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import java.util.Map;
+
+import org.keycloak.email.EmailException;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+
+/**
+ * Builds emails from a realm's SMTP settings the way Keycloak's default sender does:
+ * a text and an HTML alternative, sender, display names and reply-to from the settings.
+ */
+final class OtpMimeMessages {
+
+    private OtpMimeMessages() {
+    }
+
+    static MimeMessage build(Session mailSession, Map<String, String> config, String address,
+            String subject, String textBody, String htmlBody) throws MessagingException, UnsupportedEncodingException {
+        Multipart multipart = new MimeMultipart("alternative");
+        if (textBody != null) {
+            MimeBodyPart textPart = new MimeBodyPart();
+            textPart.setText(textBody, "UTF-8");
+            multipart.addBodyPart(textPart);
+        }
+        if (htmlBody != null) {
+            MimeBodyPart htmlPart = new MimeBodyPart();
+            htmlPart.setContent(htmlBody, "text/html; charset=UTF-8");
+            multipart.addBodyPart(htmlPart);
+        }
+
+        MimeMessage message = new MimeMessage(mailSession);
+        message.setFrom(toInternetAddress(config.get("from"), config.get("fromDisplayName")));
+        String replyTo = config.get("replyTo");
+        if (replyTo != null && !replyTo.isBlank()) {
+            message.setReplyTo(new Address[] { toInternetAddress(replyTo, config.get("replyToDisplayName")) });
+        }
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress(address));
+        message.setSubject(subject, "utf-8");
+        message.setContent(multipart);
+        message.saveChanges();
+        message.setSentDate(new Date());
+        return message;
+    }
+
+    static void validateFrom(Map<String, String> config) throws EmailException {
+        String from = config.get("from");
+        if (from == null || from.isBlank()) {
+            throw new EmailException("Sender address is missing");
+        }
+        try {
+            new InternetAddress(from).validate();
+        } catch (MessagingException e) {
+            throw new EmailException("Invalid sender address " + from, e);
+        }
+    }
+
+    private static InternetAddress toInternetAddress(String email, String displayName) throws UnsupportedEncodingException {
+        if (displayName == null || displayName.isBlank()) {
+            return new InternetAddress(email, null, "utf-8");
+        }
+        return new InternetAddress(email, displayName, "utf-8");
+    }
+}
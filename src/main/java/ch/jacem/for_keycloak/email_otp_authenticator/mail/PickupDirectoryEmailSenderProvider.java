@@ -0,0 +1,128 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Hands emails to a local MTA as RFC 5322 files instead of over SMTP. Each email is written and synced
+ * under a temporary name, then renamed into place, so the MTA never picks up a partial file.
+ */
+public class PickupDirectoryEmailSenderProvider implements EmailSenderProvider {
+
+    private static final Logger logger = Logger.getLogger(PickupDirectoryEmailSenderProvider.class);
+
+    public enum Format {
+        /**
+         * Files named {@code *.eml} directly in the directory, written as hidden {@code .*.tmp} files first.
+         */
+        PICKUP,
+        /**
+         * Maildir delivery: written to {@code tmp/}, then moved to {@code new/}.
+         */
+        MAILDIR
+    }
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    private final Path directory;
+    private final Format format;
+    private final String hostname;
+
+    /**
+     * @param directory Directory the MTA picks emails up from, or the maildir
+     * @param hostname This host's name, part of the file names to keep them unique across hosts sharing the directory
+     */
+    public PickupDirectoryEmailSenderProvider(Path directory, Format format, String hostname) {
+        this.directory = directory;
+        this.format = format;
+        this.hostname = hostname;
+    }
+
+    @Override
+    public void send(Map<String, String> config, String address, String subject, String textBody, String htmlBody) throws EmailException {
+        if (directory == null) {
+            throw new EmailException("No pickup directory configured");
+        }
+
+        Properties props = new Properties();
+        if ("true".equals(config.get("allowutf8"))) {
+            props.setProperty("mail.mime.allowutf8", "true");
+        }
+        MimeMessage message;
+        try {
+            message = OtpMimeMessages.build(Session.getInstance(props), config, address, subject, textBody, htmlBody);
+        } catch (MessagingException | IOException e) {
+            throw new EmailException("Failed to build email", e);
+        }
+
+        String name = uniqueName();
+        Path temp;
+        Path target;
+        if (format == Format.MAILDIR) {
+            temp = directory.resolve("tmp").resolve(name);
+            target = directory.resolve("new").resolve(name);
+        } else {
+            temp = directory.resolve("." + name + ".tmp");
+            target = directory.resolve(name + ".eml");
+        }
+
+        try {
+            write(message, temp);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            logger.debugf("Email to %s written to %s", address, target);
+        } catch (IOException | MessagingException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException cleanup) {
+                e.addSuppressed(cleanup);
+            }
+            throw new EmailException("Failed to write email to " + directory, e);
+        }
+    }
+
+    private static void write(MimeMessage message, Path file) throws IOException, MessagingException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            message.writeTo(out);
+            out.flush();
+            // On disk before it becomes visible to the MTA
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Maildir-style unique name: seconds, microseconds, process and counter, host.
+     */
+    private String uniqueName() {
+        long micros = System.currentTimeMillis() * 1000L + (System.nanoTime() / 1000L) % 1000L;
+        return (micros / 1_000_000L) + ".M" + (micros % 1_000_000L) + "P" + ProcessHandle.current().pid()
+            + "Q" + counter.incrementAndGet() + "." + hostname;
+    }
+
+    @Override
+    public void validate(Map<String, String> config) throws EmailException {
+        OtpMimeMessages.validateFrom(config);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,82 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.email.EmailSenderProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Email sender writing to a local MTA's pickup directory or maildir, configured with
+ * {@code --spi-email-sender-email-otp-pickup-directory=...} and {@code ...-format=pickup|maildir}.
+ */
+public class PickupDirectoryEmailSenderProviderFactory implements EmailSenderProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(PickupDirectoryEmailSenderProviderFactory.class);
+
+    public static final String PROVIDER_ID = "email-otp-pickup";
+
+    private Path directory;
+    private PickupDirectoryEmailSenderProvider.Format format = PickupDirectoryEmailSenderProvider.Format.PICKUP;
+    private String hostname;
+
+    @Override
+    public EmailSenderProvider create(KeycloakSession session) {
+        return new PickupDirectoryEmailSenderProvider(directory, format, hostname);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        if (config != null) {
+            String dir = config.get("directory");
+            if (dir != null && !dir.isBlank()) {
+                directory = Paths.get(dir);
+            }
+            String fmt = config.get("format");
+            if (fmt != null && !fmt.isBlank()) {
+                format = PickupDirectoryEmailSenderProvider.Format.valueOf(fmt.trim().toUpperCase(Locale.ROOT));
+            }
+        }
+        hostname = hostname();
+
+        if (directory == null) {
+            logger.debug("No pickup directory configured, the email-otp-pickup sender cannot send");
+        } else if (!Files.isDirectory(format == PickupDirectoryEmailSenderProvider.Format.MAILDIR ? directory.resolve("new") : directory)) {
+            logger.warnf("Email pickup directory %s does not exist yet", directory);
+        }
+    }
+
+    /**
+     * This host's name, with the characters maildir reserves in file names replaced.
+     */
+    private static String hostname() {
+        String name;
+        try {
+            name = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            name = "localhost";
+        }
+        return name.replace("/", "\\057").replace(":", "\\072");
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,82 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import org.jboss.logging.Logger;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+
+/**
+ * An authenticated SMTP transport kept open between messages, used by one thread at a time.
+ */
+final class PooledSmtpConnection {
+
+    private static final Logger logger = Logger.getLogger(PooledSmtpConnection.class);
+
+    private final String poolKey;
+    private final Session mailSession;
+    private final Transport transport;
+    private int messages;
+    private boolean reused;
+    private volatile long idleSince;
+
+    PooledSmtpConnection(String poolKey, Session mailSession, Transport transport) {
+        this.poolKey = poolKey;
+        this.mailSession = mailSession;
+        this.transport = transport;
+    }
+
+    /**
+     * Key of the SMTP settings the connection was opened with, see {@link PooledSmtpEmailSenderProvider#poolKey}.
+     */
+    String getPoolKey() {
+        return poolKey;
+    }
+
+    Session getMailSession() {
+        return mailSession;
+    }
+
+    Transport getTransport() {
+        return transport;
+    }
+
+    int getMessages() {
+        return messages;
+    }
+
+    void messageSent() {
+        messages++;
+    }
+
+    /**
+     * @return true if the connection was taken from the pool rather than opened for this message
+     */
+    boolean isReused() {
+        return reused;
+    }
+
+    long getIdleSince() {
+        return idleSince;
+    }
+
+    void idle(long now) {
+        idleSince = now;
+        reused = true;
+    }
+
+    /**
+     * Asks the server with a NOOP whether the connection is still usable.
+     */
+    boolean isAlive() {
+        return transport.isConnected();
+    }
+
+    void close() {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            logger.debug("Failed to close pooled SMTP connection", e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.enums.HostnameVerificationPolicy;
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.truststore.JSSETruststoreConfigurator;
+import org.keycloak.vault.VaultStringSecret;
+
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Sends emails like Keycloak's default sender, over SMTP connections kept open in a {@link SmtpConnectionPool}
+ * instead of one connection per email. OAuth token authentication is left to the default sender.
+ */
+public class PooledSmtpEmailSenderProvider implements EmailSenderProvider {
+
+    private static final Logger logger = Logger.getLogger(PooledSmtpEmailSenderProvider.class);
+
+    private static final String DEFAULT_SENDER_ID = "default";
+    private static final String DEFAULT_TIMEOUT_MS = "10000";
+
+    // Settings the SMTP session of a connection is opened with, connections are shared only when they all match
+    private static final String[] CONNECTION_SETTINGS = {"host", "port", "ssl", "starttls", "auth", "user",
+        "timeout", "connectionTimeout", "writeTimeout", "envelopeFrom", "allowutf8"};
+
+    private final KeycloakSession session;
+    private final SmtpConnectionPool pool;
+
+    public PooledSmtpEmailSenderProvider(KeycloakSession session, SmtpConnectionPool pool) {
+        this.session = session;
+        this.pool = pool;
+    }
+
+    @Override
+    public void send(Map<String, String> config, String address, String subject, String textBody, String htmlBody) throws EmailException {
+        if ("token".equals(config.get("authType"))) {
+            session.getProvider(EmailSenderProvider.class, DEFAULT_SENDER_ID).send(config, address, subject, textBody, htmlBody);
+            return;
+        }
+
+        String poolKey = poolKey(config);
+        PooledSmtpConnection connection = pool.borrow(poolKey, () -> connect(config, poolKey));
+
+        MimeMessage message;
+        try {
+            message = OtpMimeMessages.build(connection.getMailSession(), config, address, subject, textBody, htmlBody);
+        } catch (MessagingException | UnsupportedEncodingException e) {
+            pool.release(connection, true);
+            throw new EmailException("Failed to build email", e);
+        }
+
+        try {
+            deliver(connection, message, address);
+        } catch (MessagingException e) {
+            if (!connection.isReused() || isRecipientRejected(e)) {
+                throw new EmailException("Failed to send email", e);
+            }
+            // The server dropped the idle connection since it was last checked
+            logger.debugf(e, "Pooled SMTP connection to %s failed, retrying on a new one", config.get("host"));
+            try {
+                deliver(connect(config, poolKey), message, address);
+            } catch (MessagingException retry) {
+                throw new EmailException("Failed to send email", retry);
+            }
+        }
+    }
+
+    private void deliver(PooledSmtpConnection connection, MimeMessage message, String address) throws MessagingException {
+        boolean reusable = false;
+        try {
+            connection.getTransport().sendMessage(message, new Address[] { new InternetAddress(address) });
+            connection.messageSent();
+            reusable = true;
+        } finally {
+            pool.release(connection, reusable);
+        }
+    }
+
+    private static boolean isRecipientRejected(MessagingException e) {
+        if (!(e instanceof SendFailedException)) {
+            return false;
+        }
+        Address[] invalid = ((SendFailedException) e).getInvalidAddresses();
+        return invalid != null && invalid.length > 0;
+    }
+
+    /**
+     * Key of the pooled connections of an SMTP configuration. The password only enters as a hash, so it is not
+     * kept by the pool, and connections opened with a previous password are not reused once it changed.
+     */
+    static String poolKey(Map<String, String> config) {
+        StringBuilder key = new StringBuilder();
+        for (String setting : CONNECTION_SETTINGS) {
+            String value = config.get(setting);
+            // Length-prefixed, so no value can forge the separator of the next one
+            key.append(value != null ? value.length() + ":" + value : "-").append('|');
+        }
+        String password = config.get("password");
+        if (password != null) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+                key.append(Base64Url.encode(hash));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+        return key.toString();
+    }
+
+    private PooledSmtpConnection connect(Map<String, String> config, String poolKey) throws EmailException {
+        Session mailSession = Session.getInstance(properties(config));
+        Transport transport = null;
+        try {
+            transport = mailSession.getTransport("smtp");
+            if ("true".equals(config.get("auth"))) {
+                try (VaultStringSecret password = session.vault().getStringSecret(config.get("password"))) {
+                    transport.connect(config.get("user"), password.get().orElse(config.get("password")));
+                }
+            } else {
+                transport.connect();
+            }
+            return new PooledSmtpConnection(poolKey, mailSession, transport);
+        } catch (MessagingException e) {
+            if (transport != null) {
+                new PooledSmtpConnection(poolKey, mailSession, transport).close();
+            }
+            throw new EmailException("Failed to connect to SMTP server " + config.get("host"), e);
+        }
+    }
+
+    private Properties properties(Map<String, String> config) {
+        Properties props = new Properties();
+        props.setProperty("mail.transport.protocol", "smtp");
+        props.setProperty("mail.smtp.host", config.get("host"));
+        if (config.get("port") != null) {
+            props.setProperty("mail.smtp.port", config.get("port"));
+        }
+        if ("true".equals(config.get("auth"))) {
+            props.setProperty("mail.smtp.auth", "true");
+        }
+
+        boolean ssl = "true".equals(config.get("ssl"));
+        boolean starttls = "true".equals(config.get("starttls"));
+        if (ssl) {
+            props.setProperty("mail.smtp.ssl.enable", "true");
+        }
+        if (starttls) {
+            props.setProperty("mail.smtp.starttls.enable", "true");
+        }
+        if (ssl || starttls) {
+            props.setProperty("mail.smtp.ssl.protocols", "TLSv1.2 TLSv1.3");
+            setupTruststore(props);
+        }
+
+        props.setProperty("mail.smtp.timeout", config.getOrDefault("timeout", DEFAULT_TIMEOUT_MS));
+        props.setProperty("mail.smtp.connectiontimeout", config.getOrDefault("connectionTimeout", DEFAULT_TIMEOUT_MS));
+        props.setProperty("mail.smtp.writetimeout", config.getOrDefault("writeTimeout", DEFAULT_TIMEOUT_MS));
+
+        String envelopeFrom = config.get("envelopeFrom");
+        if (envelopeFrom != null && !envelopeFrom.isBlank()) {
+            props.setProperty("mail.smtp.from", envelopeFrom);
+        }
+        if ("true".equals(config.get("allowutf8"))) {
+            props.setProperty("mail.mime.allowutf8", "true");
+        }
+        return props;
+    }
+
+    private void setupTruststore(Properties props) {
+        JSSETruststoreConfigurator configurator = new JSSETruststoreConfigurator(session);
+        SSLSocketFactory factory = configurator.getSSLSocketFactory();
+        if (factory != null) {
+            props.put("mail.smtp.ssl.socketFactory", factory);
+            if (configurator.getProvider().getPolicy() == HostnameVerificationPolicy.ANY) {
+                props.setProperty("mail.smtp.ssl.trust", "*");
+                props.setProperty("mail.smtp.ssl.checkserveridentity", "false");
+            } else {
+                props.setProperty("mail.smtp.ssl.checkserveridentity", "true");
+            }
+        }
+    }
+
+    @Override
+    public void validate(Map<String, String> config) throws EmailException {
+        String host = config.get("host");
+        if (host == null || host.isBlank()) {
+            throw new EmailException("SMTP host is missing");
+        }
+        OtpMimeMessages.validateFrom(config);
+    }
+
+    @Override
+    public void close() {
+    }
+}
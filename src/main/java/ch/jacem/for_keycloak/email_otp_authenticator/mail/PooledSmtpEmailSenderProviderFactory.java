@@ -0,0 +1,79 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.email.EmailSenderProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.timer.TimerProvider;
+
+/**
+ * Email sender keeping SMTP connections open between emails, configured with
+ * {@code --spi-email-sender-email-otp-pooled-...}.
+ */
+public class PooledSmtpEmailSenderProviderFactory implements EmailSenderProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(PooledSmtpEmailSenderProviderFactory.class);
+
+    public static final String PROVIDER_ID = "email-otp-pooled";
+
+    // Default pool: 4 idle connections per SMTP server, each reused for up to 100 emails
+    private static final int DEFAULT_MAX_IDLE_PER_SERVER = 4;
+    private static final int DEFAULT_MAX_MESSAGES_PER_CONNECTION = 100;
+    // Closed before most servers drop them, checked with a NOOP after 2 seconds idle
+    private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+    private static final long DEFAULT_VALIDATE_AFTER_MS = 2000L;
+
+    private SmtpConnectionPool pool;
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_SECONDS * 1000L;
+
+    @Override
+    public EmailSenderProvider create(KeycloakSession session) {
+        return new PooledSmtpEmailSenderProvider(session, pool);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        int maxIdlePerServer = DEFAULT_MAX_IDLE_PER_SERVER;
+        int maxMessagesPerConnection = DEFAULT_MAX_MESSAGES_PER_CONNECTION;
+        long validateAfterMs = DEFAULT_VALIDATE_AFTER_MS;
+        if (config != null) {
+            maxIdlePerServer = config.getInt("max-idle-per-server", maxIdlePerServer);
+            maxMessagesPerConnection = config.getInt("max-messages-per-connection", maxMessagesPerConnection);
+            idleTimeoutMs = Math.max(1, config.getInt("idle-timeout-seconds", DEFAULT_IDLE_TIMEOUT_SECONDS)) * 1000L;
+            validateAfterMs = Math.max(0L, config.getLong("validate-after-millis", validateAfterMs));
+        }
+
+        this.pool = new SmtpConnectionPool(maxIdlePerServer, maxMessagesPerConnection, idleTimeoutMs, validateAfterMs);
+        logger.debugf("Pooled SMTP sender: %d idle connections per server, %d emails per connection",
+            maxIdlePerServer, maxMessagesPerConnection);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        KeycloakSession session = factory.create();
+        try {
+            TimerProvider timer = session.getProvider(TimerProvider.class);
+            if (timer != null) {
+                timer.scheduleTask(s -> pool.evictIdle(), idleTimeoutMs, "EmailOtpSmtpPoolEviction");
+            } else {
+                logger.warn("TimerProvider not available, idle SMTP connections are only closed when reused");
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,119 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Email sender queueing every email in a {@link PriorityMailScheduler} lane and sending it through
+ * another sender. Other than OTP emails are queued and sent in the background, their failures are logged.
+ * An OTP email is queued only while its lane is idle, and waited for so its failure reaches the login:
+ * behind a busy lane it is sent right away instead, like emails of a full lane.
+ */
+public class PriorityEmailSenderProvider implements EmailSenderProvider {
+
+    private final KeycloakSession session;
+    private final PriorityMailScheduler scheduler;
+    private final String delegateId;
+    private final long otpTimeoutMs;
+
+    /**
+     * @param delegateId Email sender actually sending the emails
+     * @param otpTimeoutMs Time an OTP email is waited for before its sender gives up waiting
+     */
+    public PriorityEmailSenderProvider(KeycloakSession session, PriorityMailScheduler scheduler, String delegateId,
+            long otpTimeoutMs) {
+        this.session = session;
+        this.scheduler = scheduler;
+        this.delegateId = delegateId;
+        this.otpTimeoutMs = otpTimeoutMs;
+    }
+
+    @Override
+    public void send(Map<String, String> config, String address, String subject, String textBody, String htmlBody) throws EmailException {
+        MailLane lane = MailLane.of(session);
+        RealmModel realm = session.getContext().getRealm();
+        // Copied, the realm's settings are read after this session ended
+        RenderedEmail email = new RenderedEmail(realm == null ? null : realm.getId(), config, address, subject, textBody, htmlBody);
+        KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+        PriorityMailScheduler.Job job = () -> KeycloakModelUtils.runJobInTransaction(factory, s -> {
+            if (email.getRealmId() != null) {
+                RealmModel emailRealm = s.realms().getRealm(email.getRealmId());
+                if (emailRealm == null) {
+                    throw new ModelException("Realm " + email.getRealmId() + " not found");
+                }
+                // Read by the email sender, for vault references and token authentication
+                s.getContext().setRealm(emailRealm);
+            }
+            try {
+                send(s, email);
+            } catch (EmailException e) {
+                throw new ModelException("Failed to send email", e);
+            }
+        });
+
+        if (lane != MailLane.OTP) {
+            if (scheduler.submit(lane, job) == null) {
+                send(session, email);
+            }
+            return;
+        }
+        // Waiting behind other OTP emails could outlast the login, a busy lane is bypassed instead
+        CompletableFuture<Void> done = scheduler.submitIfIdle(lane, job);
+        if (done == null) {
+            send(session, email);
+            return;
+        }
+        await(done, address);
+    }
+
+    private void await(CompletableFuture<Void> done, String address) throws EmailException {
+        try {
+            done.get(otpTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ModelException && cause.getCause() instanceof EmailException) {
+                throw (EmailException) cause.getCause();
+            }
+            throw new EmailException("Failed to send email to " + address, cause);
+        } catch (TimeoutException e) {
+            // Not sent later once the failure was reported, an email already being sent is not interrupted
+            scheduler.cancel(done);
+            throw new EmailException("Email to " + address + " not sent within " + otpTimeoutMs + "ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmailException("Interrupted while sending email to " + address, e);
+        }
+    }
+
+    private void send(KeycloakSession session, RenderedEmail email) throws EmailException {
+        delegate(session).send(email.getSmtpConfig(), email.getAddress(), email.getSubject(), email.getTextBody(), email.getHtmlBody());
+    }
+
+    private EmailSenderProvider delegate(KeycloakSession session) throws EmailException {
+        EmailSenderProvider delegate = session.getProvider(EmailSenderProvider.class, delegateId);
+        if (delegate == null) {
+            throw new EmailException("Email sender " + delegateId + " not found");
+        }
+        return delegate;
+    }
+
+    @Override
+    public void validate(Map<String, String> config) throws EmailException {
+        delegate(session).validate(config);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,117 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.email.EmailSenderProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Email sender sending OTP emails ahead of Keycloak's other emails, configured with
+ * {@code --spi-email-sender-email-otp-priority-...}. Meant to be Keycloak's default email sender,
+ * so every email goes through its lanes.
+ */
+public class PriorityEmailSenderProviderFactory implements EmailSenderProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(PriorityEmailSenderProviderFactory.class);
+
+    public static final String PROVIDER_ID = "email-otp-priority";
+
+    // Default lanes: 4 senders, one always left to OTP emails, 100 OTP emails for 1 other when both wait
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_OTP_WEIGHT = 100;
+    private static final int DEFAULT_BULK_WEIGHT = 1;
+    private static final int DEFAULT_MAX_QUEUED = 10000;
+    private static final int DEFAULT_OTP_TIMEOUT_SECONDS = 30;
+    private static final String DEFAULT_DELEGATE = "default";
+
+    private volatile PriorityMailScheduler scheduler;
+    private int threads = DEFAULT_THREADS;
+    private Map<MailLane, PriorityMailScheduler.LaneSettings> lanes;
+    private String delegate = DEFAULT_DELEGATE;
+    private long otpTimeoutMs = DEFAULT_OTP_TIMEOUT_SECONDS * 1000L;
+
+    @Override
+    public EmailSenderProvider create(KeycloakSession session) {
+        return new PriorityEmailSenderProvider(session, scheduler(), delegate, otpTimeoutMs);
+    }
+
+    /**
+     * Started on first use, installations not sending through this sender get no threads.
+     */
+    private PriorityMailScheduler scheduler() {
+        PriorityMailScheduler current = scheduler;
+        if (current == null) {
+            synchronized (this) {
+                current = scheduler;
+                if (current == null) {
+                    current = new PriorityMailScheduler(threads, lanes);
+                    scheduler = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        int otpWeight = DEFAULT_OTP_WEIGHT;
+        int bulkWeight = DEFAULT_BULK_WEIGHT;
+        int maxQueued = DEFAULT_MAX_QUEUED;
+        Integer bulkMaxConcurrent = null;
+        if (config != null) {
+            threads = Math.max(1, config.getInt("threads", threads));
+            otpWeight = config.getInt("otp-weight", otpWeight);
+            bulkWeight = config.getInt("bulk-weight", bulkWeight);
+            maxQueued = config.getInt("max-queued", maxQueued);
+            bulkMaxConcurrent = config.getInt("bulk-max-concurrent");
+            otpTimeoutMs = Math.max(1, config.getInt("otp-timeout-seconds", DEFAULT_OTP_TIMEOUT_SECONDS)) * 1000L;
+            String configured = config.get("delegate");
+            if (configured != null && !configured.isBlank()) {
+                delegate = configured;
+            }
+        }
+        if (PROVIDER_ID.equals(delegate)) {
+            throw new IllegalArgumentException("The " + PROVIDER_ID + " email sender cannot send through itself");
+        }
+        if (bulkMaxConcurrent == null) {
+            bulkMaxConcurrent = Math.max(1, threads - 1);
+        }
+
+        lanes = new EnumMap<>(MailLane.class);
+        lanes.put(MailLane.OTP, new PriorityMailScheduler.LaneSettings(otpWeight, threads, maxQueued));
+        lanes.put(MailLane.BULK, new PriorityMailScheduler.LaneSettings(bulkWeight, bulkMaxConcurrent, maxQueued));
+        logger.debugf("Priority email sender: %d threads, %d at most for other than OTP emails, sending through %s",
+            threads, bulkMaxConcurrent, delegate);
+    }
+
+    /**
+     * @return Queue depth and wait times per lane on this node
+     */
+    public List<PriorityMailScheduler.LaneStats> getStats() {
+        PriorityMailScheduler current = scheduler;
+        return current == null ? List.of() : current.getStats();
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+        PriorityMailScheduler current = scheduler;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,394 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Sends emails from per-lane queues with a fixed set of threads. Among the lanes with waiting emails,
+ * the next one is picked by smooth weighted round robin, so with weights 100 and 1 a backlog of the
+ * second lane gets one email out for every hundred of the first. A lane can also be kept from taking
+ * every thread, leaving some free for the lanes that must not wait.
+ */
+public class PriorityMailScheduler {
+
+    private static final Logger logger = Logger.getLogger(PriorityMailScheduler.class);
+
+    @FunctionalInterface
+    public interface Job {
+        void run() throws Exception;
+    }
+
+    public static final class LaneSettings {
+        final int weight;
+        final int maxConcurrent;
+        final int maxQueued;
+
+        /**
+         * @param weight Share of the picks while several lanes have emails waiting
+         * @param maxConcurrent Emails of the lane sent at the same time
+         * @param maxQueued Emails waiting before the lane refuses more
+         */
+        public LaneSettings(int weight, int maxConcurrent, int maxQueued) {
+            this.weight = Math.max(1, weight);
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            this.maxQueued = Math.max(0, maxQueued);
+        }
+    }
+
+    /**
+     * Queue depth and wait times of a lane, as reported to the admin.
+     */
+    public static final class LaneStats {
+        private final MailLane lane;
+        private final int weight;
+        private final int queued;
+        private final int inFlight;
+        private final long sent;
+        private final long failed;
+        private final long averageWaitMillis;
+        private final long maxWaitMillis;
+        private final long oldestWaitMillis;
+
+        LaneStats(MailLane lane, int weight, int queued, int inFlight, long sent, long failed,
+                long averageWaitMillis, long maxWaitMillis, long oldestWaitMillis) {
+            this.lane = lane;
+            this.weight = weight;
+            this.queued = queued;
+            this.inFlight = inFlight;
+            this.sent = sent;
+            this.failed = failed;
+            this.averageWaitMillis = averageWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+            this.oldestWaitMillis = oldestWaitMillis;
+        }
+
+        public MailLane getLane() {
+            return lane;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return Emails waiting for a thread
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return Average time emails waited in the queue before being sent
+         */
+        public long getAverageWaitMillis() {
+            return averageWaitMillis;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        /**
+         * @return Time the oldest waiting email has been queued, 0 if none is waiting
+         */
+        public long getOldestWaitMillis() {
+            return oldestWaitMillis;
+        }
+    }
+
+    private static final class Entry {
+        final Lane lane;
+        final Job job;
+        final long enqueuedAt = System.currentTimeMillis();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Entry(Lane lane, Job job) {
+            this.lane = lane;
+            this.job = job;
+        }
+    }
+
+    private static final class Lane {
+        final MailLane id;
+        final LaneSettings settings;
+        final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        int inFlight;
+        int currentWeight;
+        long sent;
+        long failed;
+        long dequeued;
+        long waitTotalMs;
+        long maxWaitMs;
+
+        Lane(MailLane id, LaneSettings settings) {
+            this.id = id;
+            this.settings = settings;
+        }
+
+        boolean isEligible() {
+            return !queue.isEmpty() && inFlight < settings.maxConcurrent;
+        }
+    }
+
+    private final Map<MailLane, Lane> lanes = new EnumMap<>(MailLane.class);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final List<Thread> workers = new ArrayList<>();
+    private boolean closed;
+
+    /**
+     * @param threads Emails sent at the same time across all lanes
+     * @param settings Settings of each lane, every lane must have some
+     */
+    public PriorityMailScheduler(int threads, Map<MailLane, LaneSettings> settings) {
+        for (MailLane lane : MailLane.values()) {
+            LaneSettings laneSettings = settings.get(lane);
+            if (laneSettings == null) {
+                throw new IllegalArgumentException("No settings for mail lane " + lane);
+            }
+            lanes.put(lane, new Lane(lane, laneSettings));
+        }
+        for (int i = 1; i <= Math.max(1, threads); i++) {
+            Thread worker = new Thread(this::work, "email-otp-priority-mail-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queue a job in the lane.
+     *
+     * @return Completed once the job ran, or null if the lane is full or the scheduler closed,
+     *         the caller then runs the job itself
+     */
+    public CompletableFuture<Void> submit(MailLane lane, Job job) {
+        return submit(lane, job, false);
+    }
+
+    /**
+     * Queue a job in the lane only if a thread can take it right away: nothing is waiting in the lane,
+     * the lane is below its concurrency limit and a thread is free.
+     *
+     * @return Completed once the job ran, or null if the lane is busy or the scheduler closed,
+     *         the caller then runs the job itself
+     */
+    public CompletableFuture<Void> submitIfIdle(MailLane lane, Job job) {
+        return submit(lane, job, true);
+    }
+
+    private CompletableFuture<Void> submit(MailLane lane, Job job, boolean onlyIfIdle) {
+        lock.lock();
+        try {
+            Lane target = lanes.get(lane);
+            if (closed || target.queue.size() >= target.settings.maxQueued) {
+                return null;
+            }
+            if (onlyIfIdle && (!target.queue.isEmpty() || target.inFlight >= target.settings.maxConcurrent || inFlight() >= workers.size())) {
+                return null;
+            }
+            Entry entry = new Entry(target, job);
+            target.queue.addLast(entry);
+            ready.signal();
+            return entry.done;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a job out of its lane before a thread picked it, failing its future with a {@link CancellationException}.
+     *
+     * @return false if the job already started or was never queued
+     */
+    public boolean cancel(CompletableFuture<Void> done) {
+        lock.lock();
+        try {
+            for (Lane lane : lanes.values()) {
+                for (Iterator<Entry> entries = lane.queue.iterator(); entries.hasNext(); ) {
+                    Entry entry = entries.next();
+                    if (entry.done == done) {
+                        entries.remove();
+                        entry.done.completeExceptionally(new CancellationException("Email cancelled before being sent"));
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<LaneStats> getStats() {
+        long now = System.currentTimeMillis();
+        List<LaneStats> stats = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Lane lane : lanes.values()) {
+                Entry oldest = lane.queue.peekFirst();
+                stats.add(new LaneStats(lane.id, lane.settings.weight, lane.queue.size(), lane.inFlight,
+                    lane.sent, lane.failed, lane.dequeued == 0 ? 0 : lane.waitTotalMs / lane.dequeued,
+                    lane.maxWaitMs, oldest == null ? 0 : now - oldest.enqueuedAt));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return stats;
+    }
+
+    private void work() {
+        Entry entry;
+        while ((entry = next()) != null) {
+            Exception failure = null;
+            try {
+                entry.job.run();
+            } catch (Exception e) {
+                failure = e;
+                logger.errorf(e, "Failed to send %s email", entry.lane.id);
+            }
+            finished(entry.lane, failure == null);
+            if (failure == null) {
+                entry.done.complete(null);
+            } else {
+                entry.done.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Wait for the next email to send, by lane weight.
+     *
+     * @return null once closed and no email is left
+     */
+    private Entry next() {
+        lock.lock();
+        try {
+            while (true) {
+                Lane lane = pick();
+                if (lane != null) {
+                    Entry entry = lane.queue.pollFirst();
+                    lane.inFlight++;
+                    long waitMs = System.currentTimeMillis() - entry.enqueuedAt;
+                    lane.dequeued++;
+                    lane.waitTotalMs += waitMs;
+                    lane.maxWaitMs = Math.max(lane.maxWaitMs, waitMs);
+                    return entry;
+                }
+                if (closed && lanes.values().stream().allMatch(l -> l.queue.isEmpty())) {
+                    return null;
+                }
+                ready.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int inFlight() {
+        int inFlight = 0;
+        for (Lane lane : lanes.values()) {
+            inFlight += lane.inFlight;
+        }
+        return inFlight;
+    }
+
+    private Lane pick() {
+        Lane best = null;
+        int total = 0;
+        for (Lane lane : lanes.values()) {
+            if (!lane.isEligible()) {
+                continue;
+            }
+            lane.currentWeight += lane.settings.weight;
+            total += lane.settings.weight;
+            if (best == null || lane.currentWeight > best.currentWeight) {
+                best = lane;
+            }
+        }
+        if (best != null) {
+            best.currentWeight -= total;
+        }
+        return best;
+    }
+
+    private void finished(Lane lane, boolean sent) {
+        lock.lock();
+        try {
+            lane.inFlight--;
+            if (sent) {
+                lane.sent++;
+            } else {
+                lane.failed++;
+            }
+            // A lane held back by its concurrency limit may be eligible again
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting emails and send the queued ones, for up to 5 seconds.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        try {
+            for (Thread worker : workers) {
+                worker.join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.lock();
+        try {
+            int dropped = 0;
+            for (Lane lane : lanes.values()) {
+                Entry entry;
+                while ((entry = lane.queue.pollFirst()) != null) {
+                    entry.done.completeExceptionally(new CancellationException("Mail scheduler closed"));
+                    dropped++;
+                }
+            }
+            if (dropped > 0) {
+                logger.warnf("%d queued emails not sent at shutdown", dropped);
+            }
+            // Workers still waiting find the queues empty and stop
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An email rendered from its templates, with the SMTP settings of its realm, ready to be handed
+ * to an {@link org.keycloak.email.EmailSenderProvider} outside of the request that rendered it.
+ */
+public final class RenderedEmail {
+
+    private final String realmId;
+    private final Map<String, String> smtpConfig;
+    private final String address;
+    private final String subject;
+    private final String textBody;
+    private final String htmlBody;
+
+    /**
+     * @param realmId Realm the email is sent for, set in the sending session's context for the email
+     *                sender, whose vault lookups and token authentication need it
+     */
+    public RenderedEmail(String realmId, Map<String, String> smtpConfig, String address, String subject, String textBody, String htmlBody) {
+        this.realmId = realmId;
+        // Copied, the realm's map is not to be read outside of its session
+        this.smtpConfig = Collections.unmodifiableMap(new HashMap<>(smtpConfig));
+        this.address = address;
+        this.subject = subject;
+        this.textBody = textBody;
+        this.htmlBody = htmlBody;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public Map<String, String> getSmtpConfig() {
+        return smtpConfig;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getTextBody() {
+        return textBody;
+    }
+
+    public String getHtmlBody() {
+        return htmlBody;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderedEmail{address=" + address + ", subject=" + subject + "}";
+    }
+}
@@ -0,0 +1,129 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.keycloak.email.EmailException;
+
+/**
+ * Idle SMTP connections per SMTP server and credentials, so a message skips the TCP, TLS and authentication
+ * round trips of a new connection. The most recently used connection is reused first, it is the most
+ * likely to still be open on the server side.
+ */
+public class SmtpConnectionPool {
+
+    @FunctionalInterface
+    interface Connector {
+        PooledSmtpConnection connect() throws EmailException;
+    }
+
+    private final int maxIdlePerServer;
+    private final int maxMessagesPerConnection;
+    private final long idleTimeoutMs;
+    private final long validateAfterMs;
+    private final Map<String, LinkedBlockingDeque<PooledSmtpConnection>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxIdlePerServer Idle connections kept per SMTP configuration
+     * @param maxMessagesPerConnection Messages sent over a connection before it is closed (0 = unlimited)
+     * @param idleTimeoutMs Idle time after which a connection is closed
+     * @param validateAfterMs Idle time after which a connection is checked with a NOOP before being reused
+     */
+    public SmtpConnectionPool(int maxIdlePerServer, int maxMessagesPerConnection, long idleTimeoutMs, long validateAfterMs) {
+        this.maxIdlePerServer = Math.max(1, maxIdlePerServer);
+        this.maxMessagesPerConnection = Math.max(0, maxMessagesPerConnection);
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.validateAfterMs = validateAfterMs;
+    }
+
+    /**
+     * Take an idle connection opened with the same settings, or open one with the connector.
+     *
+     * @param poolKey Key of the SMTP settings, see {@link PooledSmtpEmailSenderProvider#poolKey}
+     */
+    PooledSmtpConnection borrow(String poolKey, Connector connector) throws EmailException {
+        LinkedBlockingDeque<PooledSmtpConnection> connections = idle.get(poolKey);
+        if (connections != null) {
+            long now = System.currentTimeMillis();
+            PooledSmtpConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                long idleMs = now - connection.getIdleSince();
+                if (idleMs <= idleTimeoutMs && (idleMs <= validateAfterMs || connection.isAlive())) {
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return connector.connect();
+    }
+
+    /**
+     * Give a connection back after use.
+     *
+     * @param reusable false if the connection failed and must not be used again
+     */
+    void release(PooledSmtpConnection connection, boolean reusable) {
+        if (!reusable || (maxMessagesPerConnection > 0 && connection.getMessages() >= maxMessagesPerConnection)) {
+            connection.close();
+            return;
+        }
+        connection.idle(System.currentTimeMillis());
+        // Offered while the entry is locked, so evictIdle cannot drop the deque in between
+        AtomicBoolean pooled = new AtomicBoolean();
+        idle.compute(connection.getPoolKey(), (poolKey, connections) -> {
+            LinkedBlockingDeque<PooledSmtpConnection> deque = connections != null ? connections : new LinkedBlockingDeque<>(maxIdlePerServer);
+            pooled.set(deque.offerFirst(connection));
+            return deque;
+        });
+        if (!pooled.get()) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Close the connections idle for longer than the timeout, before the server drops them.
+     *
+     * @return Number of connections closed
+     */
+    public int evictIdle() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (Map.Entry<String, LinkedBlockingDeque<PooledSmtpConnection>> entry : idle.entrySet()) {
+            LinkedBlockingDeque<PooledSmtpConnection> connections = entry.getValue();
+            for (PooledSmtpConnection connection : connections) {
+                if (now - connection.getIdleSince() > idleTimeoutMs && connections.remove(connection)) {
+                    connection.close();
+                    evicted++;
+                }
+            }
+            // Settings no longer used, such as a replaced password, leave no entry behind
+            idle.computeIfPresent(entry.getKey(), (poolKey, deque) -> deque.isEmpty() ? null : deque);
+        }
+        return evicted;
+    }
+
+    /**
+     * @return Idle connections across all SMTP configurations
+     */
+    public int getIdleCount() {
+        return idle.values().stream().mapToInt(LinkedBlockingDeque::size).sum();
+    }
+
+    /**
+     * @return SMTP configurations with idle connections kept
+     */
+    int getPoolKeyCount() {
+        return idle.size();
+    }
+
+    public void close() {
+        for (LinkedBlockingDeque<PooledSmtpConnection> connections : idle.values()) {
+            PooledSmtpConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import java.security.GeneralSecurityException;
+
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.Provider;
+
+/**
+ * Signs and verifies device trust cookies with one kind of realm key.
+ * The cookie format itself is handled by {@link DeviceTokens}.
+ */
+public interface DeviceTokenCodec extends Provider {
+
+    /**
+     * Get the realm key new device tokens are signed with.
+     * Returns null if the realm has no usable key for this codec.
+     */
+    KeyWrapper getSigningKey(RealmModel realm);
+
+    /**
+     * Check whether tokens signed with this key are verified by this codec.
+     */
+    boolean supports(KeyWrapper key);
+
+    byte[] sign(KeyWrapper key, byte[] data) throws GeneralSecurityException;
+
+    boolean verify(RealmModel realm, KeyWrapper key, byte[] data, byte[] signature) throws GeneralSecurityException;
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,20 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+
+public interface DeviceTokenCodecFactory extends ProviderFactory<DeviceTokenCodec> {
+
+    @Override
+    default void init(Config.Scope config) {
+    }
+
+    @Override
+    default void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,30 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+public class DeviceTokenCodecSpi implements Spi {
+
+    public static final String NAME = "email-otp-device-token-codec";
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return DeviceTokenCodec.class;
+    }
+
+    @Override
+    public Class<? extends ProviderFactory> getProviderFactoryClass() {
+        return DeviceTokenCodecFactory.class;
+    }
+}
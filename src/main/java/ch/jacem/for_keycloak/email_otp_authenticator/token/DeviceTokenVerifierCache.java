@@ -0,0 +1,105 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+import org.keycloak.crypto.KeyWrapper;
+
+/**
+ * Verifiers for device trust cookies, cached per realm and key ID.
+ * Each entry keeps a small pool of {@link Signature} objects already initialised
+ * with the key, so a hinted cookie costs a single signature check.
+ * The entry is rebuilt when the realm's key for that kid changes, and dropped
+ * when the key is disabled.
+ */
+public class DeviceTokenVerifierCache {
+
+    private static final Logger logger = Logger.getLogger(DeviceTokenVerifierCache.class);
+
+    private static final int MAX_POOLED_VERIFIERS = 16;
+
+    private final String signatureAlgorithm;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public DeviceTokenVerifierCache(String signatureAlgorithm) {
+        this.signatureAlgorithm = signatureAlgorithm;
+    }
+
+    /**
+     * Verify data signed with the given realm key.
+     * The key is resolved by the caller through Keycloak's in-memory key manager,
+     * which is how key rotation reaches the cache.
+     */
+    public boolean verify(String realmId, KeyWrapper key, byte[] data, byte[] signature) {
+        String cacheKey = realmId + ":" + key.getKid();
+
+        if (!key.getStatus().isEnabled() || !(key.getPublicKey() instanceof PublicKey)) {
+            entries.remove(cacheKey);
+            logger.debugf("Key %s in realm %s is not usable for verification", key.getKid(), realmId);
+            return false;
+        }
+
+        PublicKey publicKey = (PublicKey) key.getPublicKey();
+        Entry entry = entries.compute(cacheKey,
+            (k, existing) -> existing != null && existing.publicKey.equals(publicKey) ? existing : new Entry(publicKey));
+
+        Signature verifier;
+        try {
+            verifier = entry.borrow(signatureAlgorithm);
+        } catch (GeneralSecurityException e) {
+            logger.warnf(e, "Failed to initialise verifier for key %s", key.getKid());
+            return false;
+        }
+
+        try {
+            verifier.update(data);
+            boolean valid = verifier.verify(signature);
+            // verify() resets the verifier to its initialised state, so it can be reused
+            entry.release(verifier);
+            return valid;
+        } catch (GeneralSecurityException e) {
+            logger.debugf("Signature check with key %s failed: %s", key.getKid(), e.getMessage());
+            return false;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        private final PublicKey publicKey;
+        private final Queue<Signature> pool = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        Entry(PublicKey publicKey) {
+            this.publicKey = publicKey;
+        }
+
+        Signature borrow(String signatureAlgorithm) throws GeneralSecurityException {
+            Signature verifier = pool.poll();
+            if (verifier != null) {
+                pooled.decrementAndGet();
+                return verifier;
+            }
+            verifier = Signature.getInstance(signatureAlgorithm);
+            verifier.initVerify(publicKey);
+            return verifier;
+        }
+
+        void release(Signature verifier) {
+            if (pooled.incrementAndGet() <= MAX_POOLED_VERIFIERS) {
+                pool.offer(verifier);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+}
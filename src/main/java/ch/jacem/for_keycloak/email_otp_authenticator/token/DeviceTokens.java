@@ -0,0 +1,145 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Device trust cookie format: token.kid.signature, where the signature covers
+ * token.kid and kid is the base64url-encoded ID of the signing key.
+ * The key ID selects both the key and the {@link DeviceTokenCodec} that verifies it,
+ * so cookies keep working when a realm switches codec.
+ */
+public final class DeviceTokens {
+
+    private static final Logger logger = Logger.getLogger(DeviceTokens.class);
+
+    private DeviceTokens() {
+    }
+
+    /**
+     * Sign a device token with the given codec, falling back to RS256 if the realm has no key for it.
+     * Returns null if the token could not be signed.
+     */
+    public static String sign(KeycloakSession session, RealmModel realm, String codecId, String token) {
+        DeviceTokenCodec codec = session.getProvider(DeviceTokenCodec.class, codecId);
+        KeyWrapper key = codec != null ? codec.getSigningKey(realm) : null;
+
+        if (key == null && !RsaDeviceTokenCodecFactory.PROVIDER_ID.equals(codecId)) {
+            logger.warnf("No signing key for device token codec %s in realm %s, using %s",
+                codecId, realm.getName(), RsaDeviceTokenCodecFactory.PROVIDER_ID);
+            codec = session.getProvider(DeviceTokenCodec.class, RsaDeviceTokenCodecFactory.PROVIDER_ID);
+            key = codec != null ? codec.getSigningKey(realm) : null;
+        }
+
+        if (key == null) {
+            logger.error("No RS256 signing key available in realm - this should not happen");
+            return null;
+        }
+
+        try {
+            String signedContent = token + "." + Base64Url.encode(key.getKid().getBytes(StandardCharsets.UTF_8));
+            byte[] signature = codec.sign(key, signedContent.getBytes(StandardCharsets.UTF_8));
+
+            return signedContent + "." + Base64Url.encode(signature);
+        } catch (Exception e) {
+            logger.warn("Failed to sign device token", e);
+            return null;
+        }
+    }
+
+    /**
+     * Verify a signed device token.
+     * Tokens carrying a key ID are checked once, by the codec handling that key.
+     * Older token.signature cookies have no key ID and are tried against all
+     * enabled RS256 keys (active and passive) to handle key rotation.
+     * Returns the original token if valid, null if invalid.
+     */
+    public static String verify(KeycloakSession session, RealmModel realm, String signedToken) {
+        if (signedToken == null || !signedToken.contains(".")) {
+            return null;
+        }
+
+        String[] parts = signedToken.split("\\.", -1);
+        for (String part : parts) {
+            if (part.isEmpty()) {
+                return null;
+            }
+        }
+
+        try {
+            if (parts.length == 3) {
+                String kid = new String(Base64Url.decode(parts[1]), StandardCharsets.UTF_8);
+                byte[] signedContent = (parts[0] + "." + parts[1]).getBytes(StandardCharsets.UTF_8);
+
+                if (verifyHinted(session, realm, kid, signedContent, Base64Url.decode(parts[2]))) {
+                    return parts[0];
+                }
+                logger.debugf("Device token signature verification failed for key %s", kid);
+                return null;
+            }
+
+            if (parts.length == 2) {
+                return verifyUnhinted(session, realm, parts[0], Base64Url.decode(parts[1]));
+            }
+        } catch (Exception e) {
+            logger.debug("Token verification failed", e);
+        }
+
+        return null;
+    }
+
+    private static boolean verifyHinted(KeycloakSession session, RealmModel realm, String kid, byte[] data, byte[] signature) throws Exception {
+        KeyWrapper key = session.keys().getKeysStream(realm)
+            .filter(k -> kid.equals(k.getKid()) && KeyUse.SIG.equals(k.getUse()))
+            .findFirst()
+            .orElse(null);
+        if (key == null) {
+            return false;
+        }
+
+        Set<DeviceTokenCodec> codecs = session.getAllProviders(DeviceTokenCodec.class);
+        for (DeviceTokenCodec codec : codecs) {
+            if (codec.supports(key)) {
+                return codec.verify(realm, key, data, signature);
+            }
+        }
+
+        logger.debugf("No device token codec handles key %s of type %s", kid, key.getType());
+        return false;
+    }
+
+    private static String verifyUnhinted(KeycloakSession session, RealmModel realm, String token, byte[] signature) throws Exception {
+        DeviceTokenCodec codec = session.getProvider(DeviceTokenCodec.class, RsaDeviceTokenCodecFactory.PROVIDER_ID);
+
+        // Get all RS256 keys (active and passive) for verification
+        // This handles key rotation - old tokens signed with rotated keys can still be verified
+        List<KeyWrapper> keys = session.keys().getKeysStream(realm, KeyUse.SIG, Algorithm.RS256)
+            .filter(k -> k.getStatus().isEnabled() && k.getPublicKey() != null)
+            .toList();
+
+        if (keys.isEmpty()) {
+            logger.error("No RS256 keys available for verification");
+            return null;
+        }
+
+        // Try each key (handles key rotation)
+        byte[] data = token.getBytes(StandardCharsets.UTF_8);
+        for (KeyWrapper key : keys) {
+            if (codec.verify(realm, key, data, signature)) {
+                return token;
+            }
+        }
+
+        logger.debug("Device token signature verification failed - no matching key");
+        return null;
+    }
+}
@@ -0,0 +1,56 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Ed25519 signatures with the realm's EdDSA key. Requires an "eddsa-generated"
+ * key provider with the Ed25519 curve in the realm.
+ */
+public class EdDsaDeviceTokenCodec implements DeviceTokenCodec {
+
+    static final String SIGNATURE_ALGORITHM = "Ed25519";
+
+    private final KeycloakSession session;
+    private final DeviceTokenVerifierCache verifiers;
+
+    public EdDsaDeviceTokenCodec(KeycloakSession session, DeviceTokenVerifierCache verifiers) {
+        this.session = session;
+        this.verifiers = verifiers;
+    }
+
+    @Override
+    public KeyWrapper getSigningKey(RealmModel realm) {
+        return session.keys().getKeysStream(realm, KeyUse.SIG, Algorithm.EdDSA)
+            .filter(k -> k.getStatus() == KeyStatus.ACTIVE && k.getPrivateKey() != null && supports(k))
+            .findFirst()
+            .orElse(null);
+    }
+
+    @Override
+    public boolean supports(KeyWrapper key) {
+        return KeyType.OKP.equals(key.getType()) && Algorithm.Ed25519.equals(key.getCurve());
+    }
+
+    @Override
+    public byte[] sign(KeyWrapper key, byte[] data) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signature.initSign((PrivateKey) key.getPrivateKey());
+        signature.update(data);
+        return signature.sign();
+    }
+
+    @Override
+    public boolean verify(RealmModel realm, KeyWrapper key, byte[] data, byte[] signature) {
+        return verifiers.verify(realm.getId(), key, data, signature);
+    }
+}
@@ -0,0 +1,20 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import org.keycloak.models.KeycloakSession;
+
+public class EdDsaDeviceTokenCodecFactory implements DeviceTokenCodecFactory {
+
+    public static final String PROVIDER_ID = "Ed25519";
+
+    private final DeviceTokenVerifierCache verifiers = new DeviceTokenVerifierCache(EdDsaDeviceTokenCodec.SIGNATURE_ALGORITHM);
+
+    @Override
+    public DeviceTokenCodec create(KeycloakSession session) {
+        return new EdDsaDeviceTokenCodec(session, verifiers);
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,18 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import org.keycloak.models.KeycloakSession;
+
+public class HmacDeviceTokenCodecFactory implements DeviceTokenCodecFactory {
+
+    public static final String PROVIDER_ID = "HS256";
+
+    @Override
+    public DeviceTokenCodec create(KeycloakSession session) {
+        return new HmacDeviceTokenCodec(session);
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,56 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+/**
+ * RSA-SHA256 signatures with the realm's RS256 key. RS256 keys are always
+ * available in Keycloak realms (used for JWT signing).
+ */
+public class RsaDeviceTokenCodec implements DeviceTokenCodec {
+
+    static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+    private final KeycloakSession session;
+    private final DeviceTokenVerifierCache verifiers;
+
+    public RsaDeviceTokenCodec(KeycloakSession session, DeviceTokenVerifierCache verifiers) {
+        this.session = session;
+        this.verifiers = verifiers;
+    }
+
+    @Override
+    public KeyWrapper getSigningKey(RealmModel realm) {
+        return session.keys().getKeysStream(realm, KeyUse.SIG, Algorithm.RS256)
+            .filter(k -> k.getStatus() == KeyStatus.ACTIVE && k.getPrivateKey() != null)
+            .findFirst()
+            .orElse(null);
+    }
+
+    @Override
+    public boolean supports(KeyWrapper key) {
+        return KeyType.RSA.equals(key.getType());
+    }
+
+    @Override
+    public byte[] sign(KeyWrapper key, byte[] data) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signature.initSign((PrivateKey) key.getPrivateKey());
+        signature.update(data);
+        return signature.sign();
+    }
+
+    @Override
+    public boolean verify(RealmModel realm, KeyWrapper key, byte[] data, byte[] signature) {
+        return verifiers.verify(realm.getId(), key, data, signature);
+    }
+}
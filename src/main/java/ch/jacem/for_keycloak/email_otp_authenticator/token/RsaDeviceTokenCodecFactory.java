@@ -0,0 +1,26 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import org.keycloak.models.KeycloakSession;
+
+public class RsaDeviceTokenCodecFactory implements DeviceTokenCodecFactory {
+
+    public static final String PROVIDER_ID = "RS256";
+
+    private final DeviceTokenVerifierCache verifiers = new DeviceTokenVerifierCache(RsaDeviceTokenCodec.SIGNATURE_ALGORITHM);
+
+    @Override
+    public DeviceTokenCodec create(KeycloakSession session) {
+        return new RsaDeviceTokenCodec(session, verifiers);
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public int order() {
+        // Default codec, every realm has an RS256 key
+        return 1;
+    }
+}
@@ -0,0 +1,262 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Trust store decorator answering trust checks from a node-local {@link TrustDecisionCache}, which keeps
+ * the expiration of trusted entries so rolling IP windows are only extended once enough of them is used up.
+ * Every write invalidates the cached decisions it affects on all cluster nodes once the transaction completes.
+ */
+public class CachingTrustStore implements TrustStore {
+
+    private static final Logger logger = Logger.getLogger(CachingTrustStore.class);
+
+    public static final String INVALIDATION_EVENT_KEY = "email-otp-trust-invalidation";
+
+    private final KeycloakSession session;
+    private final TrustStore delegate;
+    private final TrustDecisionCache cache;
+
+    public CachingTrustStore(KeycloakSession session, TrustStore delegate, TrustDecisionCache cache) {
+        this.session = session;
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public boolean isIpTrusted(RealmModel realm, UserModel user, String ipAddress) {
+        return getIpTrustExpiresAt(realm, user, ipAddress) != IP_NOT_TRUSTED;
+    }
+
+    @Override
+    public long getIpTrustExpiresAt(RealmModel realm, UserModel user, String ipAddress) {
+        return cache.getExpiresAt(ipKey(realm, user, ipAddress), () -> delegate.getIpTrustExpiresAt(realm, user, ipAddress));
+    }
+
+    @Override
+    public void trustIp(RealmModel realm, UserModel user, String ipAddress, long expiresAtSeconds) {
+        delegate.trustIp(realm, user, ipAddress, expiresAtSeconds);
+        // Trusting one more IP may have evicted others of the user
+        invalidateUser(realm, user.getId());
+    }
+
+    @Override
+    public void refreshIpTrust(RealmModel realm, UserModel user, String ipAddress, long newExpiresAtSeconds) {
+        delegate.refreshIpTrust(realm, user, ipAddress, newExpiresAtSeconds);
+        // Still trusted, only until later: other nodes' older expiration at worst makes them extend it again
+        cache.extend(ipKey(realm, user, ipAddress), newExpiresAtSeconds);
+    }
+
+    @Override
+    public boolean checkAndExtendIpTrust(RealmModel realm, UserModel user, String ipAddress, long newExpiresAtSeconds) {
+        AtomicBoolean extended = new AtomicBoolean();
+        long expiresAt = cache.getExpiresAt(ipKey(realm, user, ipAddress), () -> {
+            extended.set(true);
+            return delegate.checkAndExtendIpTrust(realm, user, ipAddress, newExpiresAtSeconds) ? newExpiresAtSeconds : IP_NOT_TRUSTED;
+        });
+        if (expiresAt == IP_NOT_TRUSTED) {
+            return false;
+        }
+        // A cached decision skipped the delegate, the extension still has to be written
+        if (!extended.get()) {
+            refreshIpTrust(realm, user, ipAddress, newExpiresAtSeconds);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isDeviceTrusted(RealmModel realm, UserModel user, String deviceToken) {
+        if (deviceToken == null || deviceToken.isEmpty()) {
+            return false;
+        }
+        return cache.getExpiresAt(deviceKey(realm, user, deviceToken), () -> {
+            TrustEvaluation evaluation = delegate.evaluate(realm, user, deviceToken, null);
+            return evaluation.getKind() == TrustEvaluation.Kind.DEVICE ? evaluation.getExpiresAt() : TrustDecisionCache.UNTRUSTED;
+        }) != TrustDecisionCache.UNTRUSTED;
+    }
+
+    @Override
+    public TrustEvaluation evaluate(RealmModel realm, UserModel user, String deviceToken, String ipAddress) {
+        if (deviceToken == null || deviceToken.isEmpty() || ipAddress == null) {
+            return TrustStore.super.evaluate(realm, user, deviceToken, ipAddress);
+        }
+
+        String deviceKey = deviceKey(realm, user, deviceToken);
+        String ipKey = ipKey(realm, user, ipAddress);
+        Long device = cache.peek(deviceKey);
+        if (device != null && device != TrustDecisionCache.UNTRUSTED) {
+            return TrustEvaluation.device(device);
+        }
+        Long ip = cache.peek(ipKey);
+        if (device != null && ip != null) {
+            return ip != IP_NOT_TRUSTED ? TrustEvaluation.ip(ip) : TrustEvaluation.NONE;
+        }
+
+        // Both decisions from the delegate's combined check, instead of one load per key
+        long generation = cache.generation();
+        TrustEvaluation evaluation = delegate.evaluate(realm, user, deviceToken, ipAddress);
+        if (evaluation.getKind() == TrustEvaluation.Kind.DEVICE) {
+            cache.put(deviceKey, evaluation.getExpiresAt(), generation);
+        } else {
+            cache.put(deviceKey, TrustDecisionCache.UNTRUSTED, generation);
+            cache.put(ipKey, evaluation.getKind() == TrustEvaluation.Kind.IP ? evaluation.getExpiresAt() : IP_NOT_TRUSTED, generation);
+        }
+        return evaluation;
+    }
+
+    @Override
+    public void trustDevice(RealmModel realm, UserModel user, String deviceToken, long expiresAtSeconds) {
+        delegate.trustDevice(realm, user, deviceToken, expiresAtSeconds);
+        // Trusting one more device may have evicted others of the user
+        invalidateUser(realm, user.getId());
+    }
+
+    @Override
+    public void trustDevice(RealmModel realm, UserModel user, String deviceToken, long expiresAtSeconds, boolean stateless) {
+        delegate.trustDevice(realm, user, deviceToken, expiresAtSeconds, stateless);
+        invalidateUser(realm, user.getId());
+    }
+
+    @Override
+    public void revokeDevice(RealmModel realm, UserModel user, String deviceToken) {
+        delegate.revokeDevice(realm, user, deviceToken);
+        invalidate(deviceKey(realm, user, deviceToken), false);
+    }
+
+    @Override
+    public boolean isDeviceRevoked(RealmModel realm, UserModel user, String deviceToken) {
+        return delegate.isDeviceRevoked(realm, user, deviceToken);
+    }
+
+    @Override
+    public int revokeTrust(RealmModel realm, String userId, boolean ips, boolean devices, int maxEntries) {
+        return invalidateRevoked(realm, userId, delegate.revokeTrust(realm, userId, ips, devices, maxEntries));
+    }
+
+    @Override
+    public int revokeTrust(RealmModel realm, String userId, boolean ips, boolean devices, int maxEntries, String jobId) {
+        return invalidateRevoked(realm, userId, delegate.revokeTrust(realm, userId, ips, devices, maxEntries, jobId));
+    }
+
+    @Override
+    public TrustPage listTrust(RealmModel realm, String userId, TrustEntry.Kind kind, TrustFilter filter, String cursor, int max) {
+        return delegate.listTrust(realm, userId, kind, filter, cursor, max);
+    }
+
+    @Override
+    public int removeUserTrust(String realmId, String userId) {
+        int removed = delegate.removeUserTrust(realmId, userId);
+        if (removed > 0) {
+            invalidate(userPrefix(realmId, userId), true);
+        }
+        return removed;
+    }
+
+    @Override
+    public int removeRealmTrust(String realmId, int maxEntries) {
+        int removed = delegate.removeRealmTrust(realmId, maxEntries);
+        if (removed > 0) {
+            invalidate(realmId + ":", true);
+        }
+        return removed;
+    }
+
+    /**
+     * Nothing to invalidate: a cached decision never outlives the expiration it was loaded with, and a device
+     * pruned for inactivity was not looked up for far longer than decisions are cached.
+     */
+    @Override
+    public int cleanupExpired() {
+        return delegate.cleanupExpired();
+    }
+
+    @Override
+    public int cleanupExpired(int maxEntries) {
+        return delegate.cleanupExpired(maxEntries);
+    }
+
+    @Override
+    public long countExpired() {
+        return delegate.countExpired();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private int invalidateRevoked(RealmModel realm, String userId, int revoked) {
+        if (revoked > 0) {
+            invalidate(userId != null ? userPrefix(realm, userId) : realm.getId() + ":", true);
+        }
+        return revoked;
+    }
+
+    private void invalidateUser(RealmModel realm, String userId) {
+        invalidate(userPrefix(realm, userId), true);
+    }
+
+    private void invalidate(String key, boolean prefix) {
+        // Drop it now for this node, and again once the change is visible to other transactions
+        invalidateLocally(cache, key, prefix);
+
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                publish(key, prefix);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                // Nothing was written
+            }
+        });
+    }
+
+    private void publish(String key, boolean prefix) {
+        invalidateLocally(cache, key, prefix);
+
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster == null) {
+            return;
+        }
+        try {
+            cluster.notify(INVALIDATION_EVENT_KEY, prefix ? TrustInvalidationEvent.prefix(key) : new TrustInvalidationEvent(key), true);
+        } catch (Exception e) {
+            logger.warn("Failed to send email OTP trust invalidation to the cluster", e);
+        }
+    }
+
+    static void invalidateLocally(TrustDecisionCache cache, String key, boolean prefix) {
+        if (key == null) {
+            cache.invalidateAll();
+        } else if (prefix) {
+            cache.invalidatePrefix(key);
+        } else {
+            cache.invalidate(key);
+        }
+    }
+
+    // Keys start with the realm and user, so all decisions of one user or realm can be dropped by prefix
+    static String userPrefix(RealmModel realm, String userId) {
+        return userPrefix(realm.getId(), userId);
+    }
+
+    static String userPrefix(String realmId, String userId) {
+        return realmId + ":" + userId + ":";
+    }
+
+    static String ipKey(RealmModel realm, UserModel user, String ipAddress) {
+        return userPrefix(realm, user.getId()) + "ip:" + ipAddress;
+    }
+
+    static String deviceKey(RealmModel realm, UserModel user, String deviceToken) {
+        return userPrefix(realm, user.getId()) + "device:" + deviceToken;
+    }
+}
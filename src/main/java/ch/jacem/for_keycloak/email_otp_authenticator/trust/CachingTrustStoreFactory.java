@@ -0,0 +1,99 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Near-cache in front of another trust store provider, select it with
+ * {@code --spi-email-otp-trust-store-provider=cached}.
+ */
+public class CachingTrustStoreFactory implements TrustStoreFactory {
+
+    private static final Logger logger = Logger.getLogger(CachingTrustStoreFactory.class);
+
+    public static final String PROVIDER_ID = "cached";
+
+    private static final String DEFAULT_DELEGATE = JpaTrustStoreFactory.PROVIDER_ID;
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final int DEFAULT_TTL_SECONDS = 60;
+    private static final int DEFAULT_NEGATIVE_TTL_SECONDS = 10;
+
+    private String delegateProviderId = DEFAULT_DELEGATE;
+    private TrustDecisionCache cache;
+
+    @Override
+    public TrustStore create(KeycloakSession session) {
+        TrustStore delegate = session.getProvider(TrustStore.class, delegateProviderId);
+        if (delegate == null) {
+            throw new IllegalStateException("Email OTP trust store provider '" + delegateProviderId + "' not found");
+        }
+        return new CachingTrustStore(session, delegate, cache);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        int maxEntries = DEFAULT_MAX_ENTRIES;
+        int ttlSeconds = DEFAULT_TTL_SECONDS;
+        int negativeTtlSeconds = DEFAULT_NEGATIVE_TTL_SECONDS;
+
+        if (config != null) {
+            String delegate = config.get("delegate");
+            if (delegate != null && !delegate.isEmpty() && !PROVIDER_ID.equals(delegate)) {
+                this.delegateProviderId = delegate;
+            }
+            maxEntries = config.getInt("max-entries", maxEntries);
+            ttlSeconds = config.getInt("ttl-seconds", ttlSeconds);
+            negativeTtlSeconds = config.getInt("negative-ttl-seconds", negativeTtlSeconds);
+        }
+
+        this.cache = new TrustDecisionCache(maxEntries, ttlSeconds * 1000L, negativeTtlSeconds * 1000L);
+        logger.infof("Email OTP trust near-cache in front of '%s': max %d entries, ttl %ds, negative ttl %ds",
+            delegateProviderId, maxEntries, ttlSeconds, negativeTtlSeconds);
+    }
+
+    /**
+     * The provider actually holding the trust entries: the selected one, or the delegate of the near-cache.
+     *
+     * @return Provider ID, or null if no trust store provider is available
+     */
+    static String backingProviderId(KeycloakSessionFactory factory) {
+        ProviderFactory<?> selected = factory.getProviderFactory(TrustStore.class);
+        if (selected instanceof CachingTrustStoreFactory) {
+            return ((CachingTrustStoreFactory) selected).delegateProviderId;
+        }
+        return selected != null ? selected.getId() : null;
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        KeycloakSession session = factory.create();
+        try {
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+            if (cluster != null) {
+                cluster.registerListener(CachingTrustStore.INVALIDATION_EVENT_KEY, event -> {
+                    if (event instanceof TrustInvalidationEvent) {
+                        TrustInvalidationEvent invalidation = (TrustInvalidationEvent) event;
+                        CachingTrustStore.invalidateLocally(cache, invalidation.getKey(), invalidation.isPrefix());
+                    }
+                });
+            } else {
+                logger.warn("ClusterProvider not available, email OTP trust near-cache is not invalidated across nodes");
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
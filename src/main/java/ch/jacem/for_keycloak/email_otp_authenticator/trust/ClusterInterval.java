@@ -0,0 +1,29 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+/**
+ * Spreads periodic work over the cluster: the node running it claims the interval with a
+ * cluster-wide marker that outlives the run, and the other nodes skip the work until it expires.
+ * A cluster lock alone is released as soon as the run ends, letting every other node run it again.
+ */
+final class ClusterInterval {
+
+    private ClusterInterval() {
+    }
+
+    /**
+     * Claim the interval, for slightly less than its length so the claiming node's next run is not
+     * skipped by its own marker.
+     *
+     * @return true if this node runs the work for this interval
+     */
+    static boolean claim(KeycloakSession session, String taskKey, int intervalSeconds) {
+        SingleUseObjectProvider markers = session.getProvider(SingleUseObjectProvider.class);
+        if (markers == null) {
+            return true;
+        }
+        return markers.putIfAbsent(taskKey + ":last-run", Math.max(1, intervalSeconds - 1));
+    }
+}
@@ -0,0 +1,49 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+/**
+ * Tracking of trusted device use. The last use is written at most once per interval,
+ * and devices unused for the inactivity period are pruned, permanent ones included.
+ * Stateless devices are never pruned: their cookie is checked without a lookup, so
+ * their last use is never written.
+ */
+public final class DeviceActivity {
+
+    private static final long DAY_SECONDS = 24 * 60 * 60L;
+
+    /**
+     * Last use written once a day, no pruning.
+     */
+    public static final DeviceActivity DEFAULT = new DeviceActivity(DAY_SECONDS, 0);
+
+    private final long lastSeenIntervalSeconds;
+    private final int inactivityDays;
+
+    /**
+     * @param lastSeenIntervalSeconds Minimum time between two writes of a device's last use
+     * @param inactivityDays Days without use after which a device is pruned (0 = never)
+     */
+    public DeviceActivity(long lastSeenIntervalSeconds, int inactivityDays) {
+        this.lastSeenIntervalSeconds = Math.max(0, lastSeenIntervalSeconds);
+        this.inactivityDays = Math.max(0, inactivityDays);
+    }
+
+    public long getLastSeenIntervalSeconds() {
+        return lastSeenIntervalSeconds;
+    }
+
+    public int getInactivityDays() {
+        return inactivityDays;
+    }
+
+    /**
+     * Devices last seen before this timestamp are inactive.
+     */
+    long inactiveBefore(long nowSeconds) {
+        return nowSeconds - inactivityDays * DAY_SECONDS;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceActivity{lastSeenInterval=" + lastSeenIntervalSeconds + "s, inactivityDays=" + inactivityDays + "}";
+    }
+}
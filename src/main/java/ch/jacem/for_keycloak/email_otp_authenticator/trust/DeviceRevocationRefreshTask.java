@@ -0,0 +1,22 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.timer.ScheduledTask;
+
+/**
+ * Scheduled task reloading the node-local set of revoked device tokens.
+ */
+public class DeviceRevocationRefreshTask implements ScheduledTask {
+
+    private final DeviceRevocationSet revocations;
+
+    public DeviceRevocationRefreshTask(DeviceRevocationSet revocations) {
+        this.revocations = revocations;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        JpaTrustStore store = new JpaTrustStore(session, revocations, null);
+        revocations.refresh(store::loadDeviceRevocations);
+    }
+}
@@ -0,0 +1,80 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Node-local set of revoked device tokens. Replaced as a whole on every refresh,
+ * so lookups never touch the database. Device tokens are random UUIDs, so the
+ * token alone identifies the revoked trust.
+ */
+public class DeviceRevocationSet {
+
+    private static final Logger logger = Logger.getLogger(DeviceRevocationSet.class);
+
+    private volatile Set<String> revoked = Collections.emptySet();
+    private volatile boolean loaded = false;
+
+    /**
+     * Check whether a device token is revoked, loading the set on first use.
+     * If the set cannot be loaded, every token is treated as revoked.
+     */
+    public boolean isRevoked(String deviceToken, Supplier<Collection<String>> loader) {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded && !refresh(loader)) {
+                    return true;
+                }
+            }
+        }
+        return revoked.contains(deviceToken);
+    }
+
+    /**
+     * Replace the set with a fresh copy.
+     *
+     * @return true if the set was loaded
+     */
+    public boolean refresh(Supplier<Collection<String>> loader) {
+        try {
+            Set<String> fresh = Collections.unmodifiableSet(new HashSet<>(loader.get()));
+            revoked = fresh;
+            loaded = true;
+            logger.debugf("Loaded %d device trust revocations", fresh.size());
+            return true;
+        } catch (Exception e) {
+            logger.warn("Failed to load device trust revocations", e);
+            return false;
+        }
+    }
+
+    /**
+     * Add a token revoked on this node without waiting for the next refresh.
+     */
+    public synchronized void add(String deviceToken) {
+        Set<String> updated = new HashSet<>(revoked);
+        updated.add(deviceToken);
+        revoked = Collections.unmodifiableSet(updated);
+    }
+
+    /**
+     * Add tokens revoked on this node together, copying the set once rather than once per token.
+     */
+    public synchronized void addAll(Collection<String> deviceTokens) {
+        if (deviceTokens.isEmpty()) {
+            return;
+        }
+        Set<String> updated = new HashSet<>(revoked);
+        updated.addAll(deviceTokens);
+        revoked = Collections.unmodifiableSet(updated);
+    }
+
+    public int size() {
+        return revoked.size();
+    }
+}
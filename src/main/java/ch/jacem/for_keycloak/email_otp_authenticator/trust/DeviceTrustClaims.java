@@ -0,0 +1,98 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Content of a self-verifying device trust token. Once the signature is verified,
+ * the token alone proves the device was trusted for this realm and user until expiry.
+ * Encoded as base64url JSON with short property names to keep the cookie small.
+ */
+public class DeviceTrustClaims {
+
+    /**
+     * Max-Age of the cookie of a permanent device trust, about 10 years.
+     */
+    public static final int PERMANENT_MAX_AGE_SECONDS = 10 * 365 * 24 * 60 * 60;
+
+    @JsonProperty("r")
+    private String realmId;
+
+    @JsonProperty("u")
+    private String userId;
+
+    @JsonProperty("d")
+    private String deviceToken;
+
+    @JsonProperty("e")
+    private long expiresAt;
+
+    public DeviceTrustClaims() {
+    }
+
+    public DeviceTrustClaims(String realmId, String userId, String deviceToken, long expiresAt) {
+        this.realmId = realmId;
+        this.userId = userId;
+        this.deviceToken = deviceToken;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getDeviceToken() {
+        return deviceToken;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    @JsonIgnore
+    public boolean isExpired() {
+        // expiresAt = 0 means permanent (never expires)
+        return expiresAt > 0 && expiresAt < (System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Check the claims were issued for this realm and user and are still valid.
+     */
+    public boolean isValidFor(String realmId, String userId) {
+        return this.realmId != null && this.realmId.equals(realmId)
+            && this.userId != null && this.userId.equals(userId)
+            && this.deviceToken != null && !this.deviceToken.isEmpty()
+            && !isExpired();
+    }
+
+    public String encode() {
+        try {
+            return Base64Url.encode(JsonSerialization.writeValueAsBytes(this));
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to encode device trust claims", e);
+        }
+    }
+
+    /**
+     * Decode token content produced by {@link #encode()}.
+     * Returns null when the content is not a claims token (e.g. a plain device token).
+     */
+    public static DeviceTrustClaims decode(String content) {
+        if (content == null || content.isEmpty()) {
+            return null;
+        }
+        try {
+            DeviceTrustClaims claims = JsonSerialization.readValue(Base64Url.decode(content), DeviceTrustClaims.class);
+            return claims.deviceToken != null ? claims : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import org.infinispan.Cache;
+import org.infinispan.commons.util.CloseableIterator;
+import org.jboss.logging.Logger;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trust store keeping trusted IPs and devices in a dedicated Infinispan cache.
+ * Entries are stored with a lifespan matching their expiration, so Infinispan
+ * expires them natively and no periodic cleanup is needed.
+ */
+public class InfinispanTrustStore implements TrustStore {
+
+    private static final Logger logger = Logger.getLogger(InfinispanTrustStore.class);
+
+    private static final String IP_KEY_PREFIX = "ip:";
+    private static final String DEVICE_KEY_PREFIX = "device:";
+    private static final String REVOKED_DEVICE_KEY_PREFIX = "revoked-device:";
+
+    private final Cache<String, Long> cache;
+
+    // Keys left to revoke by running revocation jobs, per scope, shared by the stores of one node
+    private final ConcurrentMap<String, PendingRevocation> pendingRevocations;
+
+    public InfinispanTrustStore(Cache<String, Long> cache) {
+        this(cache, new ConcurrentHashMap<>());
+    }
+
+    public InfinispanTrustStore(Cache<String, Long> cache, ConcurrentMap<String, PendingRevocation> pendingRevocations) {
+        this.cache = cache;
+        this.pendingRevocations = pendingRevocations;
+    }
+
+    @Override
+    public boolean isIpTrusted(RealmModel realm, UserModel user, String ipAddress) {
+        Long expiresAt = cache.get(ipKey(realm.getId(), user.getId(), ipAddress));
+        return expiresAt != null && !isExpired(expiresAt);
+    }
+
+    @Override
+    public long getIpTrustExpiresAt(RealmModel realm, UserModel user, String ipAddress) {
+        Long expiresAt = cache.get(ipKey(realm.getId(), user.getId(), ipAddress));
+        return expiresAt != null && !isExpired(expiresAt) ? expiresAt : IP_NOT_TRUSTED;
+    }
+
+    @Override
+    public void trustIp(RealmModel realm, UserModel user, String ipAddress, long expiresAtSeconds) {
+        put(ipKey(realm.getId(), user.getId(), ipAddress), expiresAtSeconds);
+        logger.debugf("Stored IP trust for user %s, IP %s, expires at %d", user.getId(), ipAddress, expiresAtSeconds);
+    }
+
+    @Override
+    public void refreshIpTrust(RealmModel realm, UserModel user, String ipAddress, long newExpiresAtSeconds) {
+        long lifespan = lifespanSeconds(newExpiresAtSeconds);
+        if (lifespan <= 0) {
+            return;
+        }
+        // Only extend entries that still exist, a refresh must never resurrect an expired trust
+        if (cache.replace(ipKey(realm.getId(), user.getId(), ipAddress), newExpiresAtSeconds, lifespan, TimeUnit.SECONDS) != null) {
+            logger.debugf("Refreshed IP trust for user %s, IP %s, new expiry %d", user.getId(), ipAddress, newExpiresAtSeconds);
+        }
+    }
+
+    @Override
+    public boolean checkAndExtendIpTrust(RealmModel realm, UserModel user, String ipAddress, long newExpiresAtSeconds) {
+        long lifespan = lifespanSeconds(newExpiresAtSeconds);
+        if (lifespan <= 0) {
+            return isIpTrusted(realm, user, ipAddress);
+        }
+        // replace() only touches live entries, its previous value is the trust decision
+        Long previous = cache.replace(ipKey(realm.getId(), user.getId(), ipAddress), newExpiresAtSeconds, lifespan, TimeUnit.SECONDS);
+        return previous != null && !isExpired(previous);
+    }
+
+    @Override
+    public boolean isDeviceTrusted(RealmModel realm, UserModel user, String deviceToken) {
+        if (deviceToken == null || deviceToken.isEmpty()) {
+            return false;
+        }
+        Long expiresAt = cache.get(deviceKey(realm.getId(), user.getId(), deviceToken));
+        return expiresAt != null && !isExpired(expiresAt);
+    }
+
+    @Override
+    public TrustEvaluation evaluate(RealmModel realm, UserModel user, String deviceToken, String ipAddress) {
+        if (deviceToken == null || deviceToken.isEmpty() || ipAddress == null) {
+            return TrustStore.super.evaluate(realm, user, deviceToken, ipAddress);
+        }
+
+        String deviceKey = deviceKey(realm.getId(), user.getId(), deviceToken);
+        String ipKey = ipKey(realm.getId(), user.getId(), ipAddress);
+        // One bulk read instead of two remote gets
+        Map<String, Long> entries = cache.getAdvancedCache().getAll(Set.of(deviceKey, ipKey));
+
+        Long deviceExpiresAt = entries.get(deviceKey);
+        if (deviceExpiresAt != null && !isExpired(deviceExpiresAt)) {
+            return TrustEvaluation.device(deviceExpiresAt);
+        }
+        Long ipExpiresAt = entries.get(ipKey);
+        if (ipExpiresAt != null && !isExpired(ipExpiresAt)) {
+            return TrustEvaluation.ip(ipExpiresAt);
+        }
+        return TrustEvaluation.NONE;
+    }
+
+    @Override
+    public void trustDevice(RealmModel realm, UserModel user, String deviceToken, long expiresAtSeconds) {
+        put(deviceKey(realm.getId(), user.getId(), deviceToken), expiresAtSeconds);
+        logger.debugf("Created device trust for user %s, token %s, expires at %d", user.getId(), deviceToken, expiresAtSeconds);
+    }
+
+    @Override
+    public void revokeDevice(RealmModel realm, UserModel user, String deviceToken) {
+        Long expiresAt = cache.remove(deviceKey(realm.getId(), user.getId(), deviceToken));
+        // Keep the revocation as long as the revoked trust would have lasted
+        put(revokedDeviceKey(realm.getId(), user.getId(), deviceToken), expiresAt != null ? expiresAt : 0);
+        logger.debugf("Revoked device trust for user %s, token %s", user.getId(), deviceToken);
+    }
+
+    @Override
+    public boolean isDeviceRevoked(RealmModel realm, UserModel user, String deviceToken) {
+        return cache.containsKey(revokedDeviceKey(realm.getId(), user.getId(), deviceToken));
+    }
+
+    @Override
+    public int revokeTrust(RealmModel realm, String userId, boolean ips, boolean devices, int maxEntries) {
+        return revokeTrust(realm, userId, ips, devices, maxEntries, null);
+    }
+
+    @Override
+    public int revokeTrust(RealmModel realm, String userId, boolean ips, boolean devices, int maxEntries, String jobId) {
+        String owner = realm.getId() + ":" + (userId != null ? userId + ":" : "");
+        String scan = (ips ? IP_KEY_PREFIX : "") + (devices ? DEVICE_KEY_PREFIX : "") + owner;
+        // A revocation job calls this once per chunk, the keys found by one scan of the cache serve all its chunks.
+        // Keys left by another job of the same scope, abandoned or failed, are stale: scan again.
+        PendingRevocation revocation = jobId != null ? pendingRevocations.get(scan) : null;
+        if (revocation == null || !revocation.jobId.equals(jobId)) {
+            revocation = new PendingRevocation(jobId, findKeys(owner, ips, devices));
+            if (jobId != null) {
+                pendingRevocations.put(scan, revocation);
+            }
+        }
+        Queue<String> pending = revocation.keys;
+
+        int revoked = 0;
+        String key;
+        while (revoked < maxEntries && (key = pending.poll()) != null) {
+            Long expiresAt = cache.remove(key);
+            if (expiresAt == null) {
+                // Expired or revoked since the scan
+                continue;
+            }
+            if (key.startsWith(DEVICE_KEY_PREFIX)) {
+                // realm:user:token, the realm and user IDs may themselves contain colons
+                String entry = key.substring(DEVICE_KEY_PREFIX.length() + realm.getId().length() + 1);
+                int separator = entry.lastIndexOf(':');
+                put(revokedDeviceKey(realm.getId(), entry.substring(0, separator), entry.substring(separator + 1)), expiresAt);
+            }
+            revoked++;
+        }
+        if (pending.isEmpty()) {
+            // The next call scans again, catching entries trusted meanwhile
+            pendingRevocations.remove(scan, revocation);
+        }
+        logger.debugf("Revoked %d trust entries in realm %s", revoked, realm.getId());
+        return revoked;
+    }
+
+    private Queue<String> findKeys(String owner, boolean ips, boolean devices) {
+        // Filtered here rather than in a cache stream, whose filter would have to be marshalled to every node
+        Queue<String> keys = new ConcurrentLinkedQueue<>();
+        try (CloseableIterator<String> iterator = cache.keySet().iterator()) {
+            while (iterator.hasNext()) {
+                String key = iterator.next();
+                if ((ips && key.startsWith(IP_KEY_PREFIX + owner)) || (devices && key.startsWith(DEVICE_KEY_PREFIX + owner))) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public int removeUserTrust(String realmId, String userId) {
+        int removed = removeKeys(realmId + ":" + userId + ":", Integer.MAX_VALUE);
+        if (removed > 0) {
+            logger.debugf("Removed %d trust entries of removed user %s", removed, userId);
+        }
+        return removed;
+    }
+
+    @Override
+    public int removeRealmTrust(String realmId, int maxEntries) {
+        return removeKeys(realmId + ":", maxEntries);
+    }
+
+    private int removeKeys(String owner, int maxEntries) {
+        List<String> keys = new ArrayList<>();
+        try (CloseableIterator<String> iterator = cache.keySet().iterator()) {
+            while (keys.size() < maxEntries && iterator.hasNext()) {
+                String key = iterator.next();
+                if (key.startsWith(IP_KEY_PREFIX + owner) || key.startsWith(DEVICE_KEY_PREFIX + owner)
+                    || key.startsWith(REVOKED_DEVICE_KEY_PREFIX + owner)) {
+                    keys.add(key);
+                }
+            }
+        }
+        keys.forEach(cache::remove);
+        return keys.size();
+    }
+
+    @Override
+    public int cleanupExpired() {
+        // Entries carry their own lifespan, Infinispan's expiration reaper removes them
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        // The cache is owned by the cache manager
+    }
+
+    private void put(String key, long expiresAtSeconds) {
+        if (expiresAtSeconds == 0) {
+            // Permanent trust
+            cache.put(key, expiresAtSeconds);
+            return;
+        }
+
+        long lifespan = lifespanSeconds(expiresAtSeconds);
+        if (lifespan <= 0) {
+            cache.remove(key);
+            return;
+        }
+        cache.put(key, expiresAtSeconds, lifespan, TimeUnit.SECONDS);
+    }
+
+    private static long lifespanSeconds(long expiresAtSeconds) {
+        return expiresAtSeconds - (System.currentTimeMillis() / 1000);
+    }
+
+    private static boolean isExpired(long expiresAtSeconds) {
+        // expiresAt = 0 means permanent (never expires)
+        return expiresAtSeconds > 0 && expiresAtSeconds < (System.currentTimeMillis() / 1000);
+    }
+
+    static String ipKey(String realmId, String userId, String ipAddress) {
+        return IP_KEY_PREFIX + realmId + ":" + userId + ":" + ipAddress;
+    }
+
+    static String deviceKey(String realmId, String userId, String deviceToken) {
+        return DEVICE_KEY_PREFIX + realmId + ":" + userId + ":" + deviceToken;
+    }
+
+    static String revokedDeviceKey(String realmId, String userId, String deviceToken) {
+        return REVOKED_DEVICE_KEY_PREFIX + realmId + ":" + userId + ":" + deviceToken;
+    }
+
+    /**
+     * Keys found by the scan of one revocation job, polled by its chunks.
+     */
+    static final class PendingRevocation {
+
+        private final String jobId;
+        private final Queue<String> keys;
+
+        PendingRevocation(String jobId, Queue<String> keys) {
+            this.jobId = jobId;
+            this.keys = keys;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import org.infinispan.Cache;
+import org.infinispan.commons.dataconversion.MediaType;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Clustered in-memory trust store, select it with
+ * {@code --spi-email-otp-trust-store-provider=infinispan}.
+ */
+public class InfinispanTrustStoreFactory implements TrustStoreFactory {
+
+    private static final Logger logger = Logger.getLogger(InfinispanTrustStoreFactory.class);
+
+    public static final String PROVIDER_ID = "infinispan";
+
+    public static final String CACHE_NAME = "email-otp-trust";
+
+    // Default number of cluster nodes holding a copy of each entry
+    private static final int DEFAULT_CACHE_OWNERS = 2;
+
+    private int cacheOwners = DEFAULT_CACHE_OWNERS;
+
+    private volatile Cache<String, Long> cache;
+
+    private final ConcurrentMap<String, InfinispanTrustStore.PendingRevocation> pendingRevocations = new ConcurrentHashMap<>();
+
+    @Override
+    public TrustStore create(KeycloakSession session) {
+        if (cache == null) {
+            synchronized (this) {
+                if (cache == null) {
+                    cache = defineCache(session);
+                }
+            }
+        }
+        return new InfinispanTrustStore(cache, pendingRevocations);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        if (config != null) {
+            Integer owners = config.getInt("cache-owners");
+            if (owners != null && owners > 0) {
+                this.cacheOwners = owners;
+                logger.infof("Email OTP trust cache owners set to %d", owners);
+            }
+        }
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        if (PROVIDER_ID.equals(CachingTrustStoreFactory.backingProviderId(factory))) {
+            // Entries of removed users and realms are not left waiting for their lifespan, permanent ones forever.
+            // The cache is not transactional and each call scans it, so a removed realm goes in a single call.
+            factory.register(new TrustOrphanCleanup(factory, Integer.MAX_VALUE));
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    private Cache<String, Long> defineCache(KeycloakSession session) {
+        InfinispanConnectionProvider provider = session.getProvider(InfinispanConnectionProvider.class);
+        if (provider == null) {
+            throw new IllegalStateException("Infinispan is not available, cannot use the infinispan email OTP trust store");
+        }
+
+        // Piggyback on the cache manager owning Keycloak's own caches so the trust cache is clustered the same way
+        EmbeddedCacheManager cacheManager = provider.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME).getCacheManager();
+
+        if (cacheManager.getCacheConfiguration(CACHE_NAME) == null) {
+            ConfigurationBuilder builder = new ConfigurationBuilder();
+            if (cacheManager.getCacheManagerConfiguration().isClustered()) {
+                builder.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(cacheOwners);
+            } else {
+                builder.clustering().cacheMode(CacheMode.LOCAL);
+            }
+            builder.encoding().mediaType(MediaType.APPLICATION_PROTOSTREAM_TYPE);
+            cacheManager.defineConfiguration(CACHE_NAME, builder.build());
+            logger.infof("Defined email OTP trust cache '%s' (%s)", CACHE_NAME,
+                cacheManager.getCacheManagerConfiguration().isClustered() ? "distributed" : "local");
+        }
+
+        return cacheManager.getCache(CACHE_NAME);
+    }
+}
@@ -0,0 +1,113 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-local queue of pending IP trust extensions. Repeated refreshes of the same
+ * entry coalesce into the latest expiry, and the queue is written out in batches
+ * by {@link IpTrustRefreshFlushTask}, so database writes no longer follow the login rate.
+ */
+public class IpTrustRefreshBuffer {
+
+    private final int maxPending;
+    private final Map<Key, Long> pending = new ConcurrentHashMap<>();
+
+    public IpTrustRefreshBuffer(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Queue an extension of an IP trust.
+     *
+     * @return false if the buffer is full and the caller should write the refresh itself
+     */
+    public boolean offer(String realmId, String userId, String ipAddress, long newExpiresAtSeconds) {
+        Key key = new Key(realmId, userId, ipAddress);
+        if (pending.size() >= maxPending && !pending.containsKey(key)) {
+            return false;
+        }
+        pending.merge(key, newExpiresAtSeconds, Math::max);
+        return true;
+    }
+
+    /**
+     * Remove and return every queued extension.
+     */
+    public List<Refresh> drain() {
+        List<Refresh> drained = new ArrayList<>(pending.size());
+        for (Key key : pending.keySet()) {
+            Long expiresAt = pending.remove(key);
+            if (expiresAt != null) {
+                drained.add(new Refresh(key.realmId, key.userId, key.ipAddress, expiresAt));
+            }
+        }
+        return drained;
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    public static class Refresh {
+        private final String realmId;
+        private final String userId;
+        private final String ipAddress;
+        private final long expiresAt;
+
+        Refresh(String realmId, String userId, String ipAddress, long expiresAt) {
+            this.realmId = realmId;
+            this.userId = userId;
+            this.ipAddress = ipAddress;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getRealmId() {
+            return realmId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getIpAddress() {
+            return ipAddress;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    private static class Key {
+        private final String realmId;
+        private final String userId;
+        private final String ipAddress;
+
+        Key(String realmId, String userId, String ipAddress) {
+            this.realmId = realmId;
+            this.userId = userId;
+            this.ipAddress = ipAddress;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return realmId.equals(other.realmId) && userId.equals(other.userId) && ipAddress.equals(other.ipAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(realmId, userId, ipAddress);
+        }
+    }
+}
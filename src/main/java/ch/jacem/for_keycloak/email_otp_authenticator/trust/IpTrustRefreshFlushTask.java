@@ -0,0 +1,38 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import java.util.List;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.timer.ScheduledTask;
+
+/**
+ * Scheduled task writing queued IP trust extensions to the database in batches.
+ */
+public class IpTrustRefreshFlushTask implements ScheduledTask {
+
+    private static final Logger logger = Logger.getLogger(IpTrustRefreshFlushTask.class);
+
+    private final DeviceRevocationSet revocations;
+    private final IpTrustRefreshBuffer buffer;
+
+    public IpTrustRefreshFlushTask(DeviceRevocationSet revocations, IpTrustRefreshBuffer buffer) {
+        this.revocations = revocations;
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        List<IpTrustRefreshBuffer.Refresh> refreshes = buffer.drain();
+        if (refreshes.isEmpty()) {
+            return;
+        }
+        try {
+            int updated = new JpaTrustStore(session, revocations, buffer).writeIpTrustRefreshes(refreshes);
+            logger.debugf("Flushed %d queued IP trust refreshes, %d rows extended", refreshes.size(), updated);
+        } catch (Exception e) {
+            // Losing an extension only means the trust may expire a little early
+            logger.warn("Failed to flush queued IP trust refreshes", e);
+        }
+    }
+}
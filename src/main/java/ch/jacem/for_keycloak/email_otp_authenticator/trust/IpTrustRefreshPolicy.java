@@ -0,0 +1,26 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+/**
+ * Write hysteresis for the rolling IP trust window: the expiry is only moved
+ * forward once the remaining lifetime drops below a fraction of the trust duration.
+ */
+public final class IpTrustRefreshPolicy {
+
+    private IpTrustRefreshPolicy() {
+    }
+
+    /**
+     * @param expiresAtSeconds Current expiry, or {@link TrustStore#IP_EXPIRY_UNKNOWN}
+     * @param nowSeconds Current time
+     * @param durationSeconds Configured trust duration
+     * @param thresholdPercent Refresh once less than this percentage of the duration remains
+     * @return true if the trust should be extended
+     */
+    public static boolean shouldRefresh(long expiresAtSeconds, long nowSeconds, long durationSeconds, int thresholdPercent) {
+        if (expiresAtSeconds == TrustStore.IP_EXPIRY_UNKNOWN || thresholdPercent >= 100) {
+            return true;
+        }
+        long remaining = expiresAtSeconds - nowSeconds;
+        return remaining * 100 < durationSeconds * Math.max(thresholdPercent, 0);
+    }
+}
@@ -1,25 +1,79 @@
 package ch.jacem.for_keycloak.email_otp_authenticator.trust;
 
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.DeviceRevocationEntity;
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.TrustIds;
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.TrustKeys;
 import ch.jacem.for_keycloak.email_otp_authenticator.jpa.TrustedDeviceEntity;
 import ch.jacem.for_keycloak.email_otp_authenticator.jpa.TrustedIpEntity;
 import jakarta.persistence.EntityManager;
-import jakarta.persistence.NoResultException;
+import jakarta.persistence.TypedQuery;
+import org.hibernate.Session;
 import org.jboss.logging.Logger;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.connections.jpa.util.JpaUtils;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 
-import java.util.UUID;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class JpaTrustStore implements TrustStore {
 
     private static final Logger logger = Logger.getLogger(JpaTrustStore.class);
 
+    private static final int REFRESH_BATCH_SIZE = 500;
+
+    private static final String[] IP_COLUMNS = {"ID", "REALM_ID", "USER_ID", "IP_ADDRESS", "EXPIRES_AT", "CREATED_AT"};
+    private static final String[] IP_KEY_COLUMNS = {"REALM_ID", "USER_ID", "IP_ADDRESS"};
+    private static final String[] IP_UPDATE_COLUMNS = {"EXPIRES_AT"};
+
+    private static final String[] DEVICE_COLUMNS = {"ID", "REALM_ID", "USER_ID", "DEVICE_TOKEN", "EXPIRES_AT", "CREATED_AT", "LAST_SEEN_AT", "STATELESS"};
+    private static final String[] DEVICE_KEY_COLUMNS = {"REALM_ID", "USER_ID", "DEVICE_TOKEN"};
+    private static final String[] DEVICE_UPDATE_COLUMNS = {"EXPIRES_AT", "CREATED_AT", "LAST_SEEN_AT", "STATELESS"};
+
+    // A Keycloak server talks to a single database, detected on first write
+    private static volatile TrustUpsertDialect upsertDialect;
+
     private final KeycloakSession session;
+    private final DeviceRevocationSet revocations;
+    private final IpTrustRefreshBuffer refreshBuffer;
+    private final TrustPartitioning partitioning;
+    private final TrustLimits limits;
+    private final DeviceActivity activity;
 
-    public JpaTrustStore(KeycloakSession session) {
+    /**
+     * @param refreshBuffer Queue for deferred IP trust refreshes, null to write them immediately
+     */
+    public JpaTrustStore(KeycloakSession session, DeviceRevocationSet revocations, IpTrustRefreshBuffer refreshBuffer) {
+        this(session, revocations, refreshBuffer, null, TrustLimits.UNLIMITED, DeviceActivity.DEFAULT);
+    }
+
+    /**
+     * @param refreshBuffer Queue for deferred IP trust refreshes, null to write them immediately
+     * @param partitioning Partitioning of the trust tables, null to always delete expired rows
+     * @param limits Trust entries kept per user
+     * @param activity Tracking of device use, and pruning of unused devices
+     */
+    public JpaTrustStore(KeycloakSession session, DeviceRevocationSet revocations, IpTrustRefreshBuffer refreshBuffer,
+            TrustPartitioning partitioning, TrustLimits limits, DeviceActivity activity) {
         this.session = session;
+        this.revocations = revocations;
+        this.refreshBuffer = refreshBuffer;
+        this.partitioning = partitioning;
+        this.limits = limits;
+        this.activity = activity;
+    }
+
+    private boolean isPartitioned() {
+        return partitioning != null && partitioning.isActive();
     }
 
     private EntityManager getEntityManager() {
@@ -28,20 +82,30 @@ public class JpaTrustStore implements TrustStore {
 
     @Override
     public boolean isIpTrusted(RealmModel realm, UserModel user, String ipAddress) {
-        TrustedIpEntity entity = findTrustedIp(realm.getId(), user.getId(), ipAddress);
-        if (entity == null) {
-            return false;
-        }
-        return !entity.isExpired();
+        return getIpTrustExpiresAt(realm, user, ipAddress) != IP_NOT_TRUSTED;
+    }
+
+    @Override
+    public long getIpTrustExpiresAt(RealmModel realm, UserModel user, String ipAddress) {
+        Long expiresAt = findExpiresAt("findTrustedIpExpiry", "expireTrustedIp", "ipAddress", realm.getId(), user.getId(), ipAddress);
+        return expiresAt != null ? expiresAt : IP_NOT_TRUSTED;
     }
 
     @Override
     public void trustIp(RealmModel realm, UserModel user, String ipAddress, long expiresAtSeconds) {
         EntityManager em = getEntityManager();
-        TrustedIpEntity existing = findTrustedIp(realm.getId(), user.getId(), ipAddress);
-
         long now = System.currentTimeMillis() / 1000;
 
+        if (upsert("EMAIL_OTP_TRUSTED_IP", IP_COLUMNS, IP_KEY_COLUMNS, IP_UPDATE_COLUMNS,
+                TrustIds.newId(), realm.getId(), user.getId(), TrustKeys.hashedIpToBytes(ipAddress), expiresAtSeconds, now)) {
+            logger.debugf("Stored IP trust for user %s, IP %s, expires at %d", user.getId(), ipAddress, expiresAtSeconds);
+            evictBeyondLimit("findTrustedIpIdsByRecentUse", "deleteTrustedIpsById", realm.getId(), user.getId(), limits.getMaxIpsPerUser());
+            return;
+        }
+
+        lockUser(realm.getId(), user.getId());
+        TrustedIpEntity existing = findTrustedIp(realm.getId(), user.getId(), ipAddress);
+
         if (existing != null) {
             // Update existing
             existing.setExpiresAt(expiresAtSeconds);
@@ -50,7 +114,7 @@ public class JpaTrustStore implements TrustStore {
         } else {
             // Create new
             TrustedIpEntity entity = new TrustedIpEntity(
-                UUID.randomUUID().toString(),
+                TrustIds.newId(),
                 realm.getId(),
                 user.getId(),
                 ipAddress,
@@ -60,35 +124,286 @@ public class JpaTrustStore implements TrustStore {
             em.persist(entity);
             logger.debugf("Created IP trust for user %s, IP %s, expires at %d", user.getId(), ipAddress, expiresAtSeconds);
         }
+        evictBeyondLimit("findTrustedIpIdsByRecentUse", "deleteTrustedIpsById", realm.getId(), user.getId(), limits.getMaxIpsPerUser());
     }
 
     @Override
     public void refreshIpTrust(RealmModel realm, UserModel user, String ipAddress, long newExpiresAtSeconds) {
-        TrustedIpEntity entity = findTrustedIp(realm.getId(), user.getId(), ipAddress);
-        if (entity != null) {
-            entity.setExpiresAt(newExpiresAtSeconds);
-            getEntityManager().merge(entity);
+        if (refreshBuffer != null && refreshBuffer.offer(realm.getId(), user.getId(), ipAddress, newExpiresAtSeconds)) {
+            logger.debugf("Queued IP trust refresh for user %s, IP %s, new expiry %d", user.getId(), ipAddress, newExpiresAtSeconds);
+            return;
+        }
+
+        int updated = getEntityManager().createNamedQuery("refreshTrustedIp")
+            .setParameter("realmId", realm.getId())
+            .setParameter("userId", user.getId())
+            .setParameter("ipAddress", ipAddress)
+            .setParameter("expiresAt", newExpiresAtSeconds)
+            .setParameter("currentTime", System.currentTimeMillis() / 1000)
+            .executeUpdate();
+        if (updated > 0) {
             logger.debugf("Refreshed IP trust for user %s, IP %s, new expiry %d", user.getId(), ipAddress, newExpiresAtSeconds);
         }
     }
 
     @Override
-    public boolean isDeviceTrusted(RealmModel realm, UserModel user, String deviceToken) {
-        if (deviceToken == null || deviceToken.isEmpty()) {
+    public boolean checkAndExtendIpTrust(RealmModel realm, UserModel user, String ipAddress, long newExpiresAtSeconds) {
+        if (refreshBuffer != null) {
+            // Refreshes are deferred, a read and a queued extension avoid the write altogether
+            if (!isIpTrusted(realm, user, ipAddress)) {
+                return false;
+            }
+            refreshIpTrust(realm, user, ipAddress, newExpiresAtSeconds);
+            return true;
+        }
+
+        // The affected row count is the trust decision
+        int updated = getEntityManager().createNamedQuery("extendTrustedIp")
+            .setParameter("realmId", realm.getId())
+            .setParameter("userId", user.getId())
+            .setParameter("ipAddress", ipAddress)
+            .setParameter("expiresAt", newExpiresAtSeconds)
+            .setParameter("currentTime", System.currentTimeMillis() / 1000)
+            .executeUpdate();
+        if (updated > 0) {
+            logger.debugf("IP trust checked and extended for user %s, IP %s, new expiry %d", user.getId(), ipAddress, newExpiresAtSeconds);
+        }
+        return updated > 0;
+    }
+
+    @Override
+    public TrustEvaluation evaluate(RealmModel realm, UserModel user, String deviceToken, String ipAddress) {
+        if (ipAddress == null) {
+            return evaluateDevice(realm, user, deviceToken);
+        }
+        if (!TrustKeys.isDeviceToken(deviceToken)) {
+            // Only the IP to check, the single-table lookup is enough
+            return TrustStore.super.evaluate(realm, user, null, ipAddress);
+        }
+
+        EntityManager em = getEntityManager();
+        String deviceTable = JpaUtils.getTableNameForNativeQuery("EMAIL_OTP_TRUSTED_DEVICE", em);
+        String ipTable = JpaUtils.getTableNameForNativeQuery("EMAIL_OTP_TRUSTED_IP", em);
+        long now = System.currentTimeMillis() / 1000;
+
+        // Make pending entity changes visible to the JDBC statement
+        em.flush();
+        TrustEvaluation evaluation = em.unwrap(Session.class).doReturningWork(connection ->
+            evaluate(connection, deviceTable, ipTable, realm.getId(), user.getId(),
+                TrustKeys.deviceTokenToBytes(deviceToken), TrustKeys.hashedIpToBytes(ipAddress), now));
+        logger.debugf("Trust evaluation for user %s: %s", user.getId(), evaluation);
+        if (evaluation.getKind() == TrustEvaluation.Kind.DEVICE) {
+            touchDevice(realm.getId(), user.getId(), deviceToken, evaluation.getLastSeenAt(), now);
+        }
+        return evaluation;
+    }
+
+    /**
+     * Look up the device and the IP trust with one UNION ALL query over both tables.
+     * Each branch hits its table's unique key and only projects the expiration, and the last use of a device.
+     */
+    static TrustEvaluation evaluate(Connection connection, String deviceTable, String ipTable,
+            String realmId, String userId, byte[] deviceToken, byte[] ipAddress, long now) throws SQLException {
+        String sql = "SELECT 'D' AS TRUST_KIND, EXPIRES_AT, LAST_SEEN_AT FROM " + deviceTable
+            + " WHERE REALM_ID = ? AND USER_ID = ? AND DEVICE_TOKEN = ? AND (EXPIRES_AT = 0 OR EXPIRES_AT >= ?)"
+            + " UNION ALL"
+            + " SELECT 'I' AS TRUST_KIND, EXPIRES_AT, 0 FROM " + ipTable
+            + " WHERE REALM_ID = ? AND USER_ID = ? AND IP_ADDRESS = ? AND (EXPIRES_AT = 0 OR EXPIRES_AT >= ?)";
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, realmId);
+            statement.setString(2, userId);
+            statement.setBytes(3, deviceToken);
+            statement.setLong(4, now);
+            statement.setString(5, realmId);
+            statement.setString(6, userId);
+            statement.setBytes(7, ipAddress);
+            statement.setLong(8, now);
+
+            TrustEvaluation evaluation = TrustEvaluation.NONE;
+            try (ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    // UNION ALL gives no ordering guarantee, device trust wins over IP trust
+                    if ("D".equals(rows.getString(1))) {
+                        return TrustEvaluation.device(rows.getLong(2), rows.getLong(3));
+                    }
+                    evaluation = TrustEvaluation.ip(rows.getLong(2));
+                }
+            }
+            return evaluation;
+        }
+    }
+
+    /**
+     * Write queued IP trust refreshes with batched JDBC updates.
+     * Rows are only extended, and expired rows are left for cleanup.
+     *
+     * @return Number of rows extended
+     */
+    public int writeIpTrustRefreshes(Collection<IpTrustRefreshBuffer.Refresh> refreshes) {
+        if (refreshes.isEmpty()) {
+            return 0;
+        }
+
+        EntityManager em = getEntityManager();
+        String sql = "UPDATE " + JpaUtils.getTableNameForNativeQuery("EMAIL_OTP_TRUSTED_IP", em)
+            + " SET EXPIRES_AT = ? WHERE REALM_ID = ? AND USER_ID = ? AND IP_ADDRESS = ?"
+            + " AND EXPIRES_AT < ? AND EXPIRES_AT >= ?";
+        long now = System.currentTimeMillis() / 1000;
+        int[] updated = new int[1];
+
+        // Make pending entity changes visible to the JDBC statements
+        em.flush();
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                int batched = 0;
+                for (IpTrustRefreshBuffer.Refresh refresh : refreshes) {
+                    statement.setLong(1, refresh.getExpiresAt());
+                    statement.setString(2, refresh.getRealmId());
+                    statement.setString(3, refresh.getUserId());
+                    statement.setBytes(4, TrustKeys.hashedIpToBytes(refresh.getIpAddress()));
+                    statement.setLong(5, refresh.getExpiresAt());
+                    statement.setLong(6, now);
+                    statement.addBatch();
+
+                    if (++batched == REFRESH_BATCH_SIZE) {
+                        updated[0] += countUpdated(statement.executeBatch());
+                        batched = 0;
+                    }
+                }
+                if (batched > 0) {
+                    updated[0] += countUpdated(statement.executeBatch());
+                }
+            }
+        });
+        return updated[0];
+    }
+
+    /**
+     * Insert or update a trust row in a single native statement.
+     *
+     * @return false if the database has no native upsert and the caller should fall back to JPA
+     */
+    private boolean upsert(String tableName, String[] columns, String[] keyColumns, String[] updateColumns, Object... values) {
+        if (isPartitioned()) {
+            // A partitioned table cannot keep the unique constraint the upsert relies on
             return false;
         }
-        TrustedDeviceEntity entity = findTrustedDevice(realm.getId(), user.getId(), deviceToken);
-        if (entity == null) {
+        EntityManager em = getEntityManager();
+        Session hibernateSession = em.unwrap(Session.class);
+
+        TrustUpsertDialect dialect = upsertDialect;
+        if (dialect == null) {
+            dialect = hibernateSession.doReturningWork(
+                connection -> TrustUpsertDialect.fromProductName(connection.getMetaData().getDatabaseProductName()));
+            upsertDialect = dialect;
+            logger.debugf("Using %s upserts for email OTP trust entries", dialect);
+        }
+        if (!dialect.isSupported()) {
             return false;
         }
-        return !entity.isExpired();
+
+        String table = JpaUtils.getTableNameForNativeQuery(tableName, em);
+        TrustUpsertDialect supported = dialect;
+
+        // Make pending entity changes visible to the JDBC statement
+        em.flush();
+        hibernateSession.doWork(connection -> supported.upsert(connection, table, columns, keyColumns, updateColumns, values));
+        return true;
+    }
+
+    /**
+     * Keep concurrent JPA writes of one user's trust entries from inserting the same entry twice
+     * on partitioned tables. Elsewhere the unique key rejects the second insert.
+     */
+    private void lockUser(String realmId, String userId) {
+        if (isPartitioned()) {
+            getEntityManager().unwrap(Session.class).doWork(connection -> TrustPartitioning.lockUser(connection, realmId, userId));
+        }
+    }
+
+    private static int countUpdated(int[] results) {
+        int count = 0;
+        for (int result : results) {
+            // Drivers may report SUCCESS_NO_INFO (-2) instead of a row count
+            if (result > 0) {
+                count += result;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isDeviceTrusted(RealmModel realm, UserModel user, String deviceToken) {
+        return evaluateDevice(realm, user, deviceToken).isTrusted();
+    }
+
+    /**
+     * Check the device trust alone, with the device's expiration.
+     */
+    private TrustEvaluation evaluateDevice(RealmModel realm, UserModel user, String deviceToken) {
+        if (!TrustKeys.isDeviceToken(deviceToken)) {
+            return TrustEvaluation.NONE;
+        }
+        EntityManager em = getEntityManager();
+        long now = System.currentTimeMillis() / 1000;
+
+        List<Object[]> rows = em.createNamedQuery("findTrustedDeviceUsage", Object[].class)
+            .setParameter("realmId", realm.getId())
+            .setParameter("userId", user.getId())
+            .setParameter("deviceToken", deviceToken)
+            .getResultList();
+        if (rows.isEmpty()) {
+            return TrustEvaluation.NONE;
+        }
+
+        long expiresAt = ((Number) rows.get(0)[0]).longValue();
+        if (expiresAt > 0 && expiresAt < now) {
+            expireOnRead("expireTrustedDevice", "deviceToken", realm.getId(), user.getId(), deviceToken, now);
+            return TrustEvaluation.NONE;
+        }
+        touchDevice(realm.getId(), user.getId(), deviceToken, ((Number) rows.get(0)[1]).longValue(), now);
+        return TrustEvaluation.device(expiresAt);
+    }
+
+    /**
+     * Record the use of a trusted device, at most once per interval so a login does not cost a write.
+     */
+    private void touchDevice(String realmId, String userId, String deviceToken, long lastSeenAt, long now) {
+        long staleBefore = now - activity.getLastSeenIntervalSeconds();
+        if (lastSeenAt >= staleBefore) {
+            return;
+        }
+        int updated = getEntityManager().createNamedQuery("touchTrustedDevice")
+            .setParameter("realmId", realmId)
+            .setParameter("userId", userId)
+            .setParameter("deviceToken", deviceToken)
+            .setParameter("currentTime", now)
+            .setParameter("staleBefore", staleBefore)
+            .executeUpdate();
+        if (updated > 0) {
+            logger.debugf("Recorded use of trusted device for user %s", userId);
+        }
     }
 
     @Override
     public void trustDevice(RealmModel realm, UserModel user, String deviceToken, long expiresAtSeconds) {
+        trustDevice(realm, user, deviceToken, expiresAtSeconds, false);
+    }
+
+    @Override
+    public void trustDevice(RealmModel realm, UserModel user, String deviceToken, long expiresAtSeconds, boolean stateless) {
         EntityManager em = getEntityManager();
         long now = System.currentTimeMillis() / 1000;
 
+        if (upsert("EMAIL_OTP_TRUSTED_DEVICE", DEVICE_COLUMNS, DEVICE_KEY_COLUMNS, DEVICE_UPDATE_COLUMNS,
+                TrustIds.newId(), realm.getId(), user.getId(), TrustKeys.deviceTokenToBytes(deviceToken), expiresAtSeconds, now, now, stateless)) {
+            logger.debugf("Created device trust for user %s, token %s, expires at %d", user.getId(), deviceToken, expiresAtSeconds);
+            evictDevicesBeyondLimit(realm.getId(), user.getId(), now);
+            return;
+        }
+
+        lockUser(realm.getId(), user.getId());
         // Remove any existing trust for this device token (shouldn't happen, but be safe)
         TrustedDeviceEntity existing = findTrustedDevice(realm.getId(), user.getId(), deviceToken);
         if (existing != null) {
@@ -96,27 +411,217 @@ public class JpaTrustStore implements TrustStore {
         }
 
         TrustedDeviceEntity entity = new TrustedDeviceEntity(
-            UUID.randomUUID().toString(),
+            TrustIds.newId(),
             realm.getId(),
             user.getId(),
             deviceToken,
             expiresAtSeconds,
             now
         );
+        entity.setStateless(stateless);
         em.persist(entity);
         logger.debugf("Created device trust for user %s, token %s, expires at %d", user.getId(), deviceToken, expiresAtSeconds);
+        evictDevicesBeyondLimit(realm.getId(), user.getId(), now);
     }
 
     @Override
-    public int cleanupExpired() {
+    public void revokeDevice(RealmModel realm, UserModel user, String deviceToken) {
+        TrustedDeviceEntity existing = TrustKeys.isDeviceToken(deviceToken)
+            ? findTrustedDevice(realm.getId(), user.getId(), deviceToken)
+            : null;
+        if (existing == null) {
+            // Stateless devices are never removed without a revocation, nothing is left to revoke
+            logger.debugf("No device trust to revoke for user %s, token %s", user.getId(), deviceToken);
+            return;
+        }
+
+        getEntityManager().remove(existing);
+        writeRevocations(realm.getId(), List.of(existing), System.currentTimeMillis() / 1000);
+        logger.debugf("Revoked device trust for user %s, token %s", user.getId(), deviceToken);
+    }
+
+    @Override
+    public int revokeTrust(RealmModel realm, String userId, boolean ips, boolean devices, int maxEntries) {
+        int revoked = 0;
+        if (ips) {
+            revoked += revokeIps(realm.getId(), userId, maxEntries);
+        }
+        if (devices) {
+            revoked += revokeDevices(realm.getId(), userId, maxEntries - revoked);
+        }
+        logger.debugf("Revoked %d trust entries in realm %s", revoked, realm.getId());
+        return revoked;
+    }
+
+    private int revokeIps(String realmId, String userId, int limit) {
+        if (limit <= 0) {
+            return 0;
+        }
+        EntityManager em = getEntityManager();
+
+        TypedQuery<String> query = userId != null
+            ? em.createNamedQuery("findTrustedIpIdsByUser", String.class).setParameter("userId", userId)
+            : em.createNamedQuery("findTrustedIpIdsByRealm", String.class);
+        List<String> ids = query
+            .setParameter("realmId", realmId)
+            .setMaxResults(limit)
+            .getResultList();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return em.createNamedQuery("deleteTrustedIpsById")
+            .setParameter("ids", ids)
+            .executeUpdate();
+    }
+
+    /**
+     * Remove trusted devices, replacing the stateless ones by revocations so their self-verifying tokens are rejected as well.
+     */
+    private int revokeDevices(String realmId, String userId, int limit) {
+        if (limit <= 0) {
+            return 0;
+        }
         EntityManager em = getEntityManager();
         long now = System.currentTimeMillis() / 1000;
 
-        int deletedIps = em.createNamedQuery("deleteExpiredTrustedIps")
-            .setParameter("currentTime", now)
+        TypedQuery<TrustedDeviceEntity> query = userId != null
+            ? em.createNamedQuery("findTrustedDevicesByUser", TrustedDeviceEntity.class).setParameter("userId", userId)
+            : em.createNamedQuery("findTrustedDevicesByRealm", TrustedDeviceEntity.class);
+        List<TrustedDeviceEntity> devices = query
+            .setParameter("realmId", realmId)
+            .setMaxResults(limit)
+            .getResultList();
+        if (devices.isEmpty()) {
+            return 0;
+        }
+        return deleteDevices(realmId, devices, now);
+    }
+
+    /**
+     * Delete devices by id, revoking the stateless ones.
+     */
+    private int deleteDevices(String realmId, List<TrustedDeviceEntity> devices, long now) {
+        List<String> ids = new ArrayList<>(devices.size());
+        for (TrustedDeviceEntity device : devices) {
+            ids.add(device.getId());
+        }
+        writeRevocations(realmId, devices, now);
+        return getEntityManager().createNamedQuery("deleteTrustedDevicesById")
+            .setParameter("ids", ids)
             .executeUpdate();
+    }
+
+    /**
+     * Write revocations for the stateless ones of devices being removed, whose cookies stay valid without
+     * their row. Devices checked against their row need none, removing the row is enough.
+     */
+    private void writeRevocations(String realmId, List<TrustedDeviceEntity> devices, long now) {
+        EntityManager em = getEntityManager();
+        List<String> tokens = new ArrayList<>();
+        for (TrustedDeviceEntity device : devices) {
+            if (device.isStateless()) {
+                em.persist(new DeviceRevocationEntity(TrustIds.newId(), realmId, device.getUserId(), device.getDeviceToken(),
+                    revocationExpiresAt(device), now));
+                tokens.add(device.getDeviceToken());
+            }
+        }
+        if (tokens.isEmpty()) {
+            return;
+        }
+
+        // Other nodes pick them up on their next refresh, this node right after commit
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                revocations.addAll(tokens);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    /**
+     * The revocation is needed as long as the device's cookie is accepted, a permanent device's until its Max-Age.
+     */
+    static long revocationExpiresAt(TrustedDeviceEntity device) {
+        return device.getExpiresAt() > 0
+            ? device.getExpiresAt()
+            : device.getCreatedAt() + DeviceTrustClaims.PERMANENT_MAX_AGE_SECONDS;
+    }
+
+    @Override
+    public TrustPage listTrust(RealmModel realm, String userId, TrustEntry.Kind kind, TrustFilter filter, String cursor, int max) {
+        TrustPage.Position after = TrustPage.position(cursor);
+        String name = (kind == TrustEntry.Kind.DEVICE ? "listTrustedDevices" : "listTrustedIps")
+            + (userId != null ? "ByUser" : "ByRealm");
 
-        int deletedDevices = em.createNamedQuery("deleteExpiredTrustedDevices")
+        TypedQuery<Object[]> query = getEntityManager().createNamedQuery(name, Object[].class);
+        if (userId != null) {
+            query.setParameter("userId", userId);
+        }
+        // One more row than the page tells whether there is a next one
+        List<Object[]> rows = query
+            .setParameter("realmId", realm.getId())
+            .setParameter("createdFrom", filter.getCreatedFrom())
+            .setParameter("createdTo", filter.getCreatedTo())
+            .setParameter("expiresFrom", filter.getExpiresFrom())
+            .setParameter("expiresTo", filter.getExpiresTo())
+            .setParameter("afterCreatedAt", after.createdAt)
+            .setParameter("afterId", after.id)
+            .setMaxResults(max + 1)
+            .getResultList();
+
+        List<TrustEntry> entries = new ArrayList<>(Math.min(rows.size(), max));
+        for (Object[] row : rows.subList(0, Math.min(rows.size(), max))) {
+            entries.add(new TrustEntry(kind, (String) row[0], (String) row[1], ((Number) row[2]).longValue(),
+                ((Number) row[3]).longValue(), row.length > 4 ? ((Number) row[4]).longValue() : 0));
+        }
+        String next = rows.size() > max ? TrustPage.cursor(entries.get(entries.size() - 1)) : null;
+        return new TrustPage(entries, next);
+    }
+
+    @Override
+    public boolean isDeviceRevoked(RealmModel realm, UserModel user, String deviceToken) {
+        return revocations.isRevoked(deviceToken, this::loadDeviceRevocations);
+    }
+
+    /**
+     * Load the tokens of all revocations that have not expired yet.
+     */
+    public List<String> loadDeviceRevocations() {
+        return getEntityManager()
+            .createNamedQuery("findActiveDeviceRevocations", String.class)
+            .setParameter("currentTime", System.currentTimeMillis() / 1000)
+            .getResultList();
+    }
+
+    @Override
+    public int cleanupExpired() {
+        EntityManager em = getEntityManager();
+        long now = System.currentTimeMillis() / 1000;
+
+        int deletedIps;
+        int deletedDevices;
+        if (isPartitioned()) {
+            deletedIps = dropExpiredPartitions("EMAIL_OTP_TRUSTED_IP", now);
+            deletedDevices = dropExpiredPartitions("EMAIL_OTP_TRUSTED_DEVICE", now);
+        } else {
+            deletedIps = em.createNamedQuery("deleteExpiredTrustedIps")
+                .setParameter("currentTime", now)
+                .executeUpdate();
+            deletedDevices = em.createNamedQuery("deleteExpiredTrustedDevices")
+                .setParameter("currentTime", now)
+                .executeUpdate();
+        }
+        if (activity.getInactivityDays() > 0) {
+            deletedDevices += em.createNamedQuery("deleteInactiveTrustedDevices")
+                .setParameter("inactiveBefore", activity.inactiveBefore(now))
+                .executeUpdate();
+        }
+
+        em.createNamedQuery("deleteExpiredDeviceRevocations")
             .setParameter("currentTime", now)
             .executeUpdate();
 
@@ -128,33 +633,334 @@ public class JpaTrustStore implements TrustStore {
     }
 
     @Override
-    public void close() {
-        // Nothing to close
+    public int cleanupExpired(int maxEntries) {
+        long now = System.currentTimeMillis() / 1000;
+
+        int deletedIps;
+        int deletedDevices;
+        int deletedRevocations;
+        if (isPartitioned()) {
+            // Dropping a partition is one short statement however many rows it holds, so it is not batched
+            deletedIps = dropExpiredPartitions("EMAIL_OTP_TRUSTED_IP", now);
+            deletedDevices = dropExpiredPartitions("EMAIL_OTP_TRUSTED_DEVICE", now);
+            deletedRevocations = deleteExpiredBatch("findExpiredDeviceRevocationIds", "deleteDeviceRevocationsById", maxEntries, now);
+        } else {
+            deletedIps = deleteExpiredBatch("findExpiredTrustedIpIds", "deleteTrustedIpsById", maxEntries, now);
+            deletedDevices = deleteExpiredBatch("findExpiredTrustedDeviceIds", "deleteTrustedDevicesById", maxEntries - deletedIps, now);
+            deletedRevocations = deleteExpiredBatch("findExpiredDeviceRevocationIds", "deleteDeviceRevocationsById",
+                maxEntries - deletedIps - deletedDevices, now);
+        }
+        if (activity.getInactivityDays() > 0) {
+            deletedDevices += deleteInactiveBatch(maxEntries - deletedIps - deletedDevices - deletedRevocations, now);
+        }
+
+        int total = deletedIps + deletedDevices + deletedRevocations;
+        logger.debugf("Cleaned up a batch of %d expired trust entries (%d IPs, %d devices, %d revocations)",
+            total, deletedIps, deletedDevices, deletedRevocations);
+        return total;
     }
 
-    private TrustedIpEntity findTrustedIp(String realmId, String userId, String ipAddress) {
-        try {
-            return getEntityManager()
-                .createNamedQuery("findTrustedIp", TrustedIpEntity.class)
+    /**
+     * Delete every trust entry and revocation of a removed user, with one bulk delete per table.
+     *
+     * @return Number of rows removed
+     */
+    @Override
+    public int removeUserTrust(String realmId, String userId) {
+        EntityManager em = getEntityManager();
+        int removed = 0;
+        for (String query : new String[] {"deleteTrustedIpsByUser", "deleteTrustedDevicesByUser", "deleteDeviceRevocationsByUser"}) {
+            removed += em.createNamedQuery(query)
                 .setParameter("realmId", realmId)
                 .setParameter("userId", userId)
-                .setParameter("ipAddress", ipAddress)
-                .getSingleResult();
-        } catch (NoResultException e) {
-            return null;
+                .executeUpdate();
+        }
+        if (removed > 0) {
+            logger.debugf("Removed %d trust entries of removed user %s", removed, userId);
         }
+        return removed;
     }
 
-    private TrustedDeviceEntity findTrustedDevice(String realmId, String userId, String deviceToken) {
-        try {
-            return getEntityManager()
-                .createNamedQuery("findTrustedDevice", TrustedDeviceEntity.class)
-                .setParameter("realmId", realmId)
-                .setParameter("userId", userId)
-                .setParameter("deviceToken", deviceToken)
-                .getSingleResult();
-        } catch (NoResultException e) {
+    /**
+     * Delete up to {@code maxEntries} trust entries and revocations of a removed realm.
+     * Callers repeat it in separate transactions until it returns less than {@code maxEntries}.
+     *
+     * @return Number of rows removed
+     */
+    @Override
+    public int removeRealmTrust(String realmId, int maxEntries) {
+        int removed = deleteRealmBatch("findTrustedIpIdsByRealm", "deleteTrustedIpsById", realmId, maxEntries);
+        removed += deleteRealmBatch("findTrustedDeviceIdsByRealm", "deleteTrustedDevicesById", realmId, maxEntries - removed);
+        removed += deleteRealmBatch("findDeviceRevocationIdsByRealm", "deleteDeviceRevocationsById", realmId, maxEntries - removed);
+        return removed;
+    }
+
+    private int deleteRealmBatch(String findQuery, String deleteQuery, String realmId, int limit) {
+        if (limit <= 0) {
+            return 0;
+        }
+        EntityManager em = getEntityManager();
+
+        List<String> ids = em.createNamedQuery(findQuery, String.class)
+            .setParameter("realmId", realmId)
+            .setMaxResults(limit)
+            .getResultList();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return em.createNamedQuery(deleteQuery)
+            .setParameter("ids", ids)
+            .executeUpdate();
+    }
+
+    /**
+     * Random-sample expiry of trusted IPs, in the spirit of Redis' active expiry.
+     * Rows are sampled from a random point of the primary key, the expired ones are deleted,
+     * and sampling goes on while more than {@code targetPercent} of a sample was expired.
+     *
+     * @param sampleSize Rows per sample
+     * @param targetPercent Expired share of a sample above which another sample is taken
+     * @param maxRounds Upper bound of samples per call
+     * @return Number of rows deleted
+     */
+    public int expireSampledIps(int sampleSize, int targetPercent, int maxRounds) {
+        EntityManager em = getEntityManager();
+        long now = System.currentTimeMillis() / 1000;
+        int deleted = 0;
+
+        for (int round = 0; round < maxRounds; round++) {
+            List<Object[]> sample = sampleIps(em, randomStartId(em, now), sampleSize);
+            if (sample.isEmpty()) {
+                sample = sampleIps(em, "", sampleSize);
+            }
+            if (sample.isEmpty()) {
+                break;
+            }
+
+            List<String> expiredIds = sample.stream()
+                .filter(row -> {
+                    long expiresAt = ((Number) row[1]).longValue();
+                    return expiresAt > 0 && expiresAt < now;
+                })
+                .map(row -> (String) row[0])
+                .toList();
+            if (!expiredIds.isEmpty()) {
+                deleted += em.createNamedQuery("deleteTrustedIpsById")
+                    .setParameter("ids", expiredIds)
+                    .executeUpdate();
+            }
+
+            if (!SampledExpiryPolicy.isAboveTarget(sample.size(), expiredIds.size(), targetPercent)) {
+                break;
+            }
+        }
+
+        if (deleted > 0) {
+            logger.debugf("Sampled expiry removed %d expired IP trust entries", deleted);
+        }
+        return deleted;
+    }
+
+    /**
+     * A random point of the primary key. IDs are time-ordered, so it is the lower bound of
+     * a random creation time between the oldest row and now. Rows with older random IDs
+     * only sample themselves while they are the oldest, the periodic cleanup removes them.
+     */
+    private static String randomStartId(EntityManager em, long nowSeconds) {
+        String oldestId = em.createNamedQuery("findOldestTrustedIpId", String.class).getSingleResult();
+        long oldest = oldestId != null ? Math.max(TrustIds.timestamp(oldestId), 0) : 0;
+        long now = nowSeconds * 1000;
+        if (oldest >= now) {
+            return "";
+        }
+        return TrustIds.lowerBound(ThreadLocalRandom.current().nextLong(oldest, now));
+    }
+
+    private static List<Object[]> sampleIps(EntityManager em, String startId, int sampleSize) {
+        return em.createNamedQuery("sampleTrustedIps", Object[].class)
+            .setParameter("startId", startId)
+            .setMaxResults(sampleSize)
+            .getResultList();
+    }
+
+    @Override
+    public long countExpired() {
+        EntityManager em = getEntityManager();
+        long now = System.currentTimeMillis() / 1000;
+
+        long expiredIps = em.createNamedQuery("countExpiredTrustedIps", Long.class)
+            .setParameter("currentTime", now)
+            .getSingleResult();
+        long expiredDevices = em.createNamedQuery("countExpiredTrustedDevices", Long.class)
+            .setParameter("currentTime", now)
+            .getSingleResult();
+        return expiredIps + expiredDevices;
+    }
+
+    /**
+     * Delete up to {@code limit} devices unused for the inactivity period, permanent ones included.
+     */
+    private int deleteInactiveBatch(int limit, long now) {
+        if (limit <= 0) {
+            return 0;
+        }
+        EntityManager em = getEntityManager();
+
+        List<String> ids = em.createNamedQuery("findInactiveTrustedDeviceIds", String.class)
+            .setParameter("inactiveBefore", activity.inactiveBefore(now))
+            .setMaxResults(limit)
+            .getResultList();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return em.createNamedQuery("deleteTrustedDevicesById")
+            .setParameter("ids", ids)
+            .executeUpdate();
+    }
+
+    /**
+     * Delete the entries of a user beyond the {@code limit} most recently used ones, in the transaction that added one.
+     */
+    private void evictBeyondLimit(String findQuery, String deleteQuery, String realmId, String userId, int limit) {
+        if (limit <= 0) {
+            return;
+        }
+        EntityManager em = getEntityManager();
+
+        List<String> ids = em.createNamedQuery(findQuery, String.class)
+            .setParameter("realmId", realmId)
+            .setParameter("userId", userId)
+            .setFirstResult(limit)
+            .getResultList();
+        if (ids.isEmpty()) {
+            return;
+        }
+        int evicted = em.createNamedQuery(deleteQuery)
+            .setParameter("ids", ids)
+            .executeUpdate();
+        logger.debugf("Evicted %d least recently used trust entries of user %s", evicted, userId);
+    }
+
+    /**
+     * Evict the least recently used devices beyond the per-user limit. Stateless devices do not record their use
+     * and count as last used when they were trusted. Evicted stateless devices are revoked, their cookies would
+     * otherwise stay valid without their row.
+     */
+    private void evictDevicesBeyondLimit(String realmId, String userId, long now) {
+        int limit = limits.getMaxDevicesPerUser();
+        if (limit <= 0) {
+            return;
+        }
+        EntityManager em = getEntityManager();
+
+        List<TrustedDeviceEntity> devices = em.createNamedQuery("findTrustedDevicesByRecentUse", TrustedDeviceEntity.class)
+            .setParameter("realmId", realmId)
+            .setParameter("userId", userId)
+            .setFirstResult(limit)
+            .getResultList();
+        if (devices.isEmpty()) {
+            return;
+        }
+        int evicted = deleteDevices(realmId, devices, now);
+        logger.debugf("Evicted %d least recently used devices of user %s", evicted, userId);
+    }
+
+    /**
+     * Drop the partitions of a trust table whose bucket lies entirely in the past.
+     *
+     * @return Estimated number of rows removed
+     */
+    private int dropExpiredPartitions(String tableName, long now) {
+        EntityManager em = getEntityManager();
+        String table = JpaUtils.getTableNameForNativeQuery(tableName, em);
+
+        em.flush();
+        return em.unwrap(Session.class).doReturningWork(connection -> TrustPartitioning.dropExpiredPartitions(connection, table, now));
+    }
+
+    /**
+     * Delete up to {@code limit} expired rows by primary key, so the statement only locks the rows it removes.
+     */
+    private int deleteExpiredBatch(String findQuery, String deleteQuery, int limit, long now) {
+        if (limit <= 0) {
+            return 0;
+        }
+        EntityManager em = getEntityManager();
+
+        List<String> ids = em.createNamedQuery(findQuery, String.class)
+            .setParameter("currentTime", now)
+            .setMaxResults(limit)
+            .getResultList();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return em.createNamedQuery(deleteQuery)
+            .setParameter("ids", ids)
+            .executeUpdate();
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    /**
+     * Project the expiration of a trust row, without loading the entity.
+     * A row found expired is deleted right away instead of waiting for the cleanup.
+     *
+     * @return the expiration, or null if there is no unexpired row
+     */
+    private Long findExpiresAt(String queryName, String expireQueryName, String keyParameter, String realmId, String userId, String key) {
+        EntityManager em = getEntityManager();
+        long now = System.currentTimeMillis() / 1000;
+
+        List<Long> rows = em.createNamedQuery(queryName, Long.class)
+            .setParameter("realmId", realmId)
+            .setParameter("userId", userId)
+            .setParameter(keyParameter, key)
+            .getResultList();
+        if (rows.isEmpty()) {
+            return null;
+        }
+
+        long expiresAt = rows.get(0);
+        if (expiresAt > 0 && expiresAt < now) {
+            expireOnRead(expireQueryName, keyParameter, realmId, userId, key, now);
             return null;
         }
+        return expiresAt;
+    }
+
+    private void expireOnRead(String expireQueryName, String keyParameter, String realmId, String userId, String key, long now) {
+        // Conditional on the expiry, so a concurrent renewal is not lost
+        int expired = getEntityManager().createNamedQuery(expireQueryName)
+            .setParameter("realmId", realmId)
+            .setParameter("userId", userId)
+            .setParameter(keyParameter, key)
+            .setParameter("currentTime", now)
+            .executeUpdate();
+        logger.debugf("Expired %d trust entries on read for user %s", expired, userId);
+    }
+
+    private TrustedIpEntity findTrustedIp(String realmId, String userId, String ipAddress) {
+        return getEntityManager()
+            .createNamedQuery("findTrustedIp", TrustedIpEntity.class)
+            .setParameter("realmId", realmId)
+            .setParameter("userId", userId)
+            .setParameter("ipAddress", ipAddress)
+            .getResultStream()
+            .findFirst()
+            .orElse(null);
+    }
+
+    private TrustedDeviceEntity findTrustedDevice(String realmId, String userId, String deviceToken) {
+        return getEntityManager()
+            .createNamedQuery("findTrustedDevice", TrustedDeviceEntity.class)
+            .setParameter("realmId", realmId)
+            .setParameter("userId", userId)
+            .setParameter("deviceToken", deviceToken)
+            .getResultStream()
+            .findFirst()
+            .orElse(null);
     }
 }
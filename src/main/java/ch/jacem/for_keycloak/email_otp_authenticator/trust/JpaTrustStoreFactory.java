@@ -4,6 +4,7 @@ import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.timer.TimerProvider;
 
 public class JpaTrustStoreFactory implements TrustStoreFactory {
@@ -15,11 +16,56 @@ public class JpaTrustStoreFactory implements TrustStoreFactory {
     // Default cleanup interval: 1 hour (in milliseconds)
     private static final long DEFAULT_CLEANUP_INTERVAL_MS = 60 * 60 * 1000L;
 
+    // Default cleanup batches: 1000 entries per transaction, for at most 30 seconds per run
+    private static final int DEFAULT_CLEANUP_BATCH_SIZE = 1000;
+    private static final long DEFAULT_CLEANUP_TIME_BUDGET_MS = 30 * 1000L;
+    private static final long DEFAULT_CLEANUP_BATCH_PAUSE_MS = 100L;
+
+    // Default sampled expiry: every minute, 20 rows per sample, resampled while more than 10% were expired
+    private static final long DEFAULT_SAMPLED_EXPIRY_INTERVAL_MS = 60 * 1000L;
+    private static final int DEFAULT_SAMPLED_EXPIRY_SAMPLE_SIZE = 20;
+    private static final int DEFAULT_SAMPLED_EXPIRY_TARGET_PERCENT = 10;
+
+    // Default revocation refresh interval: 1 minute (in milliseconds)
+    private static final long DEFAULT_REVOCATION_REFRESH_INTERVAL_MS = 60 * 1000L;
+
+    // Default device last use: written at most once a day
+    private static final long DEFAULT_DEVICE_LAST_SEEN_INTERVAL_MINUTES = 24 * 60L;
+
+    // Default partition maintenance: partitions for the next 30 days, checked every 6 hours
+    private static final int DEFAULT_PARTITION_PREMAKE_DAYS = 30;
+    private static final long DEFAULT_PARTITION_MAINTENANCE_INTERVAL_MS = 6 * 60 * 60 * 1000L;
+
+    // Default upper bound of queued IP trust refreshes per node
+    private static final int DEFAULT_REFRESH_MAX_PENDING = 10000;
+
     private long cleanupIntervalMs = DEFAULT_CLEANUP_INTERVAL_MS;
+    private int cleanupBatchSize = DEFAULT_CLEANUP_BATCH_SIZE;
+    private long cleanupTimeBudgetMs = DEFAULT_CLEANUP_TIME_BUDGET_MS;
+    private long cleanupBatchPauseMs = DEFAULT_CLEANUP_BATCH_PAUSE_MS;
+    // 0 = no sampled expiry, only the periodic cleanup
+    private long sampledExpiryIntervalMs = DEFAULT_SAMPLED_EXPIRY_INTERVAL_MS;
+    private int sampledExpirySampleSize = DEFAULT_SAMPLED_EXPIRY_SAMPLE_SIZE;
+    private int sampledExpiryTargetPercent = DEFAULT_SAMPLED_EXPIRY_TARGET_PERCENT;
+    private long revocationRefreshIntervalMs = DEFAULT_REVOCATION_REFRESH_INTERVAL_MS;
+    // 0 = IP trust refreshes are written immediately
+    private long refreshFlushIntervalMs = 0;
+    private int refreshMaxPending = DEFAULT_REFRESH_MAX_PENDING;
+    // 0 = tables are not partitioned, expired rows are deleted
+    private int partitionBucketDays = 0;
+    private int partitionPremakeDays = DEFAULT_PARTITION_PREMAKE_DAYS;
+    private long partitionMaintenanceIntervalMs = DEFAULT_PARTITION_MAINTENANCE_INTERVAL_MS;
+
+    private final DeviceRevocationSet revocations = new DeviceRevocationSet();
+    private IpTrustRefreshBuffer refreshBuffer;
+    private TrustPartitioning partitioning;
+    private TrustLimits limits = TrustLimits.UNLIMITED;
+    private DeviceActivity activity = DeviceActivity.DEFAULT;
+    private KeycloakSessionFactory sessionFactory;
 
     @Override
     public TrustStore create(KeycloakSession session) {
-        return new JpaTrustStore(session);
+        return new JpaTrustStore(session, revocations, refreshBuffer, partitioning, limits, activity);
     }
 
     @Override
@@ -31,18 +77,122 @@ public class JpaTrustStoreFactory implements TrustStoreFactory {
                 this.cleanupIntervalMs = intervalMinutes * 60 * 1000L;
                 logger.infof("Email OTP trust cleanup interval set to %d minutes", intervalMinutes);
             }
+
+            Integer batchSize = config.getInt("cleanup-batch-size");
+            if (batchSize != null && batchSize > 0) {
+                this.cleanupBatchSize = batchSize;
+            }
+
+            Long budgetSeconds = config.getLong("cleanup-time-budget-seconds");
+            if (budgetSeconds != null && budgetSeconds > 0) {
+                this.cleanupTimeBudgetMs = budgetSeconds * 1000L;
+            }
+
+            Long pauseMillis = config.getLong("cleanup-batch-pause-millis");
+            if (pauseMillis != null && pauseMillis >= 0) {
+                this.cleanupBatchPauseMs = pauseMillis;
+            }
+
+            Long sampledExpirySeconds = config.getLong("sampled-expiry-interval-seconds");
+            if (sampledExpirySeconds != null && sampledExpirySeconds >= 0) {
+                this.sampledExpiryIntervalMs = sampledExpirySeconds * 1000L;
+            }
+            this.sampledExpirySampleSize = config.getInt("sampled-expiry-sample-size", DEFAULT_SAMPLED_EXPIRY_SAMPLE_SIZE);
+            this.sampledExpiryTargetPercent = config.getInt("sampled-expiry-target-percent", DEFAULT_SAMPLED_EXPIRY_TARGET_PERCENT);
+
+            Long refreshSeconds = config.getLong("revocation-refresh-seconds");
+            if (refreshSeconds != null && refreshSeconds > 0) {
+                this.revocationRefreshIntervalMs = refreshSeconds * 1000L;
+                logger.infof("Email OTP device revocation refresh interval set to %d seconds", refreshSeconds);
+            }
+
+            Long flushSeconds = config.getLong("refresh-flush-interval-seconds");
+            if (flushSeconds != null && flushSeconds > 0) {
+                this.refreshFlushIntervalMs = flushSeconds * 1000L;
+                logger.infof("Email OTP IP trust refreshes are written every %d seconds", flushSeconds);
+            }
+
+            this.refreshMaxPending = config.getInt("refresh-max-pending", DEFAULT_REFRESH_MAX_PENDING);
+
+            // 0 = no per-user bound, evicting trust is opt-in
+            this.limits = new TrustLimits(
+                config.getInt("max-devices-per-user", 0),
+                config.getInt("max-ips-per-user", 0));
+            if (limits.getMaxDevicesPerUser() > 0 || limits.getMaxIpsPerUser() > 0) {
+                logger.infof("Email OTP trust is bounded per user: %s", limits);
+            }
+
+            // 0 = devices unused for any time are kept
+            int inactivityDays = config.getInt("device-inactivity-days", 0);
+            this.activity = new DeviceActivity(
+                config.getLong("device-last-seen-interval-minutes", DEFAULT_DEVICE_LAST_SEEN_INTERVAL_MINUTES) * 60,
+                inactivityDays);
+            if (inactivityDays > 0) {
+                logger.infof("Email OTP trusted devices unused for %d days are pruned", inactivityDays);
+            }
+
+            this.partitionBucketDays = config.getInt("partition-bucket-days", 0);
+            this.partitionPremakeDays = config.getInt("partition-premake-days", DEFAULT_PARTITION_PREMAKE_DAYS);
+            Long maintenanceMinutes = config.getLong("partition-maintenance-interval-minutes");
+            if (maintenanceMinutes != null && maintenanceMinutes > 0) {
+                this.partitionMaintenanceIntervalMs = maintenanceMinutes * 60 * 1000L;
+            }
+        }
+
+        if (refreshFlushIntervalMs > 0) {
+            this.refreshBuffer = new IpTrustRefreshBuffer(refreshMaxPending);
+        }
+        if (partitionBucketDays > 0) {
+            this.partitioning = new TrustPartitioning(partitionBucketDays, Math.max(partitionPremakeDays, partitionBucketDays));
+            logger.infof("Email OTP trust tables use %d-day partitions when partitioned", partitionBucketDays);
         }
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        this.sessionFactory = factory;
+
+        // The tasks below work on this store's tables, which are not used with another trust store
+        String backing = CachingTrustStoreFactory.backingProviderId(factory);
+        if (!PROVIDER_ID.equals(backing)) {
+            logger.debugf("Email OTP trust store '%s' selected, JPA trust tasks not scheduled", backing);
+            return;
+        }
+
+        // Entries of removed users and realms are not left waiting for an expiry that may never come
+        factory.register(new TrustOrphanCleanup(factory, cleanupBatchSize));
+
         // Schedule the cleanup task
         KeycloakSession session = factory.create();
         try {
             TimerProvider timer = session.getProvider(TimerProvider.class);
             if (timer != null) {
-                timer.scheduleTask(new TrustCleanupTask(), cleanupIntervalMs, "EmailOtpTrustCleanup");
+                // Other nodes skip the cleanup for one interval after a node started it
+                int cleanupIntervalSeconds = (int) Math.max(1, cleanupIntervalMs / 1000);
+                timer.scheduleTask(new TrustCleanupTask(cleanupBatchSize, cleanupTimeBudgetMs, cleanupBatchPauseMs, cleanupIntervalSeconds),
+                    cleanupIntervalMs, "EmailOtpTrustCleanup");
                 logger.infof("Scheduled email OTP trust cleanup task to run every %d ms", cleanupIntervalMs);
+
+                if (sampledExpiryIntervalMs > 0 && sampledExpirySampleSize > 0) {
+                    int sampledExpiryIntervalSeconds = (int) Math.max(1, sampledExpiryIntervalMs / 1000);
+                    timer.scheduleTask(new SampledExpiryTask(revocations, sampledExpirySampleSize, sampledExpiryTargetPercent,
+                            sampledExpiryIntervalSeconds),
+                        sampledExpiryIntervalMs, "EmailOtpTrustSampledExpiry");
+                }
+
+                timer.scheduleTask(new DeviceRevocationRefreshTask(revocations), revocationRefreshIntervalMs, "EmailOtpDeviceRevocationRefresh");
+
+                if (refreshBuffer != null) {
+                    timer.scheduleTask(new IpTrustRefreshFlushTask(revocations, refreshBuffer), refreshFlushIntervalMs, "EmailOtpIpTrustRefreshFlush");
+                }
+
+                if (partitioning != null) {
+                    int partitionIntervalSeconds = (int) Math.max(1, partitionMaintenanceIntervalMs / 1000);
+                    PartitionMaintenanceTask maintenance = new PartitionMaintenanceTask(partitioning, partitionIntervalSeconds);
+                    // Detect the partitioning right away, the first scheduled run is one interval later
+                    KeycloakModelUtils.runJobInTransaction(factory, maintenance::run);
+                    timer.scheduleTask(maintenance, partitionMaintenanceIntervalMs, "EmailOtpTrustPartitionMaintenance");
+                }
             } else {
                 logger.warn("TimerProvider not available, cleanup task not scheduled");
             }
@@ -53,10 +203,25 @@ public class JpaTrustStoreFactory implements TrustStoreFactory {
 
     @Override
     public void close() {
+        // Write out what is still queued before shutting down
+        if (refreshBuffer != null && sessionFactory != null && refreshBuffer.size() > 0) {
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                    session -> new IpTrustRefreshFlushTask(revocations, refreshBuffer).run(session));
+            } catch (Exception e) {
+                logger.warn("Failed to flush queued IP trust refreshes on shutdown", e);
+            }
+        }
     }
 
     @Override
     public String getId() {
         return PROVIDER_ID;
     }
+
+    @Override
+    public int order() {
+        // Default provider when none is configured explicitly
+        return 1;
+    }
 }
@@ -0,0 +1,86 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import jakarta.persistence.EntityManager;
+import org.hibernate.Session;
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.connections.jpa.util.JpaUtils;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.Arrays;
+
+/**
+ * Scheduled task keeping the trust table partitions ahead of time.
+ * Every node checks whether the tables are partitioned, so its store knows whether to drop
+ * partitions or delete rows. Only one node of the cluster creates the upcoming partitions.
+ * Expired partitions are dropped by the regular cleanup.
+ */
+public class PartitionMaintenanceTask implements ScheduledTask {
+
+    private static final Logger logger = Logger.getLogger(PartitionMaintenanceTask.class);
+
+    public static final String TASK_KEY = "email-otp-trust-partition-maintenance";
+
+    private final TrustPartitioning partitioning;
+    private final int intervalSeconds;
+
+    /**
+     * @param intervalSeconds Time during which other nodes skip the maintenance after one node started it
+     */
+    public PartitionMaintenanceTask(TrustPartitioning partitioning, int intervalSeconds) {
+        this.partitioning = partitioning;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        try {
+            EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+            String[] tables = Arrays.stream(TrustPartitioning.TABLES)
+                .map(table -> JpaUtils.getTableNameForNativeQuery(table, em))
+                .toArray(String[]::new);
+            Session hibernateSession = em.unwrap(Session.class);
+
+            boolean partitioned = hibernateSession.doReturningWork(connection -> TrustPartitioning.detect(connection, tables));
+            partitioning.setActive(partitioned);
+            if (!partitioned) {
+                return;
+            }
+
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+            if (cluster == null) {
+                createPartitions(hibernateSession, tables);
+                return;
+            }
+            if (!ClusterInterval.claim(session, TASK_KEY, intervalSeconds)) {
+                logger.debug("Email OTP trust partition maintenance already run by another node in this interval");
+                return;
+            }
+            ExecutionResult<Integer> result = cluster.executeIfNotExecuted(TASK_KEY, intervalSeconds, () -> createPartitions(hibernateSession, tables));
+            if (!result.isExecuted()) {
+                logger.debug("Email OTP trust partition maintenance already handled by another node");
+            }
+        } catch (Exception e) {
+            // Rows of missing buckets land in the default partition until the next run
+            logger.error("Error during email OTP trust partition maintenance", e);
+        }
+    }
+
+    private int createPartitions(Session hibernateSession, String[] tables) {
+        long now = System.currentTimeMillis() / 1000;
+        int created = hibernateSession.doReturningWork(connection -> {
+            int count = 0;
+            for (String table : tables) {
+                count += partitioning.createPartitions(connection, table, now);
+            }
+            return count;
+        });
+        if (created > 0) {
+            logger.infof("Email OTP trust partition maintenance: created %d partitions", created);
+        }
+        return created;
+    }
+}
@@ -0,0 +1,24 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+/**
+ * Stop condition of the sampled expiry: keep sampling while the expired share of the last
+ * sample is above the target, since the table as a whole is then likely above it too.
+ */
+public final class SampledExpiryPolicy {
+
+    private SampledExpiryPolicy() {
+    }
+
+    /**
+     * @param sampled Rows in the sample
+     * @param expired Expired rows in the sample
+     * @param targetPercent Tolerated expired share of the table
+     * @return true if another sample should be taken
+     */
+    public static boolean isAboveTarget(int sampled, int expired, int targetPercent) {
+        if (sampled <= 0) {
+            return false;
+        }
+        return expired * 100L > sampled * (long) Math.max(targetPercent, 0);
+    }
+}
@@ -0,0 +1,47 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.timer.ScheduledTask;
+
+/**
+ * Scheduled task running the sampled expiry of trusted IPs between two cleanup sweeps.
+ * Only one node of the cluster samples per interval, the others skip it until the interval ends.
+ */
+public class SampledExpiryTask implements ScheduledTask {
+
+    private static final Logger logger = Logger.getLogger(SampledExpiryTask.class);
+
+    public static final String TASK_KEY = "email-otp-trust-sampled-expiry";
+
+    // Bounds a single run, the next one continues if the table is still above target
+    private static final int MAX_ROUNDS = 16;
+
+    private final DeviceRevocationSet revocations;
+    private final int sampleSize;
+    private final int targetPercent;
+    private final int intervalSeconds;
+
+    /**
+     * @param intervalSeconds Time during which other nodes skip the sampling after one node started it
+     */
+    public SampledExpiryTask(DeviceRevocationSet revocations, int sampleSize, int targetPercent, int intervalSeconds) {
+        this.revocations = revocations;
+        this.sampleSize = sampleSize;
+        this.targetPercent = targetPercent;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        try {
+            if (!ClusterInterval.claim(session, TASK_KEY, intervalSeconds)) {
+                return;
+            }
+            new JpaTrustStore(session, revocations, null).expireSampledIps(sampleSize, targetPercent, MAX_ROUNDS);
+        } catch (Exception e) {
+            // The periodic cleanup still removes whatever is left
+            logger.warn("Sampled expiry of email OTP IP trusts failed", e);
+        }
+    }
+}
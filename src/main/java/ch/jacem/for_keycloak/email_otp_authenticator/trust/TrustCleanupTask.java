@@ -1,31 +1,122 @@
 package ch.jacem.for_keycloak.email_otp_authenticator.trust;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.timer.ScheduledTask;
 
 /**
  * Scheduled task to clean up expired trust entries.
+ * Only one node of the cluster runs it per interval, the others skip it until the interval ends. Entries are removed in bounded batches,
+ * each in its own transaction, until the backlog is gone or the time budget is used up.
+ * A backlog left over is reported and worked off by the next runs.
  */
 public class TrustCleanupTask implements ScheduledTask {
 
     private static final Logger logger = Logger.getLogger(TrustCleanupTask.class);
 
+    public static final String TASK_KEY = "email-otp-trust-cleanup";
+
+    private final int batchSize;
+    private final long timeBudgetMs;
+    private final long batchPauseMs;
+    private final int intervalSeconds;
+
+    /**
+     * @param batchSize Entries removed per transaction
+     * @param timeBudgetMs Time after which no new batch is started
+     * @param batchPauseMs Average pause between batches, randomized by +/-50% so other transactions get the rows
+     * @param intervalSeconds Time during which other nodes skip the cleanup after one node started it
+     */
+    public TrustCleanupTask(int batchSize, long timeBudgetMs, long batchPauseMs, int intervalSeconds) {
+        this.batchSize = batchSize;
+        this.timeBudgetMs = timeBudgetMs;
+        this.batchPauseMs = batchPauseMs;
+        this.intervalSeconds = intervalSeconds;
+    }
+
     @Override
     public void run(KeycloakSession session) {
         logger.debug("Running email OTP trust cleanup task");
+        KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
         try {
-            TrustStore trustStore = session.getProvider(TrustStore.class);
-            if (trustStore != null) {
-                int cleaned = trustStore.cleanupExpired();
-                if (cleaned > 0) {
-                    logger.infof("Email OTP trust cleanup: removed %d expired entries", cleaned);
-                }
-            } else {
-                logger.warn("TrustStore provider not available for cleanup");
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+            if (cluster == null) {
+                cleanup(factory);
+                return;
+            }
+
+            if (!ClusterInterval.claim(session, TASK_KEY, intervalSeconds)) {
+                logger.debug("Email OTP trust cleanup already run by another node in this interval");
+                return;
+            }
+            // Also keeps a run outlasting the interval from overlapping the next one
+            ExecutionResult<Integer> result = cluster.executeIfNotExecuted(TASK_KEY, intervalSeconds, () -> cleanup(factory));
+            if (!result.isExecuted()) {
+                logger.debug("Email OTP trust cleanup already handled by another node");
             }
         } catch (Exception e) {
             logger.error("Error during email OTP trust cleanup", e);
         }
     }
+
+    /**
+     * @return Number of entries removed
+     */
+    int cleanup(KeycloakSessionFactory factory) {
+        long deadline = System.currentTimeMillis() + timeBudgetMs;
+        int total = 0;
+
+        while (true) {
+            Integer removed = KeycloakModelUtils.runJobInTransactionWithResult(factory, s -> {
+                TrustStore trustStore = s.getProvider(TrustStore.class);
+                if (trustStore == null) {
+                    logger.warn("TrustStore provider not available for cleanup");
+                    return 0;
+                }
+                return trustStore.cleanupExpired(batchSize);
+            });
+            total += removed;
+
+            if (removed < batchSize) {
+                if (total > 0) {
+                    logger.infof("Email OTP trust cleanup: removed %d expired entries", total);
+                }
+                return total;
+            }
+            if (System.currentTimeMillis() >= deadline || !pause()) {
+                break;
+            }
+        }
+
+        Long backlog = KeycloakModelUtils.runJobInTransactionWithResult(factory, s -> {
+            TrustStore trustStore = s.getProvider(TrustStore.class);
+            return trustStore != null ? trustStore.countExpired() : -1L;
+        });
+        if (backlog >= 0) {
+            logger.infof("Email OTP trust cleanup: removed %d expired entries, %d remaining for the next run", total, backlog);
+        } else {
+            logger.infof("Email OTP trust cleanup: removed %d expired entries, more remaining for the next run", total);
+        }
+        return total;
+    }
+
+    private boolean pause() {
+        if (batchPauseMs <= 0) {
+            return true;
+        }
+        long jittered = batchPauseMs / 2 + ThreadLocalRandom.current().nextLong(batchPauseMs + 1);
+        try {
+            Thread.sleep(jittered);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 }
@@ -0,0 +1,190 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Bounded, TTL-evicting local cache of trust decisions.
+ * A decision is the trust's expiration in seconds (0 = permanent or not known), or {@link #UNTRUSTED}.
+ * A trusted decision is never kept past its expiration.
+ * Concurrent misses for the same key share a single load (single-flight).
+ */
+public class TrustDecisionCache {
+
+    /**
+     * Decision of an entry that is not trusted, {@link TrustStore#IP_NOT_TRUSTED} for IPs.
+     */
+    public static final long UNTRUSTED = TrustStore.IP_NOT_TRUSTED;
+
+    // How long a caller waits for another caller's in-flight load before loading itself
+    private static final long IN_FLIGHT_WAIT_MS = 5000;
+
+    private final int maxEntries;
+    private final long positiveTtlMs;
+    private final long negativeTtlMs;
+
+    private final Map<String, Entry> entries;
+    private final ConcurrentHashMap<String, CompletableFuture<Long>> inFlight = new ConcurrentHashMap<>();
+
+    // Bumped on every invalidation, loads started before an invalidation are not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    public TrustDecisionCache(int maxEntries, long positiveTtlMs, long negativeTtlMs) {
+        this.maxEntries = maxEntries;
+        this.positiveTtlMs = positiveTtlMs;
+        this.negativeTtlMs = negativeTtlMs;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > TrustDecisionCache.this.maxEntries;
+            }
+        };
+    }
+
+    public boolean get(String key, Supplier<Boolean> loader) {
+        return getExpiresAt(key, () -> loader.get() ? 0 : UNTRUSTED) != UNTRUSTED;
+    }
+
+    /**
+     * @return The cached or loaded decision: the expiration of the trust, or {@link #UNTRUSTED}
+     */
+    public long getExpiresAt(String key, LongSupplier loader) {
+        Long cached = peek(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        CompletableFuture<Long> load = new CompletableFuture<>();
+        CompletableFuture<Long> existing = inFlight.putIfAbsent(key, load);
+        if (existing != null) {
+            try {
+                return existing.get(IN_FLIGHT_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return loader.getAsLong();
+            } catch (Exception e) {
+                // The other load failed or is too slow, load on our own
+                return loader.getAsLong();
+            }
+        }
+
+        long loadGeneration = generation.get();
+        try {
+            long value = loader.getAsLong();
+            put(key, value, loadGeneration);
+            load.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, load);
+        }
+    }
+
+    /**
+     * @return The cached decision, or null if there is none
+     */
+    public Long peek(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAtMs <= now) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    /**
+     * Current generation, to pass to {@link #put} for a decision loaded outside of {@link #getExpiresAt}.
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Cache a decision, unless something was invalidated since the given generation.
+     */
+    public void put(String key, long value, long loadGeneration) {
+        long now = System.currentTimeMillis();
+        long ttl = value == UNTRUSTED ? negativeTtlMs : positiveTtlMs;
+        if (ttl <= 0) {
+            return;
+        }
+        long expiresAtMs = now + ttl;
+        if (value > 0) {
+            expiresAtMs = Math.min(expiresAtMs, value * 1000);
+        }
+        if (expiresAtMs <= now) {
+            return;
+        }
+        synchronized (entries) {
+            if (generation.get() == loadGeneration) {
+                entries.put(key, new Entry(value, expiresAtMs));
+            }
+        }
+    }
+
+    /**
+     * Move a cached trusted decision's expiration later, after the trust was extended. It stays cached no longer than before.
+     */
+    public void extend(String key, long expiresAt) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.value > 0 && entry.value < expiresAt) {
+                entries.put(key, new Entry(expiresAt, entry.expiresAtMs));
+            }
+        }
+    }
+
+    public void invalidate(String key) {
+        generation.incrementAndGet();
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Drop every decision whose key starts with the prefix, such as all decisions of one user.
+     */
+    public void invalidatePrefix(String prefix) {
+        generation.incrementAndGet();
+        synchronized (entries) {
+            entries.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static final class Entry {
+        private final long value;
+        private final long expiresAtMs;
+
+        private Entry(long value, long expiresAtMs) {
+            this.value = value;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+}
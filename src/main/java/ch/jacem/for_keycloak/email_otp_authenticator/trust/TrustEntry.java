@@ -0,0 +1,62 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+/**
+ * A trusted IP or device as listed to admins. The hashed IP and the device token are left out,
+ * the ID is enough to tell entries apart.
+ */
+public final class TrustEntry {
+
+    public enum Kind {
+        IP,
+        DEVICE
+    }
+
+    private final Kind kind;
+    private final String id;
+    private final String userId;
+    private final long createdAt;
+    private final long expiresAt;
+    // 0 for IPs, see TrustedDeviceEntity#getLastSeenAt
+    private final long lastSeenAt;
+
+    public TrustEntry(Kind kind, String id, String userId, long createdAt, long expiresAt, long lastSeenAt) {
+        this.kind = kind;
+        this.id = id;
+        this.userId = userId;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+        this.lastSeenAt = lastSeenAt;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @return Expiration in seconds, 0 for a permanent trust
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public long getLastSeenAt() {
+        return lastSeenAt;
+    }
+
+    @Override
+    public String toString() {
+        return kind + "(" + id + ")";
+    }
+}
@@ -0,0 +1,72 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+/**
+ * Result of a combined device and IP trust check: which trust lets the user skip the OTP, if any.
+ */
+public final class TrustEvaluation {
+
+    public enum Kind {
+        DEVICE,
+        IP,
+        NONE
+    }
+
+    public static final TrustEvaluation NONE = new TrustEvaluation(Kind.NONE, TrustStore.IP_NOT_TRUSTED);
+
+    private final Kind kind;
+    private final long expiresAt;
+    // Only known to stores tracking device use, 0 otherwise
+    private final long lastSeenAt;
+
+    private TrustEvaluation(Kind kind, long expiresAt) {
+        this(kind, expiresAt, 0);
+    }
+
+    private TrustEvaluation(Kind kind, long expiresAt, long lastSeenAt) {
+        this.kind = kind;
+        this.expiresAt = expiresAt;
+        this.lastSeenAt = lastSeenAt;
+    }
+
+    /**
+     * @param expiresAt Expiration of the device trust (0 = permanent or not known)
+     */
+    public static TrustEvaluation device(long expiresAt) {
+        return new TrustEvaluation(Kind.DEVICE, expiresAt);
+    }
+
+    static TrustEvaluation device(long expiresAt, long lastSeenAt) {
+        return new TrustEvaluation(Kind.DEVICE, expiresAt, lastSeenAt);
+    }
+
+    /**
+     * @param expiresAt Expiration of the IP trust, or {@link TrustStore#IP_EXPIRY_UNKNOWN}
+     */
+    public static TrustEvaluation ip(long expiresAt) {
+        return new TrustEvaluation(Kind.IP, expiresAt);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Expiration of the matched trust, so a trusted IP's rolling window can be extended without another read.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    long getLastSeenAt() {
+        return lastSeenAt;
+    }
+
+    public boolean isTrusted() {
+        return kind != Kind.NONE;
+    }
+
+    @Override
+    public String toString() {
+        return kind + "(" + expiresAt + ")";
+    }
+}
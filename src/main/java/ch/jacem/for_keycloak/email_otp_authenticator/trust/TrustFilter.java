@@ -0,0 +1,52 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+/**
+ * Creation and expiration ranges of listed trust entries, in seconds. Lower bounds are inclusive,
+ * upper bounds exclusive. A permanent trust expires at 0 but never expires, so any expiration bound leaves it out.
+ */
+public final class TrustFilter {
+
+    /**
+     * Every entry.
+     */
+    public static final TrustFilter ALL = new TrustFilter(null, null, null, null);
+
+    private final long createdFrom;
+    private final long createdTo;
+    private final long expiresFrom;
+    private final long expiresTo;
+
+    /**
+     * @param createdFrom Earliest creation, null for no bound
+     * @param createdTo Creation upper bound, null for no bound
+     * @param expiresFrom Earliest expiration, null for no bound
+     * @param expiresTo Expiration upper bound, null for no bound
+     */
+    public TrustFilter(Long createdFrom, Long createdTo, Long expiresFrom, Long expiresTo) {
+        this.createdFrom = createdFrom != null ? createdFrom : Long.MIN_VALUE;
+        this.createdTo = createdTo != null ? createdTo : Long.MAX_VALUE;
+        if (expiresFrom == null && expiresTo == null) {
+            this.expiresFrom = Long.MIN_VALUE;
+        } else {
+            // Start after the permanent entries' 0
+            this.expiresFrom = Math.max(expiresFrom != null ? expiresFrom : Long.MIN_VALUE, 1);
+        }
+        this.expiresTo = expiresTo != null ? expiresTo : Long.MAX_VALUE;
+    }
+
+    public long getCreatedFrom() {
+        return createdFrom;
+    }
+
+    public long getCreatedTo() {
+        return createdTo;
+    }
+
+    public long getExpiresFrom() {
+        return expiresFrom;
+    }
+
+    public long getExpiresTo() {
+        return expiresTo;
+    }
+}
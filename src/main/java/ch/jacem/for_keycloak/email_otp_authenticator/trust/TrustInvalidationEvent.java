@@ -0,0 +1,53 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import org.infinispan.protostream.annotations.ProtoFactory;
+import org.infinispan.protostream.annotations.ProtoField;
+import org.keycloak.cluster.ClusterEvent;
+
+/**
+ * Cluster event asking every node to drop a cached trust decision, or every decision
+ * whose key starts with a prefix, such as those of one user.
+ * A null key invalidates every cached decision.
+ */
+public class TrustInvalidationEvent implements ClusterEvent {
+
+    private final String key;
+    private final boolean prefix;
+
+    public TrustInvalidationEvent(String key) {
+        this(key, false);
+    }
+
+    @ProtoFactory
+    TrustInvalidationEvent(String key, boolean prefix) {
+        this.key = key;
+        this.prefix = prefix;
+    }
+
+    public static TrustInvalidationEvent all() {
+        return new TrustInvalidationEvent(null);
+    }
+
+    public static TrustInvalidationEvent prefix(String prefix) {
+        return new TrustInvalidationEvent(prefix, true);
+    }
+
+    @ProtoField(1)
+    public String getKey() {
+        return key;
+    }
+
+    @ProtoField(value = 2, defaultValue = "false")
+    public boolean isPrefix() {
+        return prefix;
+    }
+
+    public boolean isAll() {
+        return key == null;
+    }
+
+    @Override
+    public String toString() {
+        return "TrustInvalidationEvent [key=" + key + ", prefix=" + prefix + "]";
+    }
+}
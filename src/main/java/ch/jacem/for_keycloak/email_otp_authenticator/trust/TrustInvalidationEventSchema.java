@@ -0,0 +1,21 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import org.infinispan.protostream.GeneratedSchema;
+import org.infinispan.protostream.annotations.ProtoSchema;
+import org.infinispan.protostream.annotations.ProtoSyntax;
+
+/**
+ * ProtoStream schema for {@link TrustInvalidationEvent}, so the event can be sent
+ * through Keycloak's {@link org.keycloak.cluster.ClusterProvider}.
+ * The initializer, {@code TrustInvalidationEventSchemaImpl}, is generated at compile time
+ * and picked up by Keycloak's marshalling through the service loader.
+ */
+@ProtoSchema(
+    syntax = ProtoSyntax.PROTO2,
+    schemaPackageName = "ch.jacem.for_keycloak.email_otp",
+    schemaFileName = "email-otp-trust.proto",
+    schemaFilePath = "proto/",
+    includeClasses = TrustInvalidationEvent.class
+)
+public interface TrustInvalidationEventSchema extends GeneratedSchema {
+}
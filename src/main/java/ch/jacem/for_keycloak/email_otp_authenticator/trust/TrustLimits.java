@@ -0,0 +1,38 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+/**
+ * Upper bounds of the trust entries kept per user. Trusting one more evicts the least recently used ones,
+ * so permanent device trusts left behind by cleared cookies do not pile up forever.
+ */
+public final class TrustLimits {
+
+    /**
+     * No bound on either kind of entry.
+     */
+    public static final TrustLimits UNLIMITED = new TrustLimits(0, 0);
+
+    private final int maxDevicesPerUser;
+    private final int maxIpsPerUser;
+
+    /**
+     * @param maxDevicesPerUser Trusted devices kept per user (0 = unlimited)
+     * @param maxIpsPerUser Trusted IPs kept per user (0 = unlimited)
+     */
+    public TrustLimits(int maxDevicesPerUser, int maxIpsPerUser) {
+        this.maxDevicesPerUser = Math.max(0, maxDevicesPerUser);
+        this.maxIpsPerUser = Math.max(0, maxIpsPerUser);
+    }
+
+    public int getMaxDevicesPerUser() {
+        return maxDevicesPerUser;
+    }
+
+    public int getMaxIpsPerUser() {
+        return maxIpsPerUser;
+    }
+
+    @Override
+    public String toString() {
+        return "TrustLimits{devices=" + maxDevicesPerUser + ", ips=" + maxIpsPerUser + "}";
+    }
+}
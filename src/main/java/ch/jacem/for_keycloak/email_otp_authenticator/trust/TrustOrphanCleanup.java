@@ -0,0 +1,79 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+
+/**
+ * Removes the trust entries of removed users and realms from the selected trust store, which would
+ * otherwise stay until they expire, and forever for permanent device trusts.
+ * A user's entries go in the transaction removing the user. A realm can hold millions of entries,
+ * so they are removed after the realm removal committed, in batches of their own transactions.
+ */
+public class TrustOrphanCleanup implements ProviderEventListener {
+
+    private static final Logger logger = Logger.getLogger(TrustOrphanCleanup.class);
+
+    private final KeycloakSessionFactory factory;
+    private final int batchSize;
+
+    /**
+     * @param batchSize Entries removed per transaction for a removed realm
+     */
+    public TrustOrphanCleanup(KeycloakSessionFactory factory, int batchSize) {
+        this.factory = factory;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void onEvent(ProviderEvent event) {
+        if (event instanceof UserModel.UserRemovedEvent) {
+            UserModel.UserRemovedEvent removed = (UserModel.UserRemovedEvent) event;
+            removed.getKeycloakSession().getProvider(TrustStore.class)
+                .removeUserTrust(removed.getRealm().getId(), removed.getUser().getId());
+        } else if (event instanceof RealmModel.RealmRemovedEvent) {
+            RealmModel.RealmRemovedEvent removed = (RealmModel.RealmRemovedEvent) event;
+            String realmId = removed.getRealm().getId();
+            removed.getKeycloakSession().getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    removeRealmTrust(realmId);
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                    // The realm is still there, and so are its entries
+                }
+            });
+        }
+    }
+
+    /**
+     * @return Number of entries removed
+     */
+    int removeRealmTrust(String realmId) {
+        int total = 0;
+        try {
+            while (true) {
+                int removed = KeycloakModelUtils.runJobInTransactionWithResult(factory,
+                    s -> s.getProvider(TrustStore.class).removeRealmTrust(realmId, batchSize));
+                total += removed;
+                if (removed < batchSize) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            logger.errorf(e, "Failed to remove the email OTP trust entries of removed realm %s, %d removed", realmId, total);
+            return total;
+        }
+        if (total > 0) {
+            logger.infof("Removed %d email OTP trust entries of removed realm %s", total, realmId);
+        }
+        return total;
+    }
+}
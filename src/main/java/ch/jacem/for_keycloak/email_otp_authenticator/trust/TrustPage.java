@@ -0,0 +1,71 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One page of listed trust entries, ordered by creation then ID. The next page starts after the
+ * cursor of the last entry, so reading deep pages costs the same as the first one.
+ */
+public final class TrustPage {
+
+    private final List<TrustEntry> entries;
+    private final String next;
+
+    public TrustPage(List<TrustEntry> entries, String next) {
+        this.entries = List.copyOf(entries);
+        this.next = next;
+    }
+
+    public List<TrustEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return Cursor of the next page, null on the last page
+     */
+    public String getNext() {
+        return next;
+    }
+
+    /**
+     * Opaque cursor of the page starting after the given entry.
+     */
+    static String cursor(TrustEntry entry) {
+        String position = entry.getCreatedAt() + ":" + entry.getId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor Cursor returned with a previous page, null for the first page
+     * @return The creation and ID of the last entry of the previous page
+     * @throws IllegalArgumentException if the cursor was not returned with a page
+     */
+    static Position position(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return Position.START;
+        }
+        try {
+            String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = position.indexOf(':');
+            return new Position(Long.parseLong(position.substring(0, separator)), position.substring(separator + 1));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid trust listing cursor", e);
+        }
+    }
+
+    static final class Position {
+
+        // Before every entry: any ID sorts after the empty one
+        static final Position START = new Position(Long.MIN_VALUE, "");
+
+        final long createdAt;
+        final String id;
+
+        Position(long createdAt, String id) {
+            this.createdAt = createdAt;
+            this.id = id;
+        }
+    }
+}
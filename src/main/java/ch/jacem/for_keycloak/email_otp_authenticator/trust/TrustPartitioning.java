@@ -0,0 +1,242 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import org.jboss.logging.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Time partitioning of the trust tables by EXPIRES_AT bucket, on PostgreSQL.
+ * Once a bucket lies in the past, every row of its partition is expired and the whole
+ * partition is dropped instead of deleting its rows one by one.
+ * The tables are converted by the operator, see {@code infra/partition-trust-tables.sql}.
+ * Until both tables are found partitioned, the store keeps deleting rows.
+ */
+public class TrustPartitioning {
+
+    private static final Logger logger = Logger.getLogger(TrustPartitioning.class);
+
+    static final String[] TABLES = {"EMAIL_OTP_TRUSTED_IP", "EMAIL_OTP_TRUSTED_DEVICE"};
+
+    private static final long DAY_SECONDS = 24 * 60 * 60L;
+
+    // First key of the advisory locks taken on trust entries, set apart from other users of advisory locks
+    private static final int USER_LOCK_CLASS = "email-otp-trust".hashCode();
+
+    private static final Pattern RANGE_BOUND = Pattern.compile("FOR VALUES FROM \\('?(-?\\d+)'?\\) TO \\('?(-?\\d+)'?\\)");
+
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    private final long bucketSeconds;
+    private final long premakeSeconds;
+
+    // Detected per node, the maintenance task refreshes it
+    private volatile boolean active;
+
+    /**
+     * @param bucketDays Width of a partition
+     * @param premakeDays How far ahead partitions are created
+     */
+    public TrustPartitioning(int bucketDays, int premakeDays) {
+        this.bucketSeconds = bucketDays * DAY_SECONDS;
+        this.premakeSeconds = premakeDays * DAY_SECONDS;
+    }
+
+    /**
+     * @return true if both trust tables are partitioned and expired partitions are dropped
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    void setActive(boolean active) {
+        if (this.active != active) {
+            logger.infof("Email OTP trust table partitioning %s", active ? "detected, expired partitions are dropped" : "not available, expired rows are deleted");
+        }
+        this.active = active;
+    }
+
+    /**
+     * Check whether both trust tables are partitioned.
+     *
+     * @param tables Table names, already qualified for native queries, in the order of {@link #TABLES}
+     */
+    public static boolean detect(Connection connection, String... tables) throws SQLException {
+        if (!"PostgreSQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName())) {
+            return false;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT 1 FROM pg_partitioned_table WHERE partrelid = to_regclass(?)")) {
+            for (String table : tables) {
+                statement.setString(1, table);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (!rs.next()) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Serialize the trust writes of one user until the transaction ends. A partitioned table has no unique
+     * key on the trust entry, so two concurrent find-then-insert writes would both insert it.
+     * Users whose IDs share a hash share the lock, which only serializes them.
+     */
+    public static void lockUser(Connection connection, String realmId, String userId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT pg_advisory_xact_lock(?, ?)")) {
+            statement.setInt(1, USER_LOCK_CLASS);
+            statement.setInt(2, (realmId + ":" + userId).hashCode());
+            statement.execute();
+        }
+    }
+
+    /**
+     * Create the partitions of the buckets from now until the premake horizon that are not covered yet.
+     * Rows of a new bucket that landed in the default partition are moved into it.
+     *
+     * @return Number of partitions created
+     */
+    public int createPartitions(Connection connection, String table, long nowSeconds) throws SQLException {
+        List<long[]> missing = missingBuckets(listRanges(connection, table), nowSeconds, bucketSeconds, premakeSeconds);
+        String defaultPartition = findDefaultPartition(connection, table);
+
+        for (long[] bucket : missing) {
+            String partition = partitionName(table, bucket[0]);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE " + partition + " (LIKE " + table + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+                if (defaultPartition != null) {
+                    statement.execute("WITH moved AS (DELETE FROM " + defaultPartition
+                        + " WHERE EXPIRES_AT >= " + bucket[0] + " AND EXPIRES_AT < " + bucket[1] + " RETURNING *)"
+                        + " INSERT INTO " + partition + " SELECT * FROM moved");
+                }
+                statement.execute("ALTER TABLE " + table + " ATTACH PARTITION " + partition
+                    + " FOR VALUES FROM (" + bucket[0] + ") TO (" + bucket[1] + ")");
+            }
+            logger.debugf("Created trust partition %s for expirations from %d to %d", partition, bucket[0], bucket[1]);
+        }
+        return missing.size();
+    }
+
+    /**
+     * Drop the partitions whose whole range lies before now. The permanent and default partitions are kept.
+     *
+     * @return Estimated number of rows removed, from the planner statistics, so the drop does not scan the partition
+     */
+    public static int dropExpiredPartitions(Connection connection, String table, long nowSeconds) throws SQLException {
+        List<String> expired = new ArrayList<>();
+        long rows = 0;
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT c.oid::regclass::text, pg_get_expr(c.relpartbound, c.oid), c.reltuples FROM pg_inherits i"
+                    + " JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = to_regclass(?)")) {
+            statement.setString(1, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    long[] range = parseRange(rs.getString(2));
+                    if (range != null && range[1] <= nowSeconds) {
+                        expired.add(rs.getString(1));
+                        rows += Math.max(0, rs.getLong(3));
+                    }
+                }
+            }
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            for (String partition : expired) {
+                statement.execute("DROP TABLE " + partition);
+                logger.debugf("Dropped expired trust partition %s", partition);
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, rows);
+    }
+
+    private static List<long[]> listRanges(Connection connection, String table) throws SQLException {
+        List<long[]> ranges = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i"
+                    + " JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = to_regclass(?)")) {
+            statement.setString(1, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    long[] range = parseRange(rs.getString(1));
+                    if (range != null) {
+                        ranges.add(range);
+                    }
+                }
+            }
+        }
+        return ranges;
+    }
+
+    private static String findDefaultPartition(Connection connection, String table) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT c.oid::regclass::text FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid"
+                    + " WHERE i.inhparent = to_regclass(?) AND pg_get_expr(c.relpartbound, c.oid) = 'DEFAULT'")) {
+            statement.setString(1, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Parse a range partition bound as printed by {@code pg_get_expr}.
+     *
+     * @return the lower and upper bound, or null for the default partition and bounds using MINVALUE or MAXVALUE
+     */
+    static long[] parseRange(String bound) {
+        if (bound == null) {
+            return null;
+        }
+        Matcher matcher = RANGE_BOUND.matcher(bound);
+        if (!matcher.matches()) {
+            return null;
+        }
+        return new long[] {Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))};
+    }
+
+    /**
+     * Buckets from the one containing now until the premake horizon that no existing range overlaps.
+     * Buckets are aligned on multiples of their width since the epoch.
+     */
+    static List<long[]> missingBuckets(List<long[]> existing, long nowSeconds, long bucketSeconds, long premakeSeconds) {
+        List<long[]> missing = new ArrayList<>();
+        long horizon = nowSeconds + premakeSeconds;
+        for (long from = bucketStart(nowSeconds, bucketSeconds); from <= horizon; from += bucketSeconds) {
+            long to = from + bucketSeconds;
+            boolean covered = false;
+            for (long[] range : existing) {
+                if (range[0] < to && from < range[1]) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                missing.add(new long[] {from, to});
+            }
+        }
+        return missing;
+    }
+
+    static long bucketStart(long expiresAt, long bucketSeconds) {
+        return Math.floorDiv(expiresAt, bucketSeconds) * bucketSeconds;
+    }
+
+    /**
+     * Partition of a bucket, next to its table: {@code EMAIL_OTP_TRUSTED_IP_P20261017}.
+     */
+    static String partitionName(String table, long bucketStartSeconds) {
+        return table + "_P" + PARTITION_SUFFIX.format(Instant.ofEpochSecond(bucketStartSeconds));
+    }
+}
@@ -9,6 +9,16 @@ import org.keycloak.provider.Provider;
  */
 public interface TrustStore extends Provider {
 
+    /**
+     * Returned by {@link #getIpTrustExpiresAt} when the IP is not trusted.
+     */
+    long IP_NOT_TRUSTED = -1;
+
+    /**
+     * Returned by {@link #getIpTrustExpiresAt} when the IP is trusted but the store does not know until when.
+     */
+    long IP_EXPIRY_UNKNOWN = 0;
+
     /**
      * Check if an IP address is trusted for a user.
      *
@@ -19,6 +29,19 @@ public interface TrustStore extends Provider {
      */
     boolean isIpTrusted(RealmModel realm, UserModel user, String ipAddress);
 
+    /**
+     * Get the expiration of a trusted IP, so callers can decide whether the rolling window needs extending.
+     *
+     * @param realm The realm
+     * @param user The user
+     * @param ipAddress The IP address to check
+     * @return the expiration timestamp, {@link #IP_NOT_TRUSTED} if the IP is not trusted,
+     *         or {@link #IP_EXPIRY_UNKNOWN} if it is trusted but the expiration is not known
+     */
+    default long getIpTrustExpiresAt(RealmModel realm, UserModel user, String ipAddress) {
+        return isIpTrusted(realm, user, ipAddress) ? IP_EXPIRY_UNKNOWN : IP_NOT_TRUSTED;
+    }
+
     /**
      * Add or update a trusted IP for a user with rolling expiration.
      *
@@ -30,7 +53,8 @@ public interface TrustStore extends Provider {
     void trustIp(RealmModel realm, UserModel user, String ipAddress, long expiresAtSeconds);
 
     /**
-     * Refresh the expiration of an existing trusted IP.
+     * Refresh the expiration of an existing trusted IP. Implementations may defer the write,
+     * and must never shorten an expiration or resurrect an expired trust.
      *
      * @param realm The realm
      * @param user The user
@@ -39,6 +63,24 @@ public interface TrustStore extends Provider {
      */
     void refreshIpTrust(RealmModel realm, UserModel user, String ipAddress, long newExpiresAtSeconds);
 
+    /**
+     * Check if an IP address is trusted and, if so, extend its expiration, in one operation.
+     * Implementations backed by a database should answer with a single conditional update.
+     *
+     * @param realm The realm
+     * @param user The user
+     * @param ipAddress The IP address to check
+     * @param newExpiresAtSeconds New expiration timestamp if the IP is trusted
+     * @return true if the IP was trusted and not expired
+     */
+    default boolean checkAndExtendIpTrust(RealmModel realm, UserModel user, String ipAddress, long newExpiresAtSeconds) {
+        if (!isIpTrusted(realm, user, ipAddress)) {
+            return false;
+        }
+        refreshIpTrust(realm, user, ipAddress, newExpiresAtSeconds);
+        return true;
+    }
+
     /**
      * Check if a device token is trusted for a user.
      *
@@ -49,6 +91,30 @@ public interface TrustStore extends Provider {
      */
     boolean isDeviceTrusted(RealmModel realm, UserModel user, String deviceToken);
 
+    /**
+     * Check device and IP trust together. Device trust takes priority over IP trust.
+     * Implementations backed by a database should answer with a single query, so a login
+     * without any trust costs one miss instead of two. The IP trust is not extended.
+     *
+     * @param realm The realm
+     * @param user The user
+     * @param deviceToken The device token from cookie, null to only check the IP
+     * @param ipAddress The IP address to check, null to only check the device
+     * @return the trust that applies, {@link TrustEvaluation#NONE} if neither does
+     */
+    default TrustEvaluation evaluate(RealmModel realm, UserModel user, String deviceToken, String ipAddress) {
+        if (deviceToken != null && isDeviceTrusted(realm, user, deviceToken)) {
+            return TrustEvaluation.device(0);
+        }
+        if (ipAddress != null) {
+            long expiresAt = getIpTrustExpiresAt(realm, user, ipAddress);
+            if (expiresAt != IP_NOT_TRUSTED) {
+                return TrustEvaluation.ip(expiresAt);
+            }
+        }
+        return TrustEvaluation.NONE;
+    }
+
     /**
      * Add a trusted device for a user.
      *
@@ -59,10 +125,136 @@ public interface TrustStore extends Provider {
      */
     void trustDevice(RealmModel realm, UserModel user, String deviceToken, long expiresAtSeconds);
 
+    /**
+     * Add a trusted device for a user, telling whether its cookie carries self-verifying claims.
+     * Such devices stay trusted without their entry, so stores revoke them with a revocation instead.
+     *
+     * @param realm The realm
+     * @param user The user
+     * @param deviceToken The unique device token
+     * @param expiresAtSeconds Unix timestamp when trust expires (0 = permanent)
+     * @param stateless Whether the device's cookie is checked against revocations only
+     */
+    default void trustDevice(RealmModel realm, UserModel user, String deviceToken, long expiresAtSeconds, boolean stateless) {
+        trustDevice(realm, user, deviceToken, expiresAtSeconds);
+    }
+
+    /**
+     * Revoke trust for a device. Self-verifying device tokens issued for it are rejected from now on.
+     *
+     * @param realm The realm
+     * @param user The user
+     * @param deviceToken The device token to revoke
+     * @throws UnsupportedOperationException if the store cannot revoke devices
+     */
+    default void revokeDevice(RealmModel realm, UserModel user, String deviceToken) {
+        throw new UnsupportedOperationException("Trust store does not support revoking devices");
+    }
+
+    /**
+     * Check if a device token was revoked. Used for self-verifying device tokens,
+     * implementations should answer without a database round trip when possible.
+     *
+     * @param realm The realm
+     * @param user The user
+     * @param deviceToken The device token from a verified cookie
+     * @return true if the device trust was revoked
+     */
+    default boolean isDeviceRevoked(RealmModel realm, UserModel user, String deviceToken) {
+        return !isDeviceTrusted(realm, user, deviceToken);
+    }
+
+    /**
+     * Revoke at most {@code maxEntries} trust entries of one user, or of every user of a realm.
+     * Devices are revoked like with {@link #revokeDevice}, so self-verifying device tokens are rejected too.
+     * Callers repeat it, each time in a new transaction, until it returns less than {@code maxEntries}.
+     *
+     * @param realm The realm
+     * @param userId The user, null for every user of the realm
+     * @param ips Whether trusted IPs are revoked
+     * @param devices Whether trusted devices are revoked
+     * @param maxEntries Upper bound of entries revoked by this call
+     * @return Number of entries revoked
+     * @throws UnsupportedOperationException if the store cannot revoke trust in bulk
+     */
+    default int revokeTrust(RealmModel realm, String userId, boolean ips, boolean devices, int maxEntries) {
+        throw new UnsupportedOperationException("Trust store does not support revoking trust");
+    }
+
+    /**
+     * Revoke a chunk of a revocation job, like {@link #revokeTrust(RealmModel, String, boolean, boolean, int)}.
+     * Stores keeping state across the chunks of a job key it by the job, so a job never resumes from the state
+     * left by an abandoned one.
+     *
+     * @param jobId The revocation job the chunk belongs to
+     * @return Number of entries revoked
+     */
+    default int revokeTrust(RealmModel realm, String userId, boolean ips, boolean devices, int maxEntries, String jobId) {
+        return revokeTrust(realm, userId, ips, devices, maxEntries);
+    }
+
+    /**
+     * List the trusted IPs or devices of one user, or of every user of a realm, one page at a time.
+     * Pages continue after the cursor of the previous one instead of skipping rows.
+     *
+     * @param realm The realm
+     * @param userId The user, null for every user of the realm
+     * @param kind Whether IPs or devices are listed
+     * @param filter Creation and expiration ranges of the listed entries
+     * @param cursor {@link TrustPage#getNext()} of the previous page, null for the first page
+     * @param max Upper bound of entries in the page
+     * @return The page of entries
+     * @throws IllegalArgumentException if the cursor is not one of a previous page
+     * @throws UnsupportedOperationException if the store cannot list its entries without a full scan
+     */
+    default TrustPage listTrust(RealmModel realm, String userId, TrustEntry.Kind kind, TrustFilter filter, String cursor, int max) {
+        throw new UnsupportedOperationException("Trust store does not support listing its entries");
+    }
+
+    /**
+     * Remove every trust entry and revocation of a removed user.
+     * Stores without per-user entries have nothing to remove.
+     *
+     * @return Number of entries removed
+     */
+    default int removeUserTrust(String realmId, String userId) {
+        return 0;
+    }
+
+    /**
+     * Remove up to {@code maxEntries} trust entries and revocations of a removed realm.
+     * Callers repeat it in separate transactions until it returns less than {@code maxEntries}.
+     *
+     * @return Number of entries removed
+     */
+    default int removeRealmTrust(String realmId, int maxEntries) {
+        return 0;
+    }
+
     /**
      * Clean up expired trust entries.
      *
      * @return Number of entries removed
      */
     int cleanupExpired();
+
+    /**
+     * Clean up at most {@code maxEntries} expired entries, so a large backlog is worked off
+     * in short transactions. Stores that expire entries natively remove everything at once.
+     *
+     * @param maxEntries Upper bound of entries removed by this call
+     * @return Number of entries removed
+     */
+    default int cleanupExpired(int maxEntries) {
+        return cleanupExpired();
+    }
+
+    /**
+     * Count the expired entries still waiting for cleanup.
+     *
+     * @return Number of expired entries, or -1 if the store does not know
+     */
+    default long countExpired() {
+        return -1;
+    }
 }
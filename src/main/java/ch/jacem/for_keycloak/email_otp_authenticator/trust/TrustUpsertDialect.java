@@ -0,0 +1,158 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+/**
+ * Single-statement insert-or-update for the trust tables, per database.
+ * One round trip, and concurrent writers of the same entry no longer race
+ * into the unique constraint. MERGE is not atomic on every database, so a
+ * MERGE that loses the race is run once more and then takes the update branch.
+ */
+public enum TrustUpsertDialect {
+
+    POSTGRESQL {
+        @Override
+        public String upsertSql(String table, String[] columns, String[] keyColumns, String[] updateColumns) {
+            return "INSERT INTO " + table + " (" + join(columns) + ") VALUES (" + placeholders(columns.length) + ")"
+                + " ON CONFLICT (" + join(keyColumns) + ") DO UPDATE SET "
+                + Arrays.stream(updateColumns).map(c -> c + " = EXCLUDED." + c).collect(Collectors.joining(", "));
+        }
+    },
+
+    MYSQL {
+        @Override
+        public String upsertSql(String table, String[] columns, String[] keyColumns, String[] updateColumns) {
+            // VALUES() is deprecated in recent MySQL but still the only form MariaDB accepts
+            return "INSERT INTO " + table + " (" + join(columns) + ") VALUES (" + placeholders(columns.length) + ")"
+                + " ON DUPLICATE KEY UPDATE "
+                + Arrays.stream(updateColumns).map(c -> c + " = VALUES(" + c + ")").collect(Collectors.joining(", "));
+        }
+    },
+
+    ORACLE {
+        @Override
+        public String upsertSql(String table, String[] columns, String[] keyColumns, String[] updateColumns) {
+            String source = "SELECT " + Arrays.stream(columns).map(c -> "? AS " + c).collect(Collectors.joining(", ")) + " FROM DUAL";
+            return merge(table + " t", "(" + source + ") s", columns, keyColumns, updateColumns);
+        }
+    },
+
+    MSSQL {
+        @Override
+        public String upsertSql(String table, String[] columns, String[] keyColumns, String[] updateColumns) {
+            // HOLDLOCK keeps the key range locked between the match and the insert
+            String source = "(VALUES (" + placeholders(columns.length) + ")) AS s (" + join(columns) + ")";
+            return merge(table + " WITH (HOLDLOCK) AS t", source, columns, keyColumns, updateColumns) + ";";
+        }
+    },
+
+    H2 {
+        @Override
+        public String upsertSql(String table, String[] columns, String[] keyColumns, String[] updateColumns) {
+            String source = "(VALUES (" + placeholders(columns.length) + ")) s (" + join(columns) + ")";
+            return merge(table + " t", source, columns, keyColumns, updateColumns);
+        }
+    },
+
+    /**
+     * No native upsert, callers fall back to JPA.
+     */
+    UNSUPPORTED {
+        @Override
+        public String upsertSql(String table, String[] columns, String[] keyColumns, String[] updateColumns) {
+            throw new UnsupportedOperationException("No native upsert for this database");
+        }
+    };
+
+    private static final String INTEGRITY_CONSTRAINT_VIOLATION = "23";
+
+    /**
+     * Build the upsert statement. Parameters are bound in the order of {@code columns}.
+     *
+     * @param table Table name, already qualified for native queries
+     * @param columns All inserted columns
+     * @param keyColumns Columns of the unique constraint identifying the entry
+     * @param updateColumns Columns overwritten when the entry already exists
+     */
+    public abstract String upsertSql(String table, String[] columns, String[] keyColumns, String[] updateColumns);
+
+    public boolean isSupported() {
+        return this != UNSUPPORTED;
+    }
+
+    /**
+     * Run the upsert on the given connection.
+     *
+     * @param values Parameters, in the order of {@code columns}
+     */
+    public void upsert(Connection connection, String table, String[] columns, String[] keyColumns, String[] updateColumns, Object... values) throws SQLException {
+        String sql = upsertSql(table, columns, keyColumns, updateColumns);
+        try {
+            execute(connection, sql, values);
+        } catch (SQLException e) {
+            // Only MERGE can lose the race, and a failed statement does not abort the transaction on these databases
+            boolean merge = this == ORACLE || this == MSSQL || this == H2;
+            if (!merge || e.getSQLState() == null || !e.getSQLState().startsWith(INTEGRITY_CONSTRAINT_VIOLATION)) {
+                throw e;
+            }
+            execute(connection, sql, values);
+        }
+    }
+
+    private static void execute(Connection connection, String sql, Object[] values) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < values.length; i++) {
+                statement.setObject(i + 1, values[i]);
+            }
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Map a JDBC database product name to its dialect.
+     */
+    public static TrustUpsertDialect fromProductName(String productName) {
+        if (productName == null) {
+            return UNSUPPORTED;
+        }
+        String name = productName.toLowerCase();
+        if (name.contains("postgresql")) {
+            return POSTGRESQL;
+        }
+        if (name.contains("mysql") || name.contains("mariadb")) {
+            return MYSQL;
+        }
+        if (name.contains("oracle")) {
+            return ORACLE;
+        }
+        if (name.contains("microsoft sql server")) {
+            return MSSQL;
+        }
+        if (name.equals("h2")) {
+            return H2;
+        }
+        return UNSUPPORTED;
+    }
+
+    private static String merge(String target, String source, String[] columns, String[] keyColumns, String[] updateColumns) {
+        return "MERGE INTO " + target + " USING " + source
+            + " ON (" + Arrays.stream(keyColumns).map(c -> "t." + c + " = s." + c).collect(Collectors.joining(" AND ")) + ")"
+            + " WHEN MATCHED THEN UPDATE SET "
+            + Arrays.stream(updateColumns).map(c -> c + " = s." + c).collect(Collectors.joining(", "))
+            + " WHEN NOT MATCHED THEN INSERT (" + join(columns) + ")"
+            + " VALUES (" + Arrays.stream(columns).map(c -> "s." + c).collect(Collectors.joining(", ")) + ")";
+    }
+
+    private static String join(String[] columns) {
+        return String.join(", ", columns);
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+}
@@ -119,7 +119,7 @@ class EmailOTPFormAuthenticatorFactoryTest {
         void hasExpectedConfigCount() {
             List<ProviderConfigProperty> props = factory.getConfigProperties();
 
-            assertEquals(10, props.size());
+            assertEquals(15, props.size());
         }
 
         @Test
@@ -164,6 +164,12 @@ class EmailOTPFormAuthenticatorFactoryTest {
             assertTrue(hasPropertyWithName("ip-trust-duration"));
         }
 
+        @Test
+        @DisplayName("includes ip-trust-refresh-threshold property")
+        void includesIpTrustRefreshThresholdProperty() {
+            assertTrue(hasPropertyWithName("ip-trust-refresh-threshold"));
+        }
+
         @Test
         @DisplayName("includes device-trust-enabled property")
         void includesDeviceTrustEnabledProperty() {
@@ -176,12 +182,36 @@ class EmailOTPFormAuthenticatorFactoryTest {
             assertTrue(hasPropertyWithName("device-trust-duration"));
         }
 
+        @Test
+        @DisplayName("includes device-trust-stateless property")
+        void includesDeviceTrustStatelessProperty() {
+            assertTrue(hasPropertyWithName("device-trust-stateless"));
+        }
+
+        @Test
+        @DisplayName("includes device-token-codec property")
+        void includesDeviceTokenCodecProperty() {
+            assertTrue(hasPropertyWithName("device-token-codec"));
+        }
+
         @Test
         @DisplayName("includes trust-only-when-sole property")
         void includesTrustOnlyWhenSoleProperty() {
             assertTrue(hasPropertyWithName("trust-only-when-sole"));
         }
 
+        @Test
+        @DisplayName("includes async-email property")
+        void includesAsyncEmailProperty() {
+            assertTrue(hasPropertyWithName("async-email"));
+        }
+
+        @Test
+        @DisplayName("includes outbox-email property")
+        void includesOutboxEmailProperty() {
+            assertTrue(hasPropertyWithName("outbox-email"));
+        }
+
         private boolean hasPropertyWithName(String name) {
             return factory.getConfigProperties().stream()
                 .anyMatch(p -> name.equals(p.getName()));
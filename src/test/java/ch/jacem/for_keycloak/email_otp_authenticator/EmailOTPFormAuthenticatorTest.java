@@ -14,9 +14,14 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.common.ClientConnection;
 import org.keycloak.jose.jws.crypto.HashUtils;
+import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
 import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.AuthenticationSessionProvider;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
@@ -306,6 +311,54 @@ class EmailOTPFormAuthenticatorTest {
         }
     }
 
+    @Nested
+    @DisplayName("Delivery Failure")
+    class DeliveryFailure {
+
+        @Mock
+        private RealmProvider realms;
+
+        @Mock
+        private AuthenticationSessionProvider authenticationSessions;
+
+        @Mock
+        private RootAuthenticationSessionModel rootSession;
+
+        @Mock
+        private ClientModel client;
+
+        @Mock
+        private AuthenticationSessionModel authenticationSession;
+
+        @BeforeEach
+        void setUp() {
+            when(session.realms()).thenReturn(realms);
+            when(realms.getRealm("realm")).thenReturn(realm);
+            when(session.authenticationSessions()).thenReturn(authenticationSessions);
+            when(authenticationSessions.getRootAuthenticationSession(realm, "root")).thenReturn(rootSession);
+            when(realm.getClientById("client")).thenReturn(client);
+            when(rootSession.getAuthenticationSession(client, "tab")).thenReturn(authenticationSession);
+        }
+
+        @Test
+        @DisplayName("records the code whose email failed")
+        void recordsFailedCode() {
+            EmailOTPFormAuthenticator.markDeliveryFailed(session, "realm", "root", "client", "tab", "ABC123");
+
+            verify(authenticationSession).setAuthNote(EmailOTPFormAuthenticator.AUTH_NOTE_OTP_DELIVERY_FAILED, "ABC123");
+        }
+
+        @Test
+        @DisplayName("outbox failures record the login's current code")
+        void recordsCurrentCode() {
+            when(authenticationSession.getAuthNote(EmailOTPFormAuthenticator.AUTH_NOTE_OTP_KEY)).thenReturn("XYZ789");
+
+            EmailOTPFormAuthenticator.markDeliveryFailed(session, "realm", "root", "client", "tab");
+
+            verify(authenticationSession).setAuthNote(EmailOTPFormAuthenticator.AUTH_NOTE_OTP_DELIVERY_FAILED, "XYZ789");
+        }
+    }
+
     @Nested
     @DisplayName("Trust Store Integration")
     class TrustStoreIntegration {
@@ -0,0 +1,160 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.admin;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import ch.jacem.for_keycloak.email_otp_authenticator.trust.TrustStore;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("TrustRevocationJob")
+class TrustRevocationJobTest {
+
+    @Mock
+    private KeycloakSessionFactory factory;
+
+    @Mock
+    private KeycloakSession session;
+
+    @Mock
+    private KeycloakTransactionManager transactionManager;
+
+    @Mock
+    private KeycloakContext context;
+
+    @Mock
+    private RealmProvider realms;
+
+    @Mock
+    private RealmModel realm;
+
+    @Mock
+    private TrustStore trustStore;
+
+    @BeforeEach
+    void setUp() {
+        lenient().when(factory.create()).thenReturn(session);
+        lenient().when(session.getKeycloakSessionFactory()).thenReturn(factory);
+        lenient().when(session.getTransactionManager()).thenReturn(transactionManager);
+        lenient().when(transactionManager.isActive()).thenReturn(true);
+        lenient().when(session.getContext()).thenReturn(context);
+        lenient().when(session.realms()).thenReturn(realms);
+        lenient().when(realms.getRealm("realm")).thenReturn(realm);
+        lenient().when(session.getProvider(TrustStore.class)).thenReturn(trustStore);
+    }
+
+    @Nested
+    @DisplayName("run")
+    class Run {
+
+        @Test
+        @DisplayName("revokes a realm in batches until one comes back short")
+        void revokesRealmInBatches() {
+            TrustRevocationJob job = job(List.of(), true, true);
+            when(trustStore.revokeTrust(realm, null, true, true, 10, job.getId())).thenReturn(10, 10, 4);
+
+            job.run();
+
+            assertEquals(TrustRevocationJob.Status.COMPLETED, job.getStatus());
+            assertEquals(24, job.getRevoked());
+            verify(trustStore, times(3)).revokeTrust(realm, null, true, true, 10, job.getId());
+            verify(context, times(3)).setRealm(realm);
+        }
+
+        @Test
+        @DisplayName("revokes each user in turn and counts them")
+        void revokesUsers() {
+            TrustRevocationJob job = job(List.of("a", "b"), false, true);
+            when(trustStore.revokeTrust(realm, "a", false, true, 10, job.getId())).thenReturn(10, 2);
+            when(trustStore.revokeTrust(realm, "b", false, true, 10, job.getId())).thenReturn(0);
+            job.run();
+
+            assertEquals(TrustRevocationJob.Status.COMPLETED, job.getStatus());
+            assertEquals(12, job.getRevoked());
+            assertEquals(2, job.getProcessedUsers());
+        }
+
+        @Test
+        @DisplayName("stops when the realm is gone")
+        void realmRemoved() {
+            when(realms.getRealm("realm")).thenReturn(null);
+
+            TrustRevocationJob job = job(List.of(), true, true);
+            job.run();
+
+            assertEquals(TrustRevocationJob.Status.COMPLETED, job.getStatus());
+            verifyNoInteractions(trustStore);
+        }
+
+        @Test
+        @DisplayName("keeps the progress made before a failure")
+        void failure() {
+            TrustRevocationJob job = job(List.of(), true, false);
+            when(trustStore.revokeTrust(realm, null, true, false, 10, job.getId()))
+                .thenReturn(10)
+                .thenThrow(new IllegalStateException("boom"));
+            job.run();
+
+            assertEquals(TrustRevocationJob.Status.FAILED, job.getStatus());
+            assertEquals("boom", job.getError());
+            assertEquals(10, job.getRevoked());
+            assertTrue(job.isFinished());
+        }
+    }
+
+    @Nested
+    @DisplayName("TrustRevocationJobs")
+    class Jobs {
+
+        @Test
+        @DisplayName("only returns the jobs of the requested realm")
+        void scopedToRealm() {
+            TrustRevocationJobs jobs = new TrustRevocationJobs(10);
+            TrustRevocationJob job = job(List.of("a"), true, true);
+            jobs.add(job);
+
+            assertSame(job, jobs.get("realm", job.getId()));
+            assertNull(jobs.get("other", job.getId()));
+            assertEquals(List.of(job), jobs.list("realm"));
+            assertTrue(jobs.list("other").isEmpty());
+        }
+
+        @Test
+        @DisplayName("forgets the oldest finished jobs but never a running one")
+        void prunesFinished() {
+            lenient().when(trustStore.revokeTrust(any(), any(), anyBoolean(), anyBoolean(), anyInt(), anyString())).thenReturn(0);
+            TrustRevocationJobs jobs = new TrustRevocationJobs(1);
+            TrustRevocationJob pending = job(List.of("a"), true, true);
+            TrustRevocationJob first = job(List.of("a"), true, true);
+            TrustRevocationJob second = job(List.of("a"), true, true);
+            first.run();
+            second.run();
+
+            jobs.add(pending);
+            jobs.add(first);
+            jobs.add(second);
+
+            assertEquals(List.of(pending, second), jobs.list("realm"));
+        }
+    }
+
+    private TrustRevocationJob job(List<String> userIds, boolean ips, boolean devices) {
+        return new TrustRevocationJob(factory, "realm", userIds, ips, devices, 10, 0);
+    }
+}
@@ -0,0 +1,56 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("TrustIds")
+class TrustIdsTest {
+
+    private static final long TIME = 1_750_000_000_000L;
+
+    @Test
+    @DisplayName("creates version 7 UUIDs with the RFC variant")
+    void version7() {
+        UUID id = UUID.fromString(TrustIds.newId());
+
+        assertEquals(7, id.version());
+        assertEquals(2, id.variant());
+    }
+
+    @Test
+    @DisplayName("IDs sort by creation time as strings")
+    void sortsByTime() {
+        String earlier = TrustIds.newId(TIME);
+        String later = TrustIds.newId(TIME + 1);
+
+        assertTrue(earlier.compareTo(later) < 0);
+    }
+
+    @Test
+    @DisplayName("the lower bound of a time sorts before every ID created then")
+    void lowerBound() {
+        String bound = TrustIds.lowerBound(TIME);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(bound.compareTo(TrustIds.newId(TIME)) <= 0);
+        }
+        assertTrue(TrustIds.newId(TIME - 1).compareTo(bound) < 0);
+    }
+
+    @Test
+    @DisplayName("reads back the creation time")
+    void timestamp() {
+        assertEquals(TIME, TrustIds.timestamp(TrustIds.newId(TIME)));
+    }
+
+    @Test
+    @DisplayName("random and invalid IDs have no creation time")
+    void noTimestamp() {
+        assertEquals(-1, TrustIds.timestamp(UUID.randomUUID().toString()));
+        assertEquals(-1, TrustIds.timestamp("not-an-id"));
+    }
+}
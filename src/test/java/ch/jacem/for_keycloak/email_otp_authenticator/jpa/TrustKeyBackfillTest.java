@@ -0,0 +1,108 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("TrustKeyBackfill")
+class TrustKeyBackfillTest {
+
+    private Connection connection;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        connection = DriverManager.getConnection("jdbc:h2:mem:backfill-" + UUID.randomUUID());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE EMAIL_OTP_TRUSTED_DEVICE ("
+                + "ID VARCHAR(36) PRIMARY KEY, DEVICE_TOKEN VARCHAR(36) NOT NULL, DEVICE_TOKEN_BIN BINARY(16))");
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        connection.close();
+    }
+
+    @Test
+    @DisplayName("converts every row across several batches")
+    void convertsInBatches() throws Exception {
+        String[] tokens = new String[7];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = UUID.randomUUID().toString();
+            insert("id-" + i, tokens[i]);
+        }
+
+        int converted = TrustKeyBackfill.backfill(connection, "EMAIL_OTP_TRUSTED_DEVICE", "DEVICE_TOKEN", "DEVICE_TOKEN_BIN",
+            TrustKeyBackfill.converter(TrustKeyBackfill.KEY_TYPE_DEVICE_TOKEN), 3);
+
+        assertEquals(7, converted);
+        for (int i = 0; i < tokens.length; i++) {
+            assertEquals(tokens[i], TrustKeys.deviceTokenFromBytes(binaryKey("id-" + i)));
+        }
+    }
+
+    @Test
+    @DisplayName("resumes past the rows an interrupted run converted")
+    void resumes() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            insert("id-" + i, UUID.randomUUID().toString());
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE EMAIL_OTP_TRUSTED_DEVICE SET DEVICE_TOKEN_BIN = X'00000000000000000000000000000000'"
+                + " WHERE ID IN ('id-0', 'id-2', 'id-3')");
+        }
+
+        int converted = TrustKeyBackfill.backfill(connection, "EMAIL_OTP_TRUSTED_DEVICE", "DEVICE_TOKEN", "DEVICE_TOKEN_BIN",
+            TrustKeyBackfill.converter(TrustKeyBackfill.KEY_TYPE_DEVICE_TOKEN), 2);
+
+        assertEquals(3, converted);
+        assertArrayEquals(new byte[16], binaryKey("id-2"));
+    }
+
+    @Test
+    @DisplayName("deletes rows whose key cannot be converted")
+    void deletesInvalid() throws Exception {
+        insert("valid", UUID.randomUUID().toString());
+        insert("invalid", "not-a-token");
+
+        int converted = TrustKeyBackfill.backfill(connection, "EMAIL_OTP_TRUSTED_DEVICE", "DEVICE_TOKEN", "DEVICE_TOKEN_BIN",
+            TrustKeyBackfill.converter(TrustKeyBackfill.KEY_TYPE_DEVICE_TOKEN), 1000);
+
+        assertEquals(1, converted);
+        assertNotNull(binaryKey("valid"));
+        try (Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM EMAIL_OTP_TRUSTED_DEVICE")) {
+            result.next();
+            assertEquals(1, result.getInt(1));
+        }
+    }
+
+    private void insert(String id, String token) throws Exception {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO EMAIL_OTP_TRUSTED_DEVICE (ID, DEVICE_TOKEN) VALUES (?, ?)")) {
+            statement.setString(1, id);
+            statement.setString(2, token);
+            statement.executeUpdate();
+        }
+    }
+
+    private byte[] binaryKey(String id) throws Exception {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT DEVICE_TOKEN_BIN FROM EMAIL_OTP_TRUSTED_DEVICE WHERE ID = ?")) {
+            statement.setString(1, id);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getBytes(1) : null;
+            }
+        }
+    }
+}
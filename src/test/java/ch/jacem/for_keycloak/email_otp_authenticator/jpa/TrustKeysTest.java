@@ -0,0 +1,65 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.jpa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.keycloak.jose.jws.crypto.HashUtils;
+
+@DisplayName("TrustKeys")
+class TrustKeysTest {
+
+    @Nested
+    @DisplayName("Hashed IPs")
+    class HashedIps {
+
+        @Test
+        @DisplayName("round-trips a SHA-256 hash through 32 bytes")
+        void roundTrip() {
+            String hashedIp = HashUtils.sha256UrlEncodedHash("realm:192.168.1.1", StandardCharsets.UTF_8);
+
+            byte[] bytes = TrustKeys.hashedIpToBytes(hashedIp);
+
+            assertEquals(TrustKeys.HASHED_IP_LENGTH, bytes.length);
+            assertEquals(hashedIp, TrustKeys.hashedIpFromBytes(bytes));
+        }
+
+        @Test
+        @DisplayName("rejects values that are not a SHA-256 hash")
+        void rejectsInvalid() {
+            assertThrows(IllegalArgumentException.class, () -> TrustKeys.hashedIpToBytes("192.168.1.1"));
+            assertThrows(IllegalArgumentException.class, () -> TrustKeys.hashedIpToBytes("short"));
+        }
+    }
+
+    @Nested
+    @DisplayName("Device tokens")
+    class DeviceTokens {
+
+        @Test
+        @DisplayName("round-trips a UUID through 16 bytes")
+        void roundTrip() {
+            String token = UUID.randomUUID().toString();
+
+            byte[] bytes = TrustKeys.deviceTokenToBytes(token);
+
+            assertEquals(TrustKeys.DEVICE_TOKEN_LENGTH, bytes.length);
+            assertEquals(token, TrustKeys.deviceTokenFromBytes(bytes));
+        }
+
+        @Test
+        @DisplayName("only accepts canonical UUIDs")
+        void onlyCanonical() {
+            assertTrue(TrustKeys.isDeviceToken("0f8fad5b-d9cb-469f-a165-70867728950e"));
+            assertFalse(TrustKeys.isDeviceToken("0F8FAD5B-D9CB-469F-A165-70867728950E"));
+            assertFalse(TrustKeys.isDeviceToken("1-1-1-1-1"));
+            assertFalse(TrustKeys.isDeviceToken("not-a-token"));
+            assertFalse(TrustKeys.isDeviceToken(null));
+            assertThrows(IllegalArgumentException.class, () -> TrustKeys.deviceTokenToBytes("not-a-token"));
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.OtpEmailOutboxEntity;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.Query;
+import jakarta.persistence.TypedQuery;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("OtpEmailOutboxWorker")
+class OtpEmailOutboxWorkerTest {
+
+    @Mock
+    private KeycloakSessionFactory factory;
+
+    @Mock
+    private KeycloakSession session;
+
+    @Mock
+    private KeycloakTransactionManager transactionManager;
+
+    @Mock
+    private JpaConnectionProvider connection;
+
+    @Mock
+    private EntityManager em;
+
+    @Mock
+    private RealmProvider realms;
+
+    @Mock
+    private UserProvider users;
+
+    @Mock
+    private RealmModel realm;
+
+    @Mock
+    private KeycloakContext context;
+
+    @Mock
+    private OtpMailDispatcher sender;
+
+    private TypedQuery<OtpEmailOutboxEntity> due;
+    private Query delete;
+    private Query reschedule;
+    private ExecutorService executor;
+    private final List<OtpEmailOutboxEntity> givenUp = new ArrayList<>();
+    private String code = "123456";
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        lenient().when(factory.create()).thenReturn(session);
+        lenient().when(session.getKeycloakSessionFactory()).thenReturn(factory);
+        lenient().when(session.getTransactionManager()).thenReturn(transactionManager);
+        lenient().when(transactionManager.isActive()).thenReturn(true);
+        lenient().when(session.getProvider(JpaConnectionProvider.class)).thenReturn(connection);
+        lenient().when(connection.getEntityManager()).thenReturn(em);
+        lenient().when(session.realms()).thenReturn(realms);
+        lenient().when(session.users()).thenReturn(users);
+        lenient().when(realms.getRealm("realm")).thenReturn(realm);
+        lenient().when(users.getUserById(realm, "user")).thenReturn(mock(UserModel.class));
+        lenient().when(session.getContext()).thenReturn(context);
+        lenient().when(realm.getSmtpConfig()).thenReturn(Map.of("host", "smtp"));
+
+        due = mock(TypedQuery.class, RETURNS_SELF);
+        delete = mock(Query.class, RETURNS_SELF);
+        reschedule = mock(Query.class, RETURNS_SELF);
+        lenient().when(em.createNamedQuery("findDueOtpEmails", OtpEmailOutboxEntity.class)).thenReturn(due);
+        lenient().when(em.createNamedQuery("deleteOtpEmail")).thenReturn(delete);
+        lenient().when(em.createNamedQuery("rescheduleOtpEmail")).thenReturn(reschedule);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Nested
+    @DisplayName("run")
+    class Run {
+
+        @Test
+        @DisplayName("claims due emails skipping locked rows and leases them")
+        void claims() throws Exception {
+            OtpEmailOutboxEntity email = email(0);
+            when(due.getResultList()).thenReturn(List.of(email));
+
+            long before = System.currentTimeMillis();
+            worker(3, 5).run(session);
+            drain();
+
+            verify(due).setMaxResults(3);
+            verify(due).setLockMode(LockModeType.PESSIMISTIC_WRITE);
+            verify(due).setHint("jakarta.persistence.lock.timeout", OtpEmailOutbox.SKIP_LOCKED);
+            assertTrue(email.getNextAttemptAt() >= before + 60_000L);
+        }
+
+        @Test
+        @DisplayName("sends a claimed email and deletes it")
+        void sendsAndDeletes() throws Exception {
+            when(due.getResultList()).thenReturn(List.of(email(0)));
+
+            worker(3, 5).run(session);
+            drain();
+
+            ArgumentCaptor<RenderedEmail> sent = ArgumentCaptor.forClass(RenderedEmail.class);
+            InOrder order = inOrder(context, sender);
+            order.verify(context).setRealm(realm);
+            order.verify(sender).send(eq(session), sent.capture());
+            assertEquals("user@example.com", sent.getValue().getAddress());
+            assertEquals("smtp", sent.getValue().getSmtpConfig().get("host"));
+            assertEquals("123456", sent.getValue().getTextBody());
+            assertEquals("<p>123456</p>", sent.getValue().getHtmlBody());
+            verify(delete).setParameter("id", "id");
+            verify(delete).executeUpdate();
+            assertTrue(givenUp.isEmpty());
+        }
+
+        @Test
+        @DisplayName("retries a failed email later with one more attempt")
+        void reschedules() throws Exception {
+            when(due.getResultList()).thenReturn(List.of(email(1)));
+            doThrow(new EmailException("relay down")).when(sender).send(any(), any());
+
+            long before = System.currentTimeMillis();
+            worker(3, 5).run(session);
+            drain();
+
+            ArgumentCaptor<Long> next = ArgumentCaptor.forClass(Long.class);
+            verify(reschedule).setParameter(eq("nextAttemptAt"), next.capture());
+            verify(reschedule).setParameter("attempts", 2);
+            // Second retry, twice the base delay
+            assertTrue(next.getValue() >= before + 2000L);
+            verify(delete, never()).executeUpdate();
+        }
+
+        @Test
+        @DisplayName("gives up after the last attempt and reports it")
+        void givesUp() throws Exception {
+            OtpEmailOutboxEntity email = email(4);
+            when(due.getResultList()).thenReturn(List.of(email));
+            doThrow(new EmailException("relay down")).when(sender).send(any(), any());
+
+            worker(3, 5).run(session);
+            drain();
+
+            verify(delete).executeUpdate();
+            verify(reschedule, never()).executeUpdate();
+            assertEquals(List.of(email), givenUp);
+        }
+
+        @Test
+        @DisplayName("drops an email whose code expired without sending it")
+        void dropsExpired() throws Exception {
+            OtpEmailOutboxEntity email = email(0);
+            email.setExpiresAt(System.currentTimeMillis() - 1);
+            when(due.getResultList()).thenReturn(List.of(email));
+
+            worker(3, 5).run(session);
+            drain();
+
+            verify(sender, never()).send(any(), any());
+            verify(delete).executeUpdate();
+        }
+
+        @Test
+        @DisplayName("drops an email whose login ended without sending it")
+        void dropsEndedLogin() throws Exception {
+            code = null;
+            when(due.getResultList()).thenReturn(List.of(email(0)));
+
+            worker(3, 5).run(session);
+            drain();
+
+            verify(sender, never()).send(any(), any());
+            verify(delete).executeUpdate();
+        }
+    }
+
+    @Nested
+    @DisplayName("backoff")
+    class Backoff {
+
+        @Test
+        @DisplayName("doubles the delay per attempt up to the maximum")
+        void doubles() {
+            OtpEmailOutboxWorker worker = worker(1, 10);
+
+            assertEquals(1000L, worker.backoff(1));
+            assertEquals(2000L, worker.backoff(2));
+            assertEquals(4000L, worker.backoff(3));
+            assertEquals(30_000L, worker.backoff(6));
+            assertEquals(30_000L, worker.backoff(100));
+        }
+    }
+
+    private OtpEmailOutboxWorker worker(int threads, int maxAttempts) {
+        return new OtpEmailOutboxWorker(executor, sender, threads, 2, maxAttempts, 1000L, 30_000L, 60_000L,
+            (s, email) -> code, (s, email) -> givenUp.add(email));
+    }
+
+    private static OtpEmailOutboxEntity email(int attempts) {
+        OtpEmailOutboxEntity email = new OtpEmailOutboxEntity();
+        email.setId("id");
+        email.setRealmId("realm");
+        email.setUserId("user");
+        email.setAddress("user@example.com");
+        email.setSubject("Code");
+        email.setTextBody(OtpEmailOutbox.CODE_PLACEHOLDER);
+        email.setHtmlBody("<p>" + OtpEmailOutbox.CODE_PLACEHOLDER + "</p>");
+        email.setRelay("smtp");
+        email.setAttempts(attempts);
+        email.setExpiresAt(System.currentTimeMillis() + 600_000L);
+        return email;
+    }
+
+    private void drain() throws InterruptedException {
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
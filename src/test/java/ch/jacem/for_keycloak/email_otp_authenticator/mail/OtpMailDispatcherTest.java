@@ -0,0 +1,182 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("OtpMailDispatcher")
+class OtpMailDispatcherTest {
+
+    private static final RenderedEmail EMAIL = new RenderedEmail("realm", Map.of("host", "smtp"), "user@example.com", "Code", "123456", "<p>123456</p>");
+
+    @Mock
+    private KeycloakSessionFactory factory;
+
+    @Mock
+    private KeycloakSession session;
+
+    @Mock
+    private KeycloakTransactionManager transactionManager;
+
+    @Mock
+    private KeycloakContext context;
+
+    @Mock
+    private RealmProvider realms;
+
+    @Mock
+    private RealmModel realm;
+
+    @Mock
+    private EmailSenderProvider sender;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        lenient().when(factory.create()).thenReturn(session);
+        lenient().when(session.getKeycloakSessionFactory()).thenReturn(factory);
+        lenient().when(session.getTransactionManager()).thenReturn(transactionManager);
+        lenient().when(transactionManager.isActive()).thenReturn(true);
+        lenient().when(session.getProvider(EmailSenderProvider.class)).thenReturn(sender);
+        lenient().when(session.realms()).thenReturn(realms);
+        lenient().when(realms.getRealm("realm")).thenReturn(realm);
+        AtomicReference<RealmModel> contextRealm = new AtomicReference<>();
+        lenient().when(session.getContext()).thenReturn(context);
+        lenient().doAnswer(invocation -> {
+            contextRealm.set(invocation.getArgument(0));
+            return null;
+        }).when(context).setRealm(any());
+        lenient().when(context.getRealm()).thenAnswer(invocation -> contextRealm.get());
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("sends the email once the request committed")
+    void sendsAfterCommit() throws Exception {
+        OtpMailDispatcher dispatcher = new OtpMailDispatcher(executor, 1, 10, null);
+
+        assertTrue(dispatcher.dispatch(session, EMAIL, (s, cause) -> fail("unexpected failure")));
+        verify(sender, never()).send(anyMap(), anyString(), anyString(), anyString(), anyString());
+        assertEquals(1, dispatcher.getPending());
+
+        afterCompletion().commit();
+        drain();
+
+        verify(sender).send(EMAIL.getSmtpConfig(), "user@example.com", "Code", "123456", "<p>123456</p>");
+        assertEquals(0, dispatcher.getPending());
+    }
+
+    @Test
+    @DisplayName("sets the email's realm in the background session before sending")
+    void contextRealm() throws Exception {
+        // Like a vault reference or token authentication, which read the realm from the context
+        doAnswer(invocation -> {
+            assertNotNull(session.getContext().getRealm().getName());
+            return null;
+        }).when(sender).send(anyMap(), anyString(), anyString(), anyString(), anyString());
+        when(realm.getName()).thenReturn("realm");
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        OtpMailDispatcher dispatcher = new OtpMailDispatcher(executor, 1, 10, null);
+
+        dispatcher.dispatch(session, EMAIL, (s, cause) -> failure.set(cause));
+        afterCompletion().commit();
+        drain();
+
+        assertNull(failure.get());
+        verify(sender).send(EMAIL.getSmtpConfig(), "user@example.com", "Code", "123456", "<p>123456</p>");
+    }
+
+    @Test
+    @DisplayName("reports a failed delivery through the callback")
+    void reportsFailure() throws Exception {
+        doThrow(new EmailException("relay down")).when(sender).send(anyMap(), anyString(), anyString(), anyString(), anyString());
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        OtpMailDispatcher dispatcher = new OtpMailDispatcher(executor, 1, 10, null);
+
+        dispatcher.dispatch(session, EMAIL, (s, cause) -> failure.set(cause));
+        afterCompletion().commit();
+        drain();
+
+        assertNotNull(failure.get());
+        assertEquals(0, dispatcher.getPending());
+    }
+
+    @Test
+    @DisplayName("sends nothing when the request rolled back")
+    void rollback() throws Exception {
+        OtpMailDispatcher dispatcher = new OtpMailDispatcher(executor, 1, 10, null);
+
+        dispatcher.dispatch(session, EMAIL, (s, cause) -> fail("unexpected failure"));
+        afterCompletion().rollback();
+        drain();
+
+        verifyNoInteractions(sender);
+        assertEquals(0, dispatcher.getPending());
+    }
+
+    @Test
+    @DisplayName("refuses emails beyond the pending limit")
+    void pendingLimit() {
+        OtpMailDispatcher dispatcher = new OtpMailDispatcher(executor, 1, 1, null);
+
+        assertTrue(dispatcher.dispatch(session, EMAIL, (s, cause) -> { }));
+        assertFalse(dispatcher.dispatch(session, EMAIL, (s, cause) -> { }));
+    }
+
+    @Test
+    @DisplayName("sends through the configured email sender")
+    void configuredSender() throws Exception {
+        EmailSenderProvider pooled = mock(EmailSenderProvider.class);
+        when(session.getProvider(EmailSenderProvider.class, "email-otp-pooled")).thenReturn(pooled);
+        OtpMailDispatcher dispatcher = new OtpMailDispatcher(executor, 1, 10, "email-otp-pooled");
+
+        assertFalse(dispatcher.usesDefaultSender());
+        dispatcher.send(session, EMAIL);
+
+        verify(pooled).send(EMAIL.getSmtpConfig(), "user@example.com", "Code", "123456", "<p>123456</p>");
+        verifyNoInteractions(sender);
+    }
+
+    private KeycloakTransaction afterCompletion() {
+        ArgumentCaptor<KeycloakTransaction> transaction = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(transactionManager).enlistAfterCompletion(transaction.capture());
+        transaction.getValue().begin();
+        return transaction.getValue();
+    }
+
+    private void drain() throws InterruptedException {
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,101 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.keycloak.email.EmailException;
+
+import jakarta.mail.Message;
+import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+@DisplayName("PickupDirectoryEmailSenderProvider")
+class PickupDirectoryEmailSenderProviderTest {
+
+    private static final Map<String, String> CONFIG = Map.of("from", "noreply@example.com", "fromDisplayName", "Example");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    @DisplayName("writes one RFC 5322 file to the pickup directory")
+    void pickup() throws Exception {
+        sender(PickupDirectoryEmailSenderProvider.Format.PICKUP)
+            .send(CONFIG, "user@example.com", "Your code", "123456", "<p>123456</p>");
+
+        List<Path> files = list(directory);
+        assertEquals(1, files.size());
+        assertTrue(files.get(0).getFileName().toString().endsWith(".eml"));
+
+        MimeMessage message = read(files.get(0));
+        assertEquals("Your code", message.getSubject());
+        assertEquals("user@example.com", message.getRecipients(Message.RecipientType.TO)[0].toString());
+        assertEquals("Example <noreply@example.com>", message.getFrom()[0].toString());
+        assertNotNull(message.getMessageID());
+        assertEquals(2, ((Multipart) message.getContent()).getCount());
+    }
+
+    @Test
+    @DisplayName("moves the file from tmp to new in a maildir")
+    void maildir() throws Exception {
+        Files.createDirectories(directory.resolve("tmp"));
+        Files.createDirectories(directory.resolve("new"));
+
+        PickupDirectoryEmailSenderProvider sender = sender(PickupDirectoryEmailSenderProvider.Format.MAILDIR);
+        sender.send(CONFIG, "user@example.com", "Your code", "123456", "<p>123456</p>");
+        sender.send(CONFIG, "user@example.com", "Your code", "654321", "<p>654321</p>");
+
+        assertEquals(0, list(directory.resolve("tmp")).size());
+        List<Path> delivered = list(directory.resolve("new"));
+        assertEquals(2, delivered.size());
+        assertTrue(delivered.get(0).getFileName().toString().endsWith(".host"));
+    }
+
+    @Test
+    @DisplayName("fails without leaving a file when the directory is missing")
+    void missingDirectory() throws Exception {
+        PickupDirectoryEmailSenderProvider sender = sender(PickupDirectoryEmailSenderProvider.Format.MAILDIR);
+
+        assertThrows(EmailException.class,
+            () -> sender.send(CONFIG, "user@example.com", "Your code", "123456", "<p>123456</p>"));
+        assertEquals(0, list(directory).size());
+    }
+
+    @Test
+    @DisplayName("fails when no directory is configured")
+    void notConfigured() {
+        PickupDirectoryEmailSenderProvider sender = new PickupDirectoryEmailSenderProvider(null,
+            PickupDirectoryEmailSenderProvider.Format.PICKUP, "host");
+
+        assertThrows(EmailException.class,
+            () -> sender.send(CONFIG, "user@example.com", "Your code", "123456", "<p>123456</p>"));
+    }
+
+    private PickupDirectoryEmailSenderProvider sender(PickupDirectoryEmailSenderProvider.Format format) {
+        return new PickupDirectoryEmailSenderProvider(directory, format, "host");
+    }
+
+    private static List<Path> list(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static MimeMessage read(Path file) throws Exception {
+        try (InputStream in = Files.newInputStream(file)) {
+            return new MimeMessage(Session.getInstance(new Properties()), in);
+        }
+    }
+}
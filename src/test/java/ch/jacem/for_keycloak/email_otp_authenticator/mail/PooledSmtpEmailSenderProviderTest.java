@@ -0,0 +1,192 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakSession;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("PooledSmtpEmailSenderProvider")
+class PooledSmtpEmailSenderProviderTest {
+
+    @Mock
+    private KeycloakSession session;
+
+    private SmtpStub smtp;
+    private SmtpConnectionPool pool;
+    private Map<String, String> config;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        smtp = new SmtpStub();
+        config = new HashMap<>();
+        config.put("host", "127.0.0.1");
+        config.put("port", String.valueOf(smtp.getPort()));
+        config.put("from", "noreply@example.com");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (pool != null) {
+            pool.close();
+        }
+        smtp.close();
+    }
+
+    @Test
+    @DisplayName("sends consecutive emails over one connection")
+    void reusesConnection() throws Exception {
+        EmailSenderProvider sender = sender(4, 100, 60_000L, 60_000L);
+
+        for (int i = 0; i < 3; i++) {
+            sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+        }
+
+        assertEquals(3, smtp.getMessages());
+        assertEquals(1, smtp.getConnections());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    @DisplayName("opens a new connection once a connection sent its maximum of emails")
+    void messageCap() throws Exception {
+        EmailSenderProvider sender = sender(4, 2, 60_000L, 60_000L);
+
+        for (int i = 0; i < 3; i++) {
+            sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+        }
+
+        assertEquals(3, smtp.getMessages());
+        assertEquals(2, smtp.getConnections());
+    }
+
+    @Test
+    @DisplayName("checks idle connections and replaces the ones the server dropped")
+    void replacesDroppedConnection() throws Exception {
+        EmailSenderProvider sender = sender(4, 100, 60_000L, 0L);
+
+        sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+        smtp.dropConnections();
+        Thread.sleep(5);
+        sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+
+        assertEquals(2, smtp.getMessages());
+        assertEquals(2, smtp.getConnections());
+    }
+
+    @Test
+    @DisplayName("retries once on a new connection when a reused one fails")
+    void retriesOnFailedReuse() throws Exception {
+        EmailSenderProvider sender = sender(4, 100, 60_000L, 60_000L);
+
+        sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+        smtp.dropConnections();
+        sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+
+        assertEquals(2, smtp.getMessages());
+        assertEquals(2, smtp.getConnections());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    @DisplayName("shares connections between realms using the same server and account")
+    void sharesServer() throws Exception {
+        EmailSenderProvider sender = sender(4, 100, 60_000L, 60_000L);
+        Map<String, String> otherRealm = new HashMap<>(config);
+        otherRealm.put("from", "otp@example.org");
+
+        sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+        sender.send(otherRealm, "user@example.org", "Code", "654321", "<p>654321</p>");
+
+        assertEquals(2, smtp.getMessages());
+        assertEquals(1, smtp.getConnections());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    @DisplayName("keeps separate connections per connection settings")
+    void separatesConnectionSettings() throws Exception {
+        EmailSenderProvider sender = sender(4, 100, 60_000L, 60_000L);
+        Map<String, String> otherRealm = new HashMap<>(config);
+        otherRealm.put("envelopeFrom", "bounces@example.org");
+
+        sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+        sender.send(otherRealm, "user@example.org", "Code", "654321", "<p>654321</p>");
+        sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+
+        assertEquals(3, smtp.getMessages());
+        assertEquals(2, smtp.getConnections());
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    @Test
+    @DisplayName("keys connections by a hash of the password")
+    void hashesPassword() {
+        config.put("user", "mailer");
+        config.put("password", "secret");
+        Map<String, String> rotated = new HashMap<>(config);
+        rotated.put("password", "rotated");
+
+        String key = PooledSmtpEmailSenderProvider.poolKey(config);
+
+        assertFalse(key.contains("secret"));
+        assertTrue(key.contains("mailer"));
+        assertEquals(key, PooledSmtpEmailSenderProvider.poolKey(new HashMap<>(config)));
+        assertNotEquals(key, PooledSmtpEmailSenderProvider.poolKey(rotated));
+    }
+
+    @Test
+    @DisplayName("closes connections idle for longer than the timeout")
+    void evictsIdle() throws Exception {
+        EmailSenderProvider sender = sender(4, 100, 1L, 0L);
+
+        sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+        Thread.sleep(20);
+
+        assertEquals(1, pool.evictIdle());
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getPoolKeyCount());
+    }
+
+    @Test
+    @DisplayName("reports an unreachable server")
+    void unreachable() throws Exception {
+        EmailSenderProvider sender = sender(4, 100, 60_000L, 60_000L);
+        smtp.close();
+
+        assertThrows(EmailException.class,
+            () -> sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>"));
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    @DisplayName("leaves OAuth token authentication to the default sender")
+    void delegatesTokenAuth() throws Exception {
+        EmailSenderProvider defaultSender = mock(EmailSenderProvider.class);
+        when(session.getProvider(EmailSenderProvider.class, "default")).thenReturn(defaultSender);
+        EmailSenderProvider sender = sender(4, 100, 60_000L, 60_000L);
+        config.put("authType", "token");
+
+        sender.send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+
+        verify(defaultSender).send(config, "user@example.com", "Code", "123456", "<p>123456</p>");
+        assertEquals(0, smtp.getConnections());
+    }
+
+    private EmailSenderProvider sender(int maxIdle, int maxMessages, long idleTimeoutMs, long validateAfterMs) {
+        pool = new SmtpConnectionPool(maxIdle, maxMessages, idleTimeoutMs, validateAfterMs);
+        return new PooledSmtpEmailSenderProvider(session, pool);
+    }
+}
@@ -0,0 +1,180 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("PriorityEmailSenderProvider")
+class PriorityEmailSenderProviderTest {
+
+    private static final Map<String, String> CONFIG = Map.of("host", "smtp");
+
+    @Mock
+    private KeycloakSessionFactory factory;
+
+    @Mock
+    private KeycloakSession session;
+
+    @Mock
+    private KeycloakSession worker;
+
+    @Mock
+    private KeycloakTransactionManager transactionManager;
+
+    @Mock
+    private EmailSenderProvider delegate;
+
+    @Mock
+    private KeycloakContext context;
+
+    @Mock
+    private KeycloakContext workerContext;
+
+    @Mock
+    private RealmProvider realms;
+
+    @Mock
+    private RealmModel realm;
+
+    private PriorityMailScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        lenient().when(session.getKeycloakSessionFactory()).thenReturn(factory);
+        lenient().when(factory.create()).thenReturn(worker);
+        lenient().when(worker.getKeycloakSessionFactory()).thenReturn(factory);
+        lenient().when(worker.getTransactionManager()).thenReturn(transactionManager);
+        lenient().when(transactionManager.isActive()).thenReturn(true);
+        lenient().when(worker.getProvider(EmailSenderProvider.class, "default")).thenReturn(delegate);
+        lenient().when(session.getContext()).thenReturn(context);
+        lenient().when(context.getRealm()).thenReturn(realm);
+        lenient().when(realm.getId()).thenReturn("realm");
+        lenient().when(worker.getContext()).thenReturn(workerContext);
+        lenient().when(worker.realms()).thenReturn(realms);
+        lenient().when(realms.getRealm("realm")).thenReturn(realm);
+
+        Map<MailLane, PriorityMailScheduler.LaneSettings> lanes = new EnumMap<>(MailLane.class);
+        lanes.put(MailLane.OTP, new PriorityMailScheduler.LaneSettings(100, 1, 10));
+        lanes.put(MailLane.BULK, new PriorityMailScheduler.LaneSettings(1, 1, 10));
+        scheduler = new PriorityMailScheduler(1, lanes);
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.close();
+    }
+
+    @Test
+    @DisplayName("waits for an OTP email and reports its failure")
+    void otpFailure() throws Exception {
+        when(session.getAttribute(MailLane.SESSION_ATTRIBUTE)).thenReturn(MailLane.OTP);
+        EmailException failure = new EmailException("relay down");
+        doThrow(failure).when(delegate).send(any(), anyString(), any(), any(), any());
+
+        EmailException e = assertThrows(EmailException.class,
+            () -> sender().send(CONFIG, "user@example.com", "Code", "123456", "<p>123456</p>"));
+        assertSame(failure, e);
+    }
+
+    @Test
+    @DisplayName("gives up waiting for an OTP email after the timeout")
+    void otpTimeout() throws Exception {
+        when(session.getAttribute(MailLane.SESSION_ATTRIBUTE)).thenReturn(MailLane.OTP);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> release.await(5, TimeUnit.SECONDS)).when(delegate).send(any(), anyString(), any(), any(), any());
+
+        try {
+            assertThrows(EmailException.class,
+                () -> sender(50L).send(CONFIG, "user@example.com", "Code", "123456", "<p>123456</p>"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    @DisplayName("sends an OTP email right away while its lane is busy")
+    void otpBusyLane() throws Exception {
+        when(session.getAttribute(MailLane.SESSION_ATTRIBUTE)).thenReturn(MailLane.OTP);
+        EmailSenderProvider direct = mock(EmailSenderProvider.class);
+        when(session.getProvider(EmailSenderProvider.class, "default")).thenReturn(direct);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(MailLane.BULK, release::await);
+
+        try {
+            awaitInFlight(MailLane.BULK);
+            sender().send(CONFIG, "user@example.com", "Code", "123456", "<p>123456</p>");
+        } finally {
+            release.countDown();
+        }
+        verify(direct).send(CONFIG, "user@example.com", "Code", "123456", "<p>123456</p>");
+        verify(delegate, never()).send(any(), anyString(), any(), any(), any());
+    }
+
+    @Test
+    @DisplayName("returns before other emails are sent, their failure is only logged")
+    void bulkInBackground() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            throw new EmailException("relay down");
+        }).when(delegate).send(any(), anyString(), any(), any(), any());
+
+        try {
+            sender().send(CONFIG, "user@example.com", "Welcome", "Hello", "<p>Hello</p>");
+        } finally {
+            release.countDown();
+        }
+        verify(delegate, timeout(5000)).send(CONFIG, "user@example.com", "Welcome", "Hello", "<p>Hello</p>");
+    }
+
+    @Test
+    @DisplayName("sets the caller's realm in the sending session before sending")
+    void contextRealm() throws Exception {
+        when(session.getAttribute(MailLane.SESSION_ATTRIBUTE)).thenReturn(MailLane.OTP);
+
+        sender().send(CONFIG, "user@example.com", "Code", "123456", "<p>123456</p>");
+
+        InOrder order = inOrder(workerContext, delegate);
+        order.verify(workerContext).setRealm(realm);
+        order.verify(delegate).send(CONFIG, "user@example.com", "Code", "123456", "<p>123456</p>");
+    }
+
+    private void awaitInFlight(MailLane lane) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (scheduler.getStats().stream().noneMatch(s -> s.getLane() == lane && s.getInFlight() > 0)) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the " + lane + " lane");
+            Thread.sleep(5);
+        }
+    }
+
+    private PriorityEmailSenderProvider sender() {
+        return sender(5000L);
+    }
+
+    private PriorityEmailSenderProvider sender(long otpTimeoutMs) {
+        return new PriorityEmailSenderProvider(session, scheduler, "default", otpTimeoutMs);
+    }
+}
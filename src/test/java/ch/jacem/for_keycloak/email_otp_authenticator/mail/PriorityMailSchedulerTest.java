@@ -0,0 +1,235 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.mail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("PriorityMailScheduler")
+class PriorityMailSchedulerTest {
+
+    private final List<PriorityMailScheduler> schedulers = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        schedulers.forEach(PriorityMailScheduler::close);
+    }
+
+    @Nested
+    @DisplayName("submit")
+    class Submit {
+
+        @Test
+        @DisplayName("sends a waiting OTP email before the waiting bulk emails")
+        void otpFirst() throws Exception {
+            PriorityMailScheduler scheduler = scheduler(1, 100, 1, 1, 10);
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+            CompletableFuture<Void> blocker = scheduler.submit(MailLane.BULK, release::await);
+            awaitInFlight(scheduler, MailLane.BULK, 1);
+            scheduler.submit(MailLane.BULK, () -> order.add("bulk-1"));
+            scheduler.submit(MailLane.BULK, () -> order.add("bulk-2"));
+            CompletableFuture<Void> otp = scheduler.submit(MailLane.OTP, () -> order.add("otp"));
+            release.countDown();
+
+            blocker.get(5, TimeUnit.SECONDS);
+            otp.get(5, TimeUnit.SECONDS);
+            awaitSent(scheduler, MailLane.BULK, 3);
+            assertEquals(List.of("otp", "bulk-1", "bulk-2"), order);
+        }
+
+        @Test
+        @DisplayName("shares the picks by weight while both lanes have emails waiting")
+        void weighted() throws Exception {
+            PriorityMailScheduler scheduler = scheduler(1, 3, 1, 1, 100);
+            CountDownLatch release = new CountDownLatch(1);
+            List<MailLane> order = Collections.synchronizedList(new ArrayList<>());
+
+            scheduler.submit(MailLane.BULK, release::await);
+            awaitInFlight(scheduler, MailLane.BULK, 1);
+            for (int i = 0; i < 8; i++) {
+                scheduler.submit(MailLane.OTP, () -> order.add(MailLane.OTP));
+                scheduler.submit(MailLane.BULK, () -> order.add(MailLane.BULK));
+            }
+            release.countDown();
+
+            awaitSent(scheduler, MailLane.OTP, 8);
+            // Three OTP emails for every bulk one until the OTP lane is empty
+            assertEquals(List.of(MailLane.OTP, MailLane.OTP, MailLane.BULK, MailLane.OTP,
+                MailLane.OTP, MailLane.OTP, MailLane.BULK, MailLane.OTP), order.subList(0, 8));
+        }
+
+        @Test
+        @DisplayName("keeps a thread free for OTP emails while bulk emails are sent")
+        void bulkConcurrency() throws Exception {
+            PriorityMailScheduler scheduler = scheduler(2, 100, 1, 1, 10);
+            CountDownLatch release = new CountDownLatch(1);
+
+            scheduler.submit(MailLane.BULK, release::await);
+            scheduler.submit(MailLane.BULK, release::await);
+            awaitInFlight(scheduler, MailLane.BULK, 1);
+
+            try {
+                scheduler.submit(MailLane.OTP, () -> { }).get(5, TimeUnit.SECONDS);
+                assertEquals(1, stats(scheduler, MailLane.BULK).getQueued());
+            } finally {
+                release.countDown();
+            }
+        }
+
+        @Test
+        @DisplayName("refuses emails once the lane is full")
+        void full() throws Exception {
+            PriorityMailScheduler scheduler = scheduler(1, 100, 1, 1, 1);
+            CountDownLatch release = new CountDownLatch(1);
+
+            scheduler.submit(MailLane.BULK, release::await);
+            awaitInFlight(scheduler, MailLane.BULK, 1);
+            try {
+                assertNotNull(scheduler.submit(MailLane.BULK, () -> { }));
+                assertNull(scheduler.submit(MailLane.BULK, () -> { }));
+                assertNotNull(scheduler.submit(MailLane.OTP, () -> { }));
+            } finally {
+                release.countDown();
+            }
+        }
+
+        @Test
+        @DisplayName("fails the future with the job's exception")
+        void failure() throws Exception {
+            PriorityMailScheduler scheduler = scheduler(1, 100, 1, 1, 10);
+
+            CompletableFuture<Void> done = scheduler.submit(MailLane.OTP, () -> {
+                throw new IllegalStateException("relay down");
+            });
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> done.get(5, TimeUnit.SECONDS));
+            assertEquals("relay down", e.getCause().getMessage());
+            awaitCount(() -> stats(scheduler, MailLane.OTP).getFailed(), 1);
+        }
+
+        @Test
+        @DisplayName("queues an email only if a thread can take it right away when asked to")
+        void ifIdle() throws Exception {
+            PriorityMailScheduler scheduler = scheduler(1, 100, 1, 1, 10);
+            CountDownLatch release = new CountDownLatch(1);
+
+            scheduler.submitIfIdle(MailLane.OTP, () -> { }).get(5, TimeUnit.SECONDS);
+            scheduler.submit(MailLane.BULK, release::await);
+            awaitInFlight(scheduler, MailLane.BULK, 1);
+            try {
+                assertNull(scheduler.submitIfIdle(MailLane.OTP, () -> { }));
+            } finally {
+                release.countDown();
+            }
+        }
+
+        @Test
+        @DisplayName("cancels an email still waiting for a thread")
+        void cancel() throws Exception {
+            PriorityMailScheduler scheduler = scheduler(1, 100, 1, 1, 10);
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+            CompletableFuture<Void> blocker = scheduler.submit(MailLane.BULK, release::await);
+            awaitInFlight(scheduler, MailLane.BULK, 1);
+            CompletableFuture<Void> otp = scheduler.submit(MailLane.OTP, () -> sent.add("otp"));
+
+            assertTrue(scheduler.cancel(otp));
+            assertFalse(scheduler.cancel(blocker));
+            release.countDown();
+
+            blocker.get(5, TimeUnit.SECONDS);
+            assertThrows(CancellationException.class, () -> otp.getNow(null));
+            assertEquals(0, stats(scheduler, MailLane.OTP).getQueued());
+            assertEquals(List.of(), sent);
+        }
+
+        @Test
+        @DisplayName("refuses emails once closed")
+        void closed() {
+            PriorityMailScheduler scheduler = scheduler(1, 100, 1, 1, 10);
+            scheduler.close();
+
+            assertNull(scheduler.submit(MailLane.OTP, () -> { }));
+        }
+    }
+
+    @Nested
+    @DisplayName("getStats")
+    class GetStats {
+
+        @Test
+        @DisplayName("reports queue depth and wait times per lane")
+        void reportsLanes() throws Exception {
+            PriorityMailScheduler scheduler = scheduler(1, 100, 1, 1, 10);
+            CountDownLatch release = new CountDownLatch(1);
+
+            scheduler.submit(MailLane.BULK, release::await);
+            awaitInFlight(scheduler, MailLane.BULK, 1);
+            scheduler.submit(MailLane.BULK, () -> { });
+            scheduler.submit(MailLane.BULK, () -> { });
+            Thread.sleep(50);
+
+            PriorityMailScheduler.LaneStats waiting = stats(scheduler, MailLane.BULK);
+            assertEquals(2, waiting.getQueued());
+            assertEquals(1, waiting.getInFlight());
+            assertEquals(1, waiting.getWeight());
+            assertTrue(waiting.getOldestWaitMillis() >= 50);
+            assertEquals(0, stats(scheduler, MailLane.OTP).getQueued());
+
+            release.countDown();
+            awaitSent(scheduler, MailLane.BULK, 3);
+
+            PriorityMailScheduler.LaneStats drained = stats(scheduler, MailLane.BULK);
+            assertEquals(0, drained.getQueued());
+            assertEquals(0, drained.getOldestWaitMillis());
+            assertTrue(drained.getMaxWaitMillis() >= 50);
+            assertTrue(drained.getAverageWaitMillis() > 0);
+        }
+    }
+
+    private PriorityMailScheduler scheduler(int threads, int otpWeight, int bulkWeight, int bulkMaxConcurrent, int maxQueued) {
+        Map<MailLane, PriorityMailScheduler.LaneSettings> lanes = new EnumMap<>(MailLane.class);
+        lanes.put(MailLane.OTP, new PriorityMailScheduler.LaneSettings(otpWeight, threads, maxQueued));
+        lanes.put(MailLane.BULK, new PriorityMailScheduler.LaneSettings(bulkWeight, bulkMaxConcurrent, maxQueued));
+        PriorityMailScheduler scheduler = new PriorityMailScheduler(threads, lanes);
+        schedulers.add(scheduler);
+        return scheduler;
+    }
+
+    private static PriorityMailScheduler.LaneStats stats(PriorityMailScheduler scheduler, MailLane lane) {
+        return scheduler.getStats().stream().filter(s -> s.getLane() == lane).findFirst().orElseThrow();
+    }
+
+    private static void awaitInFlight(PriorityMailScheduler scheduler, MailLane lane, int inFlight) throws InterruptedException {
+        awaitCount(() -> stats(scheduler, lane).getInFlight(), inFlight);
+    }
+
+    private static void awaitSent(PriorityMailScheduler scheduler, MailLane lane, int sent) throws InterruptedException {
+        awaitCount(() -> stats(scheduler, lane).getSent(), sent);
+    }
+
+    private static void awaitCount(LongSupplier count, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (count.getAsLong() < expected) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for " + expected);
+            Thread.sleep(5);
+        }
+    }
+}
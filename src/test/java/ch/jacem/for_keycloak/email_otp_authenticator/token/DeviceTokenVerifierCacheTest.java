@@ -0,0 +1,112 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyWrapper;
+
+@DisplayName("DeviceTokenVerifierCache")
+class DeviceTokenVerifierCacheTest {
+
+    private static final byte[] DATA = "device-token.a2lk".getBytes(StandardCharsets.UTF_8);
+
+    private static KeyPair keyPair;
+    private static KeyPair otherKeyPair;
+
+    private DeviceTokenVerifierCache cache;
+
+    @BeforeAll
+    static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        otherKeyPair = generator.generateKeyPair();
+    }
+
+    @BeforeEach
+    void setUp() {
+        cache = new DeviceTokenVerifierCache("SHA256withRSA");
+    }
+
+    private static byte[] sign(KeyPair pair, byte[] data) throws Exception {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(pair.getPrivate());
+        signature.update(data);
+        return signature.sign();
+    }
+
+    private static KeyWrapper key(String kid, KeyPair pair, KeyStatus status) {
+        KeyWrapper key = new KeyWrapper();
+        key.setKid(kid);
+        key.setPublicKey(pair.getPublic());
+        key.setStatus(status);
+        return key;
+    }
+
+    @Test
+    @DisplayName("accepts a signature from the key")
+    void acceptsValidSignature() throws Exception {
+        assertTrue(cache.verify("realm", key("kid-1", keyPair, KeyStatus.ACTIVE), DATA, sign(keyPair, DATA)));
+    }
+
+    @Test
+    @DisplayName("rejects a signature from another key")
+    void rejectsOtherKey() throws Exception {
+        assertFalse(cache.verify("realm", key("kid-1", keyPair, KeyStatus.ACTIVE), DATA, sign(otherKeyPair, DATA)));
+    }
+
+    @Test
+    @DisplayName("reuses the verifier across calls")
+    void reusesVerifier() throws Exception {
+        KeyWrapper key = key("kid-1", keyPair, KeyStatus.PASSIVE);
+        byte[] signature = sign(keyPair, DATA);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(cache.verify("realm", key, DATA, signature));
+        }
+        assertFalse(cache.verify("realm", key, DATA, sign(otherKeyPair, DATA)));
+        assertTrue(cache.verify("realm", key, DATA, signature));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    @DisplayName("picks up a new key published under the same kid")
+    void refreshesOnKeyChange() throws Exception {
+        assertTrue(cache.verify("realm", key("kid-1", keyPair, KeyStatus.ACTIVE), DATA, sign(keyPair, DATA)));
+
+        KeyWrapper rotated = key("kid-1", otherKeyPair, KeyStatus.ACTIVE);
+
+        assertTrue(cache.verify("realm", rotated, DATA, sign(otherKeyPair, DATA)));
+        assertFalse(cache.verify("realm", rotated, DATA, sign(keyPair, DATA)));
+    }
+
+    @Test
+    @DisplayName("drops the verifier once the key is disabled")
+    void dropsDisabledKey() throws Exception {
+        byte[] signature = sign(keyPair, DATA);
+        assertTrue(cache.verify("realm", key("kid-1", keyPair, KeyStatus.ACTIVE), DATA, signature));
+
+        assertFalse(cache.verify("realm", key("kid-1", keyPair, KeyStatus.DISABLED), DATA, signature));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    @DisplayName("keeps realms apart")
+    void separatesRealms() throws Exception {
+        byte[] signature = sign(keyPair, DATA);
+
+        cache.verify("realm-1", key("kid-1", keyPair, KeyStatus.ACTIVE), DATA, signature);
+        cache.verify("realm-2", key("kid-1", keyPair, KeyStatus.ACTIVE), DATA, signature);
+
+        assertEquals(2, cache.size());
+    }
+}
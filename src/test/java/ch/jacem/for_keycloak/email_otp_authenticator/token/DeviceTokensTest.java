@@ -0,0 +1,224 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.token;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+@DisplayName("DeviceTokens")
+class DeviceTokensTest {
+
+    private static final String TOKEN = "550e8400-e29b-41d4-a716-446655440000";
+
+    private static KeyWrapper rsaKey;
+    private static KeyWrapper rsaPassiveKey;
+    private static KeyWrapper hmacKey;
+    private static KeyWrapper edKey;
+
+    @Mock
+    private KeycloakSession session;
+
+    @Mock
+    private KeyManager keys;
+
+    @Mock
+    private RealmModel realm;
+
+    @BeforeAll
+    static void generateKeys() throws Exception {
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(2048);
+        rsaKey = asymmetricKey("rsa-1", KeyType.RSA, Algorithm.RS256, KeyStatus.ACTIVE, rsa.generateKeyPair());
+        rsaPassiveKey = asymmetricKey("rsa-0", KeyType.RSA, Algorithm.RS256, KeyStatus.PASSIVE, rsa.generateKeyPair());
+
+        edKey = asymmetricKey("ed-1", KeyType.OKP, Algorithm.EdDSA, KeyStatus.ACTIVE,
+            KeyPairGenerator.getInstance("Ed25519").generateKeyPair());
+        edKey.setCurve(Algorithm.Ed25519);
+
+        hmacKey = new KeyWrapper();
+        hmacKey.setKid("hmac-1");
+        hmacKey.setType(KeyType.OCT);
+        hmacKey.setAlgorithm(Algorithm.HS512);
+        hmacKey.setUse(KeyUse.SIG);
+        hmacKey.setStatus(KeyStatus.ACTIVE);
+        hmacKey.setSecretKey(new SecretKeySpec("0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8), "HmacSHA512"));
+    }
+
+    private static KeyWrapper asymmetricKey(String kid, String type, String algorithm, KeyStatus status, KeyPair pair) {
+        KeyWrapper key = new KeyWrapper();
+        key.setKid(kid);
+        key.setType(type);
+        key.setAlgorithm(algorithm);
+        key.setUse(KeyUse.SIG);
+        key.setStatus(status);
+        key.setPrivateKey(pair.getPrivate());
+        key.setPublicKey(pair.getPublic());
+        return key;
+    }
+
+    @BeforeEach
+    void setUp() {
+        List<KeyWrapper> all = Arrays.asList(rsaKey, rsaPassiveKey, hmacKey, edKey);
+
+        when(session.keys()).thenReturn(keys);
+        when(keys.getKeysStream(realm)).thenAnswer(i -> all.stream());
+        when(keys.getKeysStream(eq(realm), eq(KeyUse.SIG), anyString())).thenAnswer(i -> all.stream()
+            .filter(k -> k.getAlgorithm().equals(i.getArgument(2))));
+        when(realm.getId()).thenReturn("realm");
+        when(realm.getName()).thenReturn("realm");
+
+        DeviceTokenCodec rsa = new RsaDeviceTokenCodec(session, new DeviceTokenVerifierCache("SHA256withRSA"));
+        DeviceTokenCodec hmac = new HmacDeviceTokenCodec(session);
+        DeviceTokenCodec ed = new EdDsaDeviceTokenCodec(session, new DeviceTokenVerifierCache("Ed25519"));
+        when(session.getProvider(DeviceTokenCodec.class, "RS256")).thenReturn(rsa);
+        when(session.getProvider(DeviceTokenCodec.class, "HS256")).thenReturn(hmac);
+        when(session.getProvider(DeviceTokenCodec.class, "Ed25519")).thenReturn(ed);
+        Set<DeviceTokenCodec> codecs = new HashSet<>(Arrays.asList(rsa, hmac, ed));
+        when(session.getAllProviders(DeviceTokenCodec.class)).thenReturn(codecs);
+    }
+
+    private static String kidOf(String signedToken) {
+        return new String(Base64Url.decode(signedToken.split("\\.")[1]), StandardCharsets.UTF_8);
+    }
+
+    @Nested
+    @DisplayName("Round trip")
+    class RoundTrip {
+
+        @Test
+        @DisplayName("RS256 tokens verify")
+        void rsa() {
+            String signed = DeviceTokens.sign(session, realm, "RS256", TOKEN);
+
+            assertEquals("rsa-1", kidOf(signed));
+            assertEquals(TOKEN, DeviceTokens.verify(session, realm, signed));
+        }
+
+        @Test
+        @DisplayName("HS256 tokens verify with the realm HMAC key")
+        void hmac() {
+            String signed = DeviceTokens.sign(session, realm, "HS256", TOKEN);
+
+            assertEquals("hmac-1", kidOf(signed));
+            assertEquals(TOKEN, DeviceTokens.verify(session, realm, signed));
+        }
+
+        @Test
+        @DisplayName("Ed25519 tokens verify")
+        void eddsa() {
+            String signed = DeviceTokens.sign(session, realm, "Ed25519", TOKEN);
+
+            assertEquals("ed-1", kidOf(signed));
+            assertEquals(TOKEN, DeviceTokens.verify(session, realm, signed));
+        }
+
+        @Test
+        @DisplayName("HS256 and Ed25519 cookies are much smaller than RS256")
+        void smallerCookies() {
+            int rsa = DeviceTokens.sign(session, realm, "RS256", TOKEN).length();
+
+            assertTrue(DeviceTokens.sign(session, realm, "HS256", TOKEN).length() < rsa / 2);
+            assertTrue(DeviceTokens.sign(session, realm, "Ed25519", TOKEN).length() < rsa / 2);
+        }
+
+        @Test
+        @DisplayName("falls back to RS256 when the realm has no key for the codec")
+        void fallsBackToRsa() {
+            when(keys.getKeysStream(eq(realm), eq(KeyUse.SIG), eq(Algorithm.EdDSA))).thenAnswer(i -> Stream.empty());
+
+            String signed = DeviceTokens.sign(session, realm, "Ed25519", TOKEN);
+
+            assertEquals("rsa-1", kidOf(signed));
+        }
+    }
+
+    @Nested
+    @DisplayName("Rejection")
+    class Rejection {
+
+        @Test
+        @DisplayName("tampered token is rejected")
+        void tamperedToken() {
+            String signed = DeviceTokens.sign(session, realm, "HS256", TOKEN);
+
+            assertNull(DeviceTokens.verify(session, realm, "x" + signed.substring(1)));
+        }
+
+        @Test
+        @DisplayName("swapping the key hint is rejected")
+        void swappedKid() {
+            String signed = DeviceTokens.sign(session, realm, "HS256", TOKEN);
+            String[] parts = signed.split("\\.");
+            String swapped = parts[0] + "." + Base64Url.encode("rsa-1".getBytes(StandardCharsets.UTF_8)) + "." + parts[2];
+
+            assertNull(DeviceTokens.verify(session, realm, swapped));
+        }
+
+        @Test
+        @DisplayName("unknown key is rejected")
+        void unknownKid() {
+            String signed = TOKEN + "." + Base64Url.encode("missing".getBytes(StandardCharsets.UTF_8)) + ".c2ln";
+
+            assertNull(DeviceTokens.verify(session, realm, signed));
+        }
+
+        @Test
+        @DisplayName("malformed tokens are rejected")
+        void malformed() {
+            assertNull(DeviceTokens.verify(session, realm, null));
+            assertNull(DeviceTokens.verify(session, realm, TOKEN));
+            assertNull(DeviceTokens.verify(session, realm, ".signature"));
+            assertNull(DeviceTokens.verify(session, realm, "a..b"));
+        }
+    }
+
+    @Nested
+    @DisplayName("Unhinted cookies")
+    class Unhinted {
+
+        @Test
+        @DisplayName("token.signature from a passive RS256 key still verifies")
+        void legacyFormat() throws Exception {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign((PrivateKey) rsaPassiveKey.getPrivateKey());
+            signature.update(TOKEN.getBytes(StandardCharsets.UTF_8));
+            String legacy = TOKEN + "." + Base64Url.encode(signature.sign());
+
+            assertEquals(TOKEN, DeviceTokens.verify(session, realm, legacy));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("DeviceRevocationSet")
+class DeviceRevocationSetTest {
+
+    @Test
+    @DisplayName("loads once on first lookup")
+    void loadsOnce() {
+        DeviceRevocationSet set = new DeviceRevocationSet();
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<Collection<String>> loader = () -> {
+            loads.incrementAndGet();
+            return Arrays.asList("revoked-1");
+        };
+
+        assertTrue(set.isRevoked("revoked-1", loader));
+        assertFalse(set.isRevoked("other", loader));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    @DisplayName("treats every token as revoked when the set cannot be loaded")
+    void failsClosed() {
+        DeviceRevocationSet set = new DeviceRevocationSet();
+
+        assertTrue(set.isRevoked("any", () -> {
+            throw new IllegalStateException("database down");
+        }));
+    }
+
+    @Test
+    @DisplayName("refresh replaces the set")
+    void refreshReplaces() {
+        DeviceRevocationSet set = new DeviceRevocationSet();
+        set.refresh(() -> Arrays.asList("a", "b"));
+
+        set.refresh(() -> Collections.singletonList("c"));
+
+        assertEquals(1, set.size());
+        assertFalse(set.isRevoked("a", Collections::emptyList));
+        assertTrue(set.isRevoked("c", Collections::emptyList));
+    }
+
+    @Test
+    @DisplayName("locally added tokens are revoked immediately")
+    void addIsImmediate() {
+        DeviceRevocationSet set = new DeviceRevocationSet();
+        set.refresh(Collections::emptyList);
+
+        set.add("new");
+
+        assertTrue(set.isRevoked("new", Collections::emptyList));
+    }
+
+    @Test
+    @DisplayName("tokens added together are all revoked immediately")
+    void addAll() {
+        DeviceRevocationSet set = new DeviceRevocationSet();
+        set.refresh(() -> List.of("old"));
+
+        set.addAll(List.of("a", "b"));
+
+        assertEquals(3, set.size());
+        assertTrue(set.isRevoked("a", Collections::emptyList));
+        assertTrue(set.isRevoked("b", Collections::emptyList));
+        assertTrue(set.isRevoked("old", Collections::emptyList));
+    }
+}
@@ -0,0 +1,97 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("DeviceTrustClaims")
+class DeviceTrustClaimsTest {
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    @Nested
+    @DisplayName("Encoding")
+    class Encoding {
+
+        @Test
+        @DisplayName("round-trips through encode and decode")
+        void roundTrip() {
+            DeviceTrustClaims claims = new DeviceTrustClaims("realm-1", "user-1", "device-1", 1234L);
+
+            DeviceTrustClaims decoded = DeviceTrustClaims.decode(claims.encode());
+
+            assertNotNull(decoded);
+            assertEquals("realm-1", decoded.getRealmId());
+            assertEquals("user-1", decoded.getUserId());
+            assertEquals("device-1", decoded.getDeviceToken());
+            assertEquals(1234L, decoded.getExpiresAt());
+        }
+
+        @Test
+        @DisplayName("encoded content is cookie and signature safe")
+        void encodedIsUrlSafe() {
+            String encoded = new DeviceTrustClaims("realm-1", "user-1", UUID.randomUUID().toString(), now()).encode();
+
+            assertTrue(encoded.matches("^[A-Za-z0-9_-]+$"));
+        }
+
+        @Test
+        @DisplayName("plain device token is not decoded as claims")
+        void plainTokenIsNotClaims() {
+            assertNull(DeviceTrustClaims.decode(UUID.randomUUID().toString()));
+        }
+
+        @Test
+        @DisplayName("null and empty content decode to null")
+        void nullAndEmpty() {
+            assertNull(DeviceTrustClaims.decode(null));
+            assertNull(DeviceTrustClaims.decode(""));
+        }
+    }
+
+    @Nested
+    @DisplayName("Validation")
+    class Validation {
+
+        @Test
+        @DisplayName("valid for the realm and user it was issued for")
+        void validForIssuer() {
+            DeviceTrustClaims claims = new DeviceTrustClaims("realm-1", "user-1", "device-1", now() + 3600);
+
+            assertTrue(claims.isValidFor("realm-1", "user-1"));
+        }
+
+        @Test
+        @DisplayName("rejected for another user or realm")
+        void rejectedForOtherSubject() {
+            DeviceTrustClaims claims = new DeviceTrustClaims("realm-1", "user-1", "device-1", now() + 3600);
+
+            assertFalse(claims.isValidFor("realm-1", "user-2"));
+            assertFalse(claims.isValidFor("realm-2", "user-1"));
+        }
+
+        @Test
+        @DisplayName("expired claims are rejected")
+        void expiredRejected() {
+            DeviceTrustClaims claims = new DeviceTrustClaims("realm-1", "user-1", "device-1", now() - 1);
+
+            assertTrue(claims.isExpired());
+            assertFalse(claims.isValidFor("realm-1", "user-1"));
+        }
+
+        @Test
+        @DisplayName("expiresAt 0 means permanent")
+        void permanent() {
+            DeviceTrustClaims claims = new DeviceTrustClaims("realm-1", "user-1", "device-1", 0);
+
+            assertFalse(claims.isExpired());
+            assertTrue(claims.isValidFor("realm-1", "user-1"));
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.CacheSet;
+import org.infinispan.commons.util.Closeables;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("InfinispanTrustStore")
+class InfinispanTrustStoreTest {
+
+    @Mock
+    private Cache<String, Long> cache;
+
+    @Mock
+    private RealmModel realm;
+
+    @Mock
+    private UserModel user;
+
+    private InfinispanTrustStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = new InfinispanTrustStore(cache);
+        lenient().when(realm.getId()).thenReturn("realm");
+        lenient().when(user.getId()).thenReturn("user");
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void keys(String... keys) {
+        CacheSet<String> keySet = mock(CacheSet.class);
+        when(keySet.iterator()).thenAnswer(invocation -> Closeables.iterator(List.of(keys).iterator()));
+        when(cache.keySet()).thenReturn(keySet);
+    }
+
+    @Nested
+    @DisplayName("IP trust")
+    class IpTrust {
+
+        @Test
+        @DisplayName("stores entry with lifespan matching expiration")
+        void storesWithLifespan() {
+            long expiresAt = now() + 3600;
+
+            store.trustIp(realm, user, "hash", expiresAt);
+
+            verify(cache).put(eq(InfinispanTrustStore.ipKey("realm", "user", "hash")), eq(expiresAt),
+                longThat(l -> l > 3590 && l <= 3600), eq(TimeUnit.SECONDS));
+        }
+
+        @Test
+        @DisplayName("trusted when entry present and not expired")
+        void trustedWhenPresent() {
+            when(cache.get(InfinispanTrustStore.ipKey("realm", "user", "hash"))).thenReturn(now() + 60);
+
+            assertTrue(store.isIpTrusted(realm, user, "hash"));
+        }
+
+        @Test
+        @DisplayName("not trusted when entry missing")
+        void notTrustedWhenMissing() {
+            assertFalse(store.isIpTrusted(realm, user, "hash"));
+        }
+
+        @Test
+        @DisplayName("not trusted when entry outlived its expiration before the reaper ran")
+        void notTrustedWhenExpired() {
+            when(cache.get(InfinispanTrustStore.ipKey("realm", "user", "hash"))).thenReturn(now() - 60);
+
+            assertFalse(store.isIpTrusted(realm, user, "hash"));
+        }
+
+        @Test
+        @DisplayName("refresh only replaces existing entries")
+        void refreshReplaces() {
+            long expiresAt = now() + 3600;
+
+            store.refreshIpTrust(realm, user, "hash", expiresAt);
+
+            verify(cache).replace(eq(InfinispanTrustStore.ipKey("realm", "user", "hash")), eq(expiresAt),
+                anyLong(), eq(TimeUnit.SECONDS));
+            verify(cache, never()).put(anyString(), anyLong(), anyLong(), any());
+        }
+
+        @Test
+        @DisplayName("check-and-extend trusts a live entry in one replace")
+        void checkAndExtendTrusted() {
+            long expiresAt = now() + 3600;
+            when(cache.replace(eq(InfinispanTrustStore.ipKey("realm", "user", "hash")), eq(expiresAt),
+                anyLong(), eq(TimeUnit.SECONDS))).thenReturn(now() + 60);
+
+            assertTrue(store.checkAndExtendIpTrust(realm, user, "hash", expiresAt));
+            verify(cache, never()).get(any());
+        }
+
+        @Test
+        @DisplayName("check-and-extend does not create missing entries")
+        void checkAndExtendMissing() {
+            assertFalse(store.checkAndExtendIpTrust(realm, user, "hash", now() + 3600));
+            verify(cache, never()).put(anyString(), anyLong(), anyLong(), any());
+        }
+    }
+
+    @Nested
+    @DisplayName("Combined evaluation")
+    class Evaluation {
+
+        @Mock
+        private AdvancedCache<String, Long> advancedCache;
+
+        @BeforeEach
+        void setUp() {
+            when(cache.getAdvancedCache()).thenReturn(advancedCache);
+        }
+
+        @Test
+        @DisplayName("reads both entries in one bulk get, device first")
+        void deviceFirst() {
+            String deviceKey = InfinispanTrustStore.deviceKey("realm", "user", "token");
+            String ipKey = InfinispanTrustStore.ipKey("realm", "user", "hash");
+            when(advancedCache.getAll(Set.of(deviceKey, ipKey))).thenReturn(Map.of(deviceKey, 0L, ipKey, now() + 60));
+
+            assertEquals(TrustEvaluation.Kind.DEVICE, store.evaluate(realm, user, "token", "hash").getKind());
+            verify(cache, never()).get(any());
+        }
+
+        @Test
+        @DisplayName("falls back to the IP entry with its expiration")
+        void ipFallback() {
+            String ipKey = InfinispanTrustStore.ipKey("realm", "user", "hash");
+            long expiresAt = now() + 60;
+            when(advancedCache.getAll(anySet())).thenReturn(Map.of(ipKey, expiresAt));
+
+            TrustEvaluation evaluation = store.evaluate(realm, user, "token", "hash");
+
+            assertEquals(TrustEvaluation.Kind.IP, evaluation.getKind());
+            assertEquals(expiresAt, evaluation.getExpiresAt());
+        }
+
+        @Test
+        @DisplayName("expired entries are not trusted")
+        void expired() {
+            String deviceKey = InfinispanTrustStore.deviceKey("realm", "user", "token");
+            when(advancedCache.getAll(anySet())).thenReturn(Map.of(deviceKey, now() - 10));
+
+            assertEquals(TrustEvaluation.NONE, store.evaluate(realm, user, "token", "hash"));
+        }
+    }
+
+    @Nested
+    @DisplayName("Device trust")
+    class DeviceTrust {
+
+        @Test
+        @DisplayName("permanent trust is stored without lifespan")
+        void permanentWithoutLifespan() {
+            store.trustDevice(realm, user, "token", 0);
+
+            verify(cache).put(InfinispanTrustStore.deviceKey("realm", "user", "token"), 0L);
+        }
+
+        @Test
+        @DisplayName("permanent trust is trusted")
+        void permanentTrusted() {
+            when(cache.get(InfinispanTrustStore.deviceKey("realm", "user", "token"))).thenReturn(0L);
+
+            assertTrue(store.isDeviceTrusted(realm, user, "token"));
+        }
+
+        @Test
+        @DisplayName("already expired trust is not stored")
+        void alreadyExpiredNotStored() {
+            store.trustDevice(realm, user, "token", now() - 10);
+
+            verify(cache).remove(InfinispanTrustStore.deviceKey("realm", "user", "token"));
+            verify(cache, never()).put(anyString(), anyLong(), anyLong(), any());
+        }
+
+        @Test
+        @DisplayName("revocation removes the trust and lasts as long as it would have")
+        void revocationKeepsExpiry() {
+            long expiresAt = now() + 3600;
+            when(cache.remove(InfinispanTrustStore.deviceKey("realm", "user", "token"))).thenReturn(expiresAt);
+
+            store.revokeDevice(realm, user, "token");
+
+            verify(cache).put(eq(InfinispanTrustStore.revokedDeviceKey("realm", "user", "token")), eq(expiresAt),
+                longThat(l -> l > 3590 && l <= 3600), eq(TimeUnit.SECONDS));
+        }
+
+        @Test
+        @DisplayName("revoked device is reported as revoked")
+        void revokedReported() {
+            when(cache.containsKey(InfinispanTrustStore.revokedDeviceKey("realm", "user", "token"))).thenReturn(true);
+
+            assertTrue(store.isDeviceRevoked(realm, user, "token"));
+        }
+    }
+
+    @Nested
+    @DisplayName("Bulk revocation")
+    class BulkRevocation {
+
+        @Test
+        @DisplayName("revokes only the entries of the user")
+        void revokesUserEntries() {
+            keys(InfinispanTrustStore.ipKey("realm", "user", "a"), InfinispanTrustStore.ipKey("realm", "other", "a"),
+                InfinispanTrustStore.deviceKey("realm", "user", "token"));
+            when(cache.remove(anyString())).thenReturn(0L);
+
+            assertEquals(1, store.revokeTrust(realm, "user", true, false, 10));
+
+            verify(cache).remove(InfinispanTrustStore.ipKey("realm", "user", "a"));
+            verify(cache, times(1)).remove(anyString());
+        }
+
+        @Test
+        @DisplayName("chunks of one revocation share a single scan of the cache")
+        void chunksShareScan() {
+            keys(InfinispanTrustStore.ipKey("realm", "user", "a"), InfinispanTrustStore.ipKey("realm", "user", "b"),
+                InfinispanTrustStore.ipKey("realm", "user", "c"));
+            when(cache.remove(anyString())).thenReturn(0L);
+
+            assertEquals(2, store.revokeTrust(realm, null, true, true, 2, "job"));
+            assertEquals(1, store.revokeTrust(realm, null, true, true, 2, "job"));
+
+            verify(cache, times(1)).keySet();
+        }
+
+        @Test
+        @DisplayName("a new revocation scans again instead of resuming an abandoned one")
+        void newJobScansAgain() {
+            keys(InfinispanTrustStore.ipKey("realm", "user", "a"), InfinispanTrustStore.ipKey("realm", "user", "b"));
+            when(cache.remove(anyString())).thenReturn(0L);
+
+            assertEquals(1, store.revokeTrust(realm, null, true, true, 1, "abandoned"));
+            assertEquals(1, store.revokeTrust(realm, null, true, true, 1, "job"));
+
+            verify(cache, times(2)).keySet();
+            verify(cache, times(2)).remove(InfinispanTrustStore.ipKey("realm", "user", "a"));
+        }
+
+        @Test
+        @DisplayName("writes a revocation lasting as long as the revoked device trust")
+        void revokesDevices() {
+            long expiresAt = now() + 3600;
+            keys(InfinispanTrustStore.deviceKey("realm", "user", "token"));
+            when(cache.remove(InfinispanTrustStore.deviceKey("realm", "user", "token"))).thenReturn(expiresAt);
+
+            assertEquals(1, store.revokeTrust(realm, null, false, true, 10));
+
+            verify(cache).put(eq(InfinispanTrustStore.revokedDeviceKey("realm", "user", "token")), eq(expiresAt),
+                longThat(l -> l > 3590 && l <= 3600), eq(TimeUnit.SECONDS));
+        }
+
+        @Test
+        @DisplayName("skips entries gone since the scan")
+        void skipsGoneEntries() {
+            keys(InfinispanTrustStore.deviceKey("realm", "user", "token"));
+
+            assertEquals(0, store.revokeTrust(realm, null, false, true, 10));
+
+            verify(cache, never()).put(anyString(), anyLong());
+        }
+    }
+
+    @Nested
+    @DisplayName("Orphan removal")
+    class OrphanRemoval {
+
+        @Test
+        @DisplayName("removes every entry and revocation of a removed user")
+        void removesUser() {
+            keys(InfinispanTrustStore.ipKey("realm", "user", "a"), InfinispanTrustStore.deviceKey("realm", "user", "token"),
+                InfinispanTrustStore.revokedDeviceKey("realm", "user", "old"), InfinispanTrustStore.ipKey("realm", "other", "a"));
+
+            assertEquals(3, store.removeUserTrust("realm", "user"));
+
+            verify(cache).remove(InfinispanTrustStore.ipKey("realm", "user", "a"));
+            verify(cache).remove(InfinispanTrustStore.deviceKey("realm", "user", "token"));
+            verify(cache).remove(InfinispanTrustStore.revokedDeviceKey("realm", "user", "old"));
+            verify(cache, times(3)).remove(anyString());
+        }
+
+        @Test
+        @DisplayName("removes at most the given number of entries of a removed realm")
+        void removesRealm() {
+            keys(InfinispanTrustStore.ipKey("realm", "user", "a"), InfinispanTrustStore.ipKey("other", "user", "a"),
+                InfinispanTrustStore.deviceKey("realm", "user", "token"), InfinispanTrustStore.deviceKey("realm", "other", "token"));
+
+            assertEquals(2, store.removeRealmTrust("realm", 2));
+
+            verify(cache).remove(InfinispanTrustStore.ipKey("realm", "user", "a"));
+            verify(cache).remove(InfinispanTrustStore.deviceKey("realm", "user", "token"));
+            verify(cache, times(2)).remove(anyString());
+        }
+    }
+
+    @Test
+    @DisplayName("cleanup relies on native expiration")
+    void cleanupIsNoop() {
+        assertEquals(0, store.cleanupExpired());
+        verifyNoInteractions(cache);
+    }
+}
@@ -0,0 +1,60 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("IpTrustRefreshBuffer")
+class IpTrustRefreshBufferTest {
+
+    @Test
+    @DisplayName("repeated refreshes of one entry coalesce into the latest expiry")
+    void coalesces() {
+        IpTrustRefreshBuffer buffer = new IpTrustRefreshBuffer(10);
+
+        buffer.offer("realm", "user", "ip", 100);
+        buffer.offer("realm", "user", "ip", 300);
+        buffer.offer("realm", "user", "ip", 200);
+
+        List<IpTrustRefreshBuffer.Refresh> drained = buffer.drain();
+        assertEquals(1, drained.size());
+        assertEquals(300, drained.get(0).getExpiresAt());
+    }
+
+    @Test
+    @DisplayName("different entries are kept apart")
+    void separatesEntries() {
+        IpTrustRefreshBuffer buffer = new IpTrustRefreshBuffer(10);
+
+        buffer.offer("realm", "user-1", "ip", 100);
+        buffer.offer("realm", "user-2", "ip", 100);
+        buffer.offer("realm", "user-1", "other-ip", 100);
+
+        assertEquals(3, buffer.drain().size());
+    }
+
+    @Test
+    @DisplayName("drain empties the buffer")
+    void drainEmpties() {
+        IpTrustRefreshBuffer buffer = new IpTrustRefreshBuffer(10);
+        buffer.offer("realm", "user", "ip", 100);
+
+        buffer.drain();
+
+        assertEquals(0, buffer.size());
+        assertTrue(buffer.drain().isEmpty());
+    }
+
+    @Test
+    @DisplayName("refuses new entries when full but still coalesces queued ones")
+    void bounded() {
+        IpTrustRefreshBuffer buffer = new IpTrustRefreshBuffer(1);
+
+        assertTrue(buffer.offer("realm", "user", "ip", 100));
+        assertFalse(buffer.offer("realm", "user", "other-ip", 100));
+        assertTrue(buffer.offer("realm", "user", "ip", 200));
+    }
+}
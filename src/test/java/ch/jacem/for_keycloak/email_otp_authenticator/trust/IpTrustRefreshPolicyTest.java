@@ -0,0 +1,37 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("IpTrustRefreshPolicy")
+class IpTrustRefreshPolicyTest {
+
+    private static final long NOW = 1_000_000;
+    private static final long DURATION = 3600;
+
+    @Test
+    @DisplayName("threshold of 100% refreshes on every login")
+    void alwaysRefreshAt100() {
+        assertTrue(IpTrustRefreshPolicy.shouldRefresh(NOW + DURATION - 1, NOW, DURATION, 100));
+    }
+
+    @Test
+    @DisplayName("skips the write while more than the threshold remains")
+    void skipsFreshTrust() {
+        assertFalse(IpTrustRefreshPolicy.shouldRefresh(NOW + 3000, NOW, DURATION, 50));
+    }
+
+    @Test
+    @DisplayName("refreshes once less than the threshold remains")
+    void refreshesAgingTrust() {
+        assertTrue(IpTrustRefreshPolicy.shouldRefresh(NOW + 1000, NOW, DURATION, 50));
+    }
+
+    @Test
+    @DisplayName("unknown expiry always refreshes")
+    void unknownExpiry() {
+        assertTrue(IpTrustRefreshPolicy.shouldRefresh(TrustStore.IP_EXPIRY_UNKNOWN, NOW, DURATION, 10));
+    }
+}
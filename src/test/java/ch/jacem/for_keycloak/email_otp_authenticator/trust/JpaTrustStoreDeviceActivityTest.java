@@ -0,0 +1,112 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.TypedQuery;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("JpaTrustStore device activity")
+class JpaTrustStoreDeviceActivityTest {
+
+    private static final String DEVICE = "0f8fad5b-d9cb-469f-a165-70867728950e";
+    private static final long HOUR = 3600L;
+
+    @Mock
+    private KeycloakSession session;
+
+    @Mock
+    private JpaConnectionProvider connection;
+
+    @Mock
+    private EntityManager em;
+
+    @Mock
+    private RealmModel realm;
+
+    @Mock
+    private UserModel user;
+
+    @Mock
+    private Query touchQuery;
+
+    private TypedQuery<Object[]> usageQuery;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        lenient().when(session.getProvider(JpaConnectionProvider.class)).thenReturn(connection);
+        lenient().when(connection.getEntityManager()).thenReturn(em);
+        lenient().when(realm.getId()).thenReturn("realm");
+        lenient().when(user.getId()).thenReturn("user");
+
+        usageQuery = mock(TypedQuery.class, RETURNS_SELF);
+        lenient().when(em.createNamedQuery("findTrustedDeviceUsage", Object[].class)).thenReturn(usageQuery);
+        lenient().when(touchQuery.setParameter(anyString(), any())).thenReturn(touchQuery);
+        lenient().when(em.createNamedQuery("touchTrustedDevice")).thenReturn(touchQuery);
+        lenient().when(em.createNamedQuery("expireTrustedDevice")).thenReturn(touchQuery);
+    }
+
+    @Test
+    @DisplayName("records the use of a device last seen before the interval")
+    void touchesStaleDevice() {
+        when(usageQuery.getResultList()).thenReturn(List.<Object[]>of(new Object[] {0L, now() - 2 * HOUR}));
+
+        assertTrue(store().isDeviceTrusted(realm, user, DEVICE));
+
+        verify(touchQuery).executeUpdate();
+    }
+
+    @Test
+    @DisplayName("does not write for a device seen within the interval")
+    void skipsRecentDevice() {
+        when(usageQuery.getResultList()).thenReturn(List.<Object[]>of(new Object[] {0L, now() - 60}));
+
+        assertTrue(store().isDeviceTrusted(realm, user, DEVICE));
+
+        verify(em, never()).createNamedQuery("touchTrustedDevice");
+    }
+
+    @Test
+    @DisplayName("expires an expired device instead of recording its use")
+    void expiredDevice() {
+        when(usageQuery.getResultList()).thenReturn(List.<Object[]>of(new Object[] {now() - 10, 0L}));
+
+        assertFalse(store().isDeviceTrusted(realm, user, DEVICE));
+
+        verify(em).createNamedQuery("expireTrustedDevice");
+        verify(em, never()).createNamedQuery("touchTrustedDevice");
+    }
+
+    @Test
+    @DisplayName("computes the inactivity threshold in days")
+    void inactivityThreshold() {
+        DeviceActivity activity = new DeviceActivity(HOUR, 30);
+
+        assertEquals(1_700_000_000L - 30 * 24 * HOUR, activity.inactiveBefore(1_700_000_000L));
+    }
+
+    private JpaTrustStore store() {
+        return new JpaTrustStore(session, new DeviceRevocationSet(), null, null, TrustLimits.UNLIMITED, new DeviceActivity(HOUR, 0));
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
@@ -0,0 +1,133 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Base64Url;
+
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.TrustKeys;
+
+@DisplayName("JpaTrustStore combined evaluation")
+class JpaTrustStoreEvaluateTest {
+
+    private static final long NOW = 1_700_000_000L;
+
+    private static final byte[] DEVICE = TrustKeys.deviceTokenToBytes("0f8fad5b-d9cb-469f-a165-70867728950e");
+    private static final byte[] IP = TrustKeys.hashedIpToBytes(Base64Url.encode(new byte[32]));
+
+    private Connection connection;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        connection = DriverManager.getConnection("jdbc:h2:mem:evaluate-" + UUID.randomUUID());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE EMAIL_OTP_TRUSTED_DEVICE ("
+                + "ID VARCHAR(36) PRIMARY KEY, REALM_ID VARCHAR(255) NOT NULL, USER_ID VARCHAR(255) NOT NULL, "
+                + "DEVICE_TOKEN BINARY(16) NOT NULL, EXPIRES_AT BIGINT NOT NULL, CREATED_AT BIGINT NOT NULL, LAST_SEEN_AT BIGINT NOT NULL DEFAULT 0, "
+                + "UNIQUE (REALM_ID, USER_ID, DEVICE_TOKEN))");
+            statement.execute("CREATE TABLE EMAIL_OTP_TRUSTED_IP ("
+                + "ID VARCHAR(36) PRIMARY KEY, REALM_ID VARCHAR(255) NOT NULL, USER_ID VARCHAR(255) NOT NULL, "
+                + "IP_ADDRESS BINARY(32) NOT NULL, EXPIRES_AT BIGINT NOT NULL, CREATED_AT BIGINT NOT NULL, "
+                + "UNIQUE (REALM_ID, USER_ID, IP_ADDRESS))");
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        connection.close();
+    }
+
+    @Test
+    @DisplayName("no trust rows means no trust")
+    void noTrust() throws Exception {
+        assertEquals(TrustEvaluation.NONE, evaluate(DEVICE, IP));
+    }
+
+    @Test
+    @DisplayName("device trust wins over IP trust")
+    void deviceWins() throws Exception {
+        insert("EMAIL_OTP_TRUSTED_IP", "IP_ADDRESS", IP, NOW + 100);
+        insert("EMAIL_OTP_TRUSTED_DEVICE", "DEVICE_TOKEN", DEVICE, 0);
+
+        TrustEvaluation evaluation = evaluate(DEVICE, IP);
+
+        assertEquals(TrustEvaluation.Kind.DEVICE, evaluation.getKind());
+        assertEquals(0, evaluation.getExpiresAt());
+    }
+
+    @Test
+    @DisplayName("device trust reports the last use of the device")
+    void deviceLastSeen() throws Exception {
+        insert("EMAIL_OTP_TRUSTED_DEVICE", "DEVICE_TOKEN", DEVICE, 0);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("UPDATE EMAIL_OTP_TRUSTED_DEVICE SET LAST_SEEN_AT = " + (NOW - 50));
+        }
+
+        assertEquals(NOW - 50, evaluate(DEVICE, IP).getLastSeenAt());
+    }
+
+    @Test
+    @DisplayName("IP trust reports its expiration")
+    void ipTrust() throws Exception {
+        insert("EMAIL_OTP_TRUSTED_IP", "IP_ADDRESS", IP, NOW + 100);
+
+        TrustEvaluation evaluation = evaluate(DEVICE, IP);
+
+        assertEquals(TrustEvaluation.Kind.IP, evaluation.getKind());
+        assertEquals(NOW + 100, evaluation.getExpiresAt());
+    }
+
+    @Test
+    @DisplayName("expired device trust falls back to IP trust")
+    void expiredDevice() throws Exception {
+        insert("EMAIL_OTP_TRUSTED_DEVICE", "DEVICE_TOKEN", DEVICE, NOW - 1);
+        insert("EMAIL_OTP_TRUSTED_IP", "IP_ADDRESS", IP, NOW + 100);
+
+        assertEquals(TrustEvaluation.Kind.IP, evaluate(DEVICE, IP).getKind());
+    }
+
+    @Test
+    @DisplayName("expired IP trust is not trusted")
+    void expiredIp() throws Exception {
+        insert("EMAIL_OTP_TRUSTED_IP", "IP_ADDRESS", IP, NOW - 1);
+
+        assertFalse(evaluate(DEVICE, IP).isTrusted());
+    }
+
+    @Test
+    @DisplayName("trust of another user does not apply")
+    void otherUser() throws Exception {
+        insert("EMAIL_OTP_TRUSTED_DEVICE", "DEVICE_TOKEN", DEVICE, 0);
+
+        TrustEvaluation evaluation = JpaTrustStore.evaluate(connection, "EMAIL_OTP_TRUSTED_DEVICE", "EMAIL_OTP_TRUSTED_IP",
+            "realm", "other-user", DEVICE, IP, NOW);
+
+        assertEquals(TrustEvaluation.NONE, evaluation);
+    }
+
+    private TrustEvaluation evaluate(byte[] deviceToken, byte[] ipAddress) throws Exception {
+        return JpaTrustStore.evaluate(connection, "EMAIL_OTP_TRUSTED_DEVICE", "EMAIL_OTP_TRUSTED_IP",
+            "realm", "user", deviceToken, ipAddress, NOW);
+    }
+
+    private void insert(String table, String keyColumn, byte[] key, long expiresAt) throws Exception {
+        String sql = "INSERT INTO " + table + " (ID, REALM_ID, USER_ID, " + keyColumn + ", EXPIRES_AT, CREATED_AT)"
+            + " VALUES (?, 'realm', 'user', ?, ?, ?)";
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, UUID.randomUUID().toString());
+            statement.setBytes(2, key);
+            statement.setLong(3, expiresAt);
+            statement.setLong(4, NOW);
+            statement.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.hibernate.Session;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.DeviceRevocationEntity;
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.TrustedDeviceEntity;
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.TrustedIpEntity;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.TypedQuery;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("JpaTrustStore per-user limits")
+class JpaTrustStoreLimitsTest {
+
+    private static final String DEVICE = "0f8fad5b-d9cb-469f-a165-70867728950e";
+    private static final String IP = Base64Url.encode(new byte[32]);
+
+    @Mock
+    private KeycloakSession session;
+
+    @Mock
+    private JpaConnectionProvider connection;
+
+    @Mock
+    private EntityManager em;
+
+    @Mock
+    private Session hibernateSession;
+
+    @Mock
+    private RealmModel realm;
+
+    @Mock
+    private UserModel user;
+
+    @Mock
+    private Query deleteQuery;
+
+    @Mock
+    private KeycloakTransactionManager transactionManager;
+
+    @BeforeEach
+    void setUp() {
+        lenient().when(session.getProvider(JpaConnectionProvider.class)).thenReturn(connection);
+        lenient().when(connection.getEntityManager()).thenReturn(em);
+        lenient().when(em.unwrap(Session.class)).thenReturn(hibernateSession);
+        // No native upsert, entries are written through JPA
+        lenient().when(hibernateSession.doReturningWork(any())).thenReturn(TrustUpsertDialect.UNSUPPORTED);
+        lenient().when(realm.getId()).thenReturn("realm");
+        lenient().when(user.getId()).thenReturn("user");
+        lenient().when(deleteQuery.setParameter(anyString(), any())).thenReturn(deleteQuery);
+
+        TypedQuery<TrustedDeviceEntity> findDevice = typedQuery();
+        lenient().when(findDevice.getResultStream()).thenReturn(Stream.empty());
+        lenient().when(em.createNamedQuery("findTrustedDevice", TrustedDeviceEntity.class)).thenReturn(findDevice);
+
+        TypedQuery<TrustedIpEntity> findIp = typedQuery();
+        lenient().when(findIp.getResultStream()).thenReturn(Stream.empty());
+        lenient().when(em.createNamedQuery("findTrustedIp", TrustedIpEntity.class)).thenReturn(findIp);
+    }
+
+    @Test
+    @DisplayName("evicts the devices beyond the limit in the same transaction")
+    void evictsDevices() {
+        TypedQuery<TrustedDeviceEntity> recent = typedQuery();
+        when(recent.getResultList()).thenReturn(List.of(device("old-1", false), device("old-2", false)));
+        when(em.createNamedQuery("findTrustedDevicesByRecentUse", TrustedDeviceEntity.class)).thenReturn(recent);
+        when(em.createNamedQuery("deleteTrustedDevicesById")).thenReturn(deleteQuery);
+        when(deleteQuery.executeUpdate()).thenReturn(2);
+
+        store(new TrustLimits(3, 0)).trustDevice(realm, user, DEVICE, 0);
+
+        verify(em).persist(any(TrustedDeviceEntity.class));
+        verify(em, never()).persist(any(DeviceRevocationEntity.class));
+        verify(recent).setFirstResult(3);
+        verify(deleteQuery).setParameter("ids", List.of("old-1", "old-2"));
+        verify(deleteQuery).executeUpdate();
+    }
+
+    @Test
+    @DisplayName("revokes the evicted stateless devices")
+    void revokesEvictedStatelessDevices() {
+        TypedQuery<TrustedDeviceEntity> recent = typedQuery();
+        when(recent.getResultList()).thenReturn(List.of(device("old", true)));
+        when(em.createNamedQuery("findTrustedDevicesByRecentUse", TrustedDeviceEntity.class)).thenReturn(recent);
+        when(em.createNamedQuery("deleteTrustedDevicesById")).thenReturn(deleteQuery);
+        when(session.getTransactionManager()).thenReturn(transactionManager);
+
+        store(new TrustLimits(1, 0)).trustDevice(realm, user, DEVICE, 0, true);
+
+        ArgumentCaptor<DeviceRevocationEntity> revocation = ArgumentCaptor.forClass(DeviceRevocationEntity.class);
+        verify(em).persist(revocation.capture());
+        assertEquals("token-old", revocation.getValue().getDeviceToken());
+        verify(deleteQuery).setParameter("ids", List.of("old"));
+    }
+
+    @Test
+    @DisplayName("does not delete anything while under the limit")
+    void underLimit() {
+        TypedQuery<String> recent = typedQuery();
+        when(recent.getResultList()).thenReturn(List.of());
+        when(em.createNamedQuery("findTrustedIpIdsByRecentUse", String.class)).thenReturn(recent);
+
+        store(new TrustLimits(0, 5)).trustIp(realm, user, IP, 1_700_000_000L);
+
+        verify(recent).setFirstResult(5);
+        verify(em, never()).createNamedQuery("deleteTrustedIpsById");
+    }
+
+    @Test
+    @DisplayName("keeps every entry when unlimited")
+    void unlimited() {
+        store(TrustLimits.UNLIMITED).trustDevice(realm, user, DEVICE, 0);
+
+        verify(em, never()).createNamedQuery(eq("findTrustedDevicesByRecentUse"), eq(TrustedDeviceEntity.class));
+    }
+
+    @Test
+    @DisplayName("treats negative limits as unlimited")
+    void negativeLimits() {
+        TrustLimits limits = new TrustLimits(-1, -5);
+
+        assertEquals(0, limits.getMaxDevicesPerUser());
+        assertEquals(0, limits.getMaxIpsPerUser());
+    }
+
+    private JpaTrustStore store(TrustLimits limits) {
+        return new JpaTrustStore(session, new DeviceRevocationSet(), null, null, limits, DeviceActivity.DEFAULT);
+    }
+
+    private static TrustedDeviceEntity device(String id, boolean stateless) {
+        TrustedDeviceEntity device = new TrustedDeviceEntity(id, "realm", "user", "token-" + id, 1_900_000_000L, 1_700_000_000L);
+        device.setStateless(stateless);
+        return device;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> TypedQuery<T> typedQuery() {
+        TypedQuery<T> query = mock(TypedQuery.class, RETURNS_SELF);
+        return query;
+    }
+}
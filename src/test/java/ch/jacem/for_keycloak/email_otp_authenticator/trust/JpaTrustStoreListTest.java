@@ -0,0 +1,139 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("JpaTrustStore listing")
+class JpaTrustStoreListTest {
+
+    @Mock
+    private KeycloakSession session;
+
+    @Mock
+    private JpaConnectionProvider connection;
+
+    @Mock
+    private EntityManager em;
+
+    @Mock
+    private RealmModel realm;
+
+    private TypedQuery<Object[]> query;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        lenient().when(session.getProvider(JpaConnectionProvider.class)).thenReturn(connection);
+        lenient().when(connection.getEntityManager()).thenReturn(em);
+        lenient().when(realm.getId()).thenReturn("realm");
+        query = mock(TypedQuery.class, RETURNS_SELF);
+    }
+
+    @Nested
+    @DisplayName("listTrust")
+    class ListTrust {
+
+        @Test
+        @DisplayName("returns a cursor after the last entry when more rows follow")
+        void nextPage() {
+            when(em.createNamedQuery("listTrustedDevicesByUser", Object[].class)).thenReturn(query);
+            when(query.getResultList()).thenReturn(List.of(
+                new Object[] {"a", "user", 10L, 0L, 15L},
+                new Object[] {"b", "user", 20L, 100L, 25L},
+                new Object[] {"c", "user", 30L, 0L, 30L}));
+
+            TrustPage page = store().listTrust(realm, "user", TrustEntry.Kind.DEVICE, TrustFilter.ALL, null, 2);
+
+            assertEquals(2, page.getEntries().size());
+            assertEquals(25L, page.getEntries().get(1).getLastSeenAt());
+            TrustPage.Position next = TrustPage.position(page.getNext());
+            assertEquals(20L, next.createdAt);
+            assertEquals("b", next.id);
+            verify(query).setMaxResults(3);
+            verify(query).setParameter("userId", "user");
+        }
+
+        @Test
+        @DisplayName("continues after the cursor and ends without one")
+        void lastPage() {
+            when(em.createNamedQuery("listTrustedIpsByRealm", Object[].class)).thenReturn(query);
+            when(query.getResultList()).thenReturn(List.<Object[]>of(new Object[] {"c", "other", 30L, 40L}));
+            String cursor = TrustPage.cursor(new TrustEntry(TrustEntry.Kind.IP, "b", "user", 20L, 0L, 0L));
+
+            TrustPage page = store().listTrust(realm, null, TrustEntry.Kind.IP, new TrustFilter(null, null, 35L, null), cursor, 2);
+
+            assertEquals(1, page.getEntries().size());
+            assertEquals(0L, page.getEntries().get(0).getLastSeenAt());
+            assertNull(page.getNext());
+            verify(query).setParameter("afterCreatedAt", 20L);
+            verify(query).setParameter("afterId", "b");
+            verify(query).setParameter("expiresFrom", 35L);
+            verify(query).setParameter("expiresTo", Long.MAX_VALUE);
+            verify(query, never()).setParameter(eq("userId"), any());
+        }
+    }
+
+    @Nested
+    @DisplayName("cursor")
+    class Cursor {
+
+        @Test
+        @DisplayName("starts before every entry without a cursor")
+        void start() {
+            assertSame(TrustPage.Position.START, TrustPage.position(null));
+        }
+
+        @Test
+        @DisplayName("rejects a cursor it did not return")
+        void invalid() {
+            assertThrows(IllegalArgumentException.class, () -> TrustPage.position("not-a-cursor"));
+        }
+    }
+
+    @Nested
+    @DisplayName("filter")
+    class Filter {
+
+        @Test
+        @DisplayName("keeps permanent entries without an expiration bound")
+        void unbounded() {
+            assertEquals(Long.MIN_VALUE, TrustFilter.ALL.getExpiresFrom());
+        }
+
+        @Test
+        @DisplayName("leaves permanent entries out of an expiration upper bound")
+        void upperBoundOnly() {
+            TrustFilter filter = new TrustFilter(null, null, null, 100L);
+
+            assertEquals(1L, filter.getExpiresFrom());
+            assertEquals(100L, filter.getExpiresTo());
+        }
+
+        @Test
+        @DisplayName("leaves permanent entries out of an expiration range from 0")
+        void lowerBoundZero() {
+            assertEquals(1L, new TrustFilter(null, null, 0L, null).getExpiresFrom());
+        }
+    }
+
+    private JpaTrustStore store() {
+        return new JpaTrustStore(session, new DeviceRevocationSet(), null);
+    }
+}
@@ -0,0 +1,185 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.DeviceRevocationEntity;
+import ch.jacem.for_keycloak.email_otp_authenticator.jpa.TrustedDeviceEntity;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.TypedQuery;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("JpaTrustStore revocations")
+class JpaTrustStoreRevocationTest {
+
+    private static final String DEVICE = "0f8fad5b-d9cb-469f-a165-70867728950e";
+
+    @Mock
+    private KeycloakSession session;
+
+    @Mock
+    private KeycloakTransactionManager transactionManager;
+
+    @Mock
+    private JpaConnectionProvider connection;
+
+    @Mock
+    private EntityManager em;
+
+    @Mock
+    private RealmModel realm;
+
+    @Mock
+    private UserModel user;
+
+    @Mock
+    private Query deleteQuery;
+
+    private TypedQuery<TrustedDeviceEntity> findDevice;
+    private final DeviceRevocationSet revocations = new DeviceRevocationSet();
+
+    @BeforeEach
+    void setUp() {
+        lenient().when(session.getProvider(JpaConnectionProvider.class)).thenReturn(connection);
+        lenient().when(session.getTransactionManager()).thenReturn(transactionManager);
+        lenient().when(connection.getEntityManager()).thenReturn(em);
+        lenient().when(realm.getId()).thenReturn("realm");
+        lenient().when(user.getId()).thenReturn("user");
+        lenient().when(deleteQuery.setParameter(anyString(), any())).thenReturn(deleteQuery);
+        findDevice = typedQuery();
+        lenient().when(em.createNamedQuery("findTrustedDevice", TrustedDeviceEntity.class)).thenReturn(findDevice);
+        revocations.refresh(Collections::emptyList);
+    }
+
+    @Nested
+    @DisplayName("revokeDevice")
+    class RevokeDevice {
+
+        @Test
+        @DisplayName("replaces a stateless device by a revocation lasting until it would have expired")
+        void stateless() {
+            TrustedDeviceEntity device = device(true, 1_900_000_000L);
+            when(findDevice.getResultStream()).thenReturn(Stream.of(device));
+
+            store().revokeDevice(realm, user, DEVICE);
+
+            verify(em).remove(device);
+            DeviceRevocationEntity revocation = persistedRevocation();
+            assertEquals(DEVICE, revocation.getDeviceToken());
+            assertEquals(1_900_000_000L, revocation.getExpiresAt());
+
+            committed();
+            assertTrue(revocations.isRevoked(DEVICE, Collections::emptyList));
+        }
+
+        @Test
+        @DisplayName("keeps the revocation of a permanent device as long as its cookie")
+        void permanent() {
+            when(findDevice.getResultStream()).thenReturn(Stream.of(device(true, 0)));
+
+            store().revokeDevice(realm, user, DEVICE);
+
+            assertEquals(1_700_000_000L + DeviceTrustClaims.PERMANENT_MAX_AGE_SECONDS, persistedRevocation().getExpiresAt());
+        }
+
+        @Test
+        @DisplayName("only removes a device checked against its row")
+        void stateful() {
+            TrustedDeviceEntity device = device(false, 0);
+            when(findDevice.getResultStream()).thenReturn(Stream.of(device));
+
+            store().revokeDevice(realm, user, DEVICE);
+
+            verify(em).remove(device);
+            verify(em, never()).persist(any());
+            verifyNoInteractions(transactionManager);
+        }
+
+        @Test
+        @DisplayName("writes nothing for an unknown device")
+        void unknown() {
+            when(findDevice.getResultStream()).thenReturn(Stream.empty());
+
+            store().revokeDevice(realm, user, DEVICE);
+
+            verify(em, never()).persist(any());
+            verify(em, never()).remove(any());
+        }
+    }
+
+    @Nested
+    @DisplayName("revokeTrust")
+    class RevokeTrust {
+
+        @Test
+        @DisplayName("writes revocations for the stateless devices only")
+        void statelessOnly() {
+            TrustedDeviceEntity stateless = device(true, 1_900_000_000L);
+            TrustedDeviceEntity stateful = device(false, 1_900_000_000L);
+            stateful.setId("stateful");
+            stateful.setDeviceToken("1f8fad5b-d9cb-469f-a165-70867728950e");
+            TypedQuery<TrustedDeviceEntity> devices = typedQuery();
+            when(devices.getResultList()).thenReturn(List.of(stateless, stateful));
+            when(em.createNamedQuery("findTrustedDevicesByUser", TrustedDeviceEntity.class)).thenReturn(devices);
+            when(em.createNamedQuery("deleteTrustedDevicesById")).thenReturn(deleteQuery);
+            when(deleteQuery.executeUpdate()).thenReturn(2);
+
+            assertEquals(2, store().revokeTrust(realm, "user", false, true, 10));
+
+            verify(deleteQuery).setParameter("ids", List.of("id", "stateful"));
+            assertEquals(DEVICE, persistedRevocation().getDeviceToken());
+            committed();
+            assertEquals(1, revocations.size());
+        }
+    }
+
+    private JpaTrustStore store() {
+        return new JpaTrustStore(session, revocations, null);
+    }
+
+    private DeviceRevocationEntity persistedRevocation() {
+        ArgumentCaptor<DeviceRevocationEntity> revocation = ArgumentCaptor.forClass(DeviceRevocationEntity.class);
+        verify(em).persist(revocation.capture());
+        return revocation.getValue();
+    }
+
+    private void committed() {
+        ArgumentCaptor<KeycloakTransaction> transaction = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(transactionManager).enlistAfterCompletion(transaction.capture());
+        transaction.getValue().begin();
+        transaction.getValue().commit();
+    }
+
+    private static TrustedDeviceEntity device(boolean stateless, long expiresAt) {
+        TrustedDeviceEntity device = new TrustedDeviceEntity("id", "realm", "user", DEVICE, expiresAt, 1_700_000_000L);
+        device.setStateless(stateless);
+        return device;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> TypedQuery<T> typedQuery() {
+        TypedQuery<T> query = mock(TypedQuery.class, RETURNS_SELF);
+        return query;
+    }
+}
@@ -0,0 +1,36 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("SampledExpiryPolicy")
+class SampledExpiryPolicyTest {
+
+    @Test
+    @DisplayName("samples again while the expired share is above target")
+    void aboveTarget() {
+        assertTrue(SampledExpiryPolicy.isAboveTarget(20, 3, 10));
+    }
+
+    @Test
+    @DisplayName("stops at or below the target")
+    void atOrBelowTarget() {
+        assertFalse(SampledExpiryPolicy.isAboveTarget(20, 2, 10));
+        assertFalse(SampledExpiryPolicy.isAboveTarget(20, 0, 10));
+    }
+
+    @Test
+    @DisplayName("stops on an empty sample")
+    void emptySample() {
+        assertFalse(SampledExpiryPolicy.isAboveTarget(0, 0, 10));
+    }
+
+    @Test
+    @DisplayName("a zero target samples again while anything is expired")
+    void zeroTarget() {
+        assertTrue(SampledExpiryPolicy.isAboveTarget(20, 1, 0));
+        assertFalse(SampledExpiryPolicy.isAboveTarget(20, 0, 0));
+    }
+}
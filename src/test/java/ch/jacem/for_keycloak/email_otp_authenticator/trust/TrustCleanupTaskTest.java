@@ -0,0 +1,115 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("TrustCleanupTask")
+class TrustCleanupTaskTest {
+
+    @Mock
+    private KeycloakSessionFactory factory;
+
+    @Mock
+    private KeycloakSession session;
+
+    @Mock
+    private KeycloakTransactionManager transactionManager;
+
+    @Mock
+    private TrustStore trustStore;
+
+    @Mock
+    private ClusterProvider cluster;
+
+    @Mock
+    private SingleUseObjectProvider markers;
+
+    @BeforeEach
+    void setUp() {
+        lenient().when(factory.create()).thenReturn(session);
+        lenient().when(session.getKeycloakSessionFactory()).thenReturn(factory);
+        lenient().when(session.getTransactionManager()).thenReturn(transactionManager);
+        lenient().when(transactionManager.isActive()).thenReturn(true);
+        lenient().when(session.getProvider(TrustStore.class)).thenReturn(trustStore);
+    }
+
+    @Test
+    @DisplayName("removes batches until one comes back short")
+    void drainsInBatches() {
+        when(trustStore.cleanupExpired(10)).thenReturn(10, 10, 3);
+
+        int removed = new TrustCleanupTask(10, 60_000, 0, 3600).cleanup(factory);
+
+        assertEquals(23, removed);
+        verify(trustStore, times(3)).cleanupExpired(10);
+        verify(trustStore, never()).countExpired();
+    }
+
+    @Test
+    @DisplayName("stops at the time budget and reports the backlog")
+    void stopsAtBudget() {
+        when(trustStore.cleanupExpired(10)).thenReturn(10);
+        when(trustStore.countExpired()).thenReturn(500L);
+
+        int removed = new TrustCleanupTask(10, 0, 0, 3600).cleanup(factory);
+
+        assertEquals(10, removed);
+        verify(trustStore).cleanupExpired(10);
+        verify(trustStore).countExpired();
+    }
+
+    @Test
+    @DisplayName("skips the cleanup when another node holds the cluster lock")
+    void skipsWhenLocked() {
+        when(session.getProvider(ClusterProvider.class)).thenReturn(cluster);
+        when(cluster.executeIfNotExecuted(eq(TrustCleanupTask.TASK_KEY), eq(3600), any())).thenReturn(ExecutionResult.notExecuted());
+
+        new TrustCleanupTask(10, 60_000, 0, 3600).run(session);
+
+        verify(trustStore, never()).cleanupExpired(anyInt());
+    }
+
+    @Test
+    @DisplayName("skips the cleanup for the rest of an interval another node started")
+    void skipsClaimedInterval() {
+        when(session.getProvider(ClusterProvider.class)).thenReturn(cluster);
+        when(session.getProvider(SingleUseObjectProvider.class)).thenReturn(markers);
+        when(markers.putIfAbsent(TrustCleanupTask.TASK_KEY + ":last-run", 3599)).thenReturn(false);
+
+        new TrustCleanupTask(10, 60_000, 0, 3600).run(session);
+
+        verify(cluster, never()).executeIfNotExecuted(anyString(), anyInt(), any());
+        verify(trustStore, never()).cleanupExpired(anyInt());
+    }
+
+    @Test
+    @DisplayName("runs the cleanup under the cluster lock")
+    @SuppressWarnings("unchecked")
+    void runsUnderLock() throws Exception {
+        when(session.getProvider(ClusterProvider.class)).thenReturn(cluster);
+        when(trustStore.cleanupExpired(10)).thenReturn(2);
+        when(cluster.executeIfNotExecuted(eq(TrustCleanupTask.TASK_KEY), eq(3600), any()))
+            .thenAnswer(invocation -> ExecutionResult.executed(((Callable<Integer>) invocation.getArgument(2)).call()));
+
+        new TrustCleanupTask(10, 60_000, 0, 3600).run(session);
+
+        verify(trustStore).cleanupExpired(10);
+    }
+}
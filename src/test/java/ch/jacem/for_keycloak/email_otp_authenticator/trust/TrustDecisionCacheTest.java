@@ -0,0 +1,217 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("TrustDecisionCache")
+class TrustDecisionCacheTest {
+
+    @Nested
+    @DisplayName("Caching")
+    class Caching {
+
+        @Test
+        @DisplayName("second lookup is served from cache")
+        void cachesPositiveResult() {
+            TrustDecisionCache cache = new TrustDecisionCache(10, 60_000, 60_000);
+            AtomicInteger loads = new AtomicInteger();
+
+            assertTrue(cache.get("k", () -> { loads.incrementAndGet(); return true; }));
+            assertTrue(cache.get("k", () -> { loads.incrementAndGet(); return false; }));
+
+            assertEquals(1, loads.get());
+        }
+
+        @Test
+        @DisplayName("negative results are cached with their own TTL")
+        void negativeTtlDisabled() {
+            TrustDecisionCache cache = new TrustDecisionCache(10, 60_000, 0);
+            AtomicInteger loads = new AtomicInteger();
+
+            assertFalse(cache.get("k", () -> { loads.incrementAndGet(); return false; }));
+            assertFalse(cache.get("k", () -> { loads.incrementAndGet(); return false; }));
+
+            assertEquals(2, loads.get());
+        }
+
+        @Test
+        @DisplayName("invalidation forces a reload")
+        void invalidationReloads() {
+            TrustDecisionCache cache = new TrustDecisionCache(10, 60_000, 60_000);
+
+            assertFalse(cache.get("k", () -> false));
+            cache.invalidate("k");
+
+            assertTrue(cache.get("k", () -> true));
+        }
+
+        @Test
+        @DisplayName("invalidateAll clears every entry")
+        void invalidateAllClears() {
+            TrustDecisionCache cache = new TrustDecisionCache(10, 60_000, 60_000);
+            cache.get("a", () -> true);
+            cache.get("b", () -> true);
+
+            cache.invalidateAll();
+
+            assertEquals(0, cache.size());
+        }
+
+        @Test
+        @DisplayName("invalidatePrefix clears only matching entries")
+        void invalidatePrefixClearsMatching() {
+            TrustDecisionCache cache = new TrustDecisionCache(10, 60_000, 60_000);
+            cache.get("realm:alice:ip:a", () -> true);
+            cache.get("realm:alice:device:b", () -> true);
+            cache.get("realm:bob:ip:a", () -> true);
+
+            cache.invalidatePrefix("realm:alice:");
+
+            assertEquals(1, cache.size());
+            assertNotNull(cache.peek("realm:bob:ip:a"));
+        }
+
+        @Test
+        @DisplayName("evicts least recently used entries above the bound")
+        void boundedSize() {
+            TrustDecisionCache cache = new TrustDecisionCache(2, 60_000, 60_000);
+            AtomicInteger loads = new AtomicInteger();
+
+            cache.get("a", () -> true);
+            cache.get("b", () -> true);
+            cache.get("a", () -> true); // touch a
+            cache.get("c", () -> true); // evicts b
+
+            assertEquals(2, cache.size());
+            cache.get("b", () -> { loads.incrementAndGet(); return true; });
+            assertEquals(1, loads.get());
+        }
+    }
+
+    @Nested
+    @DisplayName("Expirations")
+    class Expirations {
+
+        @Test
+        @DisplayName("caches the trust expiration with the decision")
+        void cachesExpiration() {
+            TrustDecisionCache cache = new TrustDecisionCache(10, 60_000, 60_000);
+            long expiresAt = System.currentTimeMillis() / 1000 + 3600;
+            AtomicInteger loads = new AtomicInteger();
+
+            cache.getExpiresAt("k", () -> { loads.incrementAndGet(); return expiresAt; });
+
+            assertEquals(expiresAt, cache.getExpiresAt("k", () -> { loads.incrementAndGet(); return 0; }));
+            assertEquals(1, loads.get());
+        }
+
+        @Test
+        @DisplayName("never serves a decision past the trust expiration")
+        void expiredTrustNotCached() {
+            TrustDecisionCache cache = new TrustDecisionCache(10, 60_000, 60_000);
+            long expired = System.currentTimeMillis() / 1000 - 1;
+
+            cache.put("k", expired, cache.generation());
+
+            assertNull(cache.peek("k"));
+        }
+
+        @Test
+        @DisplayName("extend moves a cached expiration later only")
+        void extendMovesLater() {
+            TrustDecisionCache cache = new TrustDecisionCache(10, 60_000, 60_000);
+            long expiresAt = System.currentTimeMillis() / 1000 + 3600;
+            cache.put("k", expiresAt, cache.generation());
+
+            cache.extend("k", expiresAt + 60);
+            assertEquals(expiresAt + 60, cache.peek("k").longValue());
+
+            cache.extend("k", expiresAt);
+            assertEquals(expiresAt + 60, cache.peek("k").longValue());
+        }
+
+        @Test
+        @DisplayName("put after an invalidation is discarded")
+        void putAfterInvalidationDiscarded() {
+            TrustDecisionCache cache = new TrustDecisionCache(10, 60_000, 60_000);
+            long loadGeneration = cache.generation();
+
+            cache.invalidatePrefix("realm:alice:");
+            cache.put("realm:bob:ip:a", 0, loadGeneration);
+
+            assertNull(cache.peek("realm:bob:ip:a"));
+        }
+    }
+
+    @Nested
+    @DisplayName("Single-flight")
+    class SingleFlight {
+
+        @Test
+        @DisplayName("concurrent misses for the same key share one load")
+        void concurrentMissesShareLoad() throws Exception {
+            TrustDecisionCache cache = new TrustDecisionCache(10, 60_000, 60_000);
+            AtomicInteger loads = new AtomicInteger();
+            CountDownLatch loading = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<Boolean>> results = new ArrayList<>();
+                results.add(executor.submit(() -> cache.get("k", () -> {
+                    loads.incrementAndGet();
+                    loading.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return true;
+                })));
+                assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+                for (int i = 0; i < 7; i++) {
+                    results.add(executor.submit(() -> cache.get("k", () -> {
+                        loads.incrementAndGet();
+                        return true;
+                    })));
+                }
+                Thread.sleep(50);
+                release.countDown();
+
+                for (Future<Boolean> result : results) {
+                    assertTrue(result.get(5, TimeUnit.SECONDS));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            assertEquals(1, loads.get());
+        }
+
+        @Test
+        @DisplayName("load racing an invalidation is not cached")
+        void loadRacingInvalidationNotCached() {
+            TrustDecisionCache cache = new TrustDecisionCache(10, 60_000, 60_000);
+
+            cache.get("k", () -> {
+                cache.invalidate("k");
+                return false;
+            });
+
+            assertTrue(cache.get("k", () -> true));
+        }
+    }
+}
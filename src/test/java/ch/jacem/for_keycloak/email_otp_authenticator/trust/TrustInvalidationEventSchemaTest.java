@@ -0,0 +1,56 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("TrustInvalidationEventSchema")
+class TrustInvalidationEventSchemaTest {
+
+    private SerializationContext context;
+
+    @BeforeEach
+    void setUp() {
+        context = ProtobufUtil.newSerializationContext();
+        TrustInvalidationEventSchema schema = new TrustInvalidationEventSchemaImpl();
+        schema.registerSchema(context);
+        schema.registerMarshallers(context);
+    }
+
+    @Test
+    @DisplayName("round-trips a keyed invalidation")
+    void roundTripsKey() throws Exception {
+        byte[] bytes = ProtobufUtil.toWrappedByteArray(context, new TrustInvalidationEvent("realm:user:ip:hash"));
+
+        TrustInvalidationEvent event = (TrustInvalidationEvent) ProtobufUtil.fromWrappedByteArray(context, bytes);
+
+        assertEquals("realm:user:ip:hash", event.getKey());
+        assertFalse(event.isPrefix());
+        assertFalse(event.isAll());
+    }
+
+    @Test
+    @DisplayName("round-trips a prefix invalidation")
+    void roundTripsPrefix() throws Exception {
+        byte[] bytes = ProtobufUtil.toWrappedByteArray(context, TrustInvalidationEvent.prefix("realm:user:"));
+
+        TrustInvalidationEvent event = (TrustInvalidationEvent) ProtobufUtil.fromWrappedByteArray(context, bytes);
+
+        assertEquals("realm:user:", event.getKey());
+        assertTrue(event.isPrefix());
+    }
+
+    @Test
+    @DisplayName("round-trips a full invalidation")
+    void roundTripsAll() throws Exception {
+        byte[] bytes = ProtobufUtil.toWrappedByteArray(context, TrustInvalidationEvent.all());
+
+        TrustInvalidationEvent event = (TrustInvalidationEvent) ProtobufUtil.fromWrappedByteArray(context, bytes);
+
+        assertTrue(event.isAll());
+    }
+}
@@ -0,0 +1,133 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.TypedQuery;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("TrustOrphanCleanup")
+class TrustOrphanCleanupTest {
+
+    @Mock
+    private KeycloakSessionFactory factory;
+
+    @Mock
+    private KeycloakSession session;
+
+    @Mock
+    private KeycloakTransactionManager transactionManager;
+
+    @Mock
+    private JpaConnectionProvider connection;
+
+    @Mock
+    private EntityManager em;
+
+    @Mock
+    private RealmModel realm;
+
+    @Mock
+    private UserModel user;
+
+    @Mock
+    private Query deleteQuery;
+
+    @BeforeEach
+    void setUp() {
+        lenient().when(factory.create()).thenReturn(session);
+        lenient().when(session.getKeycloakSessionFactory()).thenReturn(factory);
+        lenient().when(session.getTransactionManager()).thenReturn(transactionManager);
+        lenient().when(transactionManager.isActive()).thenReturn(true);
+        lenient().when(session.getProvider(JpaConnectionProvider.class)).thenReturn(connection);
+        lenient().when(connection.getEntityManager()).thenReturn(em);
+        lenient().when(session.getProvider(TrustStore.class)).thenReturn(new JpaTrustStore(session, new DeviceRevocationSet(), null));
+        lenient().when(realm.getId()).thenReturn("realm");
+        lenient().when(user.getId()).thenReturn("user");
+        lenient().when(deleteQuery.setParameter(anyString(), any())).thenReturn(deleteQuery);
+        lenient().when(em.createNamedQuery(anyString())).thenReturn(deleteQuery);
+    }
+
+    @Test
+    @DisplayName("removes a removed user's entries in the removing transaction")
+    void removesUser() {
+        new TrustOrphanCleanup(factory, 100).onEvent(new UserModel.UserRemovedEvent() {
+            @Override
+            public RealmModel getRealm() {
+                return realm;
+            }
+
+            @Override
+            public UserModel getUser() {
+                return user;
+            }
+
+            @Override
+            public KeycloakSession getKeycloakSession() {
+                return session;
+            }
+        });
+
+        verify(em).createNamedQuery("deleteTrustedIpsByUser");
+        verify(em).createNamedQuery("deleteTrustedDevicesByUser");
+        verify(em).createNamedQuery("deleteDeviceRevocationsByUser");
+        verify(deleteQuery, times(3)).executeUpdate();
+    }
+
+    @Test
+    @DisplayName("removes a removed realm's entries only after the removal committed")
+    void defersRealm() {
+        new TrustOrphanCleanup(factory, 100).onEvent(new RealmModel.RealmRemovedEvent() {
+            @Override
+            public RealmModel getRealm() {
+                return realm;
+            }
+
+            @Override
+            public KeycloakSession getKeycloakSession() {
+                return session;
+            }
+        });
+
+        ArgumentCaptor<KeycloakTransaction> transaction = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(transactionManager).enlistAfterCompletion(transaction.capture());
+        verify(em, never()).createNamedQuery(anyString(), eq(String.class));
+        assertNotNull(transaction.getValue());
+    }
+
+    @Test
+    @DisplayName("removes a realm's entries in batches until one comes back short")
+    @SuppressWarnings("unchecked")
+    void removesRealmInBatches() {
+        TypedQuery<String> ids = mock(TypedQuery.class, RETURNS_SELF);
+        when(ids.getResultList()).thenReturn(List.of("a", "b"), List.of("c"), List.of(), List.of());
+        when(em.createNamedQuery(anyString(), eq(String.class))).thenReturn(ids);
+        when(deleteQuery.executeUpdate()).thenReturn(2, 1);
+
+        int removed = new TrustOrphanCleanup(factory, 3).removeRealmTrust("realm");
+
+        assertEquals(3, removed);
+        // IPs and devices fill the first batch, the second finds every table empty
+        verify(ids, times(5)).getResultList();
+    }
+}
@@ -0,0 +1,117 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("TrustPartitioning")
+class TrustPartitioningTest {
+
+    private static final long DAY = 86_400L;
+
+    // 2023-11-14T22:13:20Z
+    private static final long NOW = 1_700_000_000L;
+    private static final long TODAY = 1_699_920_000L;
+
+    @Nested
+    @DisplayName("Partition bounds")
+    class Bounds {
+
+        @Test
+        @DisplayName("parses the bounds printed by PostgreSQL")
+        void parsesRange() {
+            assertArrayEquals(new long[] {TODAY, TODAY + DAY},
+                TrustPartitioning.parseRange("FOR VALUES FROM ('" + TODAY + "') TO ('" + (TODAY + DAY) + "')"));
+            assertArrayEquals(new long[] {TODAY, TODAY + DAY},
+                TrustPartitioning.parseRange("FOR VALUES FROM (" + TODAY + ") TO (" + (TODAY + DAY) + ")"));
+        }
+
+        @Test
+        @DisplayName("ignores the default and permanent partitions")
+        void ignoresSpecialPartitions() {
+            assertNull(TrustPartitioning.parseRange("DEFAULT"));
+            assertNull(TrustPartitioning.parseRange("FOR VALUES FROM (MINVALUE) TO ('1')"));
+            assertNull(TrustPartitioning.parseRange(null));
+        }
+
+        @Test
+        @DisplayName("aligns buckets on their width since the epoch")
+        void alignsBuckets() {
+            assertEquals(TODAY, TrustPartitioning.bucketStart(NOW, DAY));
+            assertEquals(TODAY, TrustPartitioning.bucketStart(TODAY, DAY));
+            assertEquals(0, TrustPartitioning.bucketStart(NOW, NOW + 1));
+        }
+
+        @Test
+        @DisplayName("names partitions after the first day of their bucket")
+        void namesPartitions() {
+            assertEquals("EMAIL_OTP_TRUSTED_IP_P20231114", TrustPartitioning.partitionName("EMAIL_OTP_TRUSTED_IP", TODAY));
+            assertEquals("keycloak.EMAIL_OTP_TRUSTED_DEVICE_P20231115",
+                TrustPartitioning.partitionName("keycloak.EMAIL_OTP_TRUSTED_DEVICE", TODAY + DAY));
+        }
+    }
+
+    @Nested
+    @DisplayName("Upcoming partitions")
+    class Upcoming {
+
+        @Test
+        @DisplayName("creates every bucket from today until the horizon")
+        void createsAllBuckets() {
+            List<long[]> missing = TrustPartitioning.missingBuckets(List.of(), NOW, DAY, 2 * DAY);
+
+            assertEquals(3, missing.size());
+            assertArrayEquals(new long[] {TODAY, TODAY + DAY}, missing.get(0));
+            assertArrayEquals(new long[] {TODAY + 2 * DAY, TODAY + 3 * DAY}, missing.get(2));
+        }
+
+        @Test
+        @DisplayName("skips buckets an existing partition already covers")
+        void skipsCovered() {
+            List<long[]> existing = List.of(new long[] {TODAY, TODAY + DAY}, new long[] {TODAY + DAY, TODAY + 2 * DAY});
+
+            List<long[]> missing = TrustPartitioning.missingBuckets(existing, NOW, DAY, 2 * DAY);
+
+            assertEquals(1, missing.size());
+            assertArrayEquals(new long[] {TODAY + 2 * DAY, TODAY + 3 * DAY}, missing.get(0));
+        }
+
+        @Test
+        @DisplayName("skips buckets overlapping partitions of another width")
+        void skipsOverlapping() {
+            List<long[]> existing = List.of(new long[] {TODAY - DAY, TODAY + 7 * DAY});
+
+            assertTrue(TrustPartitioning.missingBuckets(existing, NOW, DAY, 2 * DAY).isEmpty());
+        }
+    }
+
+    @Nested
+    @DisplayName("User locks")
+    class UserLocks {
+
+        @Test
+        @DisplayName("takes a transaction advisory lock keyed by the user")
+        void locksUser() throws Exception {
+            Connection connection = mock(Connection.class);
+            PreparedStatement statement = mock(PreparedStatement.class);
+            when(connection.prepareStatement("SELECT pg_advisory_xact_lock(?, ?)")).thenReturn(statement);
+
+            TrustPartitioning.lockUser(connection, "realm", "user");
+            TrustPartitioning.lockUser(connection, "realm", "user");
+            TrustPartitioning.lockUser(connection, "realm", "other");
+
+            verify(statement, times(2)).setInt(2, "realm:user".hashCode());
+            verify(statement).setInt(2, "realm:other".hashCode());
+            verify(statement, times(3)).setInt(eq(1), anyInt());
+            verify(statement, times(3)).execute();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package ch.jacem.for_keycloak.email_otp_authenticator.trust;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("TrustUpsertDialect")
+class TrustUpsertDialectTest {
+
+    private static final String[] COLUMNS = {"ID", "REALM_ID", "USER_ID", "IP_ADDRESS", "EXPIRES_AT", "CREATED_AT"};
+    private static final String[] KEY_COLUMNS = {"REALM_ID", "USER_ID", "IP_ADDRESS"};
+    private static final String[] UPDATE_COLUMNS = {"EXPIRES_AT"};
+
+    @Nested
+    @DisplayName("Dialect detection")
+    class Detection {
+
+        @Test
+        @DisplayName("maps JDBC product names")
+        void mapsProductNames() {
+            assertEquals(TrustUpsertDialect.POSTGRESQL, TrustUpsertDialect.fromProductName("PostgreSQL"));
+            assertEquals(TrustUpsertDialect.MYSQL, TrustUpsertDialect.fromProductName("MySQL"));
+            assertEquals(TrustUpsertDialect.MYSQL, TrustUpsertDialect.fromProductName("MariaDB"));
+            assertEquals(TrustUpsertDialect.ORACLE, TrustUpsertDialect.fromProductName("Oracle"));
+            assertEquals(TrustUpsertDialect.MSSQL, TrustUpsertDialect.fromProductName("Microsoft SQL Server"));
+            assertEquals(TrustUpsertDialect.H2, TrustUpsertDialect.fromProductName("H2"));
+        }
+
+        @Test
+        @DisplayName("unknown databases fall back to JPA")
+        void unknownUnsupported() {
+            assertEquals(TrustUpsertDialect.UNSUPPORTED, TrustUpsertDialect.fromProductName("SQLite"));
+            assertEquals(TrustUpsertDialect.UNSUPPORTED, TrustUpsertDialect.fromProductName(null));
+            assertFalse(TrustUpsertDialect.UNSUPPORTED.isSupported());
+        }
+    }
+
+    @Nested
+    @DisplayName("Generated SQL")
+    class GeneratedSql {
+
+        @Test
+        @DisplayName("PostgreSQL uses ON CONFLICT on the unique key")
+        void postgresql() {
+            String sql = TrustUpsertDialect.POSTGRESQL.upsertSql("T", COLUMNS, KEY_COLUMNS, UPDATE_COLUMNS);
+
+            assertTrue(sql.contains("ON CONFLICT (REALM_ID, USER_ID, IP_ADDRESS) DO UPDATE SET EXPIRES_AT = EXCLUDED.EXPIRES_AT"));
+        }
+
+        @Test
+        @DisplayName("MySQL uses ON DUPLICATE KEY")
+        void mysql() {
+            String sql = TrustUpsertDialect.MYSQL.upsertSql("T", COLUMNS, KEY_COLUMNS, UPDATE_COLUMNS);
+
+            assertTrue(sql.endsWith("ON DUPLICATE KEY UPDATE EXPIRES_AT = VALUES(EXPIRES_AT)"));
+        }
+
+        @Test
+        @DisplayName("Oracle selects the source row from DUAL")
+        void oracle() {
+            String sql = TrustUpsertDialect.ORACLE.upsertSql("T", COLUMNS, KEY_COLUMNS, UPDATE_COLUMNS);
+
+            assertTrue(sql.startsWith("MERGE INTO T t USING (SELECT ? AS ID"));
+            assertTrue(sql.contains("FROM DUAL) s"));
+        }
+
+        @Test
+        @DisplayName("SQL Server holds the key range lock and terminates the MERGE")
+        void mssql() {
+            String sql = TrustUpsertDialect.MSSQL.upsertSql("T", COLUMNS, KEY_COLUMNS, UPDATE_COLUMNS);
+
+            assertTrue(sql.startsWith("MERGE INTO T WITH (HOLDLOCK) AS t"));
+            assertTrue(sql.endsWith(";"));
+        }
+
+        @Test
+        @DisplayName("binds one parameter per column")
+        void parameterCount() {
+            for (TrustUpsertDialect dialect : TrustUpsertDialect.values()) {
+                if (dialect.isSupported()) {
+                    String sql = dialect.upsertSql("T", COLUMNS, KEY_COLUMNS, UPDATE_COLUMNS);
+                    assertEquals(COLUMNS.length, sql.chars().filter(c -> c == '?').count(), dialect.name());
+                }
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Embedded H2")
+    class EmbeddedH2 {
+
+        private Connection connection;
+        private String url;
+
+        @BeforeEach
+        void createTable() throws Exception {
+            url = "jdbc:h2:mem:upsert-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+            connection = DriverManager.getConnection(url);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE EMAIL_OTP_TRUSTED_IP ("
+                    + "ID VARCHAR(36) PRIMARY KEY, REALM_ID VARCHAR(255) NOT NULL, USER_ID VARCHAR(255) NOT NULL, "
+                    + "IP_ADDRESS VARCHAR(45) NOT NULL, EXPIRES_AT BIGINT NOT NULL, CREATED_AT BIGINT NOT NULL, "
+                    + "CONSTRAINT UK_EMAIL_OTP_TRUSTED_IP UNIQUE (REALM_ID, USER_ID, IP_ADDRESS))");
+            }
+        }
+
+        @AfterEach
+        void dropDatabase() throws Exception {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DROP ALL OBJECTS");
+            }
+            connection.close();
+        }
+
+        private void upsert(Connection c, String ipAddress, long expiresAt) throws Exception {
+            TrustUpsertDialect dialect = TrustUpsertDialect.fromProductName(c.getMetaData().getDatabaseProductName());
+            dialect.upsert(c, "EMAIL_OTP_TRUSTED_IP", COLUMNS, KEY_COLUMNS, UPDATE_COLUMNS,
+                UUID.randomUUID().toString(), "realm", "user", ipAddress, expiresAt, 1L);
+        }
+
+        private List<Long> expiries(String ipAddress) throws Exception {
+            List<Long> result = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT EXPIRES_AT FROM EMAIL_OTP_TRUSTED_IP WHERE IP_ADDRESS = ?")) {
+                statement.setString(1, ipAddress);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(rs.getLong(1));
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Test
+        @DisplayName("inserts a missing entry")
+        void inserts() throws Exception {
+            upsert(connection, "ip", 100);
+
+            assertEquals(List.of(100L), expiries("ip"));
+        }
+
+        @Test
+        @DisplayName("updates an existing entry in place")
+        void updates() throws Exception {
+            upsert(connection, "ip", 100);
+            upsert(connection, "ip", 200);
+
+            assertEquals(List.of(200L), expiries("ip"));
+        }
+
+        @Test
+        @DisplayName("concurrent writers of the same entry do not violate the unique constraint")
+        void concurrentWriters() throws Exception {
+            int writers = 8;
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(writers);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (int i = 0; i < writers; i++) {
+                    long expiresAt = 1000 + i;
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        try (Connection c = DriverManager.getConnection(url)) {
+                            upsert(c, "shared-ip", expiresAt);
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> result : results) {
+                    result.get(10, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            assertEquals(1, expiries("shared-ip").size());
+        }
+    }
+}